@@ -0,0 +1,97 @@
+package apptest.load;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import se.sundsvall.emailsender.service.EmailService;
+
+/**
+ * Fires a burst of concurrent requests at the synchronous send endpoint, with a send that blocks (as a slow SMTP server
+ * or Graph API would), and measures how many sends that are in progress at the same time.
+ */
+@ActiveProfiles("it")
+abstract class AbstractConcurrencyCeilingIT {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AbstractConcurrencyCeilingIT.class);
+
+	static final int PLATFORM_THREADS = 20;
+	static final int REQUESTS = 200;
+
+	private static final Duration SEND_DURATION = Duration.ofMillis(500);
+	private static final String REQUEST_BODY = """
+		{
+			"emailAddress": "recipient@somehost.com",
+			"sender": {
+				"address": "customerservice@somedummyhost.com",
+				"name": "Customer Service"
+			},
+			"subject": "Order confirmation",
+			"message": "Lorem ipsum dolor sit amet"
+		}
+		""";
+
+	private final AtomicInteger inProgress = new AtomicInteger();
+	private final AtomicInteger ceiling = new AtomicInteger();
+
+	@LocalServerPort
+	private int port;
+
+	@MockitoBean
+	private EmailService mockEmailService;
+
+	@BeforeEach
+	void setUp() {
+		doAnswer(invocation -> {
+			ceiling.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+			try {
+				MILLISECONDS.sleep(SEND_DURATION.toMillis());
+			} finally {
+				inProgress.decrementAndGet();
+			}
+			return null;
+		}).when(mockEmailService).sendMail(any(), any());
+	}
+
+	@Test
+	void concurrencyCeiling() {
+		final var startTime = System.nanoTime();
+		try (final var httpClient = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build()) {
+			final var request = HttpRequest.newBuilder(URI.create("http://localhost:%d/2281/send/email".formatted(port)))
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(REQUEST_BODY))
+				.build();
+
+			final var responses = new ArrayList<CompletableFuture<HttpResponse<Void>>>();
+			for (var i = 0; i < REQUESTS; i++) {
+				responses.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()));
+			}
+
+			assertThat(responses).allSatisfy(response -> assertThat(response.join().statusCode()).isEqualTo(200));
+		}
+
+		LOGGER.info("{}: {} concurrent send(s) at most, {} request(s) in {} ms", getClass().getSimpleName(), ceiling.get(), REQUESTS,
+			Duration.ofNanos(System.nanoTime() - startTime).toMillis());
+
+		verifyCeiling(ceiling.get());
+	}
+
+	abstract void verifyCeiling(int ceiling);
+}
@@ -0,0 +1,28 @@
+package apptest.load;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+import org.springframework.boot.test.context.SpringBootTest;
+import se.sundsvall.emailsender.Application;
+
+@SpringBootTest(
+	webEnvironment = RANDOM_PORT,
+	classes = Application.class,
+	properties = {
+		"spring.main.banner-mode=off",
+		"logging.level.se.sundsvall.dept44.payload=OFF",
+		"spring.threads.virtual.enabled=false",
+		"server.tomcat.threads.max=" + AbstractConcurrencyCeilingIT.PLATFORM_THREADS,
+		"integration.email.instances.2281.basic.host=localhost",
+		"integration.email.instances.2281.basic.port=2525"
+	}
+)
+class PlatformThreadsConcurrencyCeilingIT extends AbstractConcurrencyCeilingIT {
+
+	@Override
+	void verifyCeiling(final int ceiling) {
+		// Every blocked send holds on to a Tomcat worker thread
+		assertThat(ceiling).isLessThanOrEqualTo(PLATFORM_THREADS);
+	}
+}
@@ -0,0 +1,78 @@
+package se.sundsvall.emailsender.benchmark;
+
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.sundsvall.dept44.common.validators.annotation.impl.ValidBase64ConstraintValidator;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import tools.jackson.databind.json.JsonMapper;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Compares reading a BASE64-encoded attachment the way it used to be done - parsed into a String, validated twice and
+ * then decoded - with the single, streaming, decode that {@link se.sundsvall.emailsender.api.deserializer.Base64Deserializer}
+ * does while the request body is parsed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class Base64DecodingBenchmark {
+
+	private static final ValidBase64ConstraintValidator BASE64_VALIDATOR = new ValidBase64ConstraintValidator();
+
+	@Param({
+		"1", "5", "20"
+	})
+	private int megabytes;
+
+	private JsonMapper jsonMapper;
+	private byte[] json;
+
+	@Setup
+	public void setUp() {
+		final var content = new byte[megabytes * 1024 * 1024];
+		ThreadLocalRandom.current().nextBytes(content);
+
+		jsonMapper = JsonMapper.builder().build();
+		json = """
+			{"name": "attachment.bin", "contentType": "application/octet-stream", "content": "%s"}
+			""".formatted(Base64.getEncoder().encodeToString(content)).getBytes(UTF_8);
+	}
+
+	@Benchmark
+	public byte[] parseValidateAndDecodeString() {
+		final var attachment = jsonMapper.readValue(json, StringAttachment.class);
+
+		// @ValidBase64 during bean validation, and again in the mail sender, before the actual decoding
+		if (!BASE64_VALIDATOR.isValid(attachment.content()) || !BASE64_VALIDATOR.isValid(attachment.content())) {
+			throw new IllegalStateException("Invalid BASE64");
+		}
+		return Base64.getDecoder().decode(attachment.content());
+	}
+
+	@Benchmark
+	public byte[] decodeWhileParsing() {
+		return jsonMapper.readValue(json, SendEmailRequest.Attachment.class).content();
+	}
+
+	/**
+	 * The attachment as it used to be modelled, with the content as a BASE64-encoded string.
+	 */
+	public record StringAttachment(String content, String name, String contentType) {
+	}
+}
@@ -0,0 +1,74 @@
+package se.sundsvall.emailsender.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+import se.sundsvall.emailsender.api.model.AttachmentBuilder;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.api.model.SenderBuilder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Creates the e-mails that the benchmarks work on, in the shapes that the service gets them in.
+ */
+public final class BenchmarkRequests {
+
+	private static final String TEXT = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore. ";
+
+	/**
+	 * The body of an e-mail - plain text or HTML only.
+	 */
+	public enum Body {
+		TEXT,
+		HTML
+	}
+
+	private BenchmarkRequests() {}
+
+	/**
+	 * @param  body        the body of the e-mail
+	 * @param  attachments the number of attachments
+	 * @param  kilobytes   the size of the e-mail - the attachments share it if there are any, otherwise the body takes it
+	 * @return             an e-mail of the given shape and size
+	 */
+	public static SendEmailRequest create(final Body body, final int attachments, final int kilobytes) {
+		final var bytes = kilobytes * 1024;
+		final var bodySize = attachments == 0 ? bytes : 1024;
+
+		return SendEmailRequestBuilder.create()
+			.withEmailAddress("recipient@sundsvall.se")
+			.withSubject("Benchmark")
+			.withMessage(body == Body.TEXT ? text(bodySize) : null)
+			.withHtmlMessage(body == Body.HTML ? ("<html><body><p>" + text(bodySize) + "</p></body></html>").getBytes(UTF_8) : null)
+			.withSender(SenderBuilder.create()
+				.withName("Sundsvalls kommun")
+				.withAddress("sender@sundsvall.se")
+				.withReplyTo("reply-to@sundsvall.se")
+				.build())
+			.withAttachments(IntStream.range(0, attachments)
+				.mapToObj(i -> attachment(i, bytes / attachments))
+				.toList())
+			.withHeaders(Map.of(
+				"Message-ID", List.of("<benchmark@sundsvall.se>"),
+				"References", List.of("<reference-1@sundsvall.se>", "<reference-2@sundsvall.se>")))
+			.build();
+	}
+
+	private static String text(final int size) {
+		return TEXT.repeat(size / TEXT.length() + 1).substring(0, size);
+	}
+
+	private static SendEmailRequest.Attachment attachment(final int index, final int size) {
+		final var content = new byte[size];
+		ThreadLocalRandom.current().nextBytes(content);
+
+		return AttachmentBuilder.create()
+			.withName("attachment-" + index + ".bin")
+			.withContentType("application/octet-stream")
+			.withContent(content)
+			.build();
+	}
+}
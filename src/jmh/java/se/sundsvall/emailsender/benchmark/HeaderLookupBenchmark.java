@@ -0,0 +1,38 @@
+package se.sundsvall.emailsender.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.sundsvall.emailsender.api.model.Header;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Measures how fast headers are looked up - by key, by enum constant name, and when they don't exist - which is done
+ * for every header, both when it's validated and when it's added to the message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HeaderLookupBenchmark {
+
+	@Param({
+		"Message-ID", "MESSAGE_ID", "Auto-Submitted", "X-Unknown"
+	})
+	private String name;
+
+	@Benchmark
+	public Header fromString() {
+		return Header.fromString(name);
+	}
+}
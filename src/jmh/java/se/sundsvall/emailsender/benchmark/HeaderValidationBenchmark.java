@@ -0,0 +1,78 @@
+package se.sundsvall.emailsender.benchmark;
+
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Measures how fast headers are validated - on their own, through {@link se.sundsvall.emailsender.api.validation.ValidHeaders},
+ * and as part of validating a whole e-mail - with References chains of different lengths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HeaderValidationBenchmark {
+
+	@Param({
+		"true", "false"
+	})
+	private boolean valid;
+
+	// The length of the References chain, which grows with every reply in a thread
+	@Param({
+		"1", "100"
+	})
+	private int references;
+
+	private Validator validator;
+	private Map<String, List<String>> headers;
+	private SendEmailRequest request;
+
+	@Setup
+	public void setUp() {
+		validator = Validation.buildDefaultValidatorFactory().getValidator();
+		headers = valid
+			? Map.of(
+				"Message-ID", List.of("<benchmark@sundsvall.se>"),
+				"References", IntStream.range(0, references).mapToObj(i -> "<reference-" + i + "@sundsvall.se>").toList(),
+				"Auto-Submitted", List.of("auto-generated"))
+			: Map.of(
+				"Message-ID", List.of("benchmark"),
+				"X-Unknown", List.of("value"));
+		request = SendEmailRequestBuilder.from(BenchmarkRequests.create(BenchmarkRequests.Body.TEXT, 1, 1))
+			.withHeaders(headers)
+			.build();
+	}
+
+	@Benchmark
+	public Set<ConstraintViolation<SendEmailRequest>> validateHeaders() {
+		return validator.validateValue(SendEmailRequest.class, "headers", headers);
+	}
+
+	@Benchmark
+	public Set<ConstraintViolation<SendEmailRequest>> validateRequest() {
+		return validator.validate(request);
+	}
+}
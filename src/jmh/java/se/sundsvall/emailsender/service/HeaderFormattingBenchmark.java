@@ -0,0 +1,60 @@
+package se.sundsvall.emailsender.service;
+
+import java.util.List;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Compares formatting a header the way it used to be done - reducing the values with string concatenation, which is
+ * quadratic in the number of values - with the single join the mail senders do now, for References chains of
+ * different lengths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HeaderFormattingBenchmark {
+
+	@Param({
+		"1", "10", "100", "1000"
+	})
+	private int references;
+
+	private SmtpMailSender mailSender;
+	private List<String> values;
+
+	@Setup
+	public void setUp() {
+		mailSender = new SmtpMailSender(new JavaMailSenderImpl());
+		values = IntStream.range(0, references)
+			.mapToObj(i -> "<reference-" + i + "@sundsvall.se>")
+			.toList();
+	}
+
+	@Benchmark
+	public String reduce() {
+		return values.stream()
+			.reduce((a, b) -> a + " " + b)
+			.orElse("");
+	}
+
+	@Benchmark
+	public String formatHeader() {
+		return mailSender.formatHeader(values);
+	}
+}
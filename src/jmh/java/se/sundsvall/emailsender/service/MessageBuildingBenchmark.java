@@ -0,0 +1,111 @@
+package se.sundsvall.emailsender.service;
+
+import com.microsoft.graph.models.Message;
+import com.microsoft.kiota.serialization.JsonSerializationWriter;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.benchmark.BenchmarkRequests;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Measures how fast the mail senders turn an e-mail into what they hand over to the mail server - a MIME message for
+ * SMTP, and a Graph message for Microsoft Graph - both built, and built and encoded the way they go over the wire.
+ * <p>
+ * Lives in the service package, since the message building isn't part of the public API of the mail senders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MessageBuildingBenchmark {
+
+	@Param({
+		"TEXT", "HTML"
+	})
+	private BenchmarkRequests.Body body;
+
+	@Param({
+		"0", "1", "10"
+	})
+	private int attachments;
+
+	@Param({
+		"1", "1024", "25600"
+	})
+	private int kilobytes;
+
+	private JavaMailSenderImpl javaMailSender;
+	private SmtpMailSender smtpMailSender;
+	private SmtpMailSender cachingSmtpMailSender;
+	private MicrosoftGraphMailSender graphMailSender;
+	private SendEmailRequest request;
+
+	@Setup
+	public void setUp() {
+		javaMailSender = new JavaMailSenderImpl();
+		smtpMailSender = new SmtpMailSender(javaMailSender);
+		// Large enough for every attachment of the request, as when the same notice goes to many recipients
+		cachingSmtpMailSender = new SmtpMailSender(javaMailSender, 1, Duration.ZERO, Long.MAX_VALUE);
+		// Building messages doesn't touch the Graph client
+		graphMailSender = new MicrosoftGraphMailSender(null);
+		request = BenchmarkRequests.create(body, attachments, kilobytes);
+	}
+
+	@Benchmark
+	public MimeMessage smtpCreateMimeMessage() throws MessagingException {
+		return smtpMailSender.createMimeMessage(javaMailSender, request);
+	}
+
+	@Benchmark
+	public MimeMessage smtpCreateAndWriteMimeMessage() throws MessagingException, IOException {
+		final var message = smtpMailSender.createMimeMessage(javaMailSender, request);
+		// What the SMTP transport does before it streams the message to the mail server
+		message.saveChanges();
+		message.writeTo(OutputStream.nullOutputStream());
+		return message;
+	}
+
+	@Benchmark
+	public MimeMessage smtpCreateAndWriteMimeMessageWithCachedAttachments() throws MessagingException, IOException {
+		final var message = cachingSmtpMailSender.createMimeMessage(javaMailSender, request);
+		message.saveChanges();
+		message.writeTo(OutputStream.nullOutputStream());
+		return message;
+	}
+
+	@Benchmark
+	public Message graphBuildMessage() {
+		return graphMailSender.buildMessage(request);
+	}
+
+	@Benchmark
+	public long graphBuildAndSerializeMessage() throws IOException {
+		final var message = graphMailSender.buildMessage(request);
+		// What the Graph client does before it posts the message
+		final var writer = new JsonSerializationWriter();
+		writer.writeObjectValue(null, message);
+		try (final InputStream content = writer.getSerializedContent()) {
+			return content.transferTo(OutputStream.nullOutputStream());
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package se.sundsvall.emailsender.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Measures how many e-mails per second the outbox journal makes durable, and completes, when many requests append
+ * concurrently - the case that group commit is for. The journal is kept in the temporary directory, which should be on
+ * the kind of disk that the outbox is meant for, since the result is bounded by how fast the disk forces writes.
+ * <p>
+ * Lives in the service package, since the journal isn't part of the public API of the outbox.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Fork(1)
+@Threads(32)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OutboxBenchmark {
+
+	@Param({
+		"1", "64"
+	})
+	private int kilobytes;
+
+	private Path directory;
+	private OutboxJournal journal;
+	private byte[] payload;
+
+	@Setup
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("outbox-benchmark-");
+		journal = new OutboxJournal(directory, 64 * 1024 * 1024);
+		payload = new byte[kilobytes * 1024];
+		ThreadLocalRandom.current().nextBytes(payload);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		journal.close();
+		try (final var paths = Files.walk(directory)) {
+			for (final var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Benchmark
+	public long appendAndComplete() throws IOException {
+		final var id = journal.append(payload);
+		journal.complete(id);
+		return id;
+	}
+}
@@ -1,10 +1,12 @@
 package se.sundsvall.emailsender;
 
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import se.sundsvall.dept44.ServiceApplication;
 
 import static org.springframework.boot.SpringApplication.run;
 
 @ServiceApplication
+@ConfigurationPropertiesScan
 public class Application {
 	public static void main(String... args) {
 		run(Application.class, args);
@@ -0,0 +1,65 @@
+package se.sundsvall.emailsender.api;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import java.io.IOException;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import se.sundsvall.dept44.common.validators.annotation.ValidMunicipalityId;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.dept44.problem.violations.ConstraintViolationProblem;
+import se.sundsvall.emailsender.api.model.UploadAttachmentResponse;
+import se.sundsvall.emailsender.service.AttachmentStore;
+
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA_VALUE;
+import static org.springframework.http.ResponseEntity.ok;
+
+@RestController
+@Tag(name = "Attachment resources", description = "Resources for uploading attachments that e-mails can reference")
+@Validated
+class AttachmentResource {
+
+	private final AttachmentStore attachmentStore;
+
+	AttachmentResource(final AttachmentStore attachmentStore) {
+		this.attachmentStore = attachmentStore;
+	}
+
+	@PostMapping(path = "{municipalityId}/attachments", consumes = MULTIPART_FORM_DATA_VALUE)
+	@Operation(summary = "Upload an attachment", description = "The attachment is stored under the SHA-256 hash of its content, which e-mails can use as contentHash in place of the content", responses = {
+		@ApiResponse(
+			responseCode = "200",
+			description = "Successful Operation",
+			useReturnTypeSchema = true),
+		@ApiResponse(
+			responseCode = "400",
+			description = "Bad Request",
+			content = @Content(schema = @Schema(oneOf = {
+				Problem.class, ConstraintViolationProblem.class
+			}))),
+		@ApiResponse(
+			responseCode = "500",
+			description = "Internal Server Error",
+			content = @Content(schema = @Schema(implementation = Problem.class)))
+	})
+	ResponseEntity<UploadAttachmentResponse> uploadAttachment(
+		@Parameter(name = "municipalityId", description = "Municipality id", example = "2281") @ValidMunicipalityId @PathVariable final String municipalityId,
+		@RequestPart("file") final MultipartFile file) {
+
+		try (final var content = file.getInputStream()) {
+			return ok(new UploadAttachmentResponse(attachmentStore.store(content), file.getSize()));
+		} catch (final IOException e) {
+			throw Problem.valueOf(INTERNAL_SERVER_ERROR, "Unable to store attachment " + file.getOriginalFilename());
+		}
+	}
+}
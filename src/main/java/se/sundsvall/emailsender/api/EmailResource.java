@@ -1,24 +1,60 @@
 package se.sundsvall.emailsender.api;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
 import se.sundsvall.dept44.common.validators.annotation.ValidMunicipalityId;
 import se.sundsvall.dept44.problem.Problem;
 import se.sundsvall.dept44.problem.violations.ConstraintViolationProblem;
+import se.sundsvall.emailsender.api.model.AttachmentBuilder;
+import se.sundsvall.emailsender.api.model.Header;
+import se.sundsvall.emailsender.api.model.MailMergeRecipient;
+import se.sundsvall.emailsender.api.model.SendEmailBatchResponse;
 import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.api.model.SendEmailResponse;
+import se.sundsvall.emailsender.service.AsyncEmailService;
+import se.sundsvall.emailsender.service.BatchEmailService;
 import se.sundsvall.emailsender.service.EmailService;
+import se.sundsvall.emailsender.service.IdempotencyService;
+import se.sundsvall.emailsender.service.MailMergeService;
+import tools.jackson.databind.json.JsonMapper;
 
+import static java.util.Locale.ROOT;
+import static java.util.Optional.ofNullable;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA_VALUE;
+import static org.springframework.http.ResponseEntity.accepted;
 import static org.springframework.http.ResponseEntity.ok;
 
 @RestController
@@ -26,14 +62,30 @@ import static org.springframework.http.ResponseEntity.ok;
 @Validated
 class EmailResource {
 
+	static final String REQUEST_METRIC_NAME = "email.request";
+	static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
 	private final EmailService service;
+	private final AsyncEmailService asyncService;
+	private final BatchEmailService batchService;
+	private final MailMergeService mailMergeService;
+	private final IdempotencyService idempotencyService;
+	private final JsonMapper jsonMapper;
+	private final MeterRegistry meterRegistry;
 
-	EmailResource(final EmailService service) {
+	EmailResource(final EmailService service, final AsyncEmailService asyncService, final BatchEmailService batchService, final MailMergeService mailMergeService,
+		final IdempotencyService idempotencyService, final JsonMapper jsonMapper, final MeterRegistry meterRegistry) {
 		this.service = service;
+		this.asyncService = asyncService;
+		this.batchService = batchService;
+		this.mailMergeService = mailMergeService;
+		this.idempotencyService = idempotencyService;
+		this.jsonMapper = jsonMapper;
+		this.meterRegistry = meterRegistry;
 	}
 
 	@PostMapping("{municipalityId}/send/email")
-	@Operation(summary = "Send an e-mail", responses = {
+	@Operation(summary = "Send an e-mail", description = "Repeating a request with the same idempotency key, or Message-ID header, sends the e-mail at most once", responses = {
 		@ApiResponse(
 			responseCode = "200",
 			description = "Successful Operation",
@@ -47,14 +99,238 @@ class EmailResource {
 		@ApiResponse(
 			responseCode = "500",
 			description = "Internal Server Error",
+			content = @Content(schema = @Schema(implementation = Problem.class))),
+		@ApiResponse(
+			responseCode = "409",
+			description = "Conflict",
+			content = @Content(schema = @Schema(implementation = Problem.class))),
+		@ApiResponse(
+			responseCode = "503",
+			description = "Service Unavailable",
 			content = @Content(schema = @Schema(implementation = Problem.class)))
 	})
 	ResponseEntity<Void> sendMail(
+		@Parameter(name = "municipalityId", description = "Municipality id", example = "2281") @ValidMunicipalityId @PathVariable final String municipalityId,
+		@Parameter(name = IDEMPOTENCY_KEY_HEADER, description = "Identifies the e-mail, so that it's sent at most once. Defaults to the Message-ID header of the e-mail, together with its recipient") @Size(max = 255) @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) final String idempotencyKey,
+		@Valid @RequestBody final SendEmailRequest request) {
+
+		return timed(municipalityId, "send", () -> {
+			idempotencyService.execute(municipalityId, idempotencyKey(idempotencyKey, request), () -> service.sendMail(municipalityId, request));
+
+			return ok().build();
+		});
+	}
+
+	@PostMapping(path = "{municipalityId}/send/email/multipart", consumes = MULTIPART_FORM_DATA_VALUE)
+	@Operation(summary = "Send an e-mail, with attachments as binary parts", description = "The request goes in the 'request' part, and each attachment in an 'attachments' part", responses = {
+		@ApiResponse(
+			responseCode = "200",
+			description = "Successful Operation",
+			useReturnTypeSchema = true),
+		@ApiResponse(
+			responseCode = "400",
+			description = "Bad Request",
+			content = @Content(schema = @Schema(oneOf = {
+				Problem.class, ConstraintViolationProblem.class
+			}))),
+		@ApiResponse(
+			responseCode = "500",
+			description = "Internal Server Error",
+			content = @Content(schema = @Schema(implementation = Problem.class))),
+		@ApiResponse(
+			responseCode = "503",
+			description = "Service Unavailable",
+			content = @Content(schema = @Schema(implementation = Problem.class)))
+	})
+	ResponseEntity<Void> sendMailMultipart(
+		@Parameter(name = "municipalityId", description = "Municipality id", example = "2281") @ValidMunicipalityId @PathVariable final String municipalityId,
+		@Valid @RequestPart("request") final SendEmailRequest request,
+		@RequestPart(name = "attachments", required = false) final List<MultipartFile> attachments) {
+
+		return timed(municipalityId, "multipart", () -> {
+			service.sendMail(municipalityId, withAttachments(request, attachments));
+
+			return ok().build();
+		});
+	}
+
+	@PostMapping("{municipalityId}/send/email/async")
+	@Operation(summary = "Queue an e-mail for asynchronous sending", responses = {
+		@ApiResponse(
+			responseCode = "202",
+			description = "Accepted",
+			useReturnTypeSchema = true),
+		@ApiResponse(
+			responseCode = "400",
+			description = "Bad Request",
+			content = @Content(schema = @Schema(oneOf = {
+				Problem.class, ConstraintViolationProblem.class
+			}))),
+		@ApiResponse(
+			responseCode = "500",
+			description = "Internal Server Error",
+			content = @Content(schema = @Schema(implementation = Problem.class))),
+		@ApiResponse(
+			responseCode = "503",
+			description = "Service Unavailable",
+			content = @Content(schema = @Schema(implementation = Problem.class)))
+	})
+	ResponseEntity<SendEmailResponse> sendMailAsync(
 		@Parameter(name = "municipalityId", description = "Municipality id", example = "2281") @ValidMunicipalityId @PathVariable final String municipalityId,
 		@Valid @RequestBody final SendEmailRequest request) {
 
-		service.sendMail(municipalityId, request);
+		return timed(municipalityId, "async", () -> {
+			final var messageId = asyncService.sendMail(municipalityId, request);
+
+			return accepted().body(new SendEmailResponse(messageId));
+		});
+	}
+
+	@PostMapping("{municipalityId}/send/email/batch")
+	@Operation(summary = "Send a batch of e-mails", description = "Each e-mail is validated and sent on its own, and gets its own result", responses = {
+		@ApiResponse(
+			responseCode = "200",
+			description = "Successful Operation",
+			useReturnTypeSchema = true),
+		@ApiResponse(
+			responseCode = "400",
+			description = "Bad Request",
+			content = @Content(schema = @Schema(oneOf = {
+				Problem.class, ConstraintViolationProblem.class
+			}))),
+		@ApiResponse(
+			responseCode = "500",
+			description = "Internal Server Error",
+			content = @Content(schema = @Schema(implementation = Problem.class)))
+	})
+	ResponseEntity<SendEmailBatchResponse> sendMails(
+		@Parameter(name = "municipalityId", description = "Municipality id", example = "2281") @ValidMunicipalityId @PathVariable final String municipalityId,
+		@NotEmpty @RequestBody final List<SendEmailRequest> requests) {
+
+		return timed(municipalityId, "batch", () -> {
+			final var results = batchService.sendMails(municipalityId, requests);
+
+			return ok(new SendEmailBatchResponse(results));
+		});
+	}
+
+	@PostMapping(path = "{municipalityId}/send/email/merge", consumes = APPLICATION_NDJSON_VALUE)
+	@Operation(summary = "Send an e-mail to many recipients",
+		description = "The request is NDJSON - the e-mail on the first line, without a recipient, followed by one recipient per line. The response is NDJSON as well, with one result per recipient, written as soon as it's known",
+		requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(content = @Content(mediaType = APPLICATION_NDJSON_VALUE, schema = @Schema(oneOf = {
+			SendEmailRequest.class, MailMergeRecipient.class
+		}))),
+		responses = {
+			@ApiResponse(
+				responseCode = "200",
+				description = "Successful Operation",
+				content = @Content(mediaType = APPLICATION_NDJSON_VALUE, schema = @Schema(implementation = SendEmailBatchResponse.Result.class))),
+			@ApiResponse(
+				responseCode = "400",
+				description = "Bad Request",
+				content = @Content(schema = @Schema(oneOf = {
+					Problem.class, ConstraintViolationProblem.class
+				}))),
+			@ApiResponse(
+				responseCode = "500",
+				description = "Internal Server Error",
+				content = @Content(schema = @Schema(implementation = Problem.class)))
+		})
+	void sendMailMerge(
+		@Parameter(name = "municipalityId", description = "Municipality id", example = "2281") @ValidMunicipalityId @PathVariable final String municipalityId,
+		final InputStream body,
+		final HttpServletResponse response) {
+
+		timed(municipalityId, "merge", () -> {
+			mailMergeService.sendMails(municipalityId, body, result -> writeResult(response, result));
+
+			return null;
+		});
+	}
+
+	void writeResult(final HttpServletResponse response, final SendEmailBatchResponse.Result result) {
+		try {
+			// Problems that come before the first result get their own response
+			if (!response.isCommitted()) {
+				response.setStatus(OK.value());
+				response.setContentType(APPLICATION_NDJSON_VALUE);
+			}
+			final var outputStream = response.getOutputStream();
+			outputStream.write(jsonMapper.writeValueAsBytes(result));
+			outputStream.write('\n');
+			// Each result goes out as soon as it's known
+			outputStream.flush();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Runs the given request handler, and records how long it took. Compared to the framework's own request metrics, this
+	 * leaves out parsing and validation of the request, and adds the municipality.
+	 */
+	<T> T timed(final String municipalityId, final String endpoint, final Supplier<T> handler) {
+		final var sample = Timer.start(meterRegistry);
+		var outcome = "failure";
+		try {
+			final var result = handler.get();
+			outcome = "success";
+			return result;
+		} finally {
+			// The municipality id has been validated, which keeps the number of time series bounded
+			sample.stop(Timer.builder(REQUEST_METRIC_NAME)
+				.tags("municipality", municipalityId, "endpoint", endpoint, "outcome", outcome)
+				.description("The time it takes to handle send requests, once they have been parsed and validated")
+				.publishPercentileHistogram()
+				.register(meterRegistry));
+		}
+	}
+
+	/**
+	 * @return the given idempotency key, or else the Message-ID header of the e-mail together with its recipient, if any
+	 *         - a message that is sent to several recipients, one request each, shares its Message-ID
+	 */
+	String idempotencyKey(final String idempotencyKey, final SendEmailRequest request) {
+		if (idempotencyKey != null) {
+			return idempotencyKey;
+		}
+
+		return ofNullable(request.headers()).orElse(Map.of()).entrySet().stream()
+			.filter(header -> Header.fromString(header.getKey()) == Header.MESSAGE_ID)
+			.flatMap(header -> header.getValue().stream())
+			.findFirst()
+			.map(messageId -> messageId + " to " + request.emailAddress().toLowerCase(ROOT))
+			.orElse(null);
+	}
+
+	SendEmailRequest withAttachments(final SendEmailRequest request, final List<MultipartFile> files) {
+		if (files == null || files.isEmpty()) {
+			return request;
+		}
+
+		final var attachments = new ArrayList<>(ofNullable(request.attachments()).orElse(List.of()));
+		files.forEach(file -> attachments.add(toAttachment(file)));
+		return SendEmailRequestBuilder.from(request)
+			.withAttachments(attachments)
+			.build();
+	}
+
+	SendEmailRequest.Attachment toAttachment(final MultipartFile file) {
+		if (isBlank(file.getOriginalFilename())) {
+			throw Problem.valueOf(BAD_REQUEST, "Attachment parts must have a file name");
+		}
 
-		return ok().build();
+		try {
+			// The raw bytes go straight into the attachment, without a round-trip through BASE64. They are read into memory,
+			// as the e-mail is built and sent from content in memory - whether over SMTP or, BASE64-encoded, to Microsoft
+			// Graph. Large attachments that go out more than once are better uploaded to the attachment store
+			return AttachmentBuilder.create()
+				.withName(file.getOriginalFilename())
+				.withContentType(ofNullable(file.getContentType()).orElse(APPLICATION_OCTET_STREAM_VALUE))
+				.withContent(file.getBytes())
+				.build();
+		} catch (final IOException e) {
+			throw Problem.valueOf(INTERNAL_SERVER_ERROR, "Unable to read attachment " + file.getOriginalFilename());
+		}
 	}
 }
@@ -0,0 +1,55 @@
+package se.sundsvall.emailsender.api.deserializer;
+
+import tools.jackson.core.Base64Variant;
+import tools.jackson.core.Base64Variants;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.exc.StreamReadException;
+import tools.jackson.databind.DeserializationContext;
+import tools.jackson.databind.ValueDeserializer;
+
+import static tools.jackson.core.Base64Variant.PaddingReadBehaviour.PADDING_ALLOWED;
+
+/**
+ * Deserializes a BASE64-encoded JSON string into the bytes it encodes. The string is decoded straight from the parser's
+ * input buffer, so a (possibly multi-megabyte) attachment is never held as a {@code String} on its way to a
+ * {@code byte[]}.
+ * <p>
+ * A string that isn't valid BASE64 doesn't fail the whole body, but is deserialized into {@link #INVALID}, for
+ * {@link se.sundsvall.emailsender.api.validation.ValidBase64} to report on the field it was given for. That way, an
+ * e-mail in a batch fails on its own, like for any other invalid value.
+ */
+public class Base64Deserializer extends ValueDeserializer<byte[]> {
+
+	/**
+	 * Stands in for content that isn't valid BASE64. It's told apart by identity, and, being empty, can't be changed.
+	 */
+	public static final byte[] INVALID = new byte[0];
+
+	// Like java.util.Base64, don't insist on padding
+	private static final Base64Variant BASE64_VARIANT = Base64Variants.MIME_NO_LINEFEEDS.withReadPadding(PADDING_ALLOWED);
+
+	@Override
+	public byte[] deserialize(final JsonParser parser, final DeserializationContext context) {
+		if (parser.isExpectedStartObjectToken() || parser.isExpectedStartArrayToken()) {
+			// Skipped, as its fields would otherwise be read as fields of the enclosing object
+			parser.skipChildren();
+			return INVALID;
+		}
+
+		try {
+			return parser.getBinaryValue(BASE64_VARIANT);
+		} catch (final StreamReadException | IllegalArgumentException e) {
+			// The parser skips the rest of the string when it moves on. Should decoding have failed on the closing quote,
+			// as for content that ends in the middle of a four-character group, the body no longer parses, and fails as a
+			// whole
+			return INVALID;
+		}
+	}
+
+	/**
+	 * @return whether the content was something other than a valid BASE64-encoded string
+	 */
+	public static boolean isInvalid(final byte[] content) {
+		return content == INVALID;
+	}
+}
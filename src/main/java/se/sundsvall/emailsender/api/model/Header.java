@@ -1,7 +1,8 @@
 package se.sundsvall.emailsender.api.model;
 
 import io.swagger.v3.oas.annotations.media.Schema;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 @Schema(enumAsRef = true)
@@ -11,6 +12,18 @@ public enum Header {
 	MESSAGE_ID("Message-ID", "^<.{1,1000}@.{1,1000}>$", "must start with '<', contain '@' and end with '>'"),
 	AUTO_SUBMITTED("Auto-Submitted", "^(auto-generated)$", "must be equal to 'auto-generated'");
 
+	// Every header by both its key and its enum constant name, so that lookups don't have to go through all of them
+	private static final Map<String, Header> HEADERS_BY_NAME;
+
+	static {
+		final var headersByName = new HashMap<String, Header>();
+		for (final var header : values()) {
+			headersByName.put(header.key, header);
+			headersByName.put(header.name(), header);
+		}
+		HEADERS_BY_NAME = Map.copyOf(headersByName);
+	}
+
 	private final String key;
 	private final Pattern pattern;
 	private final String message;
@@ -22,10 +35,7 @@ public enum Header {
 	}
 
 	public static Header fromString(final String s) {
-		return Arrays.stream(Header.values())
-			.filter(header -> header.key.equals(s) || header.name().equals(s))
-			.findFirst()
-			.orElse(null);
+		return s == null ? null : HEADERS_BY_NAME.get(s);
 	}
 
 	public String getKey() {
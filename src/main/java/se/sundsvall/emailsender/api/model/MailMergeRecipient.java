@@ -0,0 +1,17 @@
+package se.sundsvall.emailsender.api.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import java.util.List;
+import java.util.Map;
+import org.jilt.Builder;
+
+@Builder(setterPrefix = "with", factoryMethod = "create", toBuilder = "from")
+@Schema(description = "A recipient of a mail merge")
+public record MailMergeRecipient(
+
+	@Schema(description = "Recipient e-mail address", examples = "recipient@recipient.se") String emailAddress,
+
+	@Schema(description = "Values to render the template of the e-mail with, on top of the template parameters of the e-mail") Map<String, Object> parameters,
+
+	@Schema(description = "Headers, on top of the headers of the e-mail") Map<String, List<String>> headers) {
+}
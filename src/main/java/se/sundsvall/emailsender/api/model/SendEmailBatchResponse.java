@@ -0,0 +1,22 @@
+package se.sundsvall.emailsender.api.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import java.util.List;
+import org.jilt.Builder;
+
+@Builder(setterPrefix = "with", factoryMethod = "create", toBuilder = "from")
+@Schema(description = "The response class for a batch of e-mails")
+public record SendEmailBatchResponse(
+
+	@Schema(description = "One result per e-mail, in the same order as the e-mails in the request") List<Result> results) {
+
+	@Builder(setterPrefix = "with", factoryMethod = "create", toBuilder = "from")
+	@Schema(description = "The result of sending a single e-mail in a batch")
+	public record Result(
+
+		@Schema(description = "Index of the e-mail in the request", examples = "0") int index,
+
+		@Schema(description = "HTTP status that sending the e-mail on its own would have resulted in", examples = "200") int status,
+
+		@Schema(description = "Details on why the e-mail could not be sent") String detail) {}
+}
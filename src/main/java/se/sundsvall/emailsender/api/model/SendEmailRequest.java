@@ -6,11 +6,15 @@ import jakarta.validation.constraints.Email;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Pattern;
 import java.util.List;
 import java.util.Map;
 import org.jilt.Builder;
-import se.sundsvall.dept44.common.validators.annotation.ValidBase64;
+import se.sundsvall.emailsender.api.deserializer.Base64Deserializer;
+import se.sundsvall.emailsender.api.validation.ValidAttachmentContent;
+import se.sundsvall.emailsender.api.validation.ValidBase64;
 import se.sundsvall.emailsender.api.validation.ValidHeaders;
+import tools.jackson.databind.annotation.JsonDeserialize;
 
 @Builder(setterPrefix = "with", factoryMethod = "create", toBuilder = "from")
 @Schema(description = "The request class for sending an e-mail")
@@ -22,24 +26,50 @@ public record SendEmailRequest(
 
 	@Schema(description = "E-mail plain-text body") String message,
 
-	@ValidBase64(nullable = true) @Schema(description = "E-mail HTML body (BASE64-encoded)") String htmlMessage,
+	@ValidBase64 @JsonDeserialize(using = Base64Deserializer.class) @Schema(description = "E-mail HTML body (BASE64-encoded)", type = "string", format = "byte") byte[] htmlMessage,
+
+	@Valid Template template,
 
 	@Valid @NotNull Sender sender,
 
 	List<@Valid Attachment> attachments,
 
-	@ValidHeaders @Schema(description = "Headers") Map<@NotBlank String, @NotEmpty List<String>> headers) {
+	@ValidHeaders @Schema(description = "Headers") Map<@NotBlank String, @NotEmpty List<String>> headers,
+
+	@Schema(description = "The priority of the e-mail, which decides the send lane it goes through - HIGH for e.g. one-time codes and password resets, LOW for bulk e-mails such as newsletters. Defaults to NORMAL") Priority priority) {
+
+	/**
+	 * E-mails of each priority are queued apart from the others, and NORMAL and LOW priority e-mails may only use some of
+	 * a mail sender's connections, so that a large number of LOW priority e-mails delays the HIGH priority ones as little
+	 * as possible.
+	 */
+	public enum Priority {
+		HIGH,
+		NORMAL,
+		LOW
+	}
 
 	@Builder(setterPrefix = "with", factoryMethod = "create", toBuilder = "from")
 	@Schema(description = "Attachment")
+	@ValidAttachmentContent
 	public record Attachment(
 
-		@ValidBase64 @Schema(description = "The attachment (file) content as a BASE64-encoded string", examples = "aGVsbG8gd29ybGQK") String content,
+		@ValidBase64 @JsonDeserialize(using = Base64Deserializer.class) @Schema(description = "The attachment (file) content as a BASE64-encoded string. Required, unless contentHash is given", type = "string", format = "byte", examples = "aGVsbG8gd29ybGQK") byte[] content,
+
+		@Pattern(regexp = "^[0-9a-f]{64}$", message = "must be a lowercase hex-encoded SHA-256 hash") @Schema(description = "The SHA-256 hash of previously uploaded attachment content, to use in place of content", examples = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9") String contentHash,
 
 		@NotBlank @Schema(description = "The attachment filename", examples = "test.txt") String name,
 
 		@NotBlank @Schema(description = "The attachment content type", examples = "text/plain") String contentType) {}
 
+	@Builder(setterPrefix = "with", factoryMethod = "create", toBuilder = "from")
+	@Schema(description = "Template")
+	public record Template(
+
+		@NotBlank @Schema(description = "The id of a template registered for the municipality", examples = "receipt") String id,
+
+		@Schema(description = "The values to render the template with") Map<String, Object> parameters) {}
+
 	@Builder(setterPrefix = "with", factoryMethod = "create", toBuilder = "from")
 	@Schema(description = "E-mail sender")
 	public record Sender(
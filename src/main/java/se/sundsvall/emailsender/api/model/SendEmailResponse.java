@@ -0,0 +1,11 @@
+package se.sundsvall.emailsender.api.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import org.jilt.Builder;
+
+@Builder(setterPrefix = "with", factoryMethod = "create", toBuilder = "from")
+@Schema(description = "The response class for an e-mail that has been accepted for sending")
+public record SendEmailResponse(
+
+	@Schema(description = "Id of the accepted e-mail, as used in the service logs", examples = "b2d6a8e4-4a5f-4c3e-9f0a-2f1c3b7e9d21") String messageId) {
+}
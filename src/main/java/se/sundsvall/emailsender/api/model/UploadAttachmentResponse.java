@@ -0,0 +1,13 @@
+package se.sundsvall.emailsender.api.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import org.jilt.Builder;
+
+@Builder(setterPrefix = "with", factoryMethod = "create", toBuilder = "from")
+@Schema(description = "The response class for an uploaded attachment")
+public record UploadAttachmentResponse(
+
+	@Schema(description = "The SHA-256 hash of the attachment content, by which e-mails can reference it", examples = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9") String contentHash,
+
+	@Schema(description = "The size of the attachment content, in bytes", examples = "11") long size) {
+}
@@ -0,0 +1,28 @@
+package se.sundsvall.emailsender.api.validation;
+
+import jakarta.validation.Constraint;
+import jakarta.validation.Payload;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import se.sundsvall.emailsender.api.validation.impl.ValidAttachmentContentConstraintValidator;
+
+/**
+ * Validates that an attachment has either its content inline, or a reference to stored content - but not both.
+ */
+@Documented
+@Target({
+	ElementType.TYPE
+})
+@Retention(RetentionPolicy.RUNTIME)
+@Constraint(validatedBy = ValidAttachmentContentConstraintValidator.class)
+public @interface ValidAttachmentContent {
+	String message() default "either content or contentHash must be given, but not both";
+
+	Class<?>[] groups() default {};
+
+	Class<? extends Payload>[] payload() default {};
+
+}
@@ -0,0 +1,29 @@
+package se.sundsvall.emailsender.api.validation;
+
+import jakarta.validation.Constraint;
+import jakarta.validation.Payload;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import se.sundsvall.emailsender.api.validation.impl.ValidBase64ConstraintValidator;
+
+/**
+ * Validates that content deserialized by {@link se.sundsvall.emailsender.api.deserializer.Base64Deserializer} was valid
+ * BASE64.
+ */
+@Documented
+@Target({
+	ElementType.FIELD, ElementType.CONSTRUCTOR, ElementType.PARAMETER, ElementType.TYPE_USE
+})
+@Retention(RetentionPolicy.RUNTIME)
+@Constraint(validatedBy = ValidBase64ConstraintValidator.class)
+public @interface ValidBase64 {
+	String message() default "not a valid BASE64-encoded string";
+
+	Class<?>[] groups() default {};
+
+	Class<? extends Payload>[] payload() default {};
+
+}
@@ -0,0 +1,24 @@
+package se.sundsvall.emailsender.api.validation.impl;
+
+import jakarta.validation.ConstraintValidator;
+import jakarta.validation.ConstraintValidatorContext;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.validation.ValidAttachmentContent;
+
+public class ValidAttachmentContentConstraintValidator implements ConstraintValidator<ValidAttachmentContent, SendEmailRequest.Attachment> {
+
+	@Override
+	public boolean isValid(final SendEmailRequest.Attachment attachment, final ConstraintValidatorContext context) {
+		if (attachment == null || (attachment.content() == null) != (attachment.contentHash() == null)) {
+			return true;
+		}
+
+		// Reported on the content, which is what most callers give
+		context.disableDefaultConstraintViolation();
+		context
+			.buildConstraintViolationWithTemplate(context.getDefaultConstraintMessageTemplate())
+			.addPropertyNode("content")
+			.addConstraintViolation();
+		return false;
+	}
+}
@@ -0,0 +1,14 @@
+package se.sundsvall.emailsender.api.validation.impl;
+
+import jakarta.validation.ConstraintValidator;
+import jakarta.validation.ConstraintValidatorContext;
+import se.sundsvall.emailsender.api.deserializer.Base64Deserializer;
+import se.sundsvall.emailsender.api.validation.ValidBase64;
+
+public class ValidBase64ConstraintValidator implements ConstraintValidator<ValidBase64, byte[]> {
+
+	@Override
+	public boolean isValid(final byte[] content, final ConstraintValidatorContext context) {
+		return !Base64Deserializer.isInvalid(content);
+	}
+}
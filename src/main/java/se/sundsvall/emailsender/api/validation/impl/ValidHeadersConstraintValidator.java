@@ -5,23 +5,18 @@ import jakarta.validation.ConstraintValidatorContext;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
 import org.hibernate.validator.constraintvalidation.HibernateConstraintValidatorContext;
 import se.sundsvall.emailsender.api.model.Header;
 import se.sundsvall.emailsender.api.validation.ValidHeaders;
 
+import static java.util.stream.Collectors.joining;
 import static org.apache.commons.collections4.MapUtils.isEmpty;
 
 public class ValidHeadersConstraintValidator implements ConstraintValidator<ValidHeaders, Map<?, ?>> {
 
-	private final Set<String> allowedHeaderNames;
-
-	public ValidHeadersConstraintValidator() {
-		allowedHeaderNames = Arrays.stream(Header.values())
-			.map(header -> String.format("%s/%s", header.getKey(), header.name()))
-			.collect(Collectors.toSet());
-	}
+	private static final String ALLOWED_HEADER_NAMES = Arrays.stream(Header.values())
+		.map(header -> header.getKey() + "/" + header.name())
+		.collect(joining(", ", "[", "]"));
 
 	@Override
 	public boolean isValid(final Map<?, ?> values, final ConstraintValidatorContext context) {
@@ -35,24 +30,21 @@ public class ValidHeadersConstraintValidator implements ConstraintValidator<Vali
 		var isValid = true;
 		for (var entry : values.entrySet()) {
 			var headerName = entry.getKey().toString();
-			var headerValues = ((List<?>) entry.getValue()).stream()
-				.map(Object::toString)
-				.toList();
-
 			var matchingHeader = Header.fromString(headerName);
 			if (matchingHeader == null) {
 				unwrappedContext
-					.buildConstraintViolationWithTemplate(headerName + " is not a valid header. Allowed headers are: " + allowedHeaderNames)
+					.buildConstraintViolationWithTemplate(headerName + " is not a valid header. Allowed headers are: " + ALLOWED_HEADER_NAMES)
 					.addPropertyNode(headerName)
 					.addConstraintViolation();
 				isValid = false;
 				continue;
 			}
 
-			var pattern = matchingHeader.getPattern();
+			// One matcher per header, reset for each value, rather than one per value
+			var matcher = matchingHeader.getPattern().matcher("");
 			var message = matchingHeader.getMessage();
-			for (var headerValue : headerValues) {
-				if (!pattern.matcher(headerValue).matches()) {
+			for (var headerValue : (List<?>) entry.getValue()) {
+				if (!matcher.reset(String.valueOf(headerValue)).matches()) {
 					unwrappedContext
 						.buildConstraintViolationWithTemplate(message)
 						.addPropertyNode(headerName)
@@ -0,0 +1,24 @@
+package se.sundsvall.emailsender.configuration;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Properties for the asynchronous send mode, applied to each municipality's send queue.
+ *
+ * @param queueCapacity   the maximum number of queued (not yet started) e-mails per municipality
+ * @param workers         the number of worker threads draining each municipality's queue
+ * @param shutdownTimeout how long to wait for queued e-mails to be sent when the application shuts down
+ * @param retryBackoff    how long an e-mail that couldn't be sent, since the mail server or Graph was unavailable, waits
+ *                        before it's queued again - doubled for each failed attempt
+ * @param maxRetryBackoff the longest an e-mail waits before it's queued again
+ */
+@ConfigurationProperties(prefix = "email-sender.async")
+public record AsyncSendProperties(
+	@DefaultValue("1000") int queueCapacity,
+	@DefaultValue("4") int workers,
+	@DefaultValue("30s") Duration shutdownTimeout,
+	@DefaultValue("30s") Duration retryBackoff,
+	@DefaultValue("15m") Duration maxRetryBackoff) {
+}
@@ -0,0 +1,22 @@
+package se.sundsvall.emailsender.configuration;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Properties for the store of uploaded attachments, which e-mails can reference instead of carrying the content.
+ *
+ * @param directory the directory that uploaded attachments are stored in, by content hash - shared by all instances
+ * @param cacheSize the maximum total size of the attachments that are kept in memory - the least used are evicted, and
+ *                  read from disk again when they are next used
+ * @param retention how long an attachment is kept after it was last uploaded, or referenced by an accepted e-mail
+ */
+@ConfigurationProperties(prefix = "email-sender.attachments")
+public record AttachmentStoreProperties(
+	Path directory,
+	@DefaultValue("100MB") DataSize cacheSize,
+	@DefaultValue("30d") Duration retention) {
+}
@@ -0,0 +1,16 @@
+package se.sundsvall.emailsender.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Properties for the batch send endpoint.
+ *
+ * @param maxSize     the maximum number of e-mails in a single batch
+ * @param parallelism the maximum number of e-mails from a single batch that are sent concurrently
+ */
+@ConfigurationProperties(prefix = "email-sender.batch")
+public record BatchSendProperties(
+	@DefaultValue("500") int maxSize,
+	@DefaultValue("8") int parallelism) {
+}
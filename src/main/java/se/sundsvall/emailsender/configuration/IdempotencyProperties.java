@@ -0,0 +1,21 @@
+package se.sundsvall.emailsender.configuration;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Properties for idempotent sending of e-mails.
+ *
+ * @param timeToLive how long the outcome of an e-mail is remembered, after it has been sent
+ * @param maxKeys    the maximum number of idempotency keys that the local store remembers - the least recently used are
+ *                   forgotten first
+ * @param maxWait    how long a repeated request waits for an earlier request with the same idempotency key to finish,
+ *                   before giving up with a conflict
+ */
+@ConfigurationProperties(prefix = "email-sender.idempotency")
+public record IdempotencyProperties(
+	@DefaultValue("24h") Duration timeToLive,
+	@DefaultValue("100000") long maxKeys,
+	@DefaultValue("30s") Duration maxWait) {
+}
@@ -0,0 +1,304 @@
+package se.sundsvall.emailsender.configuration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+
+import static org.apache.commons.lang3.exception.ExceptionUtils.getThrowableList;
+
+/**
+ * A {@link org.springframework.mail.javamail.JavaMailSender} that spreads sends over several SMTP servers - the nodes
+ * of a relay cluster - each with a {@link PooledJavaMailSender} of its own.
+ * <p>
+ * Each send goes to the better of two randomly picked endpoints ("power of two choices"), where an endpoint is better
+ * the lower its peak-sensitive EWMA latency times its number of outstanding sends. A slow endpoint is thereby given
+ * fewer sends as soon as it turns slow, without all sends piling onto whichever endpoint currently looks the fastest.
+ * <p>
+ * An endpoint that fails to connect, or times out, a number of times in a row is ejected, and gets no sends until a
+ * background probe has connected to it again. Should all endpoints be ejected, sends go to all of them, rather than
+ * nowhere.
+ */
+class LoadBalancedJavaMailSender extends MailSenderBeanFactoryPostProcessor.NoOpOnUpdateMessageIdJavaMailSender implements MeterBinder, DisposableBean {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LoadBalancedJavaMailSender.class);
+
+	static final String OUTSTANDING_METRIC_NAME = "email.smtp.endpoint.outstanding";
+	static final String LATENCY_METRIC_NAME = "email.smtp.endpoint.latency";
+	static final String EJECTED_METRIC_NAME = "email.smtp.endpoint.ejected";
+	static final String EJECTIONS_METRIC_NAME = "email.smtp.endpoint.ejections";
+
+	private final String municipalityId;
+	private final MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing balancing;
+	private final List<Endpoint> endpoints;
+	private volatile boolean destroyed;
+
+	LoadBalancedJavaMailSender(final String municipalityId, final List<PooledJavaMailSender> javaMailSenders,
+		final MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing balancing) {
+		this.municipalityId = municipalityId;
+		this.balancing = balancing;
+		endpoints = javaMailSenders.stream()
+			.map(javaMailSender -> new Endpoint(javaMailSender, balancing.decayTime().toNanos()))
+			.toList();
+	}
+
+	@Override
+	protected void doSend(final MimeMessage[] mimeMessages, final Object[] originalMessages) throws MailException {
+		final var endpoint = choose();
+		endpoint.outstanding.incrementAndGet();
+		final var start = System.nanoTime();
+		try {
+			endpoint.javaMailSender.send(mimeMessages);
+			endpoint.succeeded();
+			// The latency is per message, as batches of different sizes go to the same endpoints. Only sends that succeed
+			// count, as a failure - such as a connect timeout - says how long it took to fail, not how fast the endpoint is
+			endpoint.observe((System.nanoTime() - start) / Math.max(mimeMessages.length, 1));
+		} catch (final MailSendException e) {
+			if (isEndpointFailure(e)) {
+				endpointFailed(endpoint, e);
+			}
+			throw originalMessages != null ? remap(e, mimeMessages, originalMessages) : e;
+		} catch (final MailException e) {
+			// Such as an authentication failure, which isn't down to the endpoint itself
+			endpoint.succeeded();
+			throw e;
+		} finally {
+			endpoint.outstanding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Picks the better of two random endpoints that aren't ejected - or of any two, if all of them are.
+	 */
+	Endpoint choose() {
+		var candidates = endpoints.stream().filter(endpoint -> !endpoint.ejected.get()).toList();
+		if (candidates.isEmpty()) {
+			candidates = endpoints;
+		}
+		if (candidates.size() == 1) {
+			return candidates.getFirst();
+		}
+
+		final var random = ThreadLocalRandom.current();
+		final var first = random.nextInt(candidates.size());
+		// Pick a second endpoint that's distinct from the first
+		final var second = (first + 1 + random.nextInt(candidates.size() - 1)) % candidates.size();
+		final var a = candidates.get(first);
+		final var b = candidates.get(second);
+		return a.score() <= b.score() ? a : b;
+	}
+
+	/**
+	 * Opens a pooled connection to each of the endpoints, ejecting the ones that can't be connected to - unless none of
+	 * them can.
+	 *
+	 * @throws MessagingException if none of the endpoints could be connected to
+	 */
+	@Override
+	public void testConnection() throws MessagingException {
+		final Map<Endpoint, MessagingException> failures = new LinkedHashMap<>();
+		for (final var endpoint : endpoints) {
+			try {
+				endpoint.javaMailSender.testConnection();
+			} catch (final MessagingException e) {
+				LOGGER.warn("Unable to connect to SMTP endpoint {} for municipalityId {}", endpoint.name, municipalityId, e);
+				failures.put(endpoint, e);
+			}
+		}
+		if (failures.size() == endpoints.size()) {
+			throw failures.values().iterator().next();
+		}
+		failures.keySet().forEach(this::eject);
+	}
+
+	void endpointFailed(final Endpoint endpoint, final Exception e) {
+		if (endpoint.consecutiveFailures.incrementAndGet() >= balancing.maxFailures()) {
+			LOGGER.warn("SMTP endpoint {} for municipalityId {} failed {} times in a row", endpoint.name, municipalityId, balancing.maxFailures(), e);
+			eject(endpoint);
+		}
+	}
+
+	/**
+	 * Takes an endpoint out of rotation, and probes it in the background - with a growing interval - until it can be
+	 * connected to again.
+	 */
+	void eject(final Endpoint endpoint) {
+		if (destroyed || !endpoint.ejected.compareAndSet(false, true)) {
+			return;
+		}
+		endpoint.ejections.incrementAndGet();
+		LOGGER.warn("Ejected SMTP endpoint {} for municipalityId {}", endpoint.name, municipalityId);
+
+		Thread.ofVirtual().name("smtp-endpoint-probe-" + municipalityId + "-" + endpoint.name).start(() -> {
+			var interval = balancing.ejectionTime();
+			while (true) {
+				try {
+					Thread.sleep(interval);
+					if (destroyed) {
+						return;
+					}
+					endpoint.javaMailSender.testConnection();
+					endpoint.succeeded();
+					// Forget how slow it was, so that it gets sends - and thereby a latency - again
+					endpoint.reset();
+					endpoint.ejected.set(false);
+					LOGGER.info("Reinstated SMTP endpoint {} for municipalityId {}", endpoint.name, municipalityId);
+					return;
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (final Exception e) {
+					LOGGER.debug("SMTP endpoint {} for municipalityId {} is still unavailable", endpoint.name, municipalityId, e);
+					interval = min(interval.multipliedBy(2), balancing.maxEjectionTime());
+				}
+			}
+		});
+	}
+
+	List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	@Override
+	public void bindTo(final MeterRegistry registry) {
+		for (final var endpoint : endpoints) {
+			final var tags = Tags.of("municipality", municipalityId, "endpoint", endpoint.name);
+			Gauge.builder(OUTSTANDING_METRIC_NAME, endpoint, e -> e.outstanding.get())
+				.tags(tags)
+				.description("The number of sends currently in progress to the SMTP endpoint")
+				.register(registry);
+			Gauge.builder(LATENCY_METRIC_NAME, endpoint, e -> e.latency() / 1e9)
+				.tags(tags)
+				.baseUnit("seconds")
+				.description("The peak-sensitive EWMA of the per-message send latency of the SMTP endpoint")
+				.register(registry);
+			Gauge.builder(EJECTED_METRIC_NAME, endpoint, e -> e.ejected.get() ? 1 : 0)
+				.tags(tags)
+				.description("Whether the SMTP endpoint is ejected (1) or not (0)")
+				.register(registry);
+			FunctionCounter.builder(EJECTIONS_METRIC_NAME, endpoint, e -> e.ejections.get())
+				.tags(tags)
+				.description("The number of times the SMTP endpoint has been ejected")
+				.register(registry);
+			endpoint.javaMailSender.bindTo(registry);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		destroyed = true;
+		endpoints.forEach(endpoint -> endpoint.javaMailSender.destroy());
+	}
+
+	/**
+	 * @return whether a send failure says that the endpoint itself is unavailable - it couldn't be connected to, or it
+	 *         timed out - rather than that a message was rejected
+	 */
+	static boolean isEndpointFailure(final MailSendException e) {
+		return getThrowableList(e).stream().anyMatch(IOException.class::isInstance)
+			|| e.getFailedMessages().values().stream().anyMatch(cause -> getThrowableList(cause).stream().anyMatch(IOException.class::isInstance));
+	}
+
+	/**
+	 * Keys the failed messages by the messages they were created from, as the endpoint only knows the MIME messages.
+	 */
+	static MailSendException remap(final MailSendException e, final MimeMessage[] mimeMessages, final Object[] originalMessages) {
+		final Map<Object, Exception> failedMessages = new LinkedHashMap<>();
+		for (var i = 0; i < mimeMessages.length; i++) {
+			final var cause = e.getFailedMessages().get(mimeMessages[i]);
+			if (cause != null) {
+				failedMessages.put(originalMessages[i], cause);
+			}
+		}
+		return new MailSendException(e.getMessage(), e.getCause(), failedMessages);
+	}
+
+	private static Duration min(final Duration a, final Duration b) {
+		return a.compareTo(b) <= 0 ? a : b;
+	}
+
+	static final class Endpoint {
+
+		private final PooledJavaMailSender javaMailSender;
+		private final String name;
+		private final long decayNanos;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+		private final AtomicBoolean ejected = new AtomicBoolean();
+		private final AtomicLong ejections = new AtomicLong();
+		// The EWMA latency, in nanoseconds, and when it was last updated
+		private double latency;
+		private long lastObserved = System.nanoTime();
+
+		Endpoint(final PooledJavaMailSender javaMailSender, final long decayNanos) {
+			this.javaMailSender = javaMailSender;
+			this.decayNanos = decayNanos;
+			name = javaMailSender.getHost() + ":" + javaMailSender.getPort();
+		}
+
+		String name() {
+			return name;
+		}
+
+		boolean isEjected() {
+			return ejected.get();
+		}
+
+		/**
+		 * Adds a latency to the EWMA, which weighs older latencies by how long ago they were observed. A latency that is
+		 * higher than the average replaces it at once, so that an endpoint that turns slow is avoided right away.
+		 */
+		synchronized void observe(final long nanos) {
+			final var now = System.nanoTime();
+			final var weight = weight(now);
+			latency = nanos > latency * weight ? nanos : latency * weight + nanos * (1 - weight);
+			lastObserved = now;
+		}
+
+		/**
+		 * @return the EWMA latency, which decays towards zero for as long as nothing is observed, so that an endpoint that
+		 *         once was slow isn't avoided forever
+		 */
+		synchronized double latency() {
+			return latency * weight(System.nanoTime());
+		}
+
+		synchronized void reset() {
+			latency = 0;
+			lastObserved = System.nanoTime();
+		}
+
+		private double weight(final long now) {
+			return Math.exp(-Math.max(now - lastObserved, 0) / (double) decayNanos);
+		}
+
+		/**
+		 * @return the expected cost of a send to the endpoint - lower is better. Until there is a latency, it's the number of
+		 *         outstanding sends.
+		 */
+		double score() {
+			return (latency() + 1) * (outstanding.get() + 1);
+		}
+
+		void succeeded() {
+			consecutiveFailures.set(0);
+		}
+	}
+}
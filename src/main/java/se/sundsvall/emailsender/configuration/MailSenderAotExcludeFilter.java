@@ -0,0 +1,21 @@
+package se.sundsvall.emailsender.configuration;
+
+import org.springframework.beans.factory.aot.BeanRegistrationExcludeFilter;
+import org.springframework.beans.factory.support.RegisteredBean;
+
+import static se.sundsvall.emailsender.configuration.MailSenderBeanFactoryPostProcessor.MICROSOFT_GRAPH_MAIL_SENDER_BEAN_NAME;
+import static se.sundsvall.emailsender.configuration.MailSenderBeanFactoryPostProcessor.SMTP_MAIL_SENDER_BEAN_NAME;
+
+/**
+ * Keeps the mail senders out of the code that Spring AOT generates. They are registered from the environment, with
+ * connections and credentials that only exist at runtime, so {@link MailSenderBeanFactoryPostProcessor} registers them
+ * at runtime, also when the application runs with the generated code.
+ */
+class MailSenderAotExcludeFilter implements BeanRegistrationExcludeFilter {
+
+	@Override
+	public boolean isExcludedFromAotProcessing(final RegisteredBean registeredBean) {
+		final var beanName = registeredBean.getBeanName();
+		return beanName.startsWith(SMTP_MAIL_SENDER_BEAN_NAME) || beanName.startsWith(MICROSOFT_GRAPH_MAIL_SENDER_BEAN_NAME);
+	}
+}
@@ -1,13 +1,23 @@
 package se.sundsvall.emailsender.configuration;
 
+import com.azure.core.credential.TokenCredential;
+import com.azure.core.credential.TokenRequestContext;
+import com.azure.identity.ClientSecretCredential;
 import com.azure.identity.ClientSecretCredentialBuilder;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
+import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
 import jakarta.mail.internet.MimeMessage;
+import jakarta.validation.Valid;
 import jakarta.validation.Validator;
 import jakarta.validation.constraints.NotBlank;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanCreationException;
 import org.springframework.beans.factory.InitializingBean;
@@ -20,19 +30,29 @@ import org.springframework.boot.context.properties.bind.Bindable;
 import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.boot.context.properties.bind.validation.ValidationBindHandler;
+import org.springframework.boot.env.PropertiesPropertySourceLoader;
+import org.springframework.boot.env.PropertySourceLoader;
+import org.springframework.boot.env.YamlPropertySourceLoader;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
-import org.springframework.core.env.Environment;
-import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.CompositePropertySource;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.io.ResourceLoader;
 import org.springframework.mail.javamail.JavaMailSenderImpl;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.validation.beanvalidation.SpringValidatorAdapter;
+import se.sundsvall.emailsender.service.MailSender;
 import se.sundsvall.emailsender.service.MicrosoftGraphMailSender;
 import se.sundsvall.emailsender.service.SmtpMailSender;
 
 import static java.util.Objects.nonNull;
 import static java.util.Optional.ofNullable;
+import static org.apache.commons.lang3.StringUtils.endsWithIgnoreCase;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 @Component
 class MailSenderBeanFactoryPostProcessor implements BeanFactoryPostProcessor, ApplicationContextAware, InitializingBean {
@@ -42,22 +62,96 @@ class MailSenderBeanFactoryPostProcessor implements BeanFactoryPostProcessor, Ap
 
 	static final String DEFAULT_PROPERTIES = "integration.email.default-properties";
 	static final String INSTANCES = "integration.email.instances";
+	static final String CONFIG_LOCATION = "integration.email.config-location";
+	static final String CONFIG_LOCATION_PROPERTY_SOURCE_NAME = "mailSenderConfigLocation";
 
-	private Environment environment;
+	private ConfigurableEnvironment environment;
+	private ResourceLoader resourceLoader;
 	private Validator validator;
 	private Properties defaultProperties;
 	private Map<String, MailSenderProperties> mailSenderPropertiesByMunicipalityId;
+	// How to warm up each of the mail senders registered at startup
+	private final Map<String, WarmUp> warmUps = new ConcurrentHashMap<>();
 
 	@Override
 	public void afterPropertiesSet() {
-		final var validationBindHandler = new ValidationBindHandler(new SpringValidatorAdapter(validator));
-		final var binder = Binder.get(environment);
+		loadConfigLocation();
+		defaultProperties = bindDefaultProperties();
+		mailSenderPropertiesByMunicipalityId = bindMailSenderProperties();
+	}
+
+	/**
+	 * Loads the file at {@value #CONFIG_LOCATION}, if set, into the environment - in place of what was loaded from it the
+	 * last time - ahead of all other property sources. The file is read anew each time, so that a mounted file, such as a
+	 * Kubernetes ConfigMap or Secret, can be changed without a restart, and then be reloaded.
+	 *
+	 * @throws IllegalStateException if the file doesn't exist or couldn't be read
+	 */
+	void loadConfigLocation() {
+		final var location = environment.getProperty(CONFIG_LOCATION);
+		if (isBlank(location)) {
+			return;
+		}
 
+		final var resource = resourceLoader.getResource(location);
+		if (!resource.exists()) {
+			throw new IllegalStateException("No mail sender configuration exists at " + location);
+		}
+		final var loader = Stream.<PropertySourceLoader>of(new YamlPropertySourceLoader(), new PropertiesPropertySourceLoader())
+			.filter(candidate -> Stream.of(candidate.getFileExtensions()).anyMatch(extension -> endsWithIgnoreCase(location, "." + extension)))
+			.findFirst()
+			.orElseThrow(() -> new IllegalStateException("Mail sender configuration must be a YAML or properties file: " + location));
+
+		final var propertySource = new CompositePropertySource(CONFIG_LOCATION_PROPERTY_SOURCE_NAME);
+		try {
+			// Later documents take precedence, like in application.yml
+			loader.load(CONFIG_LOCATION_PROPERTY_SOURCE_NAME, resource).reversed().forEach(propertySource::addPropertySource);
+		} catch (final IOException e) {
+			throw new IllegalStateException("Unable to load mail sender configuration from " + location, e);
+		}
+
+		final var propertySources = environment.getPropertySources();
+		if (propertySources.contains(CONFIG_LOCATION_PROPERTY_SOURCE_NAME)) {
+			propertySources.replace(CONFIG_LOCATION_PROPERTY_SOURCE_NAME, propertySource);
+		} else {
+			propertySources.addFirst(propertySource);
+		}
+	}
+
+	/**
+	 * @return the default properties, as currently set in the environment
+	 */
+	Properties bindDefaultProperties() {
 		// Bind/load (or create empty) default properties
-		defaultProperties = binder.bindOrCreate(DEFAULT_PROPERTIES, Bindable.of(Properties.class), validationBindHandler);
+		return Binder.get(environment).bindOrCreate(DEFAULT_PROPERTIES, Bindable.of(Properties.class), createValidationBindHandler());
+	}
+
+	/**
+	 * @return the instance properties, by municipality id, as currently set in the environment
+	 */
+	Map<String, MailSenderProperties> bindMailSenderProperties() {
 		// Bind/load instance properties
-		mailSenderPropertiesByMunicipalityId = binder.bind(
-			INSTANCES, Bindable.mapOf(String.class, MailSenderProperties.class), validationBindHandler).get();
+		return Binder.get(environment).bind(
+			INSTANCES, Bindable.mapOf(String.class, MailSenderProperties.class), createValidationBindHandler()).get();
+	}
+
+	Properties getDefaultProperties() {
+		return defaultProperties;
+	}
+
+	Map<String, MailSenderProperties> getMailSenderProperties() {
+		return mailSenderPropertiesByMunicipalityId;
+	}
+
+	/**
+	 * @return how to warm up each of the mail senders registered at startup, by municipality id
+	 */
+	Map<String, WarmUp> getWarmUps() {
+		return Map.copyOf(warmUps);
+	}
+
+	private ValidationBindHandler createValidationBindHandler() {
+		return new ValidationBindHandler(new SpringValidatorAdapter(validator));
 	}
 
 	@Override
@@ -65,45 +159,113 @@ class MailSenderBeanFactoryPostProcessor implements BeanFactoryPostProcessor, Ap
 		final var beanDefinitionRegistry = (BeanDefinitionRegistry) beanFactory;
 
 		mailSenderPropertiesByMunicipalityId.forEach((municipalityId, mailSenderProperties) -> {
-			final var basicSet = nonNull(mailSenderProperties.basic);
-			final var azureSet = nonNull(mailSenderProperties.azure);
-
-			// Make sure that exactly one of "basic" and "azure" is set, and validate the one that actually is
-			if ((!basicSet && !azureSet) || (basicSet && azureSet)) {
-				throw new BeanCreationException("Exactly one of SMTP 'basic' or 'azure' properties must be set");
-			} else if (basicSet) {
-				validator.validate(mailSenderProperties.basic);
-
-				// Merge the default properties with the SMTP server properties, with
-				// values from the latter possibly overriding defaults
-				final var mergedProperties = new Properties();
-				mergedProperties.putAll(defaultProperties);
-				if (nonNull(mailSenderProperties.basic.properties)) {
-					mergedProperties.putAll(mailSenderProperties.basic.properties);
-				}
-
-				registerSmtpMailSender(beanDefinitionRegistry, municipalityId, mailSenderProperties, mergedProperties);
-			} else {
-				validator.validate(mailSenderProperties.azure);
+			validate(mailSenderProperties);
 
+			if (nonNull(mailSenderProperties.basic)) {
+				registerSmtpMailSender(beanDefinitionRegistry, municipalityId, mailSenderProperties, mergeJavaMailProperties(defaultProperties, mailSenderProperties.basic));
+			} else {
 				registerMicrosoftGraphMailSender(beanDefinitionRegistry, municipalityId, mailSenderProperties);
 			}
 		});
 	}
 
+	/**
+	 * Creates a mail sender outside of the application context, when mail senders are reloaded, and warms it up - an SMTP
+	 * mail sender opens a pooled connection, and a Microsoft Graph mail sender gets an access token - so that its first
+	 * send doesn't have to.
+	 *
+	 * @param  municipalityId       the municipality id
+	 * @param  mailSenderProperties the instance properties
+	 * @param  defaultProperties    the default properties
+	 * @return                      the mail sender, which the caller is responsible for destroying
+	 * @throws MessagingException   if an SMTP mail sender couldn't connect to its mail server
+	 */
+	MailSender createMailSender(final String municipalityId, final MailSenderProperties mailSenderProperties, final Properties defaultProperties) throws MessagingException {
+		validate(mailSenderProperties);
+
+		if (nonNull(mailSenderProperties.basic)) {
+			final var basic = mailSenderProperties.basic;
+			final var javaMailSender = createJavaMailSender(municipalityId, basic, mergeJavaMailProperties(defaultProperties, basic));
+			javaMailSender.testConnection();
+
+			final var mailSender = new SmtpMailSender(javaMailSender, basic.batch.maxSize(), basic.batch.window(), basic.attachmentCache.maxSize().toBytes());
+			mailSender.setMunicipalityId(municipalityId);
+			return mailSender;
+		}
+
+		final var azure = mailSenderProperties.azure;
+		final var clientSecretCredential = createClientSecretCredential(azure);
+		fetchAccessToken(clientSecretCredential, azure.scope);
+
+		final var mailSender = new MicrosoftGraphMailSender(new GraphServiceClient(clientSecretCredential, azure.scope),
+			azure.batch.maxSize(), azure.batch.window(), azure.throttle.maxConcurrentPerMailbox(), azure.throttle.maxQueueTime());
+		mailSender.setMunicipalityId(municipalityId);
+		return mailSender;
+	}
+
+	void validate(final MailSenderProperties mailSenderProperties) {
+		final var basicSet = nonNull(mailSenderProperties.basic);
+		final var azureSet = nonNull(mailSenderProperties.azure);
+
+		// Make sure that exactly one of "basic" and "azure" is set, and validate the one that actually is
+		if ((!basicSet && !azureSet) || (basicSet && azureSet)) {
+			throw new BeanCreationException("Exactly one of SMTP 'basic' or 'azure' properties must be set");
+		} else if (basicSet) {
+			// An SMTP mail sender either has a single mail server, or balances sends over several
+			if (isNotBlank(mailSenderProperties.basic.host) == (nonNull(mailSenderProperties.basic.hosts) && !mailSenderProperties.basic.hosts.isEmpty())) {
+				throw new BeanCreationException("Exactly one of SMTP 'host' or 'hosts' properties must be set");
+			}
+			validator.validate(mailSenderProperties.basic);
+		} else {
+			validator.validate(mailSenderProperties.azure);
+		}
+	}
+
+	Properties mergeJavaMailProperties(final Properties defaultProperties, final MailSenderProperties.Basic basicMailSenderProperties) {
+		// Merge the default properties with the SMTP server properties, with
+		// values from the latter possibly overriding defaults
+		final var mergedProperties = new Properties();
+		mergedProperties.putAll(defaultProperties);
+		if (nonNull(basicMailSenderProperties.properties)) {
+			mergedProperties.putAll(basicMailSenderProperties.properties);
+		}
+		return mergedProperties;
+	}
+
 	void registerSmtpMailSender(final BeanDefinitionRegistry beanDefinitionRegistry, final String municipalityId, final MailSenderProperties mailSenderProperties, final Properties mergedJavaMailProperties) {
+		final var javaMailSender = createJavaMailSender(municipalityId, mailSenderProperties.basic, mergedJavaMailProperties);
 		final var beanDefinition = BeanDefinitionBuilder.genericBeanDefinition(SmtpMailSender.class)
-			.addConstructorArgValue(createJavaMailSender(mailSenderProperties.basic, mergedJavaMailProperties))
+			.addConstructorArgValue(javaMailSender)
+			.addConstructorArgValue(mailSenderProperties.basic.batch.maxSize())
+			.addConstructorArgValue(mailSenderProperties.basic.batch.window())
+			.addConstructorArgValue(mailSenderProperties.basic.attachmentCache.maxSize().toBytes())
 			.addPropertyValue("municipalityId", municipalityId)
 			.getBeanDefinition();
 
 		registerBeanDefinition(beanDefinitionRegistry, SMTP_MAIL_SENDER_BEAN_NAME + municipalityId, beanDefinition);
+		// Connecting opens a pooled connection, which the first send then uses
+		warmUps.put(municipalityId, javaMailSender::testConnection);
 	}
 
-	JavaMailSender createJavaMailSender(final MailSenderProperties.Basic basicMailSenderProperties, final Properties mergedJavaMailProperties) {
-		final var javaMailSender = new NoOpOnUpdateMessageIdJavaMailSender();
-		javaMailSender.setHost(basicMailSenderProperties.host);
-		javaMailSender.setPort(basicMailSenderProperties.port);
+	JavaMailSenderImpl createJavaMailSender(final String municipalityId, final MailSenderProperties.Basic basicMailSenderProperties, final Properties mergedJavaMailProperties) {
+		if (isNotBlank(basicMailSenderProperties.host)) {
+			return createPooledJavaMailSender(municipalityId, basicMailSenderProperties, basicMailSenderProperties.host, basicMailSenderProperties.port, mergedJavaMailProperties);
+		}
+
+		// A pool per mail server, with the sends balanced over them
+		final var javaMailSenders = basicMailSenderProperties.hosts.stream()
+			.map(host -> createPooledJavaMailSender(municipalityId, basicMailSenderProperties, host.host, host.port, mergedJavaMailProperties))
+			.toList();
+		final var javaMailSender = new LoadBalancedJavaMailSender(municipalityId, javaMailSenders, basicMailSenderProperties.balancing);
+		javaMailSender.setJavaMailProperties(mergedJavaMailProperties);
+		return javaMailSender;
+	}
+
+	PooledJavaMailSender createPooledJavaMailSender(final String municipalityId, final MailSenderProperties.Basic basicMailSenderProperties, final String host, final Integer port,
+		final Properties mergedJavaMailProperties) {
+		final var javaMailSender = new PooledJavaMailSender(municipalityId, basicMailSenderProperties.pool);
+		javaMailSender.setHost(host);
+		javaMailSender.setPort(port);
 		ofNullable(basicMailSenderProperties.username).ifPresent(javaMailSender::setUsername);
 		ofNullable(basicMailSenderProperties.password).ifPresent(javaMailSender::setPassword);
 		javaMailSender.setJavaMailProperties(mergedJavaMailProperties);
@@ -111,21 +273,35 @@ class MailSenderBeanFactoryPostProcessor implements BeanFactoryPostProcessor, Ap
 	}
 
 	void registerMicrosoftGraphMailSender(final BeanDefinitionRegistry beanDefinitionRegistry, final String municipalityId, final MailSenderProperties mailSenderProperties) {
+		final var azure = mailSenderProperties.azure;
+		final var clientSecretCredential = createClientSecretCredential(azure);
 		final var beanDefinition = BeanDefinitionBuilder.genericBeanDefinition(MicrosoftGraphMailSender.class)
-			.addConstructorArgValue(createGraphServiceClient(mailSenderProperties.azure))
+			.addConstructorArgValue(new GraphServiceClient(clientSecretCredential, azure.scope))
+			.addConstructorArgValue(mailSenderProperties.azure.batch.maxSize())
+			.addConstructorArgValue(mailSenderProperties.azure.batch.window())
+			.addConstructorArgValue(mailSenderProperties.azure.throttle.maxConcurrentPerMailbox())
+			.addConstructorArgValue(mailSenderProperties.azure.throttle.maxQueueTime())
 			.addPropertyValue("municipalityId", municipalityId)
 			.getBeanDefinition();
 
 		registerBeanDefinition(beanDefinitionRegistry, MICROSOFT_GRAPH_MAIL_SENDER_BEAN_NAME + municipalityId, beanDefinition);
+		warmUps.put(municipalityId, () -> fetchAccessToken(clientSecretCredential, azure.scope));
 	}
 
-	GraphServiceClient createGraphServiceClient(final MailSenderProperties.Azure azureMailSenderProperties) {
-		final var clientSecretCredential = new ClientSecretCredentialBuilder()
+	ClientSecretCredential createClientSecretCredential(final MailSenderProperties.Azure azureMailSenderProperties) {
+		return new ClientSecretCredentialBuilder()
 			.tenantId(azureMailSenderProperties.tenantId)
 			.clientId(azureMailSenderProperties.clientId)
 			.clientSecret(azureMailSenderProperties.clientSecret)
 			.build();
-		return new GraphServiceClient(clientSecretCredential, azureMailSenderProperties.scope);
+	}
+
+	/**
+	 * Gets an access token, which the credential then caches until it's about to expire, so that the first send doesn't
+	 * have to.
+	 */
+	static void fetchAccessToken(final TokenCredential credential, final String scope) {
+		credential.getTokenSync(new TokenRequestContext().addScopes(scope));
 	}
 
 	void registerBeanDefinition(final BeanDefinitionRegistry beanDefinitionRegistry, final String beanName, final BeanDefinition beanDefinition) {
@@ -134,10 +310,20 @@ class MailSenderBeanFactoryPostProcessor implements BeanFactoryPostProcessor, Ap
 
 	@Override
 	public void setApplicationContext(final ApplicationContext applicationContext) throws BeansException {
-		environment = applicationContext.getEnvironment();
+		environment = ((ConfigurableApplicationContext) applicationContext).getEnvironment();
+		resourceLoader = applicationContext;
 		validator = applicationContext.getBean(Validator.class);
 	}
 
+	/**
+	 * Warms up a mail sender, by doing what its first send would otherwise have to do first.
+	 */
+	@FunctionalInterface
+	interface WarmUp {
+
+		void run() throws Exception;
+	}
+
 	/**
 	 * The default implementation of {@link JavaMailSenderImpl} generates a new message-id before sending messages. Since
 	 * this is an unwanted behaviour, we are overriding the MimeMessage#updateMessageID method to cancel the message-id
@@ -171,19 +357,103 @@ class MailSenderBeanFactoryPostProcessor implements BeanFactoryPostProcessor, Ap
 
 		private static final String NOT_BLANK_MESSAGE = "must not be blank";
 
+		/**
+		 * SMTP properties. Exactly one of {@code host} and {@code hosts} must be set.
+		 *
+		 * @param host  the mail server
+		 * @param port  the port of the mail server
+		 * @param hosts the mail servers - such as the nodes of a relay cluster - that sends are balanced over
+		 */
 		record Basic(
-			@NotBlank(message = NOT_BLANK_MESSAGE) String host,
+			String host,
 			@DefaultValue("25") Integer port,
+			List<@Valid Host> hosts,
 			String username,
 			String password,
-			Properties properties) {
+			Properties properties,
+			@DefaultValue Pool pool,
+			@DefaultValue Batch batch,
+			@DefaultValue Balancing balancing,
+			@DefaultValue AttachmentCache attachmentCache) {
+		}
+
+		record Host(
+			@NotBlank(message = NOT_BLANK_MESSAGE) String host,
+			@DefaultValue("25") Integer port) {
+		}
+
+		/**
+		 * Load balancing properties, for when there are several mail servers. Each of them gets a connection pool of its own.
+		 *
+		 * @param maxFailures     the number of sends in a row that fail to connect, or time out, after which a mail server is
+		 *                        ejected
+		 * @param ejectionTime    the time after which an ejected mail server is probed - doubled for every failed probe
+		 * @param maxEjectionTime the maximum time between probes
+		 * @param decayTime       the time over which the latency of a mail server is averaged
+		 */
+		record Balancing(
+			@DefaultValue("3") int maxFailures,
+			@DefaultValue("10s") Duration ejectionTime,
+			@DefaultValue("2m") Duration maxEjectionTime,
+			@DefaultValue("10s") Duration decayTime) {
+		}
+
+		/**
+		 * SMTP connection pool properties.
+		 *
+		 * @param maxSize                  the maximum number of open connections
+		 * @param maxMessagesPerConnection the number of messages after which a connection is closed and replaced
+		 * @param maxIdleTime              the time after which an idle connection is closed
+		 * @param borrowTimeout            how long a send waits for a connection when all of them are in use
+		 */
+		record Pool(
+			@DefaultValue("4") int maxSize,
+			@DefaultValue("100") int maxMessagesPerConnection,
+			@DefaultValue("60s") Duration maxIdleTime,
+			@DefaultValue("30s") Duration borrowTimeout) {
+		}
+
+		/**
+		 * Micro-batching properties. Concurrent sends are coalesced and delivered over a single SMTP session, or in a single
+		 * Graph JSON batch request.
+		 *
+		 * @param maxSize the maximum number of messages per batch - 1 disables batching, and Graph caps it at 20
+		 * @param window  the maximum time to wait for more messages before a batch is delivered - with a zero window only
+		 *                messages that are already waiting are coalesced
+		 */
+		record Batch(
+			@DefaultValue("20") int maxSize,
+			@DefaultValue("0ms") Duration window) {
+		}
+
+		/**
+		 * Encoded attachment cache properties. Attachments are BASE64-encoded once, and kept encoded, so that an attachment
+		 * that goes out with many e-mails - such as a notice to many residents - isn't encoded for each of them.
+		 *
+		 * @param maxSize the maximum total size of the encoded attachments that are kept - 0 disables the cache
+		 */
+		record AttachmentCache(
+			@DefaultValue("64MB") DataSize maxSize) {
 		}
 
 		record Azure(
 			@NotBlank(message = NOT_BLANK_MESSAGE) String tenantId,
 			@NotBlank(message = NOT_BLANK_MESSAGE) String clientId,
 			@NotBlank(message = NOT_BLANK_MESSAGE) String clientSecret,
-			@DefaultValue("https://graph.microsoft.com/.default") String scope) {
+			@DefaultValue("https://graph.microsoft.com/.default") String scope,
+			@DefaultValue Batch batch,
+			@DefaultValue Throttle throttle) {
+		}
+
+		/**
+		 * Graph per-mailbox throttling properties.
+		 *
+		 * @param maxConcurrentPerMailbox the maximum number of in-flight requests per sender mailbox
+		 * @param maxQueueTime            the maximum time a send waits for its turn, when its mailbox is busy or throttled
+		 */
+		record Throttle(
+			@DefaultValue("4") int maxConcurrentPerMailbox,
+			@DefaultValue("30s") Duration maxQueueTime) {
 		}
 	}
 }
@@ -0,0 +1,30 @@
+package se.sundsvall.emailsender.configuration;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Properties for the registry of mail senders.
+ *
+ * @param drainTimeout how long a mail sender that has been replaced or removed gets to finish its in-flight sends,
+ *                     before it's closed anyway
+ * @param warmUp       warm-up properties
+ */
+@ConfigurationProperties(prefix = "email-sender.mail-senders")
+public record MailSenderRegistryProperties(
+	@DefaultValue("30s") Duration drainTimeout,
+	@DefaultValue WarmUp warmUp) {
+
+	/**
+	 * Startup warm-up properties. Each mail sender is warmed up before the application reports that it's ready, so that
+	 * the first sends don't pay for connecting to the mail server or getting an access token.
+	 *
+	 * @param enabled whether mail senders are warmed up at startup
+	 * @param timeout how long startup waits for the warm-up, before the application reports that it's ready anyway
+	 */
+	public record WarmUp(
+		@DefaultValue("true") boolean enabled,
+		@DefaultValue("30s") Duration timeout) {
+	}
+}
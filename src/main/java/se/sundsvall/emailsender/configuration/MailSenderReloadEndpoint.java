@@ -0,0 +1,168 @@
+package se.sundsvall.emailsender.configuration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+import se.sundsvall.emailsender.service.MailSender;
+import se.sundsvall.emailsender.service.MailSenderRegistry;
+import se.sundsvall.emailsender.support.MimePartCache;
+
+import static java.util.stream.Collectors.toMap;
+import static se.sundsvall.emailsender.support.MailboxLimiter.IN_FLIGHT_METRIC_NAME;
+import static se.sundsvall.emailsender.support.MailboxLimiter.QUEUED_METRIC_NAME;
+
+/**
+ * Reloads the mail senders from {@value MailSenderBeanFactoryPostProcessor#INSTANCES} without a restart, e.g. to add a
+ * municipality or to rotate a client secret. The properties are read anew from the file at
+ * {@value MailSenderBeanFactoryPostProcessor#CONFIG_LOCATION}, as the rest of the environment is only read at startup.
+ * Mail senders whose properties haven't changed are kept as they are. New mail senders are created and warmed up before
+ * any of them replaces a current one, so a reload with properties that don't work changes nothing.
+ */
+@Component
+@Endpoint(id = "mailsenders")
+public class MailSenderReloadEndpoint {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MailSenderReloadEndpoint.class);
+
+	// Meters that observe a mail sender's own state, rather than count what it does, and therefore go with it
+	private static final List<String> MAIL_SENDER_METER_NAMES = List.of(
+		PooledJavaMailSender.BORROWED_METRIC_NAME, PooledJavaMailSender.IDLE_METRIC_NAME, PooledJavaMailSender.CREATED_METRIC_NAME,
+		PooledJavaMailSender.EVICTED_METRIC_NAME, LoadBalancedJavaMailSender.OUTSTANDING_METRIC_NAME, LoadBalancedJavaMailSender.LATENCY_METRIC_NAME,
+		LoadBalancedJavaMailSender.EJECTED_METRIC_NAME, LoadBalancedJavaMailSender.EJECTIONS_METRIC_NAME, QUEUED_METRIC_NAME, IN_FLIGHT_METRIC_NAME,
+		MimePartCache.SIZE_METRIC_NAME, MimePartCache.REQUESTS_METRIC_NAME);
+
+	private final MailSenderBeanFactoryPostProcessor mailSenderFactory;
+	private final MailSenderRegistry mailSenderRegistry;
+	private final MeterRegistry meterRegistry;
+
+	// The properties that the current mail senders were created with
+	private Properties defaultProperties;
+	private Map<String, MailSenderBeanFactoryPostProcessor.MailSenderProperties> mailSenderProperties;
+
+	MailSenderReloadEndpoint(final MailSenderBeanFactoryPostProcessor mailSenderFactory, final MailSenderRegistry mailSenderRegistry, final MeterRegistry meterRegistry) {
+		this.mailSenderFactory = mailSenderFactory;
+		this.mailSenderRegistry = mailSenderRegistry;
+		this.meterRegistry = meterRegistry;
+		defaultProperties = mailSenderFactory.getDefaultProperties();
+		mailSenderProperties = mailSenderFactory.getMailSenderProperties();
+	}
+
+	/**
+	 * @return the transport of each municipality's mail sender
+	 */
+	@ReadOperation
+	public Map<String, String> mailSenders() {
+		return mailSenderRegistry.getAll().entrySet().stream()
+			.collect(toMap(Map.Entry::getKey, entry -> entry.getValue().getTransport(), (a, b) -> a, TreeMap::new));
+	}
+
+	/**
+	 * Reloads the mail senders.
+	 *
+	 * @return the municipalities whose mail senders were added, replaced and removed
+	 */
+	@WriteOperation
+	public synchronized ReloadResult reload() {
+		mailSenderFactory.loadConfigLocation();
+		final var newDefaultProperties = mailSenderFactory.bindDefaultProperties();
+		final var newMailSenderProperties = mailSenderFactory.bindMailSenderProperties();
+		final var currentMailSenders = mailSenderRegistry.getAll();
+
+		final var mailSenders = new HashMap<String, MailSender>();
+		final var createdMailSenders = new HashMap<String, MailSender>();
+		try {
+			newMailSenderProperties.forEach((municipalityId, properties) -> {
+				final var currentMailSender = currentMailSenders.get(municipalityId);
+				if (currentMailSender != null && !hasChanged(municipalityId, properties, newDefaultProperties)) {
+					mailSenders.put(municipalityId, currentMailSender);
+					return;
+				}
+
+				final var mailSender = createMailSender(municipalityId, properties, newDefaultProperties);
+				createdMailSenders.put(municipalityId, mailSender);
+				mailSenders.put(municipalityId, mailSender);
+			});
+		} catch (final RuntimeException e) {
+			// Keep the current mail senders, rather than run with some of the new ones
+			createdMailSenders.values().forEach(MailSenderReloadEndpoint::destroy);
+			throw e;
+		}
+
+		final var removedMunicipalityIds = currentMailSenders.keySet().stream().filter(municipalityId -> !mailSenders.containsKey(municipalityId)).sorted().toList();
+		// The meters of a replaced or removed mail sender would otherwise go on observing it after it's destroyed
+		createdMailSenders.keySet().forEach(this::removeMailSenderMeters);
+		removedMunicipalityIds.forEach(this::removeMailSenderMeters);
+		createdMailSenders.values().forEach(mailSender -> {
+			if (mailSender instanceof final MeterBinder meterBinder) {
+				meterBinder.bindTo(meterRegistry);
+			}
+		});
+		mailSenderRegistry.replace(mailSenders);
+		defaultProperties = newDefaultProperties;
+		mailSenderProperties = newMailSenderProperties;
+
+		final var result = new ReloadResult(
+			createdMailSenders.keySet().stream().filter(municipalityId -> !currentMailSenders.containsKey(municipalityId)).sorted().toList(),
+			createdMailSenders.keySet().stream().filter(currentMailSenders::containsKey).sorted().toList(),
+			removedMunicipalityIds);
+		LOGGER.info("Reloaded mail senders - added: {}, replaced: {}, removed: {}", result.added(), result.replaced(), result.removed());
+		return result;
+	}
+
+	boolean hasChanged(final String municipalityId, final MailSenderBeanFactoryPostProcessor.MailSenderProperties properties, final Properties newDefaultProperties) {
+		// The default properties only go into SMTP mail senders
+		return !properties.equals(mailSenderProperties.get(municipalityId))
+			|| (properties.basic() != null && !newDefaultProperties.equals(defaultProperties));
+	}
+
+	MailSender createMailSender(final String municipalityId, final MailSenderBeanFactoryPostProcessor.MailSenderProperties properties, final Properties newDefaultProperties) {
+		try {
+			return mailSenderFactory.createMailSender(municipalityId, properties, newDefaultProperties);
+		} catch (final Exception e) {
+			throw new IllegalStateException("Unable to create mail sender for municipalityId " + municipalityId + ": " + e.getMessage(), e);
+		}
+	}
+
+	void removeMailSenderMeters(final String municipalityId) {
+		meterRegistry.getMeters().stream()
+			.filter(meter -> meter instanceof Gauge || meter instanceof FunctionCounter)
+			.filter(meter -> MAIL_SENDER_METER_NAMES.contains(meter.getId().getName()))
+			.filter(meter -> Objects.equals(municipalityId, meter.getId().getTag("municipality")))
+			.toList()
+			.forEach(meterRegistry::remove);
+	}
+
+	private static void destroy(final MailSender mailSender) {
+		if (mailSender instanceof final DisposableBean disposableBean) {
+			try {
+				disposableBean.destroy();
+			} catch (final Exception e) {
+				LOGGER.warn("Unable to destroy mail sender for municipalityId {}", mailSender.getMunicipalityId(), e);
+			}
+		}
+	}
+
+	/**
+	 * The outcome of a reload.
+	 *
+	 * @param added    the municipalities that got a mail sender
+	 * @param replaced the municipalities whose mail sender was replaced
+	 * @param removed  the municipalities whose mail sender was removed
+	 */
+	public record ReloadResult(List<String> added, List<String> replaced, List<String> removed) {
+	}
+}
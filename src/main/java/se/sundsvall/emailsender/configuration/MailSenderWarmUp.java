@@ -0,0 +1,89 @@
+package se.sundsvall.emailsender.configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Warms up the mail senders at startup - SMTP mail senders open a pooled connection, and Microsoft Graph mail senders
+ * get an access token - so that the first sends after a deploy don't have to. Application runners complete before the
+ * application reports that it's ready to accept traffic, so the warm-up holds readiness back, for at most the
+ * configured timeout. A mail sender that can't be warmed up doesn't fail startup, since its mail server may well be
+ * back by the time it's needed, and it doesn't stop the other municipalities from sending.
+ */
+@Component
+class MailSenderWarmUp implements ApplicationRunner {
+
+	static final String WARM_UP_METRIC_NAME = "email.mail-sender.warm-up";
+
+	static final String OUTCOME_SUCCESS = "success";
+	static final String OUTCOME_FAILURE = "failure";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MailSenderWarmUp.class);
+
+	private final MailSenderBeanFactoryPostProcessor mailSenderFactory;
+	private final MailSenderRegistryProperties.WarmUp properties;
+	private final MeterRegistry meterRegistry;
+
+	MailSenderWarmUp(final MailSenderBeanFactoryPostProcessor mailSenderFactory, final MailSenderRegistryProperties properties, final MeterRegistry meterRegistry) {
+		this.mailSenderFactory = mailSenderFactory;
+		this.properties = properties.warmUp();
+		this.meterRegistry = meterRegistry;
+	}
+
+	@Override
+	public void run(final ApplicationArguments args) {
+		if (properties.enabled()) {
+			warmUp(mailSenderFactory.getWarmUps());
+		}
+	}
+
+	void warmUp(final Map<String, MailSenderBeanFactoryPostProcessor.WarmUp> warmUps) {
+		final var tasks = warmUps.entrySet().stream()
+			.map(entry -> (Callable<String>) () -> warmUp(entry.getKey(), entry.getValue()))
+			.toList();
+
+		// Not closed, since that would wait for warm-ups that are stuck connecting, past the timeout
+		final var executor = Executors.newVirtualThreadPerTaskExecutor();
+		try {
+			final var futures = executor.invokeAll(tasks, properties.timeout().toMillis(), MILLISECONDS);
+			final var timedOut = futures.stream().filter(Future::isCancelled).count();
+			if (timedOut > 0) {
+				LOGGER.warn("{} mail sender(s) were not warmed up within {}", timedOut, properties.timeout());
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	String warmUp(final String municipalityId, final MailSenderBeanFactoryPostProcessor.WarmUp warmUp) {
+		final var sample = Timer.start(meterRegistry);
+		var outcome = OUTCOME_FAILURE;
+		try {
+			warmUp.run();
+			outcome = OUTCOME_SUCCESS;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final Exception e) {
+			LOGGER.warn("Unable to warm up mail sender for municipalityId {}: {}", municipalityId, e.getMessage());
+		} finally {
+			sample.stop(Timer.builder(WARM_UP_METRIC_NAME)
+				.tags("municipality", municipalityId, "outcome", outcome)
+				.description("The time it takes to warm up mail senders at startup")
+				.register(meterRegistry));
+		}
+		return outcome;
+	}
+}
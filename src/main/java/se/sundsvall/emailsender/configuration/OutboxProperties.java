@@ -0,0 +1,21 @@
+package se.sundsvall.emailsender.configuration;
+
+import java.nio.file.Path;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Properties for the outbox, which keeps asynchronously sent e-mails on disk until they have been sent.
+ *
+ * @param enabled     whether e-mails are kept in the outbox - without it, queued e-mails are lost if the application
+ *                    stops before they have been sent
+ * @param directory   the directory that the outbox journal is kept in, which should be on a persistent volume
+ * @param segmentSize the size of each journal segment - a segment is deleted once all its e-mails have been sent
+ */
+@ConfigurationProperties(prefix = "email-sender.outbox")
+public record OutboxProperties(
+	@DefaultValue("false") boolean enabled,
+	Path directory,
+	@DefaultValue("64MB") DataSize segmentSize) {
+}
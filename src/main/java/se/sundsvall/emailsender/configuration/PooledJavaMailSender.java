@@ -0,0 +1,271 @@
+package se.sundsvall.emailsender.configuration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.mail.Address;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A {@link org.springframework.mail.javamail.JavaMailSender} that keeps a pool of connected (and, if configured,
+ * authenticated) SMTP transports, instead of connecting for every send. Idle transports are checked with a NOOP (by
+ * {@link Transport#isConnected()}) before they are reused, and are retired after a configurable number of messages or
+ * idle time.
+ */
+class PooledJavaMailSender extends MailSenderBeanFactoryPostProcessor.NoOpOnUpdateMessageIdJavaMailSender implements MeterBinder, DisposableBean {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PooledJavaMailSender.class);
+
+	private static final String HEADER_MESSAGE_ID = "Message-ID";
+
+	static final String BORROWED_METRIC_NAME = "email.smtp.pool.borrowed";
+	static final String IDLE_METRIC_NAME = "email.smtp.pool.idle";
+	static final String CREATED_METRIC_NAME = "email.smtp.pool.created";
+	static final String EVICTED_METRIC_NAME = "email.smtp.pool.evicted";
+
+	private final String municipalityId;
+	private final MailSenderBeanFactoryPostProcessor.MailSenderProperties.Pool pool;
+	private final BlockingDeque<PooledTransport> idleTransports = new LinkedBlockingDeque<>();
+	private final Semaphore permits;
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	PooledJavaMailSender(final String municipalityId, final MailSenderBeanFactoryPostProcessor.MailSenderProperties.Pool pool) {
+		this.municipalityId = municipalityId;
+		this.pool = pool;
+		permits = new Semaphore(pool.maxSize(), true);
+	}
+
+	@Override
+	protected void doSend(final MimeMessage[] mimeMessages, final Object[] originalMessages) throws MailException {
+		final Map<Object, Exception> failedMessages = new LinkedHashMap<>();
+		PooledTransport transport = null;
+		try {
+			for (var i = 0; i < mimeMessages.length; i++) {
+				if (transport == null) {
+					try {
+						transport = borrow();
+					} catch (final AuthenticationFailedException e) {
+						throw new MailAuthenticationException(e);
+					} catch (final Exception e) {
+						if (e instanceof InterruptedException) {
+							Thread.currentThread().interrupt();
+						}
+						// Effectively, all remaining messages failed
+						for (var j = i; j < mimeMessages.length; j++) {
+							failedMessages.put(originalMessages != null ? originalMessages[j] : mimeMessages[j], e);
+						}
+						throw new MailSendException("Mail server connection failed", e, failedMessages);
+					}
+				}
+
+				final var mimeMessage = mimeMessages[i];
+				try {
+					send(transport, mimeMessage);
+				} catch (final Exception e) {
+					failedMessages.put(originalMessages != null ? originalMessages[i] : mimeMessage, e);
+					// Don't keep using (or return to the pool) a transport that has lost its connection
+					if (!transport.transport().isConnected()) {
+						evict(transport);
+						transport = null;
+					}
+				}
+			}
+		} finally {
+			if (transport != null) {
+				release(transport);
+			}
+		}
+
+		if (!failedMessages.isEmpty()) {
+			throw new MailSendException(failedMessages);
+		}
+	}
+
+	void send(final PooledTransport transport, final MimeMessage mimeMessage) throws MessagingException {
+		if (mimeMessage.getSentDate() == null) {
+			mimeMessage.setSentDate(new Date());
+		}
+		final var messageId = mimeMessage.getMessageID();
+		mimeMessage.saveChanges();
+		if (messageId != null) {
+			// Preserve explicitly specified message id
+			mimeMessage.setHeader(HEADER_MESSAGE_ID, messageId);
+		}
+		final var addresses = mimeMessage.getAllRecipients();
+		transport.messageSent();
+		transport.transport().sendMessage(mimeMessage, addresses != null ? addresses : new Address[0]);
+	}
+
+	/**
+	 * Opens a pooled connection, unless there already is an idle one, so that the first send doesn't have to.
+	 */
+	@Override
+	public void testConnection() throws MessagingException {
+		try {
+			release(borrow());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted while waiting for a pooled SMTP connection", e);
+		}
+	}
+
+	PooledTransport borrow() throws MessagingException, InterruptedException {
+		if (!permits.tryAcquire(pool.borrowTimeout().toMillis(), MILLISECONDS)) {
+			throw new MessagingException("Timed out waiting for a pooled SMTP connection");
+		}
+
+		try {
+			// Prefer the most recently used transport, as it is the least likely one to have been dropped by the server
+			PooledTransport pooledTransport;
+			while ((pooledTransport = idleTransports.pollFirst()) != null) {
+				if (isReusable(pooledTransport)) {
+					return pooledTransport;
+				}
+				evict(pooledTransport);
+			}
+
+			pooledTransport = new PooledTransport(connectTransport());
+			created.incrementAndGet();
+			return pooledTransport;
+		} catch (final MessagingException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	void release(final PooledTransport pooledTransport) {
+		try {
+			if (pooledTransport.messages() >= pool.maxMessagesPerConnection()) {
+				evict(pooledTransport);
+			} else {
+				pooledTransport.touch();
+				idleTransports.offerFirst(pooledTransport);
+			}
+			evictExpired();
+		} finally {
+			permits.release();
+		}
+	}
+
+	boolean isReusable(final PooledTransport pooledTransport) {
+		// Transport#isConnected() issues a NOOP to the server, to detect dropped connections
+		return !pooledTransport.isIdleLongerThan(pool.maxIdleTime().toMillis()) && pooledTransport.transport().isConnected();
+	}
+
+	void evictExpired() {
+		// The least recently used transports are at the end of the deque
+		PooledTransport pooledTransport;
+		while ((pooledTransport = idleTransports.peekLast()) != null && pooledTransport.isIdleLongerThan(pool.maxIdleTime().toMillis())) {
+			if (idleTransports.removeLastOccurrence(pooledTransport)) {
+				evict(pooledTransport);
+			}
+		}
+	}
+
+	void evict(final PooledTransport pooledTransport) {
+		evicted.incrementAndGet();
+		try {
+			pooledTransport.transport().close();
+		} catch (final Exception e) {
+			LOGGER.debug("Unable to close SMTP connection for municipalityId {}", municipalityId, e);
+		}
+	}
+
+	int borrowedCount() {
+		return pool.maxSize() - permits.availablePermits();
+	}
+
+	int idleCount() {
+		return idleTransports.size();
+	}
+
+	long createdCount() {
+		return created.get();
+	}
+
+	long evictedCount() {
+		return evicted.get();
+	}
+
+	@Override
+	public void bindTo(final MeterRegistry registry) {
+		// Tagged by endpoint too, as a load balanced mail sender has a pool per endpoint
+		final var tags = Tags.of("municipality", municipalityId, "endpoint", getHost() + ":" + getPort());
+		Gauge.builder(BORROWED_METRIC_NAME, this, PooledJavaMailSender::borrowedCount)
+			.tags(tags)
+			.description("The number of SMTP connections currently in use")
+			.register(registry);
+		Gauge.builder(IDLE_METRIC_NAME, this, PooledJavaMailSender::idleCount)
+			.tags(tags)
+			.description("The number of idle SMTP connections in the pool")
+			.register(registry);
+		FunctionCounter.builder(CREATED_METRIC_NAME, this, PooledJavaMailSender::createdCount)
+			.tags(tags)
+			.description("The number of SMTP connections that have been opened")
+			.register(registry);
+		FunctionCounter.builder(EVICTED_METRIC_NAME, this, PooledJavaMailSender::evictedCount)
+			.tags(tags)
+			.description("The number of SMTP connections that have been closed")
+			.register(registry);
+	}
+
+	@Override
+	public void destroy() {
+		PooledTransport pooledTransport;
+		while ((pooledTransport = idleTransports.pollFirst()) != null) {
+			evict(pooledTransport);
+		}
+	}
+
+	static final class PooledTransport {
+
+		private final Transport transport;
+		private int messages;
+		private long lastUsed = System.currentTimeMillis();
+
+		PooledTransport(final Transport transport) {
+			this.transport = transport;
+		}
+
+		Transport transport() {
+			return transport;
+		}
+
+		int messages() {
+			return messages;
+		}
+
+		void messageSent() {
+			messages++;
+		}
+
+		void touch() {
+			lastUsed = System.currentTimeMillis();
+		}
+
+		boolean isIdleLongerThan(final long millis) {
+			return System.currentTimeMillis() - lastUsed > millis;
+		}
+	}
+}
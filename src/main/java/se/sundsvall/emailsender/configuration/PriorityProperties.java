@@ -0,0 +1,30 @@
+package se.sundsvall.emailsender.configuration;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Properties for the send lanes, which keep e-mails of lower priority from using up a mail sender's connections (or
+ * Graph mailbox slots), so that there are some left for the HIGH priority ones. HIGH priority e-mails aren't limited by
+ * the lanes, but still compete for the mail sender's connections.
+ *
+ * @param normalMaxConcurrentSends the maximum number of NORMAL priority e-mails that are sent at the same time, per
+ *                                 municipality - 0 means no limit
+ * @param lowMaxConcurrentSends    the maximum number of LOW priority e-mails that are sent at the same time, per
+ *                                 municipality - 0 means no limit
+ * @param maxConcurrentSends       the maximum number of NORMAL and LOW priority e-mails, together, that are sent at the
+ *                                 same time, per municipality - the mail sender's connection pool size (or Graph
+ *                                 per-mailbox concurrency) less the connections reserved for HIGH priority e-mails. 0
+ *                                 means no limit
+ * @param maxWait                  the maximum time an e-mail waits for its turn in the limited lanes, before it fails -
+ *                                 short, since the request, or worker, that sends it waits as well. Queued e-mails are
+ *                                 queued again, with a backoff
+ */
+@ConfigurationProperties(prefix = "email-sender.priority")
+public record PriorityProperties(
+	@DefaultValue("3") int normalMaxConcurrentSends,
+	@DefaultValue("2") int lowMaxConcurrentSends,
+	@DefaultValue("3") int maxConcurrentSends,
+	@DefaultValue("10s") Duration maxWait) {
+}
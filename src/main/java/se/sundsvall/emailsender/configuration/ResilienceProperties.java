@@ -0,0 +1,50 @@
+package se.sundsvall.emailsender.configuration;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Properties for retrying transient send failures, and for the circuit breaker that guards each municipality's mail
+ * sender.
+ *
+ * @param retry          retry properties
+ * @param circuitBreaker circuit breaker properties
+ */
+@ConfigurationProperties(prefix = "email-sender.resilience")
+public record ResilienceProperties(
+	@DefaultValue Retry retry,
+	@DefaultValue CircuitBreaker circuitBreaker) {
+
+	/**
+	 * Retry properties. The backoff between attempts grows exponentially, with full jitter.
+	 *
+	 * @param maxAttempts    the maximum number of attempts, including the first one - 1 disables retries
+	 * @param initialBackoff the upper bound of the backoff before the first retry
+	 * @param maxBackoff     the upper bound of the backoff before any retry
+	 * @param deadline       the maximum total time to spend on an e-mail - no retry is made that would end past it
+	 */
+	public record Retry(
+		@DefaultValue("3") int maxAttempts,
+		@DefaultValue("200ms") Duration initialBackoff,
+		@DefaultValue("2s") Duration maxBackoff,
+		@DefaultValue("10s") Duration deadline) {
+	}
+
+	/**
+	 * Circuit breaker properties. Only transient failures count towards the failure rate.
+	 *
+	 * @param failureRateThreshold                  the failure rate (in percent) at which the circuit breaker opens
+	 * @param slidingWindowSize                     the number of recent sends that the failure rate is calculated from
+	 * @param minimumNumberOfCalls                  the minimum number of sends before the failure rate is calculated
+	 * @param waitDurationInOpenState               how long the circuit breaker stays open, failing sends fast
+	 * @param permittedNumberOfCallsInHalfOpenState the number of trial sends let through when the open state has passed
+	 */
+	public record CircuitBreaker(
+		@DefaultValue("50") float failureRateThreshold,
+		@DefaultValue("20") int slidingWindowSize,
+		@DefaultValue("10") int minimumNumberOfCalls,
+		@DefaultValue("30s") Duration waitDurationInOpenState,
+		@DefaultValue("3") int permittedNumberOfCallsInHalfOpenState) {
+	}
+}
@@ -0,0 +1,28 @@
+package se.sundsvall.emailsender.configuration;
+
+import java.util.Map;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Properties for the templates that e-mail bodies can be rendered from.
+ *
+ * @param cacheSize      the maximum total size of the template sources that are kept compiled - the least used
+ *                       templates are evicted, and compiled again when they are next used
+ * @param municipalities the templates of each municipality, by municipality id and template id
+ */
+@ConfigurationProperties(prefix = "email-sender.templates")
+public record TemplateProperties(
+	@DefaultValue("10MB") DataSize cacheSize,
+	@DefaultValue Map<String, Map<String, Template>> municipalities) {
+
+	/**
+	 * A template, in Mustache syntax. Values are HTML-escaped in the HTML body, but not in the plain-text body.
+	 *
+	 * @param html the HTML body
+	 * @param text the plain-text body
+	 */
+	public record Template(String html, String text) {
+	}
+}
@@ -1,18 +1,34 @@
 package se.sundsvall.emailsender.service;
 
-import java.util.Base64;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.util.List;
 import java.util.Optional;
-import se.sundsvall.dept44.common.validators.annotation.impl.ValidBase64ConstraintValidator;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.apache.commons.lang3.StringUtils.containsIgnoreCase;
+import static org.apache.commons.lang3.exception.ExceptionUtils.getThrowableList;
 
 abstract class AbstractMailSender implements MailSender {
 
-	protected static final ValidBase64ConstraintValidator BASE64_VALIDATOR = new ValidBase64ConstraintValidator();
+	static final String CAUSE_TIMEOUT = "timeout";
+	static final String CAUSE_CONNECTION = "connection";
 
+	final SendMetrics metrics;
+
+	private final String transport;
 	private String municipalityId;
 
+	AbstractMailSender(final String transport) {
+		this.transport = transport;
+		metrics = new SendMetrics(transport);
+	}
+
+	@Override
+	public String getTransport() {
+		return transport;
+	}
+
 	@Override
 	public String getMunicipalityId() {
 		return municipalityId;
@@ -23,17 +39,37 @@ abstract class AbstractMailSender implements MailSender {
 		this.municipalityId = municipalityId;
 	}
 
-	Optional<String> decodeBase64(final String s) {
-		try {
-			return Optional.of(new String(Base64.getDecoder().decode(s), UTF_8));
-		} catch (final IllegalArgumentException e) {
-			return Optional.empty();
-		}
+	String formatHeader(final List<String> values) {
+		return String.join(" ", values);
 	}
 
-	String formatHeader(final List<String> values) {
-		return values.stream()
-			.reduce((a, b) -> a + " " + b)
-			.orElse("");
+	/**
+	 * @param  throwable a failure
+	 * @return           whether the failure, or any of its causes, is a failure to connect
+	 */
+	static boolean isConnectionFailure(final Throwable throwable) {
+		return getConnectionFailureCause(throwable).filter(CAUSE_CONNECTION::equals).isPresent();
+	}
+
+	/**
+	 * A failure to connect - a refused connection or a connect timeout - means that nothing was sent, whereas any other
+	 * timeout may have happened after the e-mail was accepted, e.g. while waiting for the reply to the end of the data.
+	 *
+	 * @param  throwable a failure
+	 * @return           {@value #CAUSE_CONNECTION}, if the failure, or any of its causes, is a failure to connect, or
+	 *                   {@value #CAUSE_TIMEOUT}, if it's any other timeout
+	 */
+	static Optional<String> getConnectionFailureCause(final Throwable throwable) {
+		for (final var cause : getThrowableList(throwable)) {
+			// Jakarta Mail wraps connect timeouts in a ConnectException, but the Graph client's HTTP client doesn't
+			if (cause instanceof ConnectException || (cause instanceof SocketTimeoutException && containsIgnoreCase(cause.getMessage(), "connect timed out"))) {
+				return Optional.of(CAUSE_CONNECTION);
+			}
+			// Socket timeouts are interrupted I/O, as are the call timeouts of the Graph client's HTTP client
+			if (cause instanceof InterruptedIOException) {
+				return Optional.of(CAUSE_TIMEOUT);
+			}
+		}
+		return Optional.empty();
 	}
 }
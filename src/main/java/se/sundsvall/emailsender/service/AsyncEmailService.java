@@ -0,0 +1,246 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.configuration.AsyncSendProperties;
+
+import static java.util.Locale.ROOT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+
+/**
+ * Accepts e-mails for asynchronous sending. Each municipality gets a bounded queue per priority, drained by a fixed pool
+ * of workers that hand the e-mails over to {@link EmailService}, so that a backlog of LOW priority e-mails doesn't queue
+ * up ahead of the HIGH priority ones. Accepted e-mails are kept in the {@link Outbox} until they have been sent, or can never be
+ * sent. E-mails that couldn't be sent since the mail server or Graph was unavailable are queued again, with a growing
+ * backoff, and the ones that weren't sent before the application stopped are queued again when it's ready.
+ */
+@Service
+public class AsyncEmailService implements DisposableBean {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncEmailService.class);
+
+	static final String EXECUTOR_METRIC_NAME = "email.async.workers";
+	static final String QUEUE_WAIT_METRIC_NAME = "email.async.queue.wait";
+	static final String UTILIZATION_METRIC_NAME = "email.async.workers.utilization";
+
+	private final EmailService emailService;
+	private final Outbox outbox;
+	private final AsyncSendProperties properties;
+	private final MeterRegistry meterRegistry;
+	private final boolean virtualThreads;
+	private final Map<Lane, SendQueue> sendQueues = new ConcurrentHashMap<>();
+	// Queues e-mails that couldn't be sent again, once their backoff has passed
+	private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("email-async-retry").factory());
+
+	public AsyncEmailService(final EmailService emailService, final Outbox outbox, final AsyncSendProperties properties, final MeterRegistry meterRegistry,
+		@Value("${spring.threads.virtual.enabled:false}") final boolean virtualThreads) {
+		this.emailService = emailService;
+		this.outbox = outbox;
+		this.properties = properties;
+		this.meterRegistry = meterRegistry;
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Queues the given e-mail for sending.
+	 *
+	 * @param  municipalityId the municipality id
+	 * @param  request        the (validated) request
+	 * @return                a message id that identifies the queued e-mail in the logs
+	 */
+	public String sendMail(final String municipalityId, final SendEmailRequest request) {
+		// Fail fast, rather than queueing e-mails that can never be sent
+		emailService.getMailSender(municipalityId);
+		emailService.validate(municipalityId, request);
+
+		final var messageId = UUID.randomUUID().toString();
+		final var outboxId = outbox.add(municipalityId, messageId, request);
+		final var sendQueue = sendQueues.computeIfAbsent(new Lane(municipalityId, EmailService.priorityOf(request)), this::createSendQueue);
+		try {
+			sendQueue.executor().execute(createTask(sendQueue, municipalityId, messageId, outboxId, request, 1));
+		} catch (final RejectedExecutionException e) {
+			outbox.complete(outboxId);
+			throw Problem.valueOf(SERVICE_UNAVAILABLE, "Send queue for municipalityId " + municipalityId + " is full");
+		}
+
+		return messageId;
+	}
+
+	/**
+	 * Queues the e-mails that were in the outbox when the application started. They are queued by a background thread,
+	 * which waits for room in the queues rather than rejecting any of them.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void sendRecovered() {
+		final var entries = outbox.recover();
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		LOGGER.info("Queueing {} e-mail(s) that were not sent before the last shutdown", entries.size());
+		Thread.ofVirtual().name("email-async-recovery").start(() -> {
+			try {
+				for (final var entry : entries) {
+					final var sendQueue = sendQueues.computeIfAbsent(new Lane(entry.municipalityId(), EmailService.priorityOf(entry.request())), this::createSendQueue);
+					// Putting the task in the queue directly only works once the workers are started
+					sendQueue.executor().prestartAllCoreThreads();
+					sendQueue.executor().getQueue().put(createTask(sendQueue, entry.municipalityId(), entry.messageId(), entry.id(), entry.request(), 1));
+				}
+			} catch (final InterruptedException e) {
+				// The remaining e-mails are still in the outbox, and are queued after the next restart
+				Thread.currentThread().interrupt();
+			}
+		});
+	}
+
+	Runnable createTask(final SendQueue sendQueue, final String municipalityId, final String messageId, final long outboxId, final SendEmailRequest request,
+		final int attempt) {
+		final var enqueuedAt = System.nanoTime();
+		return () -> {
+			sendQueue.waitTimer().record(System.nanoTime() - enqueuedAt, NANOSECONDS);
+			if (send(municipalityId, messageId, request) != Outcome.FAILED) {
+				outbox.complete(outboxId);
+			} else if (!sendQueue.executor().isShutdown()) {
+				// A send that fails because the application is shutting down is kept in the outbox, to be sent after the restart
+				retry(sendQueue, municipalityId, messageId, outboxId, request, attempt);
+			}
+		};
+	}
+
+	/**
+	 * Queues an e-mail that couldn't be sent again, once the backoff of the attempt that failed has passed. It stays in the
+	 * outbox meanwhile, so should the application stop first, it's sent after the restart.
+	 */
+	void retry(final SendQueue sendQueue, final String municipalityId, final String messageId, final long outboxId, final SendEmailRequest request,
+		final int failedAttempt) {
+		try {
+			retryScheduler.schedule(() -> {
+				try {
+					sendQueue.executor().execute(createTask(sendQueue, municipalityId, messageId, outboxId, request, failedAttempt + 1));
+				} catch (final RejectedExecutionException e) {
+					// The queue is full, so wait some more - unless the application is shutting down
+					if (!sendQueue.executor().isShutdown()) {
+						retry(sendQueue, municipalityId, messageId, outboxId, request, failedAttempt + 1);
+					}
+				}
+			}, backoff(failedAttempt).toNanos(), NANOSECONDS);
+		} catch (final RejectedExecutionException e) {
+			LOGGER.debug("Not retrying queued e-mail {} for municipalityId {}, since the application is shutting down", messageId, municipalityId);
+		}
+	}
+
+	/**
+	 * @return how long to wait after the given failed attempt, which doubles with each attempt, up to the max
+	 */
+	Duration backoff(final int failedAttempt) {
+		final var backoff = properties.retryBackoff().multipliedBy(1L << Math.min(failedAttempt - 1, 20));
+		return backoff.compareTo(properties.maxRetryBackoff()) <= 0 ? backoff : properties.maxRetryBackoff();
+	}
+
+	/**
+	 * @return the outcome of sending the e-mail - failures are logged, since there is no one to report them to
+	 */
+	Outcome send(final String municipalityId, final String messageId, final SendEmailRequest request) {
+		try {
+			emailService.sendMail(municipalityId, request);
+			LOGGER.info("Sent queued e-mail {} for municipalityId {}", messageId, municipalityId);
+			return Outcome.SENT;
+		} catch (final Exception e) {
+			if (isRejected(e)) {
+				LOGGER.error("Unable to send queued e-mail {} for municipalityId {}, and it never will be", messageId, municipalityId, e);
+				return Outcome.REJECTED;
+			}
+			LOGGER.warn("Unable to send queued e-mail {} for municipalityId {}, so it will be retried", messageId, municipalityId, e);
+			return Outcome.FAILED;
+		}
+	}
+
+	/**
+	 * @param  e a send failure
+	 * @return   whether the failure is down to the e-mail itself - a 4xx other than 429 - so that it can never be sent
+	 */
+	static boolean isRejected(final Exception e) {
+		if (!(e instanceof final ThrowableProblem problem) || problem.getStatus() == null) {
+			return false;
+		}
+		final var status = problem.getStatus().value();
+		return status >= 400 && status < 500 && status != TOO_MANY_REQUESTS.value();
+	}
+
+	SendQueue createSendQueue(final Lane lane) {
+		final var priority = lane.priority().name().toLowerCase(ROOT);
+		final var threadName = "email-async-" + lane.municipalityId() + "-" + priority + "-";
+		final var threadFactory = virtualThreads ? Thread.ofVirtual().name(threadName, 0).factory() : Thread.ofPlatform().name(threadName, 0).factory();
+		final var executor = new ThreadPoolExecutor(properties.workers(), properties.workers(), 0, MILLISECONDS,
+			new ArrayBlockingQueue<>(properties.queueCapacity()), threadFactory);
+
+		final var tags = Tags.of("municipality", lane.municipalityId(), "priority", priority);
+		new ExecutorServiceMetrics(executor, EXECUTOR_METRIC_NAME, tags).bindTo(meterRegistry);
+		Gauge.builder(UTILIZATION_METRIC_NAME, executor, e -> (double) e.getActiveCount() / e.getMaximumPoolSize())
+			.tags(tags)
+			.description("The share of workers that are currently sending")
+			.register(meterRegistry);
+		final var waitTimer = Timer.builder(QUEUE_WAIT_METRIC_NAME)
+			.tags(tags)
+			.description("The time e-mails spend in the send queue")
+			.register(meterRegistry);
+
+		return new SendQueue(executor, waitTimer);
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		// E-mails waiting to be retried are in the outbox, and are sent after the restart
+		retryScheduler.shutdownNow();
+		sendQueues.values().forEach(sendQueue -> sendQueue.executor().shutdown());
+
+		// All queues drain in parallel, so they share the same deadline
+		final var deadline = System.nanoTime() + properties.shutdownTimeout().toNanos();
+		for (final var entry : sendQueues.entrySet()) {
+			final var executor = entry.getValue().executor();
+			if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), NANOSECONDS)) {
+				LOGGER.warn("{} queued {} priority e-mail(s) for municipalityId {} were not sent before shutdown", executor.shutdownNow().size(),
+					entry.getKey().priority(), entry.getKey().municipalityId());
+			}
+		}
+	}
+
+	enum Outcome {
+		SENT,
+		// Can never be sent
+		REJECTED,
+		// May be sent if retried
+		FAILED
+	}
+
+	record Lane(String municipalityId, SendEmailRequest.Priority priority) {
+	}
+
+	record SendQueue(ThreadPoolExecutor executor, Timer waitTimer) {
+	}
+}
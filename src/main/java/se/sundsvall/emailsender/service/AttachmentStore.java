@@ -0,0 +1,266 @@
+package se.sundsvall.emailsender.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Service;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.emailsender.api.model.AttachmentBuilder;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.configuration.AttachmentStoreProperties;
+
+import static java.lang.Boolean.TRUE;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Optional.ofNullable;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+
+/**
+ * Stores uploaded attachments on disk, under the SHA-256 hash of their content, so that e-mails can reference them
+ * instead of carrying the content. Identical content is only stored once, and recently used content is kept in memory,
+ * where all e-mails that reference it share the same bytes.
+ * <p>
+ * Content is removed once it hasn't been uploaded, or used by an e-mail, for the retention time. The directory may be
+ * shared by several instances, as content is never changed once stored - and as each use is recorded on the file, at
+ * most once per touch interval, no instance removes content that another is still using, and an instance notices
+ * content that another has removed, even if it's still cached, within a touch interval.
+ */
+@Service
+public class AttachmentStore implements DisposableBean {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AttachmentStore.class);
+
+	static final String CACHE_NAME = "email.attachments";
+
+	private static final Pattern CONTENT_HASH_PATTERN = Pattern.compile("^[0-9a-f]{64}$");
+	private static final Duration MAX_CLEANUP_INTERVAL = Duration.ofHours(1);
+	private static final Duration MAX_TOUCH_INTERVAL = Duration.ofHours(1);
+	private static final long MAX_RECENTLY_TOUCHED = 100_000;
+
+	private final Path directory;
+	private final Duration retention;
+	private final Cache<String, byte[]> contents;
+	// The content that has been touched within the touch interval, and needn't be touched again
+	private final Cache<String, Boolean> recentlyTouched;
+	private final ScheduledExecutorService cleaner;
+
+	public AttachmentStore(final AttachmentStoreProperties properties, final MeterRegistry meterRegistry) throws IOException {
+		directory = Files.createDirectories(properties.directory());
+		retention = properties.retention();
+		contents = Caffeine.newBuilder()
+			.maximumWeight(properties.cacheSize().toBytes())
+			.<String, byte[]>weigher((contentHash, content) -> content.length)
+			.recordStats()
+			.build();
+
+		CaffeineCacheMetrics.monitor(meterRegistry, contents, CACHE_NAME);
+
+		// Well within the retention time, so that content in use is touched long before it would expire
+		final var touchInterval = retention.dividedBy(2).compareTo(MAX_TOUCH_INTERVAL) < 0 ? retention.dividedBy(2) : MAX_TOUCH_INTERVAL;
+		recentlyTouched = Caffeine.newBuilder()
+			.expireAfterWrite(touchInterval)
+			.maximumSize(MAX_RECENTLY_TOUCHED)
+			.build();
+
+		final var cleanupInterval = retention.compareTo(MAX_CLEANUP_INTERVAL) < 0 ? retention : MAX_CLEANUP_INTERVAL;
+		cleaner = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("attachment-store-cleaner").factory());
+		cleaner.scheduleWithFixedDelay(this::removeExpired, cleanupInterval.toNanos(), cleanupInterval.toNanos(), NANOSECONDS);
+	}
+
+	/**
+	 * Stores the given content, unless it's already stored.
+	 *
+	 * @param  content     the content
+	 * @return             the content hash, by which e-mails can reference the content
+	 * @throws IOException if the content couldn't be read or stored
+	 */
+	public String store(final InputStream content) throws IOException {
+		final var temporaryFile = Files.createTempFile(directory, "upload-", ".tmp");
+		try {
+			final var digest = createDigest();
+			try (final var digestInputStream = new DigestInputStream(content, digest)) {
+				Files.copy(digestInputStream, temporaryFile, REPLACE_EXISTING);
+			}
+
+			final var contentHash = HexFormat.of().formatHex(digest.digest());
+			// Content is never changed once stored, so replacing it with the same content is harmless
+			Files.move(temporaryFile, directory.resolve(contentHash), ATOMIC_MOVE);
+			return contentHash;
+		} finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+
+	/**
+	 * Gets stored content, and keeps it for another retention time, as it's being used.
+	 *
+	 * @param  contentHash the content hash
+	 * @return             the stored content - shared with anyone else who gets it, and therefore never to be modified
+	 */
+	public byte[] get(final String contentHash) {
+		validateContentHash(contentHash);
+
+		// Touching is a disk write, so it's only done once per touch interval - it's also what notices content that has been
+		// removed since it was cached
+		if (recentlyTouched.getIfPresent(contentHash) == null) {
+			touch(contentHash);
+		}
+
+		// Concurrent e-mails that reference the same content wait for a single read
+		return contents.get(contentHash, this::read);
+	}
+
+	/**
+	 * Checks that the content that the attachments of the given e-mail reference is stored, and keeps it for another
+	 * retention time, so that an e-mail that is accepted now can still be sent once it has been dequeued.
+	 *
+	 * @param request the request
+	 */
+	public void verify(final SendEmailRequest request) {
+		ofNullable(request.attachments()).orElse(List.of()).stream()
+			.map(SendEmailRequest.Attachment::contentHash)
+			.filter(Objects::nonNull)
+			.forEach(this::touch);
+	}
+
+	void touch(final String contentHash) {
+		validateContentHash(contentHash);
+
+		try {
+			Files.setLastModifiedTime(directory.resolve(contentHash), FileTime.from(Instant.now()));
+			recentlyTouched.put(contentHash, TRUE);
+		} catch (final NoSuchFileException e) {
+			// Such as when another instance has removed it
+			contents.invalidate(contentHash);
+			throw Problem.valueOf(BAD_REQUEST, "No attachment with content hash " + contentHash + " exists");
+		} catch (final IOException e) {
+			throw Problem.valueOf(INTERNAL_SERVER_ERROR, "Unable to read attachment with content hash " + contentHash);
+		}
+	}
+
+	/**
+	 * Removes the content that hasn't been uploaded, or referenced by an accepted e-mail, for the retention time - along
+	 * with any uploads that were never completed.
+	 */
+	void removeExpired() {
+		final var expiredBefore = FileTime.from(Instant.now().minus(retention));
+		try (final var files = Files.list(directory)) {
+			final var removed = files
+				.filter(file -> isModifiedBefore(file, expiredBefore))
+				.filter(AttachmentStore::delete)
+				.toList();
+			removed.forEach(file -> {
+				contents.invalidate(file.getFileName().toString());
+				recentlyTouched.invalidate(file.getFileName().toString());
+			});
+			if (!removed.isEmpty()) {
+				LOGGER.info("Removed {} attachment(s) that were not used for {}", removed.size(), retention);
+			}
+		} catch (final IOException | RuntimeException e) {
+			LOGGER.warn("Unable to remove expired attachments", e);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		cleaner.shutdownNow();
+	}
+
+	private static boolean isModifiedBefore(final Path file, final FileTime time) {
+		try {
+			return Files.getLastModifiedTime(file).compareTo(time) < 0;
+		} catch (final IOException e) {
+			// Such as when another instance has just removed it
+			return false;
+		}
+	}
+
+	private static boolean delete(final Path file) {
+		try {
+			return Files.deleteIfExists(file);
+		} catch (final IOException e) {
+			LOGGER.warn("Unable to remove expired attachment {}", file, e);
+			return false;
+		}
+	}
+
+	private static void validateContentHash(final String contentHash) {
+		// Also keeps the content hash from being used to reach anything but stored content
+		if (contentHash == null || !CONTENT_HASH_PATTERN.matcher(contentHash).matches()) {
+			throw Problem.valueOf(BAD_REQUEST, "Invalid content hash " + contentHash);
+		}
+	}
+
+	/**
+	 * Replaces the attachments of the given e-mail that reference stored content with the content itself.
+	 *
+	 * @param  request the request
+	 * @return         the request, with the content of all attachments
+	 */
+	public SendEmailRequest resolve(final SendEmailRequest request) {
+		final var attachments = ofNullable(request.attachments()).orElse(List.of());
+		if (attachments.stream().allMatch(attachment -> attachment.contentHash() == null)) {
+			return request;
+		}
+
+		return SendEmailRequestBuilder.from(request)
+			.withAttachments(attachments.stream()
+				.map(this::resolve)
+				.toList())
+			.build();
+	}
+
+	SendEmailRequest.Attachment resolve(final SendEmailRequest.Attachment attachment) {
+		if (attachment.contentHash() == null) {
+			return attachment;
+		}
+
+		return AttachmentBuilder.from(attachment)
+			.withContent(get(attachment.contentHash()))
+			.withContentHash(null)
+			.build();
+	}
+
+	byte[] read(final String contentHash) {
+		try {
+			return Files.readAllBytes(directory.resolve(contentHash));
+		} catch (final NoSuchFileException e) {
+			throw Problem.valueOf(BAD_REQUEST, "No attachment with content hash " + contentHash + " exists");
+		} catch (final IOException e) {
+			throw Problem.valueOf(INTERNAL_SERVER_ERROR, "Unable to read attachment with content hash " + contentHash);
+		}
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
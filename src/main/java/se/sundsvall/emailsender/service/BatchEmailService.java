@@ -0,0 +1,98 @@
+package se.sundsvall.emailsender.service;
+
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.api.model.SendEmailBatchResponse;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.configuration.BatchSendProperties;
+
+import static java.util.stream.Collectors.joining;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.OK;
+
+/**
+ * Sends batches of e-mails. Each e-mail is validated and sent on its own, so that a failing e-mail doesn't fail the
+ * rest of the batch.
+ */
+@Service
+public class BatchEmailService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BatchEmailService.class);
+
+	private final EmailService emailService;
+	private final Validator validator;
+	private final BatchSendProperties properties;
+
+	public BatchEmailService(final EmailService emailService, final Validator validator, final BatchSendProperties properties) {
+		this.emailService = emailService;
+		this.validator = validator;
+		this.properties = properties;
+	}
+
+	public List<SendEmailBatchResponse.Result> sendMails(final String municipalityId, final List<SendEmailRequest> requests) {
+		if (requests.size() > properties.maxSize()) {
+			throw Problem.valueOf(BAD_REQUEST, "A batch may contain at most " + properties.maxSize() + " e-mails");
+		}
+		// Fail fast, rather than failing every single e-mail in the batch
+		emailService.getMailSender(municipalityId);
+
+		final var permits = new Semaphore(properties.parallelism());
+		final List<Future<SendEmailBatchResponse.Result>> futures;
+		// Closing the executor waits for all e-mails in the batch to be processed
+		try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			futures = IntStream.range(0, requests.size())
+				.mapToObj(index -> executor.submit(() -> {
+					permits.acquire();
+					try {
+						return send(municipalityId, index, requests.get(index));
+					} finally {
+						permits.release();
+					}
+				}))
+				.toList();
+		}
+
+		return futures.stream()
+			.map(Future::resultNow)
+			.toList();
+	}
+
+	SendEmailBatchResponse.Result send(final String municipalityId, final int index, final SendEmailRequest request) {
+		if (request == null) {
+			return new SendEmailBatchResponse.Result(index, BAD_REQUEST.value(), "must not be null");
+		}
+		final var violations = validator.validate(request);
+		if (!violations.isEmpty()) {
+			return new SendEmailBatchResponse.Result(index, BAD_REQUEST.value(), describe(violations));
+		}
+
+		try {
+			emailService.sendMail(municipalityId, request);
+			return new SendEmailBatchResponse.Result(index, OK.value(), null);
+		} catch (final ThrowableProblem e) {
+			return new SendEmailBatchResponse.Result(index, e.getStatus().value(), e.getDetail());
+		} catch (final Exception e) {
+			LOGGER.error("Unable to send e-mail {} in batch for municipalityId {}", index, municipalityId, e);
+			return new SendEmailBatchResponse.Result(index, INTERNAL_SERVER_ERROR.value(), "Unable to send e-mail");
+		}
+	}
+
+	private String describe(final Set<ConstraintViolation<SendEmailRequest>> violations) {
+		return violations.stream()
+			.map(violation -> violation.getPropertyPath() + ": " + violation.getMessage())
+			.sorted()
+			.collect(joining(", "));
+	}
+}
@@ -1,32 +1,228 @@
 package se.sundsvall.emailsender.service;
 
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import org.springframework.stereotype.Service;
 import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.dept44.problem.ThrowableProblem;
 import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.configuration.PriorityProperties;
+import se.sundsvall.emailsender.configuration.ResilienceProperties;
+import se.sundsvall.emailsender.support.RetryPolicy;
 
-import static java.util.Objects.isNull;
-import static java.util.stream.Collectors.toMap;
-import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static java.util.Locale.ROOT;
+import static java.util.Optional.ofNullable;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
 
 @Service
 public class EmailService {
 
-	private final Map<String, MailSender> mailSenders;
+	static final String CIRCUIT_BREAKER_NAME_PREFIX = "mail-sender-";
+	static final String SEND_METRIC_NAME = "email.send";
+	static final String RETRY_METRIC_NAME = "email.send.retries";
+	static final String LANE_WAIT_METRIC_NAME = "email.send.lane.wait";
 
-	public EmailService(final List<MailSender> mailSenders) {
-		this.mailSenders = mailSenders.stream()
-			.collect(toMap(MailSender::getMunicipalityId, Function.identity()));
+	static final String OUTCOME_SUCCESS = "success";
+	static final String OUTCOME_UNAVAILABLE = "unavailable";
+	static final String OUTCOME_CIRCUIT_OPEN = "circuit_open";
+	static final String OUTCOME_FAILURE = "failure";
+
+	// The lane that NORMAL and LOW priority e-mails share
+	private static final String SHARED_LANE = "shared";
+
+	// The statuses that mail senders use for failures that say that the mail server is struggling
+	private static final Set<Integer> TRANSIENT_STATUSES = Set.of(TOO_MANY_REQUESTS.value(), SERVICE_UNAVAILABLE.value(), GATEWAY_TIMEOUT.value());
+	// Of those, the statuses that mail senders use for failures where the e-mail wasn't sent, and that may go away if the
+	// send is retried. A timeout isn't one of them, as the e-mail may have been sent, and must then not be sent again
+	private static final Set<Integer> RETRYABLE_STATUSES = Set.of(TOO_MANY_REQUESTS.value(), SERVICE_UNAVAILABLE.value());
+
+	private final MailSenderRegistry mailSenderRegistry;
+	private final TemplateService templateService;
+	private final AttachmentStore attachmentStore;
+	private final RetryPolicy retryPolicy;
+	private final CircuitBreakerRegistry circuitBreakerRegistry;
+	private final CircuitBreakerConfig circuitBreakerConfig;
+	private final MeterRegistry meterRegistry;
+	private final PriorityProperties priorityProperties;
+	// The send lanes that are limited, by municipality and priority, or by municipality for the shared lane
+	private final Map<String, Semaphore> lanes = new ConcurrentHashMap<>();
+
+	public EmailService(final MailSenderRegistry mailSenderRegistry, final TemplateService templateService, final AttachmentStore attachmentStore,
+		final ResilienceProperties resilienceProperties, final PriorityProperties priorityProperties, final CircuitBreakerRegistry circuitBreakerRegistry,
+		final MeterRegistry meterRegistry) {
+		this.mailSenderRegistry = mailSenderRegistry;
+		this.templateService = templateService;
+		this.attachmentStore = attachmentStore;
+		this.priorityProperties = priorityProperties;
+		this.circuitBreakerRegistry = circuitBreakerRegistry;
+		this.meterRegistry = meterRegistry;
+
+		final var retry = resilienceProperties.retry();
+		retryPolicy = new RetryPolicy(retry.maxAttempts(), retry.initialBackoff(), retry.maxBackoff(), retry.deadline(), EmailService::isRetryable);
+
+		// Only transient failures say anything about the health of the mail server - others are down to the e-mail itself
+		final var circuitBreaker = resilienceProperties.circuitBreaker();
+		circuitBreakerConfig = CircuitBreakerConfig.custom()
+			.failureRateThreshold(circuitBreaker.failureRateThreshold())
+			.slidingWindowSize(circuitBreaker.slidingWindowSize())
+			.minimumNumberOfCalls(circuitBreaker.minimumNumberOfCalls())
+			.waitDurationInOpenState(circuitBreaker.waitDurationInOpenState())
+			.permittedNumberOfCallsInHalfOpenState(circuitBreaker.permittedNumberOfCallsInHalfOpenState())
+			.recordException(EmailService::isTransient)
+			.build();
 	}
 
 	public void sendMail(final String municipalityId, final SendEmailRequest request) {
-		var mailSender = mailSenders.get(municipalityId);
-		if (isNull(mailSender)) {
-			throw Problem.valueOf(BAD_GATEWAY, "No mail sender exists for municipalityId " + municipalityId);
+		final var mailSender = getMailSender(municipalityId);
+		final var lanes = enterLane(municipalityId, priorityOf(request));
+		try {
+			send(municipalityId, mailSender, request);
+		} finally {
+			lanes.forEach(Semaphore::release);
+		}
+	}
+
+	void send(final String municipalityId, final MailSender mailSender, final SendEmailRequest request) {
+		// Rendered and resolved here, rather than when the request is received, so that queued e-mails stay small
+		final var preparedRequest = attachmentStore.resolve(templateService.render(municipalityId, request));
+		final var circuitBreaker = circuitBreakerRegistry.circuitBreaker(CIRCUIT_BREAKER_NAME_PREFIX + municipalityId, circuitBreakerConfig);
+		final var retryCounter = meterRegistry.counter(RETRY_METRIC_NAME, "municipality", municipalityId, "transport", mailSender.getTransport());
+
+		final var sample = Timer.start(meterRegistry);
+		var outcome = OUTCOME_FAILURE;
+		try {
+			// Each attempt goes to the current mail sender, which may have been replaced since the previous attempt
+			retryPolicy.execute(() -> circuitBreaker.executeRunnable(() -> mailSenderRegistry.send(municipalityId, preparedRequest)), e -> retryCounter.increment());
+			outcome = OUTCOME_SUCCESS;
+		} catch (final CallNotPermittedException e) {
+			outcome = OUTCOME_CIRCUIT_OPEN;
+			throw Problem.valueOf(SERVICE_UNAVAILABLE, "Mail sender for municipalityId " + municipalityId + " is temporarily unavailable");
+		} catch (final RuntimeException e) {
+			outcome = isTransient(e) ? OUTCOME_UNAVAILABLE : OUTCOME_FAILURE;
+			throw e;
+		} finally {
+			sample.stop(Timer.builder(SEND_METRIC_NAME)
+				.tags("municipality", municipalityId, "transport", mailSender.getTransport(), "outcome", outcome)
+				.description("The time it takes to send e-mails, including any retries")
+				.publishPercentileHistogram()
+				.register(meterRegistry));
+		}
+	}
+
+	/**
+	 * Checks what can be checked about the given e-mail before it's sent, so that an e-mail that is queued, and only sent
+	 * later, is rejected right away if it can never be sent.
+	 *
+	 * @param municipalityId the municipality id
+	 * @param request        the (validated) request
+	 */
+	public void validate(final String municipalityId, final SendEmailRequest request) {
+		// Rendered, and thrown away, since only rendering tells whether the template gets all the values it needs
+		templateService.render(municipalityId, request);
+		attachmentStore.verify(request);
+	}
+
+	MailSender getMailSender(final String municipalityId) {
+		return mailSenderRegistry.get(municipalityId);
+	}
+
+	/**
+	 * Waits for the e-mail's turn in its send lane, and then in the lane that NORMAL and LOW priority e-mails share, which
+	 * leaves the rest of the mail sender's connections for HIGH priority e-mails. HIGH priority e-mails don't wait in any
+	 * lane.
+	 *
+	 * @return the limited lanes that were entered, which must be released once the e-mail has been sent
+	 */
+	List<Semaphore> enterLane(final String municipalityId, final SendEmailRequest.Priority priority) {
+		final var maxConcurrentSends = switch (priority) {
+			case HIGH -> 0;
+			case NORMAL -> priorityProperties.normalMaxConcurrentSends();
+			case LOW -> priorityProperties.lowMaxConcurrentSends();
+		};
+
+		final var sample = Timer.start(meterRegistry);
+		final var entered = new ArrayList<Semaphore>(2);
+		try {
+			if (priority != SendEmailRequest.Priority.HIGH) {
+				final var deadline = System.nanoTime() + priorityProperties.maxWait().toNanos();
+				if (!enter(municipalityId + ":" + priority, maxConcurrentSends, deadline, entered)
+					|| !enter(municipalityId + ":" + SHARED_LANE, priorityProperties.maxConcurrentSends(), deadline, entered)) {
+					throw Problem.valueOf(SERVICE_UNAVAILABLE, "Send lane " + priority + " for municipalityId " + municipalityId + " is busy");
+				}
+			}
+			return entered;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			entered.forEach(Semaphore::release);
+			throw Problem.valueOf(SERVICE_UNAVAILABLE, "Interrupted while waiting for send lane " + priority + " for municipalityId " + municipalityId);
+		} catch (final RuntimeException e) {
+			entered.forEach(Semaphore::release);
+			throw e;
+		} finally {
+			sample.stop(Timer.builder(LANE_WAIT_METRIC_NAME)
+				.tags("municipality", municipalityId, "priority", priority.name().toLowerCase(ROOT))
+				.description("The time e-mails wait for their turn in their send lane")
+				.register(meterRegistry));
+		}
+	}
+
+	/**
+	 * Enters a send lane, if it's limited.
+	 *
+	 * @return whether the lane was entered, or isn't limited, before the deadline
+	 */
+	private boolean enter(final String laneKey, final int maxConcurrentSends, final long deadline, final List<Semaphore> entered) throws InterruptedException {
+		if (maxConcurrentSends <= 0) {
+			return true;
+		}
+
+		// Fair, so that e-mails get their turn in the order they arrived
+		final var lane = lanes.computeIfAbsent(laneKey, key -> new Semaphore(maxConcurrentSends, true));
+		if (!lane.tryAcquire(deadline - System.nanoTime(), NANOSECONDS)) {
+			return false;
 		}
+		entered.add(lane);
+		return true;
+	}
+
+	/**
+	 * @return the priority of the given e-mail, which is NORMAL unless it says otherwise
+	 */
+	static SendEmailRequest.Priority priorityOf(final SendEmailRequest request) {
+		return ofNullable(request.priority()).orElse(SendEmailRequest.Priority.NORMAL);
+	}
+
+	/**
+	 * @param  throwable a send failure
+	 * @return           whether the failure is down to the mail server, rather than the e-mail
+	 */
+	static boolean isTransient(final Throwable throwable) {
+		return hasStatus(throwable, TRANSIENT_STATUSES);
+	}
+
+	/**
+	 * @param  throwable a send failure
+	 * @return           whether the e-mail wasn't sent, and the failure may go away if the send is retried
+	 */
+	static boolean isRetryable(final Throwable throwable) {
+		return hasStatus(throwable, RETRYABLE_STATUSES);
+	}
 
-		mailSender.sendEmail(request);
+	private static boolean hasStatus(final Throwable throwable, final Set<Integer> statuses) {
+		return throwable instanceof final ThrowableProblem problem
+			&& problem.getStatus() != null
+			&& statuses.contains(problem.getStatus().value());
 	}
 }
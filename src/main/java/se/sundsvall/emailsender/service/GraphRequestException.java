@@ -0,0 +1,39 @@
+package se.sundsvall.emailsender.service;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Signals that a Graph request failed, with the HTTP status (if any) and {@code Retry-After} delay (if any) that Graph
+ * responded with.
+ */
+class GraphRequestException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+	private final Duration retryAfter;
+
+	GraphRequestException(final int statusCode, final Duration retryAfter) {
+		super("Graph request failed with status " + statusCode);
+		this.statusCode = statusCode;
+		this.retryAfter = retryAfter;
+	}
+
+	GraphRequestException(final String message, final Throwable cause) {
+		super(message, cause);
+		statusCode = 0;
+		retryAfter = null;
+	}
+
+	/**
+	 * @return the HTTP status that Graph responded with, or 0 if there was no response
+	 */
+	int getStatusCode() {
+		return statusCode;
+	}
+
+	Optional<Duration> getRetryAfter() {
+		return Optional.ofNullable(retryAfter);
+	}
+}
@@ -0,0 +1,119 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.configuration.IdempotencyProperties;
+
+import static org.springframework.http.HttpStatus.CONFLICT;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+
+/**
+ * Sends each e-mail at most once per idempotency key. Requests that repeat a key get the outcome of the first request
+ * with it, and requests that repeat a key while the first request is still sending its e-mail wait for it to finish.
+ * <p>
+ * Only outcomes that a repeated request would get anyway are remembered - that the e-mail was sent, or that it was
+ * rejected. After any other failure, the key is released, so that the e-mail is sent if the request is repeated.
+ */
+@Service
+public class IdempotencyService {
+
+	static final String METRIC_NAME = "email.idempotency.requests";
+
+	static final String RESULT_CLAIMED = "claimed";
+	static final String RESULT_REPLAYED = "replayed";
+	static final String RESULT_CONFLICT = "conflict";
+
+	private final IdempotencyStore store;
+	private final Duration maxWait;
+	private final MeterRegistry meterRegistry;
+
+	public IdempotencyService(final ObjectProvider<IdempotencyStore> stores, final IdempotencyProperties properties, final MeterRegistry meterRegistry) {
+		this.store = stores.getIfAvailable(() -> new LocalIdempotencyStore(properties, meterRegistry));
+		this.maxWait = properties.maxWait();
+		this.meterRegistry = meterRegistry;
+	}
+
+	/**
+	 * Sends an e-mail, unless one has already been sent with the given idempotency key.
+	 *
+	 * @param municipalityId the municipality id, which idempotency keys are scoped by
+	 * @param idempotencyKey the idempotency key, or null to always send the e-mail
+	 * @param send           sends the e-mail
+	 */
+	public void execute(final String municipalityId, final String idempotencyKey, final Runnable send) {
+		if (idempotencyKey == null) {
+			send.run();
+			return;
+		}
+
+		final var key = municipalityId + ":" + idempotencyKey;
+		final IdempotencyStore.Outcome earlierOutcome;
+		try {
+			earlierOutcome = store.claim(key, maxWait).orElse(null);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Problem.valueOf(SERVICE_UNAVAILABLE, "Interrupted while waiting for the e-mail with idempotency key " + idempotencyKey);
+		} catch (final TimeoutException e) {
+			count(municipalityId, RESULT_CONFLICT);
+			throw Problem.valueOf(CONFLICT, "An e-mail with idempotency key " + idempotencyKey + " is still being sent");
+		}
+
+		if (earlierOutcome != null) {
+			count(municipalityId, RESULT_REPLAYED);
+			replay(earlierOutcome);
+			return;
+		}
+
+		count(municipalityId, RESULT_CLAIMED);
+		try {
+			send.run();
+		} catch (final ThrowableProblem e) {
+			if (isFinal(e)) {
+				store.complete(key, new IdempotencyStore.Outcome(e.getStatus().value(), e.getDetail()));
+			} else {
+				store.release(key);
+			}
+			throw e;
+		} catch (final RuntimeException | Error e) {
+			store.release(key);
+			throw e;
+		}
+		store.complete(key, new IdempotencyStore.Outcome(OK.value(), null));
+	}
+
+	void replay(final IdempotencyStore.Outcome outcome) {
+		if (outcome.status() != OK.value()) {
+			throw Problem.valueOf(HttpStatus.valueOf(outcome.status()), outcome.detail());
+		}
+	}
+
+	/**
+	 * @param  problem a send failure
+	 * @return         whether repeating the request would fail the same way - the e-mail itself was rejected
+	 */
+	static boolean isFinal(final ThrowableProblem problem) {
+		if (problem.getStatus() == null) {
+			return false;
+		}
+
+		final var status = problem.getStatus().value();
+		return status >= 400 && status < 500 && status != TOO_MANY_REQUESTS.value();
+	}
+
+	private void count(final String municipalityId, final String result) {
+		Counter.builder(METRIC_NAME)
+			.tags("municipality", municipalityId, "result", result)
+			.description("The number of requests with an idempotency key, by whether they sent, replayed or conflicted")
+			.register(meterRegistry)
+			.increment();
+	}
+}
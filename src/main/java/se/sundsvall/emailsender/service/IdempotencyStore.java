@@ -0,0 +1,54 @@
+package se.sundsvall.emailsender.service;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Remembers which idempotency keys have been used, and the outcome of the e-mails sent with them. A local store is used
+ * unless another implementation is registered as a bean - which is what it takes to deduplicate e-mails across
+ * instances.
+ * <p>
+ * Implementations must claim keys atomically, so that only one of any concurrent requests with the same key gets to send
+ * its e-mail, and should expire claims that are never completed nor released, such as those of an instance that died
+ * while sending.
+ */
+public interface IdempotencyStore {
+
+	/**
+	 * Claims the given key for sending an e-mail, unless it has been claimed before. If an e-mail is being sent with the
+	 * key, waits for it to be sent.
+	 *
+	 * @param  key                  the key
+	 * @param  maxWait              how long to wait for an e-mail that is being sent with the key
+	 * @return                      nothing, if the key was claimed, and otherwise the outcome of the e-mail that was sent
+	 *                              with it
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws TimeoutException     if the e-mail that is being sent with the key isn't sent in time
+	 */
+	Optional<Outcome> claim(String key, Duration maxWait) throws InterruptedException, TimeoutException;
+
+	/**
+	 * Records the outcome of the e-mail sent with a claimed key, for requests that repeat the key.
+	 *
+	 * @param key     the key
+	 * @param outcome the outcome
+	 */
+	void complete(String key, Outcome outcome);
+
+	/**
+	 * Releases a claimed key, without an outcome, so that the next request with the key sends its e-mail.
+	 *
+	 * @param key the key
+	 */
+	void release(String key);
+
+	/**
+	 * The outcome of sending an e-mail.
+	 *
+	 * @param status the HTTP status
+	 * @param detail the detail of the problem, if the e-mail wasn't sent
+	 */
+	record Outcome(int status, String detail) {
+	}
+}
@@ -0,0 +1,74 @@
+package se.sundsvall.emailsender.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import se.sundsvall.emailsender.configuration.IdempotencyProperties;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Keeps idempotency keys in memory, in a bounded cache. Only deduplicates e-mails sent through this instance.
+ */
+class LocalIdempotencyStore implements IdempotencyStore {
+
+	static final String CACHE_NAME = "email.idempotency";
+
+	// Each key maps to the outcome of its e-mail - completed once the e-mail has been sent, or with null if released
+	private final Cache<String, CompletableFuture<Outcome>> outcomes;
+
+	LocalIdempotencyStore(final IdempotencyProperties properties, final MeterRegistry meterRegistry) {
+		outcomes = Caffeine.newBuilder()
+			.maximumSize(properties.maxKeys())
+			.expireAfterWrite(properties.timeToLive())
+			.recordStats()
+			.build();
+
+		CaffeineCacheMetrics.monitor(meterRegistry, outcomes, CACHE_NAME);
+	}
+
+	@Override
+	public Optional<Outcome> claim(final String key, final Duration maxWait) throws InterruptedException, TimeoutException {
+		final var deadline = System.nanoTime() + maxWait.toNanos();
+		while (true) {
+			final var outcome = outcomes.asMap().putIfAbsent(key, new CompletableFuture<>());
+			if (outcome == null) {
+				return Optional.empty();
+			}
+
+			try {
+				final var earlierOutcome = outcome.get(deadline - System.nanoTime(), NANOSECONDS);
+				if (earlierOutcome != null) {
+					return Optional.of(earlierOutcome);
+				}
+				// The key was released, so try to claim it again
+			} catch (final ExecutionException e) {
+				// Outcomes are never completed exceptionally
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	@Override
+	public void complete(final String key, final Outcome outcome) {
+		// Replaced, rather than completed in place, so that the time to live counts from when the e-mail was sent
+		final var claim = outcomes.asMap().put(key, CompletableFuture.completedFuture(outcome));
+		if (claim != null) {
+			claim.complete(outcome);
+		}
+	}
+
+	@Override
+	public void release(final String key) {
+		final var claim = outcomes.asMap().remove(key);
+		if (claim != null) {
+			claim.complete(null);
+		}
+	}
+}
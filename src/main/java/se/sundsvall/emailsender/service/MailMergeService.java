@@ -0,0 +1,188 @@
+package se.sundsvall.emailsender.service;
+
+import jakarta.validation.Validator;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.emailsender.api.model.MailMergeRecipient;
+import se.sundsvall.emailsender.api.model.SendEmailBatchResponse;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.api.model.TemplateBuilder;
+import se.sundsvall.emailsender.configuration.BatchSendProperties;
+import tools.jackson.core.JacksonException;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.exc.StreamReadException;
+import tools.jackson.databind.json.JsonMapper;
+
+import static java.util.Optional.ofNullable;
+import static java.util.stream.Collectors.joining;
+import static org.apache.commons.collections4.MapUtils.isEmpty;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+
+/**
+ * Sends one e-mail to many recipients. The request is NDJSON - the e-mail on the first line, without a recipient, and
+ * then one recipient per line - and is read as it arrives, so it's never held in memory as a whole.
+ * <p>
+ * The e-mail is parsed, validated and has its stored attachments resolved once, so that all recipients share the same
+ * body and attachments, and only the recipient, the headers and the template parameters vary. Each recipient is then
+ * sent, and reported, like an e-mail in a batch.
+ */
+@Service
+public class MailMergeService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MailMergeService.class);
+
+	private final EmailService emailService;
+	private final BatchEmailService batchEmailService;
+	private final TemplateService templateService;
+	private final AttachmentStore attachmentStore;
+	private final Validator validator;
+	private final BatchSendProperties properties;
+	private final JsonMapper jsonMapper;
+
+	public MailMergeService(final EmailService emailService, final BatchEmailService batchEmailService, final TemplateService templateService,
+		final AttachmentStore attachmentStore, final Validator validator, final BatchSendProperties properties, final JsonMapper jsonMapper) {
+		this.emailService = emailService;
+		this.batchEmailService = batchEmailService;
+		this.templateService = templateService;
+		this.attachmentStore = attachmentStore;
+		this.validator = validator;
+		this.properties = properties;
+		this.jsonMapper = jsonMapper;
+	}
+
+	/**
+	 * Sends the e-mail to each recipient, with a bounded number of e-mails in flight at once. A failure of the e-mail
+	 * itself fails the whole mail merge, before anything has been sent, while a failure for a single recipient is
+	 * reported in the result for that recipient.
+	 *
+	 * @param municipalityId the municipality id
+	 * @param input          the NDJSON request
+	 * @param results        receives the result for each recipient, by its index among the recipients, as soon as it's
+	 *                       known - in the order that sending finishes, from several threads, but never concurrently
+	 */
+	public void sendMails(final String municipalityId, final InputStream input, final Consumer<SendEmailBatchResponse.Result> results) {
+		// Fail fast, rather than failing every single recipient
+		emailService.getMailSender(municipalityId);
+
+		final Consumer<SendEmailBatchResponse.Result> serializedResults = result -> {
+			synchronized (results) {
+				results.accept(result);
+			}
+		};
+
+		try (final var parser = jsonMapper.createParser(input)) {
+			final var message = readMessage(municipalityId, parser);
+
+			final var permits = new Semaphore(properties.parallelism());
+			// Closing the executor waits for all recipients to be processed
+			try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+				var index = 0;
+				while (nextRecipient(parser, index, serializedResults)) {
+					final var recipientIndex = index++;
+					final SendEmailRequest request;
+					try {
+						request = merge(message, jsonMapper.treeToValue(jsonMapper.readTree(parser), MailMergeRecipient.class));
+					} catch (final StreamReadException e) {
+						serializedResults.accept(malformed(recipientIndex, e));
+						break;
+					} catch (final JacksonException e) {
+						serializedResults.accept(new SendEmailBatchResponse.Result(recipientIndex, BAD_REQUEST.value(), "Invalid recipient: " + e.getOriginalMessage()));
+						continue;
+					} catch (final IllegalArgumentException e) {
+						serializedResults.accept(new SendEmailBatchResponse.Result(recipientIndex, BAD_REQUEST.value(), e.getMessage()));
+						continue;
+					}
+
+					// Reading further recipients waits until there's room for them
+					permits.acquireUninterruptibly();
+					executor.submit(() -> {
+						try {
+							serializedResults.accept(batchEmailService.send(municipalityId, recipientIndex, request));
+						} catch (final RuntimeException e) {
+							LOGGER.warn("Unable to report the result of mail merge recipient {} for municipalityId {}", recipientIndex, municipalityId, e);
+						} finally {
+							permits.release();
+						}
+					});
+				}
+			}
+		}
+	}
+
+	SendEmailRequest readMessage(final String municipalityId, final JsonParser parser) {
+		final SendEmailRequest message;
+		try {
+			if (parser.nextToken() == null) {
+				throw Problem.valueOf(BAD_REQUEST, "The request must start with the e-mail to send");
+			}
+			message = jsonMapper.readValue(parser, SendEmailRequest.class);
+		} catch (final JacksonException e) {
+			throw Problem.valueOf(BAD_REQUEST, "Invalid e-mail: " + e.getOriginalMessage());
+		}
+
+		// The recipients come later
+		final var violations = validator.validate(message).stream()
+			.filter(violation -> !"emailAddress".equals(violation.getPropertyPath().toString()))
+			.map(violation -> violation.getPropertyPath() + ": " + violation.getMessage())
+			.sorted()
+			.collect(joining(", "));
+		if (!violations.isEmpty()) {
+			throw Problem.valueOf(BAD_REQUEST, violations);
+		}
+
+		if (message.template() != null) {
+			templateService.getCompiledTemplate(municipalityId, message.template().id());
+		}
+		return attachmentStore.resolve(message);
+	}
+
+	/**
+	 * @return whether there's another recipient to read - a request that can't be read any further is reported in the
+	 *         result for the recipient that couldn't be read
+	 */
+	boolean nextRecipient(final JsonParser parser, final int index, final Consumer<SendEmailBatchResponse.Result> results) {
+		try {
+			return parser.nextToken() != null;
+		} catch (final StreamReadException e) {
+			results.accept(malformed(index, e));
+			return false;
+		}
+	}
+
+	private static SendEmailBatchResponse.Result malformed(final int index, final StreamReadException e) {
+		return new SendEmailBatchResponse.Result(index, BAD_REQUEST.value(), "Malformed request, no further recipients were read: " + e.getOriginalMessage());
+	}
+
+	SendEmailRequest merge(final SendEmailRequest message, final MailMergeRecipient recipient) {
+		final var builder = SendEmailRequestBuilder.from(message)
+			.withEmailAddress(recipient.emailAddress());
+
+		if (!isEmpty(recipient.headers())) {
+			final var headers = new HashMap<>(ofNullable(message.headers()).orElse(Map.of()));
+			headers.putAll(recipient.headers());
+			builder.withHeaders(headers);
+		}
+
+		if (!isEmpty(recipient.parameters())) {
+			if (message.template() == null) {
+				throw new IllegalArgumentException("Recipient parameters need an e-mail with a template");
+			}
+			final var parameters = new HashMap<>(ofNullable(message.template().parameters()).orElse(Map.of()));
+			parameters.putAll(recipient.parameters());
+			builder.withTemplate(TemplateBuilder.from(message.template())
+				.withParameters(parameters)
+				.build());
+		}
+
+		return builder.build();
+	}
+}
@@ -6,6 +6,11 @@ public interface MailSender {
 
 	void sendEmail(SendEmailRequest request);
 
+	/**
+	 * @return the transport that the mail sender sends e-mails over, e.g. "smtp" or "graph"
+	 */
+	String getTransport();
+
 	String getMunicipalityId();
 
 	void setMunicipalityId(String municipalityId);
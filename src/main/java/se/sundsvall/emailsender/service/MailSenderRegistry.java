@@ -0,0 +1,199 @@
+package se.sundsvall.emailsender.service;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Service;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.configuration.MailSenderRegistryProperties;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.toUnmodifiableMap;
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+
+/**
+ * Holds the mail sender of each municipality. Sends look mail senders up without locking, in an immutable map that is
+ * replaced as a whole when the mail senders are reloaded. Mail senders that are replaced or removed get to finish their
+ * in-flight sends before they are destroyed, while new sends go to their replacements.
+ */
+@Service
+public class MailSenderRegistry implements DisposableBean {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MailSenderRegistry.class);
+
+	private final Duration drainTimeout;
+	// The mail senders that are beans, and therefore destroyed by the application context when it's closed
+	private final Set<MailSender> beans = Collections.newSetFromMap(new IdentityHashMap<>());
+	private volatile Map<String, Registration> registrations;
+
+	public MailSenderRegistry(final List<MailSender> mailSenders, final MailSenderRegistryProperties properties) {
+		drainTimeout = properties.drainTimeout();
+		beans.addAll(mailSenders);
+		registrations = mailSenders.stream()
+			.collect(toUnmodifiableMap(MailSender::getMunicipalityId, Registration::new));
+	}
+
+	/**
+	 * @param  municipalityId the municipality id
+	 * @return                the mail sender of the municipality
+	 */
+	public MailSender get(final String municipalityId) {
+		return getRegistration(municipalityId).mailSender();
+	}
+
+	/**
+	 * @return the mail senders, by municipality id
+	 */
+	public Map<String, MailSender> getAll() {
+		return registrations.entrySet().stream()
+			.collect(toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().mailSender()));
+	}
+
+	/**
+	 * Sends an e-mail with the mail sender of the municipality, which isn't destroyed until the send is done.
+	 *
+	 * @param municipalityId the municipality id
+	 * @param request        the request
+	 */
+	public void send(final String municipalityId, final SendEmailRequest request) {
+		while (true) {
+			final var registration = getRegistration(municipalityId);
+			if (registration.acquire()) {
+				try {
+					registration.mailSender().sendEmail(request);
+					return;
+				} finally {
+					registration.release();
+				}
+			}
+			// Retired since it was looked up, so its replacement (if any) is already registered
+		}
+	}
+
+	/**
+	 * Replaces the mail senders. Mail senders that aren't among the new ones are retired: they are destroyed once their
+	 * in-flight sends are done, or once the drain timeout has passed.
+	 *
+	 * @param mailSenders the new mail senders, by municipality id - including those that are kept
+	 */
+	public synchronized void replace(final Map<String, MailSender> mailSenders) {
+		final var current = registrations;
+		final var kept = Collections.newSetFromMap(new IdentityHashMap<MailSender, Boolean>());
+		kept.addAll(mailSenders.values());
+
+		// Registrations of mail senders that are kept carry on, along with their in-flight sends
+		final var registrationsByMailSender = new IdentityHashMap<MailSender, Registration>();
+		current.values().forEach(registration -> registrationsByMailSender.put(registration.mailSender(), registration));
+		registrations = mailSenders.entrySet().stream()
+			.collect(toUnmodifiableMap(Map.Entry::getKey, entry -> registrationsByMailSender.computeIfAbsent(entry.getValue(), Registration::new)));
+
+		current.values().stream()
+			.filter(registration -> !kept.contains(registration.mailSender()))
+			.forEach(this::retire);
+	}
+
+	void retire(final Registration registration) {
+		registration.retire();
+		Thread.ofVirtual().name("mail-sender-retirement-" + registration.mailSender().getMunicipalityId()).start(() -> {
+			if (!registration.awaitDrained(drainTimeout)) {
+				LOGGER.warn("Mail sender for municipalityId {} still had sends in flight when it was destroyed", registration.mailSender().getMunicipalityId());
+			}
+			destroy(registration.mailSender());
+		});
+	}
+
+	@Override
+	public void destroy() {
+		// Beans are destroyed by the application context
+		registrations.values().stream()
+			.map(Registration::mailSender)
+			.filter(mailSender -> !beans.contains(mailSender))
+			.forEach(MailSenderRegistry::destroy);
+	}
+
+	private Registration getRegistration(final String municipalityId) {
+		final var registration = registrations.get(municipalityId);
+		if (registration == null) {
+			throw Problem.valueOf(BAD_GATEWAY, "No mail sender exists for municipalityId " + municipalityId);
+		}
+
+		return registration;
+	}
+
+	private static void destroy(final MailSender mailSender) {
+		if (mailSender instanceof final DisposableBean disposableBean) {
+			try {
+				disposableBean.destroy();
+			} catch (final Exception e) {
+				LOGGER.warn("Unable to destroy mail sender for municipalityId {}", mailSender.getMunicipalityId(), e);
+			}
+		}
+	}
+
+	/**
+	 * A registered mail sender, and the number of sends it has in flight.
+	 */
+	static final class Registration {
+
+		private final MailSender mailSender;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final CompletableFuture<Void> drained = new CompletableFuture<>();
+		private volatile boolean retired;
+
+		Registration(final MailSender mailSender) {
+			this.mailSender = mailSender;
+		}
+
+		MailSender mailSender() {
+			return mailSender;
+		}
+
+		/**
+		 * @return whether a send may use the mail sender - which it may, unless the mail sender has been retired
+		 */
+		boolean acquire() {
+			inFlight.incrementAndGet();
+			if (retired) {
+				release();
+				return false;
+			}
+			return true;
+		}
+
+		void release() {
+			if (inFlight.decrementAndGet() == 0 && retired) {
+				drained.complete(null);
+			}
+		}
+
+		void retire() {
+			retired = true;
+			if (inFlight.get() == 0) {
+				drained.complete(null);
+			}
+		}
+
+		boolean awaitDrained(final Duration timeout) {
+			try {
+				drained.get(timeout.toNanos(), NANOSECONDS);
+				return true;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (final ExecutionException | TimeoutException e) {
+				return false;
+			}
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package se.sundsvall.emailsender.service;
 
+import com.microsoft.graph.core.content.BatchRequestContent;
+import com.microsoft.graph.core.content.BatchResponseContent;
+import com.microsoft.graph.core.tasks.LargeFileUploadTask;
 import com.microsoft.graph.models.Attachment;
+import com.microsoft.graph.models.AttachmentItem;
+import com.microsoft.graph.models.AttachmentType;
 import com.microsoft.graph.models.BodyType;
 import com.microsoft.graph.models.EmailAddress;
 import com.microsoft.graph.models.FileAttachment;
@@ -8,84 +13,152 @@ import com.microsoft.graph.models.InternetMessageHeader;
 import com.microsoft.graph.models.ItemBody;
 import com.microsoft.graph.models.Message;
 import com.microsoft.graph.models.Recipient;
+import com.microsoft.graph.models.UploadSession;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.graph.users.item.messages.item.attachments.createuploadsession.CreateUploadSessionPostRequestBody;
 import com.microsoft.graph.users.item.sendmail.SendMailPostRequestBody;
-import java.util.Base64;
+import com.microsoft.kiota.ApiException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import se.sundsvall.dept44.problem.Problem;
 import se.sundsvall.emailsender.api.model.Header;
 import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.support.MailboxLimiter;
+import se.sundsvall.emailsender.support.MailboxLimiter.MailboxUnavailableException;
+import se.sundsvall.emailsender.support.MicroBatcher;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
+import static java.util.Comparator.comparingInt;
 import static java.util.Optional.ofNullable;
-import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.apache.commons.lang3.ArrayUtils.isNotEmpty;
+import static org.apache.commons.lang3.exception.ExceptionUtils.getThrowableList;
+import static org.springframework.http.HttpHeaders.RETRY_AFTER;
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+import static se.sundsvall.emailsender.service.SendMetrics.BUILD_METRIC_NAME;
+import static se.sundsvall.emailsender.service.SendMetrics.TRANSPORT_METRIC_NAME;
 
-public class MicrosoftGraphMailSender extends AbstractMailSender {
+public class MicrosoftGraphMailSender extends AbstractMailSender implements MeterBinder, DisposableBean {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(MicrosoftGraphMailSender.class);
 
+	static final String TRANSPORT = "graph";
+
+	static final String CAUSE_MAILBOX_UNAVAILABLE = "mailbox_unavailable";
+	static final String CAUSE_THROTTLED = "throttled";
+	static final String CAUSE_UNAVAILABLE = "unavailable";
+	static final String CAUSE_OTHER = "other";
+
+	// The maximum number of requests in a Graph JSON batch
+	static final int MAX_BATCH_SIZE = 20;
+	// Graph rejects requests larger than 4 MB - this leaves room for the JSON escaping of message bodies
+	static final long MAX_BATCH_PAYLOAD_SIZE = 3L * 1024 * 1024;
+	// Allows for the addresses, subject and headers of a message, on top of its body and attachments
+	static final long MESSAGE_OVERHEAD = 4L * 1024;
+	// Attachments can't be sent inline once their total size is larger than this, but must be uploaded to a draft message
+	static final long LARGE_ATTACHMENT_THRESHOLD = 3L * 1024 * 1024;
+	// Upload session chunks must be a multiple of 320 KiB
+	static final long UPLOAD_CHUNK_SIZE = 10L * 320 * 1024;
+	// Exchange Online allows four concurrent requests per mailbox
+	static final int DEFAULT_MAX_CONCURRENT_PER_MAILBOX = 4;
+	static final Duration DEFAULT_MAX_QUEUE_TIME = Duration.ofSeconds(30);
+	// Used when Graph throttles without saying for how long
+	static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(5);
+
 	private final GraphServiceClient graphServiceClient;
+	private final MicroBatcher<SendMail> batcher;
+	private final MailboxLimiter mailboxLimiter;
 
 	public MicrosoftGraphMailSender(final GraphServiceClient graphServiceClient) {
+		this(graphServiceClient, 1, Duration.ZERO);
+	}
+
+	public MicrosoftGraphMailSender(final GraphServiceClient graphServiceClient, final int maxBatchSize, final Duration batchWindow) {
+		this(graphServiceClient, maxBatchSize, batchWindow, DEFAULT_MAX_CONCURRENT_PER_MAILBOX, DEFAULT_MAX_QUEUE_TIME);
+	}
+
+	/**
+	 * Creates a mail sender that coalesces concurrent sends into Graph JSON batch ({@code $batch}) requests.
+	 *
+	 * @param graphServiceClient the Graph client
+	 * @param maxBatchSize       the maximum number of messages per batch - 1 disables batching, and Graph caps it at 20
+	 * @param batchWindow        the maximum time to wait for more messages before a batch is sent
+	 * @param maxConcurrent      the maximum number of in-flight sends per sender mailbox
+	 * @param maxQueueTime       the maximum time a send waits for its turn, when its mailbox is busy or throttled
+	 */
+	public MicrosoftGraphMailSender(final GraphServiceClient graphServiceClient, final int maxBatchSize, final Duration batchWindow, final int maxConcurrent, final Duration maxQueueTime) {
+		super(TRANSPORT);
 		this.graphServiceClient = graphServiceClient;
+		batcher = maxBatchSize > 1 ? new MicroBatcher<>("graph-batcher", Math.min(maxBatchSize, MAX_BATCH_SIZE), batchWindow, this::sendBatch) : null;
+		mailboxLimiter = new MailboxLimiter(maxConcurrent, maxQueueTime, MicrosoftGraphMailSender::getThrottleRetryAfter);
 	}
 
 	@Override
 	public void sendEmail(final SendEmailRequest request) {
 		LOGGER.info("Sending email to: {}", request.emailAddress());
+		metrics.recordMessage(request);
 		try {
 			final var sender = request.sender();
+			final var message = metrics.time(BUILD_METRIC_NAME, () -> buildMessage(request));
+			final var attachmentPlan = planAttachments(request.attachments());
+			final var uploadedAttachments = attachmentPlan.uploaded();
 
-			final var message = createMessage();
-			message.setFrom(createRecipient(sender.name(), sender.address()));
-			message.setSender(createRecipient(sender.name(), sender.address()));
-			message.setSubject(request.subject());
-			message.setBody(createItemBody(request));
-
-			// Recipient
-			message.setToRecipients(List.of(createRecipient(request.emailAddress())));
-
-			// Reply-to
-			final var replyTo = ofNullable(sender.replyTo())
-				.filter(StringUtils::isNotBlank)
-				.orElse(sender.address());
-			message.setReplyTo(List.of(createRecipient(replyTo)));
-
-			// Attachments
-			final var attachments = ofNullable(request.attachments()).orElse(emptyList()).stream()
-				.map(this::createAttachment)
-				.filter(Objects::nonNull)
-				.toList();
-			if (!attachments.isEmpty()) {
-				message.setAttachments(attachments);
-			}
+			// Graph throttles per mailbox, so don't have more requests in flight for one than it takes
+			mailboxLimiter.execute(sender.address(), () -> metrics.time(TRANSPORT_METRIC_NAME, () -> {
+				if (uploadedAttachments.isEmpty()) {
+					// Request
+					final var requestBody = createSendMailPostRequestBody();
+					requestBody.setMessage(message);
+					requestBody.setSaveToSentItems(false);
 
-			// Headers
-			final var headers = ofNullable(request.headers()).orElse(emptyMap()).entrySet().stream()
-				.map(this::createHeader)
-				.toList();
-			if (!headers.isEmpty()) {
-				message.setInternetMessageHeaders(headers);
+					send(new SendMail(sender.address(), requestBody, estimateSize(request, attachmentPlan.inline())));
+				} else {
+					sendWithUploadedAttachments(sender.address(), message, uploadedAttachments);
+				}
+				return null;
+			}));
+		} catch (final MailboxUnavailableException e) {
+			metrics.recordFailure(CAUSE_MAILBOX_UNAVAILABLE);
+			LOGGER.warn("Unable to send email to: {} - {}", request.emailAddress(), e.getMessage());
+			throw Problem.valueOf(SERVICE_UNAVAILABLE, e.getMessage());
+		} catch (final Exception e) {
+			if (getThrottleRetryAfter(e).isPresent()) {
+				metrics.recordFailure(CAUSE_THROTTLED);
+				LOGGER.warn("Sending email to: {} was throttled", request.emailAddress(), e);
+				throw Problem.valueOf(SERVICE_UNAVAILABLE, "Mailbox " + request.sender().address() + " is throttled");
+			}
+			if (isUnavailable(e)) {
+				metrics.recordFailure(getConnectionFailureCause(e).orElse(CAUSE_UNAVAILABLE));
+				LOGGER.warn("Microsoft Graph was unavailable when sending email to: {}", request.emailAddress(), e);
+				throw Problem.valueOf(SERVICE_UNAVAILABLE, "Microsoft Graph is temporarily unavailable");
+			}
+			if (isTimedOut(e)) {
+				metrics.recordFailure(CAUSE_TIMEOUT);
+				LOGGER.warn("Microsoft Graph did not respond in time when sending email to: {}", request.emailAddress(), e);
+				// Not answered with 503, as the e-mail may have been sent, and must then not be sent again
+				throw Problem.valueOf(GATEWAY_TIMEOUT, "Microsoft Graph did not respond in time - the e-mail may or may not have been sent");
 			}
 
-			// Request
-			final var requestBody = createSendMailPostRequestBody();
-			requestBody.setMessage(message);
-			requestBody.setSaveToSentItems(false);
-
-			graphServiceClient.users()
-				.byUserId(sender.address())
-				.sendMail()
-				.post(requestBody);
-		} catch (final Exception e) {
+			metrics.recordFailure(CAUSE_OTHER);
 			LOGGER.error("Error sending email to: {}", request.emailAddress(), e);
 			throw Problem.builder()
 				.withStatus(INTERNAL_SERVER_ERROR)
@@ -94,6 +167,306 @@ public class MicrosoftGraphMailSender extends AbstractMailSender {
 		}
 	}
 
+	/**
+	 * Builds the message, with the attachments that are small enough to go inline.
+	 */
+	Message buildMessage(final SendEmailRequest request) {
+		final var sender = request.sender();
+
+		final var message = createMessage();
+		message.setFrom(createRecipient(sender.name(), sender.address()));
+		message.setSender(createRecipient(sender.name(), sender.address()));
+		message.setSubject(request.subject());
+		message.setBody(createItemBody(request));
+
+		// Recipient
+		message.setToRecipients(List.of(createRecipient(request.emailAddress())));
+
+		// Reply-to
+		final var replyTo = ofNullable(sender.replyTo())
+			.filter(StringUtils::isNotBlank)
+			.orElse(sender.address());
+		message.setReplyTo(List.of(createRecipient(replyTo)));
+
+		// Attachments - the ones that fit go inline, the rest are uploaded separately
+		final var inlineAttachments = planAttachments(request.attachments()).inline().stream()
+			.map(this::createAttachment)
+			.toList();
+		if (!inlineAttachments.isEmpty()) {
+			message.setAttachments(inlineAttachments);
+		}
+
+		// Headers
+		final var headers = ofNullable(request.headers()).orElse(emptyMap()).entrySet().stream()
+			.map(this::createHeader)
+			.toList();
+		if (!headers.isEmpty()) {
+			message.setInternetMessageHeaders(headers);
+		}
+
+		return message;
+	}
+
+	void send(final SendMail sendMail) {
+		// A message that can't share a batch request with another is posted on its own, without waiting for a batch
+		if (batcher == null || sendMail.size() > MAX_BATCH_PAYLOAD_SIZE / 2) {
+			post(sendMail);
+			return;
+		}
+
+		try {
+			batcher.submit(sendMail).join();
+		} catch (final CompletionException e) {
+			if (e.getCause() instanceof final RuntimeException cause) {
+				throw cause;
+			}
+			throw e;
+		}
+	}
+
+	void post(final SendMail sendMail) {
+		graphServiceClient.users()
+			.byUserId(sendMail.userId())
+			.sendMail()
+			.post(sendMail.requestBody());
+	}
+
+	void sendBatch(final List<MicroBatcher.Item<SendMail>> batch) {
+		// Graph caps the size of a request, so the batch is split into requests that stay within MAX_BATCH_PAYLOAD_SIZE
+		final var requests = new ArrayList<List<MicroBatcher.Item<SendMail>>>();
+		var request = new ArrayList<MicroBatcher.Item<SendMail>>();
+		var requestSize = 0L;
+		for (final var item : batch) {
+			if (!request.isEmpty() && requestSize + item.value().size() > MAX_BATCH_PAYLOAD_SIZE) {
+				requests.add(request);
+				request = new ArrayList<>();
+				requestSize = 0;
+			}
+			request.add(item);
+			requestSize += item.value().size();
+		}
+		requests.add(request);
+
+		// A request that fails only fails its own e-mails
+		for (final var items : requests) {
+			try {
+				postBatch(items);
+			} catch (final RuntimeException e) {
+				items.forEach(item -> item.fail(e));
+			}
+		}
+	}
+
+	void postBatch(final List<MicroBatcher.Item<SendMail>> batch) {
+		// Nothing to coalesce
+		if (batch.size() == 1) {
+			post(batch.getFirst().value());
+			return;
+		}
+
+		final var batchRequestContent = createBatchRequestContent();
+		final var itemsByRequestId = new HashMap<String, MicroBatcher.Item<SendMail>>();
+		batch.forEach(item -> itemsByRequestId.put(batchRequestContent.addBatchRequestStep(graphServiceClient.users()
+			.byUserId(item.value().userId())
+			.sendMail()
+			.toPostRequestInformation(item.value().requestBody())), item));
+
+		final BatchResponseContent batchResponseContent;
+		try {
+			batchResponseContent = graphServiceClient.getBatchRequestBuilder().post(batchRequestContent, null);
+		} catch (final RuntimeException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new GraphRequestException("Graph batch request failed", e);
+		}
+
+		// Map each sub-response back to the caller that submitted the request
+		itemsByRequestId.forEach((requestId, item) -> {
+			final var response = batchResponseContent.getResponseById(requestId);
+			if (response == null) {
+				item.fail(new GraphRequestException("No response for Graph batch request " + requestId, null));
+			} else if (!response.isSuccessful()) {
+				item.fail(new GraphRequestException(response.code(), parseRetryAfter(response.header(RETRY_AFTER))));
+			}
+		});
+	}
+
+	/**
+	 * @param  request           the e-mail
+	 * @param  inlineAttachments the attachments that go inline
+	 * @return                   roughly how large the sendMail request for the e-mail is, in bytes - inline attachments
+	 *                           are base64 encoded, which makes them a third larger
+	 */
+	static long estimateSize(final SendEmailRequest request, final List<SendEmailRequest.Attachment> inlineAttachments) {
+		final var bodySize = isNotEmpty(request.htmlMessage()) ? request.htmlMessage().length : ofNullable(request.message()).map(String::length).orElse(0);
+		final var attachmentSize = inlineAttachments.stream()
+			.mapToLong(attachment -> (attachment.content().length + 2L) / 3 * 4)
+			.sum();
+		return MESSAGE_OVERHEAD + bodySize + attachmentSize;
+	}
+
+	boolean isLarge(final SendEmailRequest.Attachment attachment) {
+		return attachment.content().length > LARGE_ATTACHMENT_THRESHOLD;
+	}
+
+	/**
+	 * Splits the attachments of an e-mail into the ones that go inline and the ones that are uploaded to a draft message.
+	 * It's the total size of the inline attachments that Graph limits, so the smallest attachments go inline for as long
+	 * as their total size is within {@link #LARGE_ATTACHMENT_THRESHOLD}, and the rest are uploaded, smallest first.
+	 *
+	 * @param  attachments the attachments, if any
+	 * @return             the inline attachments in their original order, and the attachments to upload
+	 */
+	static AttachmentPlan planAttachments(final List<SendEmailRequest.Attachment> attachments) {
+		final var allAttachments = ofNullable(attachments).orElse(emptyList());
+		final var inline = Collections.<SendEmailRequest.Attachment>newSetFromMap(new IdentityHashMap<>());
+		final var uploaded = new ArrayList<SendEmailRequest.Attachment>();
+		var inlineSize = 0L;
+		for (final var attachment : allAttachments.stream().sorted(comparingInt(candidate -> candidate.content().length)).toList()) {
+			if (inlineSize + attachment.content().length <= LARGE_ATTACHMENT_THRESHOLD) {
+				inline.add(attachment);
+				inlineSize += attachment.content().length;
+			} else {
+				uploaded.add(attachment);
+			}
+		}
+
+		return new AttachmentPlan(allAttachments.stream().filter(inline::contains).toList(), uploaded);
+	}
+
+	/**
+	 * Sends a message with attachments that don't fit inline, by creating it as a draft, adding the attachments to it -
+	 * large ones uploaded in chunks - and then sending the draft.
+	 */
+	void sendWithUploadedAttachments(final String userId, final Message message, final List<SendEmailRequest.Attachment> uploadedAttachments) throws Exception {
+		final var messages = graphServiceClient.users().byUserId(userId).messages();
+		final var draftId = messages.post(message).getId();
+		try {
+			for (final var attachment : uploadedAttachments) {
+				if (isLarge(attachment)) {
+					uploadAttachment(userId, draftId, attachment);
+				} else {
+					// Upload sessions are for attachments of 3 MB and more - smaller ones are added in a single request
+					addAttachment(userId, draftId, attachment);
+				}
+			}
+			messages.byMessageId(draftId).send().post();
+		} catch (final Exception e) {
+			deleteDraft(userId, draftId);
+			throw e;
+		}
+	}
+
+	void uploadAttachment(final String userId, final String messageId, final SendEmailRequest.Attachment attachment) throws Exception {
+		final var attachmentItem = new AttachmentItem();
+		attachmentItem.setAttachmentType(AttachmentType.File);
+		attachmentItem.setName(attachment.name());
+		attachmentItem.setContentType(attachment.contentType());
+		attachmentItem.setSize((long) attachment.content().length);
+
+		final var requestBody = new CreateUploadSessionPostRequestBody();
+		requestBody.setAttachmentItem(attachmentItem);
+
+		final var uploadSession = graphServiceClient.users()
+			.byUserId(userId)
+			.messages()
+			.byMessageId(messageId)
+			.attachments()
+			.createUploadSession()
+			.post(requestBody);
+
+		if (!createUploadTask(uploadSession, attachment).upload().isUploadSuccessful()) {
+			throw new GraphRequestException("Unable to upload attachment " + attachment.name(), null);
+		}
+	}
+
+	void addAttachment(final String userId, final String messageId, final SendEmailRequest.Attachment attachment) {
+		graphServiceClient.users()
+			.byUserId(userId)
+			.messages()
+			.byMessageId(messageId)
+			.attachments()
+			.post(createAttachment(attachment));
+	}
+
+	LargeFileUploadTask<AttachmentItem> createUploadTask(final UploadSession uploadSession, final SendEmailRequest.Attachment attachment) throws Exception {
+		// The attachment is read, and uploaded, one chunk at a time
+		return new LargeFileUploadTask<>(graphServiceClient.getRequestAdapter(), uploadSession, new ByteArrayInputStream(attachment.content()),
+			attachment.content().length, UPLOAD_CHUNK_SIZE, AttachmentItem::createFromDiscriminatorValue);
+	}
+
+	void deleteDraft(final String userId, final String messageId) {
+		try {
+			graphServiceClient.users().byUserId(userId).messages().byMessageId(messageId).delete();
+		} catch (final Exception e) {
+			LOGGER.warn("Unable to delete draft message {} for {}", messageId, userId, e);
+		}
+	}
+
+	/**
+	 * @param  throwable a failure
+	 * @return           how long Graph asked us to back off, if the failure is due to throttling
+	 */
+	static Optional<Duration> getThrottleRetryAfter(final Throwable throwable) {
+		if (throwable instanceof final GraphRequestException e && e.getStatusCode() == TOO_MANY_REQUESTS.value()) {
+			return Optional.of(e.getRetryAfter().orElse(DEFAULT_RETRY_AFTER));
+		}
+		// The SDK has already retried these, honouring Retry-After, before giving up
+		if (throwable instanceof final ApiException e && e.getResponseStatusCode() == TOO_MANY_REQUESTS.value()) {
+			return Optional.of(DEFAULT_RETRY_AFTER);
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * @param  throwable a failure
+	 * @return           whether the failure is due to Graph being unavailable - it couldn't be connected to, or answered
+	 *                   503 - in which case the e-mail wasn't sent
+	 */
+	static boolean isUnavailable(final Throwable throwable) {
+		return isConnectionFailure(throwable) || hasStatus(throwable, SERVICE_UNAVAILABLE.value());
+	}
+
+	/**
+	 * @param  throwable a failure
+	 * @return           whether the failure is due to Graph not responding in time - it timed out, or answered 504 - in
+	 *                   which case the e-mail may or may not have been sent
+	 */
+	static boolean isTimedOut(final Throwable throwable) {
+		return getConnectionFailureCause(throwable).filter(CAUSE_TIMEOUT::equals).isPresent() || hasStatus(throwable, GATEWAY_TIMEOUT.value());
+	}
+
+	static boolean hasStatus(final Throwable throwable, final int statusCode) {
+		return getThrowableList(throwable).stream()
+			.anyMatch(cause -> (cause instanceof final GraphRequestException e && e.getStatusCode() == statusCode)
+				|| (cause instanceof final ApiException e && e.getResponseStatusCode() == statusCode));
+	}
+
+	@Override
+	public void bindTo(final MeterRegistry registry) {
+		metrics.bindTo(registry, getMunicipalityId());
+		mailboxLimiter.bindTo(registry, Tags.of("municipality", String.valueOf(getMunicipalityId())));
+	}
+
+	BatchRequestContent createBatchRequestContent() {
+		return new BatchRequestContent(graphServiceClient);
+	}
+
+	static Duration parseRetryAfter(final String retryAfter) {
+		try {
+			return retryAfter != null ? Duration.ofSeconds(Long.parseLong(retryAfter.trim())) : null;
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		if (batcher != null) {
+			batcher.close();
+		}
+	}
+
 	Message createMessage() {
 		return new Message();
 	}
@@ -106,9 +479,9 @@ public class MicrosoftGraphMailSender extends AbstractMailSender {
 		final var itemBody = new ItemBody();
 
 		// Prioritize/use HTML, if it's set
-		if (isNotBlank(request.htmlMessage())) {
+		if (isNotEmpty(request.htmlMessage())) {
 			itemBody.setContentType(BodyType.Html);
-			itemBody.setContent(new String(Base64.getDecoder().decode(request.htmlMessage()), UTF_8));
+			itemBody.setContent(new String(request.htmlMessage(), UTF_8));
 		} else {
 			itemBody.setContentType(BodyType.Text);
 			itemBody.setContent(request.message());
@@ -134,15 +507,10 @@ public class MicrosoftGraphMailSender extends AbstractMailSender {
 	}
 
 	Attachment createAttachment(final SendEmailRequest.Attachment attachment) {
-		if (!BASE64_VALIDATOR.isValid(attachment.content())) {
-			return null;
-		}
-		final var content = Base64.getDecoder().decode(attachment.content());
-
 		final var fileAttachment = new FileAttachment();
 		fileAttachment.setName(attachment.name());
 		fileAttachment.setContentType(attachment.contentType());
-		fileAttachment.setContentBytes(content);
+		fileAttachment.setContentBytes(attachment.content());
 		return fileAttachment;
 	}
 
@@ -152,4 +520,23 @@ public class MicrosoftGraphMailSender extends AbstractMailSender {
 		header.setValue(formatHeader(headerEntry.getValue()));
 		return header;
 	}
+
+	/**
+	 * A send mail request for a mailbox.
+	 *
+	 * @param userId      the id (or address) of the sending mailbox
+	 * @param requestBody the request body
+	 * @param size        the estimated size of the request body, in bytes
+	 */
+	record SendMail(String userId, SendMailPostRequestBody requestBody, long size) {
+	}
+
+	/**
+	 * How the attachments of an e-mail are sent.
+	 *
+	 * @param inline   the attachments that go inline, with the message
+	 * @param uploaded the attachments that are added to a draft message, smallest first
+	 */
+	record AttachmentPlan(List<SendEmailRequest.Attachment> inline, List<SendEmailRequest.Attachment> uploaded) {
+	}
 }
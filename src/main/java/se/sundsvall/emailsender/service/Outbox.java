@@ -0,0 +1,135 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Service;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.configuration.OutboxProperties;
+import tools.jackson.core.JacksonException;
+import tools.jackson.databind.json.JsonMapper;
+
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+
+/**
+ * Keeps asynchronously sent e-mails on disk, in an {@link OutboxJournal}, from when they are accepted until they have
+ * been sent, so that the e-mails that haven't been sent when the application stops - or crashes - are sent when it
+ * starts again. An e-mail may be sent twice if the application crashes right after it was sent, but it's never lost
+ * once it has been accepted.
+ */
+@Service
+public class Outbox implements DisposableBean {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Outbox.class);
+
+	static final String APPEND_METRIC_NAME = "email.outbox.append";
+	static final String PENDING_METRIC_NAME = "email.outbox.pending";
+	static final String SEGMENTS_METRIC_NAME = "email.outbox.segments";
+
+	// The id of e-mails that aren't kept in the outbox, since it's disabled
+	static final long NO_ID = -1;
+
+	private final OutboxJournal journal;
+	private final JsonMapper jsonMapper;
+	private final Timer appendTimer;
+
+	public Outbox(final OutboxProperties properties, final JsonMapper jsonMapper, final MeterRegistry meterRegistry) throws IOException {
+		this.jsonMapper = jsonMapper;
+		journal = properties.enabled() ? new OutboxJournal(properties.directory(), Math.toIntExact(properties.segmentSize().toBytes())) : null;
+		appendTimer = Timer.builder(APPEND_METRIC_NAME)
+			.description("The time it takes to make an accepted e-mail durable in the outbox")
+			.publishPercentileHistogram()
+			.register(meterRegistry);
+
+		if (journal != null) {
+			Gauge.builder(PENDING_METRIC_NAME, journal, OutboxJournal::pendingCount)
+				.description("The number of e-mails in the outbox that haven't been sent")
+				.register(meterRegistry);
+			Gauge.builder(SEGMENTS_METRIC_NAME, journal, OutboxJournal::segmentCount)
+				.description("The number of outbox journal segments on disk")
+				.register(meterRegistry);
+		}
+	}
+
+	/**
+	 * Adds an e-mail to the outbox, and returns once it's durable.
+	 *
+	 * @param  municipalityId the municipality id
+	 * @param  messageId      the message id that identifies the e-mail in the logs
+	 * @param  request        the request
+	 * @return                the id of the e-mail in the outbox, by which it's completed once it has been sent
+	 */
+	long add(final String municipalityId, final String messageId, final SendEmailRequest request) {
+		if (journal == null) {
+			return NO_ID;
+		}
+
+		try {
+			final var payload = jsonMapper.writeValueAsBytes(new Message(municipalityId, messageId, request));
+			return appendTimer.recordCallable(() -> journal.append(payload));
+		} catch (final Exception e) {
+			LOGGER.error("Unable to add e-mail for municipalityId {} to the outbox", municipalityId, e);
+			throw Problem.valueOf(INTERNAL_SERVER_ERROR, "Unable to accept e-mail for sending");
+		}
+	}
+
+	/**
+	 * Removes an e-mail from the outbox, once it has been sent - or can never be sent.
+	 *
+	 * @param id the id of the e-mail in the outbox
+	 */
+	void complete(final long id) {
+		if (journal == null || id == NO_ID) {
+			return;
+		}
+
+		try {
+			journal.complete(id);
+		} catch (final IOException e) {
+			LOGGER.warn("Unable to remove e-mail {} from the outbox, so it will be sent again after a restart", id, e);
+		}
+	}
+
+	/**
+	 * @return the e-mails that were in the outbox when the application started, which must be completed like added ones -
+	 *         only returned once
+	 */
+	List<Entry> recover() {
+		if (journal == null) {
+			return List.of();
+		}
+
+		final var entries = new ArrayList<Entry>();
+		for (final var record : journal.takeRecovered()) {
+			try {
+				final var message = jsonMapper.readValue(record.payload(), Message.class);
+				entries.add(new Entry(record.id(), message.municipalityId(), message.messageId(), message.request()));
+			} catch (final JacksonException e) {
+				// It will never be readable, so keeping it would only keep its segment from being deleted
+				LOGGER.error("Unable to read e-mail {} in the outbox, so it's removed without being sent", record.id(), e);
+				complete(record.id());
+			}
+		}
+		return entries;
+	}
+
+	@Override
+	public void destroy() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	record Entry(long id, String municipalityId, String messageId, SendEmailRequest request) {
+	}
+
+	record Message(String municipalityId, String messageId, SendEmailRequest request) {
+	}
+}
@@ -0,0 +1,410 @@
+package se.sundsvall.emailsender.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A segmented, memory-mapped, append-only journal of records that are appended, and later completed.
+ * <p>
+ * Each record is written to the current segment, a preallocated file that is mapped into memory, as a length, a CRC32C
+ * checksum, a type, an id and a payload. Segments are filled with zeros when they are created, so that running out of
+ * disk space fails the append that rolls to a new segment with an {@code IOException}, rather than crashing a later
+ * write to the mapping. Appends are durable when {@link #append(byte[])} returns. Threads that append
+ * concurrently share a single force of the segment (group commit), so the number of forces per second stays bounded by
+ * the disk, not by the number of appends. Completions aren't forced on their own - a completion that is lost in a crash
+ * means that its record is recovered again, so records are recovered at least once.
+ * <p>
+ * Completions are always written to the same segment as the record they complete, or to a later one. A segment is
+ * therefore deleted once all the records appended to it are completed, and all older segments have been deleted.
+ * <p>
+ * When the journal is opened, the existing segments are read up to the first record that is incomplete or doesn't match
+ * its checksum, which is where writing stopped, and the records that were appended but not completed are recovered.
+ * Existing segments are never written to again - new records go to a new segment.
+ */
+class OutboxJournal implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(OutboxJournal.class);
+
+	static final String SEGMENT_PREFIX = "segment-";
+	static final String SEGMENT_SUFFIX = ".log";
+
+	static final byte APPENDED = 1;
+	static final byte COMPLETED = 2;
+
+	// Record length (0 where there are no more records), checksum, type and id
+	static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Byte.BYTES + Long.BYTES;
+	// The part of a record that the checksum covers starts with the type
+	private static final int CHECKSUMMED_OFFSET = Integer.BYTES + Integer.BYTES;
+
+	private static final Pattern SEGMENT_PATTERN = Pattern.compile("^" + SEGMENT_PREFIX + "(\\d{20})" + SEGMENT_SUFFIX.replace(".", "\\.") + "$");
+	private static final byte[] NO_PAYLOAD = new byte[0];
+	private static final int PREALLOCATION_CHUNK_SIZE = 64 * 1024;
+
+	private final Path directory;
+	private final int segmentSize;
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+	// Oldest first, and only the newest one is written to - guarded by writeLock
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private long nextId;
+	private long nextSegmentSequence;
+	private long appended;
+
+	// The segment that each appended, but not yet completed, record is in
+	private final Map<Long, Segment> pending = new ConcurrentHashMap<>();
+	private List<Record> recovered;
+
+	// Group commit state - guarded by itself
+	private final Object commitMonitor = new Object();
+	private long committed;
+	private boolean committing;
+
+	/**
+	 * Opens the journal in the given directory, and recovers the records that were appended but not completed.
+	 *
+	 * @param  directory   the directory, which is created if it doesn't exist
+	 * @param  segmentSize the size of each segment - larger records get a segment of their own size
+	 * @throws IOException if the journal couldn't be opened
+	 */
+	OutboxJournal(final Path directory, final int segmentSize) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+
+		final var recoveredPayloads = new TreeMap<Long, byte[]>();
+		try (final var paths = Files.list(directory)) {
+			for (final var path : paths.sorted().toList()) {
+				final var matcher = SEGMENT_PATTERN.matcher(path.getFileName().toString());
+				if (matcher.matches()) {
+					final var segment = Segment.open(path, Long.parseLong(matcher.group(1)));
+					read(segment, recoveredPayloads);
+					segments.addLast(segment);
+					nextSegmentSequence = segment.sequence + 1;
+				}
+			}
+		}
+
+		recoveredPayloads.keySet().forEach(id -> pending.get(id).pending.incrementAndGet());
+		recovered = recoveredPayloads.entrySet().stream()
+			.map(entry -> new Record(entry.getKey(), entry.getValue()))
+			.toList();
+
+		writeLock.lock();
+		try {
+			roll(segmentSize);
+			compact();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void read(final Segment segment, final Map<Long, byte[]> recoveredPayloads) {
+		final var buffer = segment.buffer;
+		var position = 0;
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			final var length = buffer.getInt(position);
+			if (length < HEADER_SIZE || length > buffer.capacity() - position || checksum(buffer, position, length) != buffer.getInt(position + Integer.BYTES)) {
+				break;
+			}
+
+			final var id = buffer.getLong(position + CHECKSUMMED_OFFSET + Byte.BYTES);
+			if (buffer.get(position + CHECKSUMMED_OFFSET) == APPENDED) {
+				final var payload = new byte[length - HEADER_SIZE];
+				buffer.get(position + HEADER_SIZE, payload);
+				recoveredPayloads.put(id, payload);
+				pending.put(id, segment);
+			} else {
+				recoveredPayloads.remove(id);
+				pending.remove(id);
+			}
+			nextId = Math.max(nextId, id + 1);
+			position += length;
+		}
+	}
+
+	/**
+	 * @return the records that were appended but not completed when the journal was opened - only returned once, and
+	 *         each of them must be completed like any appended record
+	 */
+	List<Record> takeRecovered() {
+		final var records = recovered;
+		recovered = List.of();
+		return records;
+	}
+
+	/**
+	 * Appends a record, and returns once it's durable.
+	 *
+	 * @param  payload     the payload
+	 * @return             the id of the record, by which it's completed
+	 * @throws IOException if the record couldn't be written, or made durable
+	 */
+	long append(final byte[] payload) throws IOException {
+		final long id;
+		final long sequence;
+		writeLock.lock();
+		try {
+			id = nextId++;
+			final var segment = write(APPENDED, id, payload);
+			segment.pending.incrementAndGet();
+			pending.put(id, segment);
+			sequence = ++appended;
+		} finally {
+			writeLock.unlock();
+		}
+
+		commit(sequence);
+		return id;
+	}
+
+	/**
+	 * Completes a record, so that it's no longer recovered when the journal is opened.
+	 *
+	 * @param  id          the id of the record
+	 * @throws IOException if the completion couldn't be written
+	 */
+	void complete(final long id) throws IOException {
+		final var segment = pending.remove(id);
+		if (segment == null) {
+			return;
+		}
+
+		writeLock.lock();
+		try {
+			write(COMPLETED, id, NO_PAYLOAD);
+			if (segment.pending.decrementAndGet() == 0) {
+				compact();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of records that are appended but not completed
+	 */
+	int pendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of segments on disk
+	 */
+	int segmentCount() {
+		writeLock.lock();
+		try {
+			return segments.size();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private Segment write(final byte type, final long id, final byte[] payload) throws IOException {
+		final var length = HEADER_SIZE + payload.length;
+		var segment = segments.getLast();
+		if (length > segment.buffer.capacity() - segment.position) {
+			segment = roll(length);
+		}
+
+		final var buffer = segment.buffer;
+		final var position = segment.position;
+		buffer.put(position + CHECKSUMMED_OFFSET, type);
+		buffer.putLong(position + CHECKSUMMED_OFFSET + Byte.BYTES, id);
+		buffer.put(position + HEADER_SIZE, payload);
+		buffer.putInt(position + Integer.BYTES, checksum(buffer, position, length));
+		buffer.putInt(position, length);
+		segment.position += length;
+		return segment;
+	}
+
+	private static int checksum(final MappedByteBuffer buffer, final int position, final int length) {
+		final var checksum = new CRC32C();
+		checksum.update(buffer.slice(position + CHECKSUMMED_OFFSET, length - CHECKSUMMED_OFFSET));
+		return (int) checksum.getValue();
+	}
+
+	/**
+	 * Starts a new segment. The current one is forced first, so that commits only ever need to force the newest segment.
+	 */
+	private Segment roll(final int minSize) throws IOException {
+		if (!segments.isEmpty() && segments.getLast().writable) {
+			segments.getLast().buffer.force();
+		}
+
+		final var sequence = nextSegmentSequence++;
+		final var segment = Segment.create(directory.resolve(SEGMENT_PREFIX + "%020d".formatted(sequence) + SEGMENT_SUFFIX), sequence, Math.max(segmentSize, minSize));
+		// Make the new file itself durable, not only its content
+		try (final var channel = FileChannel.open(directory, READ)) {
+			channel.force(true);
+		}
+		segments.addLast(segment);
+		return segment;
+	}
+
+	/**
+	 * Deletes the oldest segments, for as long as all the records appended to them are completed.
+	 */
+	private void compact() {
+		while (segments.size() > 1 && segments.getFirst().pending.get() == 0) {
+			final var segment = segments.removeFirst();
+			try {
+				segment.close();
+				Files.deleteIfExists(segment.path);
+			} catch (final IOException e) {
+				LOGGER.warn("Unable to delete outbox segment {}", segment.path, e);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the append with the given sequence number is durable. The first thread to get here forces everything
+	 * that has been written so far, while the threads that get here meanwhile wait for it, and then have their appends
+	 * forced together by the next one of them.
+	 */
+	private void commit(final long sequence) throws IOException {
+		while (true) {
+			synchronized (commitMonitor) {
+				while (committing && committed < sequence) {
+					try {
+						commitMonitor.wait();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the outbox to be forced");
+					}
+				}
+				if (committed >= sequence) {
+					return;
+				}
+				committing = true;
+			}
+
+			final long target;
+			final Segment segment;
+			final int position;
+			writeLock.lock();
+			try {
+				target = appended;
+				segment = segments.getLast();
+				position = segment.position;
+			} finally {
+				writeLock.unlock();
+			}
+
+			var forced = false;
+			try {
+				if (position > segment.forced) {
+					segment.buffer.force(segment.forced, position - segment.forced);
+					segment.forced = position;
+				}
+				forced = true;
+			} finally {
+				synchronized (commitMonitor) {
+					committing = false;
+					if (forced) {
+						committed = Math.max(committed, target);
+					}
+					commitMonitor.notifyAll();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		writeLock.lock();
+		try {
+			for (final var segment : segments) {
+				if (segment.writable) {
+					segment.buffer.force();
+				}
+				segment.close();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	record Record(long id, byte[] payload) {
+	}
+
+	static final class Segment implements Closeable {
+
+		private final Path path;
+		private final long sequence;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private final boolean writable;
+		private final AtomicInteger pending = new AtomicInteger();
+		// Guarded by the journal's write lock
+		private int position;
+		// Guarded by the journal's group commit
+		private int forced;
+
+		private Segment(final Path path, final long sequence, final FileChannel channel, final MappedByteBuffer buffer, final boolean writable) {
+			this.path = path;
+			this.sequence = sequence;
+			this.channel = channel;
+			this.buffer = buffer;
+			this.writable = writable;
+		}
+
+		static Segment create(final Path path, final long sequence, final int size) throws IOException {
+			final var channel = FileChannel.open(path, CREATE_NEW, READ, WRITE);
+			try {
+				preallocate(channel, size);
+				return new Segment(path, sequence, channel, channel.map(READ_WRITE, 0, size), true);
+			} catch (final IOException e) {
+				channel.close();
+				Files.deleteIfExists(path);
+				throw e;
+			}
+		}
+
+		/**
+		 * Writes zeros over the whole segment, so that its disk space is allocated up front. Mapping a file only extends it
+		 * sparsely, and a write to a mapping that finds the disk full raises an asynchronous {@link InternalError}.
+		 */
+		static void preallocate(final FileChannel channel, final int size) throws IOException {
+			final var zeros = ByteBuffer.allocate(Math.min(size, PREALLOCATION_CHUNK_SIZE));
+			var position = 0L;
+			while (position < size) {
+				zeros.clear().limit((int) Math.min(zeros.capacity(), size - position));
+				position += channel.write(zeros, position);
+			}
+		}
+
+		static Segment open(final Path path, final long sequence) throws IOException {
+			final var channel = FileChannel.open(path, READ);
+			// Existing segments are only read, and they are never larger than a mapping can be
+			return new Segment(path, sequence, channel, channel.map(READ_ONLY, 0, channel.size()), false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// The mapping stays valid until it's garbage collected, which also makes it safe to delete the file meanwhile
+			channel.close();
+		}
+	}
+}
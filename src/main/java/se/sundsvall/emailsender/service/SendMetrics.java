@@ -0,0 +1,116 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.util.List;
+import java.util.Objects;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Optional.ofNullable;
+import static org.apache.commons.lang3.ArrayUtils.getLength;
+
+/**
+ * Records what a mail sender does with each e-mail - how long it takes to build and to hand over to the mail server,
+ * how large it is and why it fails. All metrics are tagged with the municipality and the transport, and failures with
+ * one of a fixed set of causes, so that the number of time series stays bounded.
+ */
+class SendMetrics {
+
+	static final String BUILD_METRIC_NAME = "email.message.build";
+	static final String TRANSPORT_METRIC_NAME = "email.message.transport";
+	static final String SIZE_METRIC_NAME = "email.message.size";
+	static final String ATTACHMENTS_METRIC_NAME = "email.message.attachments";
+	static final String ATTACHMENT_SIZE_METRIC_NAME = "email.message.attachment.size";
+	static final String FAILURES_METRIC_NAME = "email.message.failures";
+
+	static final String OUTCOME_SUCCESS = "success";
+	static final String OUTCOME_FAILURE = "failure";
+
+	private final String transport;
+	// Records nothing, until bound to a registry
+	private volatile MeterRegistry meterRegistry = new CompositeMeterRegistry();
+	private volatile Tags tags;
+
+	SendMetrics(final String transport) {
+		this.transport = transport;
+		tags = Tags.of("transport", transport);
+	}
+
+	void bindTo(final MeterRegistry registry, final String municipalityId) {
+		tags = Tags.of("municipality", String.valueOf(municipalityId), "transport", transport);
+		meterRegistry = registry;
+	}
+
+	/**
+	 * Records the size of an e-mail, before encoding.
+	 */
+	void recordMessage(final SendEmailRequest request) {
+		final var attachments = ofNullable(request.attachments()).orElse(List.of());
+		final var attachmentSize = attachments.stream()
+			.mapToLong(attachment -> getLength(attachment.content()))
+			.sum();
+		final var size = Objects.toString(request.subject(), "").getBytes(UTF_8).length
+			+ Objects.toString(request.message(), "").getBytes(UTF_8).length
+			+ getLength(request.htmlMessage())
+			+ attachmentSize;
+
+		summary(SIZE_METRIC_NAME, "The size of e-mails, before encoding", "bytes").record(size);
+		summary(ATTACHMENTS_METRIC_NAME, "The number of attachments per e-mail", null).record(attachments.size());
+		attachments.forEach(attachment -> summary(ATTACHMENT_SIZE_METRIC_NAME, "The size of attachments, before encoding", "bytes")
+			.record(getLength(attachment.content())));
+	}
+
+	/**
+	 * Runs the given action, and records how long it took, and whether it succeeded, with the given timer.
+	 */
+	<T, E extends Exception> T time(final String metricName, final TimedAction<T, E> action) throws E {
+		final var sample = Timer.start(meterRegistry);
+		try {
+			final var result = action.run();
+			sample.stop(timer(metricName, OUTCOME_SUCCESS));
+			return result;
+		} catch (final Exception e) {
+			sample.stop(timer(metricName, OUTCOME_FAILURE));
+			throw e;
+		}
+	}
+
+	/**
+	 * @param cause the cause of a failure - one of a fixed set of values, never anything taken from the e-mail or error
+	 */
+	void recordFailure(final String cause) {
+		Counter.builder(FAILURES_METRIC_NAME)
+			.tags(tags)
+			.tag("cause", cause)
+			.description("The number of e-mails that could not be sent, by cause")
+			.register(meterRegistry)
+			.increment();
+	}
+
+	Timer timer(final String metricName, final String outcome) {
+		return Timer.builder(metricName)
+			.tags(tags)
+			.tag("outcome", outcome)
+			.publishPercentileHistogram()
+			.register(meterRegistry);
+	}
+
+	DistributionSummary summary(final String metricName, final String description, final String baseUnit) {
+		return DistributionSummary.builder(metricName)
+			.tags(tags)
+			.description(description)
+			.baseUnit(baseUnit)
+			.register(meterRegistry);
+	}
+
+	@FunctionalInterface
+	interface TimedAction<T, E extends Exception> {
+
+		T run() throws E;
+	}
+}
@@ -1,5 +1,8 @@
 package se.sundsvall.emailsender.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import jakarta.activation.DataHandler;
 import jakarta.mail.BodyPart;
 import jakarta.mail.Message;
@@ -13,47 +16,238 @@ import jakarta.mail.internet.MimePart;
 import jakarta.mail.internet.MimeUtility;
 import jakarta.mail.util.ByteArrayDataSource;
 import java.io.UnsupportedEncodingException;
-import java.util.Base64;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 import se.sundsvall.dept44.problem.Problem;
 import se.sundsvall.emailsender.api.model.Header;
 import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.support.MicroBatcher;
+import se.sundsvall.emailsender.support.MimePartCache;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Optional.ofNullable;
+import static org.apache.commons.lang3.exception.ExceptionUtils.getThrowableList;
 import static org.apache.commons.lang3.function.Failable.stream;
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 import static org.springframework.util.MimeTypeUtils.TEXT_HTML;
 import static org.springframework.util.MimeTypeUtils.TEXT_PLAIN;
-import static org.zalando.fauxpas.FauxPas.throwingFunction;
+import static se.sundsvall.emailsender.service.SendMetrics.BUILD_METRIC_NAME;
+import static se.sundsvall.emailsender.service.SendMetrics.TRANSPORT_METRIC_NAME;
 
-public class SmtpMailSender extends AbstractMailSender {
+public class SmtpMailSender extends AbstractMailSender implements MeterBinder, DisposableBean {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(SmtpMailSender.class);
 
+	static final String TRANSPORT = "smtp";
+
+	static final String CAUSE_BUILD = "build";
+	static final String CAUSE_AUTHENTICATION = "authentication";
+	static final String CAUSE_SMTP_4XX = "smtp_4xx";
+	static final String CAUSE_SMTP_5XX = "smtp_5xx";
+	static final String CAUSE_OTHER = "other";
+
+	// Failures that may go away if the send is retried, and that happen before the mail server has accepted the e-mail.
+	// A timeout isn't one of them, as it may happen after the end of the data, when the e-mail has already been accepted
+	private static final Set<String> TRANSIENT_CAUSES = Set.of(CAUSE_CONNECTION, CAUSE_SMTP_4XX);
+
 	private final JavaMailSender javaMailSender;
+	private final MicroBatcher<MimeMessage> batcher;
+	private final MimePartCache attachmentCache;
 
 	public SmtpMailSender(final JavaMailSender javaMailSender) {
+		this(javaMailSender, 1, Duration.ZERO);
+	}
+
+	/**
+	 * Creates a mail sender that coalesces concurrent sends into batches, that are delivered over a single SMTP session.
+	 *
+	 * @param javaMailSender the underlying mail sender
+	 * @param maxBatchSize   the maximum number of messages per batch - 1 disables batching
+	 * @param batchWindow    the maximum time to wait for more messages before a batch is delivered
+	 */
+	public SmtpMailSender(final JavaMailSender javaMailSender, final int maxBatchSize, final Duration batchWindow) {
+		this(javaMailSender, maxBatchSize, batchWindow, 0);
+	}
+
+	/**
+	 * Creates a mail sender that coalesces concurrent sends into batches, and that keeps attachments encoded, so that an
+	 * attachment that goes out with many e-mails is only encoded once.
+	 *
+	 * @param javaMailSender      the underlying mail sender
+	 * @param maxBatchSize        the maximum number of messages per batch - 1 disables batching
+	 * @param batchWindow         the maximum time to wait for more messages before a batch is delivered
+	 * @param attachmentCacheSize the maximum total size, in bytes, of the encoded attachments that are kept - 0 disables
+	 *                            the cache
+	 */
+	public SmtpMailSender(final JavaMailSender javaMailSender, final int maxBatchSize, final Duration batchWindow, final long attachmentCacheSize) {
+		super(TRANSPORT);
 		this.javaMailSender = javaMailSender;
+		batcher = maxBatchSize > 1 ? new MicroBatcher<>("smtp-batcher", maxBatchSize, batchWindow, this::sendBatch) : null;
+		attachmentCache = attachmentCacheSize > 0 ? new MimePartCache(attachmentCacheSize) : null;
 	}
 
 	@Override
 	public void sendEmail(final SendEmailRequest request) {
+		metrics.recordMessage(request);
 		try {
-			var mimeMessage = createMimeMessage(javaMailSender, request);
+			var mimeMessage = metrics.time(BUILD_METRIC_NAME, () -> createMimeMessage(javaMailSender, request));
 
-			javaMailSender.send(mimeMessage);
+			metrics.time(TRANSPORT_METRIC_NAME, () -> {
+				send(mimeMessage);
+				return null;
+			});
 		} catch (MessagingException e) {
+			metrics.recordFailure(CAUSE_BUILD);
+			LOGGER.error("Error while sending email to: {}", request.emailAddress(), e);
+			throw Problem.builder()
+				.withStatus(INTERNAL_SERVER_ERROR)
+				.withDetail("Unable to send e-mail")
+				.build();
+		} catch (final MailException e) {
+			final var cause = getFailureCause(e);
+			metrics.recordFailure(cause);
+			if (TRANSIENT_CAUSES.contains(cause)) {
+				LOGGER.warn("Temporary failure while sending email to: {}", request.emailAddress(), e);
+				throw Problem.valueOf(SERVICE_UNAVAILABLE, "Mail server is temporarily unavailable");
+			}
+			if (CAUSE_TIMEOUT.equals(cause)) {
+				LOGGER.warn("Mail server did not respond in time when sending email to: {}", request.emailAddress(), e);
+				throw Problem.valueOf(GATEWAY_TIMEOUT, "Mail server did not respond in time - the e-mail may or may not have been sent");
+			}
+
 			LOGGER.error("Error while sending email to: {}", request.emailAddress(), e);
 			throw Problem.builder()
 				.withStatus(INTERNAL_SERVER_ERROR)
 				.withDetail("Unable to send e-mail")
 				.build();
+		} catch (final RuntimeException e) {
+			metrics.recordFailure(CAUSE_OTHER);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param  throwable a send failure
+	 * @return           whether the failure may go away if the send is retried, without the e-mail being sent twice - a
+	 *                   4xx SMTP reply or a failure to connect
+	 */
+	static boolean isTransient(final Throwable throwable) {
+		return TRANSIENT_CAUSES.contains(getFailureCause(throwable));
+	}
+
+	/**
+	 * @param  throwable a send failure
+	 * @return           the cause of the failure, as one of a fixed set of values
+	 */
+	static String getFailureCause(final Throwable throwable) {
+		if (throwable instanceof MailAuthenticationException) {
+			return CAUSE_AUTHENTICATION;
+		}
+
+		return getCauses(throwable)
+			.map(SmtpMailSender::toFailureCause)
+			.flatMap(Optional::stream)
+			.findFirst()
+			.orElse(CAUSE_OTHER);
+	}
+
+	static Optional<String> toFailureCause(final Throwable cause) {
+		if (cause instanceof final SMTPSendFailedException e) {
+			return Optional.of(toReplyCodeCause(e.getReturnCode()));
+		}
+		if (cause instanceof final SMTPAddressFailedException e) {
+			return Optional.of(toReplyCodeCause(e.getReturnCode()));
+		}
+		return getConnectionFailureCause(cause);
+	}
+
+	static String toReplyCodeCause(final int replyCode) {
+		return replyCode >= 400 && replyCode < 500 ? CAUSE_SMTP_4XX : CAUSE_SMTP_5XX;
+	}
+
+	/**
+	 * @return the failure and its causes, including the failures of individual messages, when several are sent in one go
+	 */
+	static Stream<Throwable> getCauses(final Throwable throwable) {
+		return getThrowableList(throwable).stream()
+			.flatMap(cause -> cause instanceof final MailSendException e
+				? Stream.concat(Stream.of(cause), Stream.of(e.getMessageExceptions()).flatMap(SmtpMailSender::getCauses))
+				: Stream.of(cause));
+	}
+
+	void send(final MimeMessage mimeMessage) {
+		if (batcher == null) {
+			javaMailSender.send(mimeMessage);
+			return;
+		}
+
+		try {
+			batcher.submit(mimeMessage).join();
+		} catch (final CompletionException e) {
+			if (e.getCause() instanceof final RuntimeException cause) {
+				throw cause;
+			}
+			throw e;
+		}
+	}
+
+	void sendBatch(final List<MicroBatcher.Item<MimeMessage>> batch) {
+		try {
+			javaMailSender.send(batch.stream()
+				.map(MicroBatcher.Item::value)
+				.toArray(MimeMessage[]::new));
+		} catch (final MailSendException e) {
+			final var failedMessages = e.getFailedMessages();
+			if (failedMessages.isEmpty()) {
+				throw e;
+			}
+			// Map the failures back to the callers that submitted the failed messages
+			batch.forEach(item -> ofNullable(failedMessages.get(item.value()))
+				.ifPresent(cause -> item.fail(new MailSendException("Failed to send message", cause))));
+		}
+	}
+
+	@Override
+	public void bindTo(final MeterRegistry registry) {
+		metrics.bindTo(registry, getMunicipalityId());
+		if (attachmentCache != null) {
+			attachmentCache.bindTo(registry, Tags.of("municipality", String.valueOf(getMunicipalityId())));
+		}
+		// Expose connection pool metrics, if the underlying mail sender has any
+		if (javaMailSender instanceof final MeterBinder meterBinder) {
+			meterBinder.bindTo(registry);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if (batcher != null) {
+			batcher.close();
+		}
+		if (attachmentCache != null) {
+			attachmentCache.clear();
+		}
+		// Close pooled connections, if the underlying mail sender has any
+		if (javaMailSender instanceof final DisposableBean disposableBean) {
+			disposableBean.destroy();
 		}
 	}
 
@@ -103,41 +297,39 @@ public class SmtpMailSender extends AbstractMailSender {
 		if (StringUtils.isNotBlank(request.message())) {
 			multipart.addBodyPart((BodyPart) createTextMimePart(request.message()));
 		}
-		if (StringUtils.isNotBlank(request.htmlMessage())) {
+		if (ArrayUtils.isNotEmpty(request.htmlMessage())) {
 			multipart.addBodyPart((BodyPart) createHtmlMimePart(request.htmlMessage()));
 		}
 
-		// Handle attachments
+		// Handle attachments - the same attachment often goes out with many e-mails, so it's only encoded once if it can be
 		for (var attachment : ofNullable(request.attachments()).orElse(List.of())) {
-			if (!BASE64_VALIDATOR.isValid(attachment.content())) {
-				continue;
-			}
-			var content = Base64.getDecoder().decode(attachment.content());
-			var attachmentPart = new MimeBodyPart();
-			attachmentPart.setFileName(attachment.name());
-			attachmentPart.setDataHandler(new DataHandler(new ByteArrayDataSource(content, attachmentPart.getContentType())));
-			attachmentPart.setHeader("Content-Type", attachment.contentType());
-			// Set content-transfer-encoding header to base64, to minimize encoding issues
-			attachmentPart.setHeader("Content-Transfer-Encoding", "base64");
-			multipart.addBodyPart(attachmentPart);
+			multipart.addBodyPart(attachmentCache != null
+				? attachmentCache.get(attachment.content(), attachment.name(), attachment.contentType(), () -> createAttachmentPart(attachment))
+				: createAttachmentPart(attachment));
 		}
 
 		return multipart;
 	}
 
+	MimeBodyPart createAttachmentPart(final SendEmailRequest.Attachment attachment) throws MessagingException {
+		var attachmentPart = new MimeBodyPart();
+		attachmentPart.setFileName(attachment.name());
+		attachmentPart.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment.content(), attachmentPart.getContentType())));
+		attachmentPart.setHeader("Content-Type", attachment.contentType());
+		// Set content-transfer-encoding header to base64, to minimize encoding issues
+		attachmentPart.setHeader("Content-Transfer-Encoding", "base64");
+		return attachmentPart;
+	}
+
 	MimePart createTextMimePart(final String content) throws MessagingException {
 		var part = new MimeBodyPart();
 		part.setText(content, UTF_8.name(), TEXT_PLAIN.getSubtype());
 		return part;
 	}
 
-	MimePart createHtmlMimePart(final String content) throws MessagingException {
-		return decodeBase64(content)
-			.map(throwingFunction(decodedContent -> {
-				var part = new MimeBodyPart();
-				part.setText(decodedContent, UTF_8.name(), TEXT_HTML.getSubtype());
-				return part;
-			}))
-			.orElseThrow(() -> new MessagingException("Unable to decode BASE64"));
+	MimePart createHtmlMimePart(final byte[] content) throws MessagingException {
+		var part = new MimeBodyPart();
+		part.setText(new String(content, UTF_8), UTF_8.name(), TEXT_HTML.getSubtype());
+		return part;
 	}
 }
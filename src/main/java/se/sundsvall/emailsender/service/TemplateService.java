@@ -0,0 +1,113 @@
+package se.sundsvall.emailsender.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.MustacheException;
+import com.samskivert.mustache.Template;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.util.Map;
+import org.springframework.stereotype.Service;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.configuration.TemplateProperties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.isNull;
+import static java.util.Optional.ofNullable;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+
+/**
+ * Renders e-mail bodies from the templates registered for each municipality. Templates are compiled when they are
+ * first used, and kept compiled in a cache that is bounded by the total size of the template sources.
+ */
+@Service
+public class TemplateService {
+
+	static final String CACHE_NAME = "email.templates";
+
+	// Missing values fail the rendering, rather than silently leaving gaps in the e-mail
+	private static final Mustache.Compiler HTML_COMPILER = Mustache.compiler();
+	private static final Mustache.Compiler TEXT_COMPILER = Mustache.compiler().escapeHTML(false);
+
+	private final Map<String, Map<String, TemplateProperties.Template>> templates;
+	private final Cache<TemplateKey, CompiledTemplate> compiledTemplates;
+
+	public TemplateService(final TemplateProperties properties, final MeterRegistry meterRegistry) {
+		templates = properties.municipalities();
+		compiledTemplates = Caffeine.newBuilder()
+			.maximumWeight(properties.cacheSize().toBytes())
+			.<TemplateKey, CompiledTemplate>weigher((key, compiledTemplate) -> compiledTemplate.size())
+			.recordStats()
+			.build();
+
+		CaffeineCacheMetrics.monitor(meterRegistry, compiledTemplates, CACHE_NAME);
+	}
+
+	/**
+	 * Renders the body of the given e-mail, if it references a template. The parts of the body that the template
+	 * doesn't have are left as they are in the request.
+	 *
+	 * @param  municipalityId the municipality id
+	 * @param  request        the request
+	 * @return                the request, with the body rendered from the template
+	 */
+	public SendEmailRequest render(final String municipalityId, final SendEmailRequest request) {
+		final var template = request.template();
+		if (isNull(template)) {
+			return request;
+		}
+
+		final var compiledTemplate = getCompiledTemplate(municipalityId, template.id());
+		final var parameters = ofNullable(template.parameters()).orElse(Map.of());
+		try {
+			final var builder = SendEmailRequestBuilder.from(request).withTemplate(null);
+			if (compiledTemplate.html() != null) {
+				builder.withHtmlMessage(compiledTemplate.html().execute(parameters).getBytes(UTF_8));
+			}
+			if (compiledTemplate.text() != null) {
+				builder.withMessage(compiledTemplate.text().execute(parameters));
+			}
+			return builder.build();
+		} catch (final MustacheException e) {
+			throw Problem.valueOf(BAD_REQUEST, "Unable to render template " + template.id() + ": " + e.getMessage());
+		}
+	}
+
+	CompiledTemplate getCompiledTemplate(final String municipalityId, final String templateId) {
+		final var source = ofNullable(templates.get(municipalityId))
+			.map(municipalityTemplates -> municipalityTemplates.get(templateId))
+			.orElseThrow(() -> Problem.valueOf(BAD_REQUEST, "No template " + templateId + " exists for municipalityId " + municipalityId));
+
+		return compiledTemplates.get(new TemplateKey(municipalityId, templateId), key -> compile(templateId, source));
+	}
+
+	CompiledTemplate compile(final String templateId, final TemplateProperties.Template source) {
+		try {
+			return new CompiledTemplate(
+				source.html() != null ? HTML_COMPILER.compile(source.html()) : null,
+				source.text() != null ? TEXT_COMPILER.compile(source.text()) : null,
+				size(source.html()) + size(source.text()));
+		} catch (final MustacheException e) {
+			throw Problem.valueOf(INTERNAL_SERVER_ERROR, "Unable to compile template " + templateId + ": " + e.getMessage());
+		}
+	}
+
+	private static int size(final String source) {
+		return source != null ? source.length() : 0;
+	}
+
+	record TemplateKey(String municipalityId, String templateId) {
+	}
+
+	/**
+	 * @param html the compiled HTML body, if the template has one
+	 * @param text the compiled plain-text body, if the template has one
+	 * @param size the size of the template source, which is what the cache is bounded by
+	 */
+	record CompiledTemplate(Template html, Template text, int size) {
+	}
+}
@@ -0,0 +1,234 @@
+package se.sundsvall.emailsender.support;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static java.util.Locale.ROOT;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Caps the number of in-flight requests per mailbox, and holds back requests for a mailbox that the server has
+ * throttled. Requests beyond the cap wait in line (first come, first served) for at most {@code maxQueueTime}. When a
+ * request fails with a throttling error, later requests for the mailbox wait until the server's {@code Retry-After} has
+ * passed - or fail right away, if that is further off than they're prepared to wait.
+ * <p>
+ * Mailboxes are only kept track of while they're in use, throttled, or have been in use within {@link #IDLE_TIME} - and
+ * no more than {@link #MAX_IDLE_MAILBOXES} idle ones at a time - as the sender addresses come from the clients.
+ */
+public class MailboxLimiter {
+
+	public static final String QUEUED_METRIC_NAME = "email.mailbox.queued";
+	public static final String IN_FLIGHT_METRIC_NAME = "email.mailbox.in.flight";
+	public static final String THROTTLED_METRIC_NAME = "email.mailbox.throttled";
+
+	static final Duration IDLE_TIME = Duration.ofMinutes(10);
+	static final long MAX_IDLE_MAILBOXES = 10_000;
+
+	private final int maxConcurrent;
+	private final Duration maxQueueTime;
+	private final Function<Throwable, Optional<Duration>> retryAfterExtractor;
+	// A mailbox in use never expires, and weighs nothing, so that it's never evicted while its permits are held
+	private final Cache<String, Mailbox> mailboxes = Caffeine.newBuilder()
+		.expireAfter(new IdleExpiry())
+		.maximumWeight(MAX_IDLE_MAILBOXES)
+		.<String, Mailbox>weigher((mailbox, state) -> state.isInUse() ? 0 : 1)
+		.build();
+	private volatile Counter throttledCounter;
+
+	/**
+	 * @param maxConcurrent       the maximum number of in-flight requests per mailbox
+	 * @param maxQueueTime        the maximum time a request waits for its turn
+	 * @param retryAfterExtractor extracts the {@code Retry-After} delay from a failure, if it was a throttling error
+	 */
+	public MailboxLimiter(final int maxConcurrent, final Duration maxQueueTime, final Function<Throwable, Optional<Duration>> retryAfterExtractor) {
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueueTime = maxQueueTime;
+		this.retryAfterExtractor = retryAfterExtractor;
+	}
+
+	/**
+	 * Runs the given action when the mailbox has room for it.
+	 *
+	 * @param  mailbox                     the mailbox (address)
+	 * @param  action                      the action
+	 * @return                             the action's result
+	 * @throws MailboxUnavailableException if the request couldn't get a turn within the maximum queue time
+	 * @throws Exception                   if the action fails
+	 */
+	public <T> T execute(final String mailbox, final Callable<T> action) throws Exception {
+		final var key = mailbox.toLowerCase(ROOT);
+		final var state = enter(key);
+		try {
+			final var deadline = System.nanoTime() + maxQueueTime.toNanos();
+
+			if (!state.permits.tryAcquire(maxQueueTime.toNanos(), NANOSECONDS)) {
+				throw new MailboxUnavailableException("Too many concurrent requests for mailbox " + mailbox, null);
+			}
+			try {
+				state.awaitThrottle(mailbox, deadline);
+				try {
+					return action.call();
+				} catch (final Exception e) {
+					retryAfterExtractor.apply(e).ifPresent(retryAfter -> throttle(state, retryAfter));
+					throw e;
+				}
+			} finally {
+				state.permits.release();
+			}
+		} finally {
+			leave(key);
+		}
+	}
+
+	/**
+	 * Gets the state of a mailbox, which is kept for as long as it's in use.
+	 */
+	Mailbox enter(final String key) {
+		return mailboxes.asMap().compute(key, (ignored, state) -> {
+			final var mailbox = state != null ? state : new Mailbox(new Semaphore(maxConcurrent, true));
+			mailbox.users.incrementAndGet();
+			return mailbox;
+		});
+	}
+
+	/**
+	 * Lets go of the state of a mailbox, which then expires once it has been idle for long enough.
+	 */
+	void leave(final String key) {
+		// Updated, rather than just changed, so that its expiry and weight are recalculated
+		mailboxes.asMap().computeIfPresent(key, (ignored, state) -> {
+			state.users.decrementAndGet();
+			return state;
+		});
+	}
+
+	void throttle(final Mailbox state, final Duration retryAfter) {
+		state.throttle(retryAfter);
+		final var counter = throttledCounter;
+		if (counter != null) {
+			counter.increment();
+		}
+	}
+
+	long size() {
+		mailboxes.cleanUp();
+		return mailboxes.estimatedSize();
+	}
+
+	/**
+	 * Exposes queue, in-flight and throttle metrics, summed up over all mailboxes. They aren't tagged by mailbox, as the
+	 * mailboxes are e-mail addresses, which come from the clients.
+	 *
+	 * @param registry the registry to register the metrics with
+	 * @param tags     tags to add to all metrics
+	 */
+	public void bindTo(final MeterRegistry registry, final Iterable<Tag> tags) {
+		Gauge.builder(QUEUED_METRIC_NAME, mailboxes, cache -> cache.asMap().values().stream().mapToInt(state -> state.permits.getQueueLength()).sum())
+			.tags(tags)
+			.description("The number of requests waiting for their turn")
+			.register(registry);
+		Gauge.builder(IN_FLIGHT_METRIC_NAME, mailboxes, cache -> cache.asMap().values().stream().mapToInt(state -> maxConcurrent - state.permits.availablePermits()).sum())
+			.tags(tags)
+			.description("The number of in-flight requests")
+			.register(registry);
+		throttledCounter = Counter.builder(THROTTLED_METRIC_NAME)
+			.tags(tags)
+			.description("The number of requests that the server has throttled")
+			.register(registry);
+	}
+
+	/**
+	 * Keeps mailboxes that are in use, and idle ones for {@link #IDLE_TIME} - or for as long as they're throttled.
+	 */
+	static final class IdleExpiry implements Expiry<String, Mailbox> {
+
+		@Override
+		public long expireAfterCreate(final String key, final Mailbox state, final long currentTime) {
+			return expireAfter(state);
+		}
+
+		@Override
+		public long expireAfterUpdate(final String key, final Mailbox state, final long currentTime, final long currentDuration) {
+			return expireAfter(state);
+		}
+
+		@Override
+		public long expireAfterRead(final String key, final Mailbox state, final long currentTime, final long currentDuration) {
+			return currentDuration;
+		}
+
+		static long expireAfter(final Mailbox state) {
+			if (state.isInUse()) {
+				return Long.MAX_VALUE;
+			}
+			return Math.max(IDLE_TIME.toNanos(), state.throttledUntil.get() - System.nanoTime());
+		}
+	}
+
+	static final class Mailbox {
+
+		private final Semaphore permits;
+		private final AtomicLong throttledUntil = new AtomicLong(System.nanoTime());
+		// The number of requests that are waiting for, or holding, a permit
+		private final AtomicInteger users = new AtomicInteger();
+
+		Mailbox(final Semaphore permits) {
+			this.permits = permits;
+		}
+
+		boolean isInUse() {
+			return users.get() > 0;
+		}
+
+		void throttle(final Duration retryAfter) {
+			final var until = System.nanoTime() + retryAfter.toNanos();
+			throttledUntil.accumulateAndGet(until, (current, next) -> next - current > 0 ? next : current);
+		}
+
+		void awaitThrottle(final String mailbox, final long deadline) throws InterruptedException {
+			final var until = throttledUntil.get();
+			final var remaining = until - System.nanoTime();
+			if (remaining <= 0) {
+				return;
+			}
+			if (until - deadline > 0) {
+				throw new MailboxUnavailableException("Mailbox " + mailbox + " is throttled", Duration.ofNanos(remaining));
+			}
+			NANOSECONDS.sleep(remaining);
+		}
+	}
+
+	/**
+	 * Signals that a mailbox can't take more requests right now.
+	 */
+	public static class MailboxUnavailableException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Duration retryAfter;
+
+		public MailboxUnavailableException(final String message, final Duration retryAfter) {
+			super(message);
+			this.retryAfter = retryAfter;
+		}
+
+		/**
+		 * @return how long until the mailbox is expected to take requests again, if known
+		 */
+		public Optional<Duration> getRetryAfter() {
+			return Optional.ofNullable(retryAfter);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package se.sundsvall.emailsender.support;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Coalesces concurrently submitted items into batches, that are handed over to a handler. A batch is closed when it
+ * holds {@code maxBatchSize} items, or when {@code window} has passed since its first item arrived. With a zero window
+ * only items that are already waiting are coalesced, so batching adds no latency when the load is low.
+ * <p>
+ * The handler is responsible for failing the items in a batch that could not be processed - items that it doesn't fail
+ * are completed when it returns, and all items are failed if it throws.
+ *
+ * @param <T> the item type
+ */
+public class MicroBatcher<T> implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MicroBatcher.class);
+
+	private final BlockingQueue<Item<T>> queue = new LinkedBlockingQueue<>();
+	private final int maxBatchSize;
+	private final long windowNanos;
+	private final Consumer<List<Item<T>>> handler;
+	private final ExecutorService deliveryExecutor = Executors.newVirtualThreadPerTaskExecutor();
+	private final Thread collector;
+	private volatile boolean closed;
+
+	public MicroBatcher(final String name, final int maxBatchSize, final Duration window, final Consumer<List<Item<T>>> handler) {
+		this.maxBatchSize = maxBatchSize;
+		this.windowNanos = window.toNanos();
+		this.handler = handler;
+		collector = Thread.ofVirtual().name(name + "-collector").start(this::collect);
+	}
+
+	/**
+	 * Submits an item for batched processing.
+	 *
+	 * @param  value the item
+	 * @return       a future that is completed when the batch holding the item has been processed
+	 */
+	public CompletableFuture<Void> submit(final T value) {
+		final var item = new Item<>(value);
+		if (closed) {
+			item.fail(new IllegalStateException("Batcher is closed"));
+			return item.future();
+		}
+
+		queue.add(item);
+		// Should we have been closed, and the queue drained, in between the check and the add, nothing would ever take the
+		// item. Whoever gets to remove it from the queue - the collector, close() or us - is the one to complete it.
+		if (closed && queue.remove(item)) {
+			item.fail(new IllegalStateException("Batcher is closed"));
+		}
+		return item.future();
+	}
+
+	void collect() {
+		var running = true;
+		while (running) {
+			final var batch = new ArrayList<Item<T>>(maxBatchSize);
+			try {
+				batch.add(queue.take());
+				final var deadline = System.nanoTime() + windowNanos;
+				while (batch.size() < maxBatchSize) {
+					final var next = queue.poll(deadline - System.nanoTime(), NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (final InterruptedException e) {
+				// We're closing - process whatever is left
+				running = false;
+				queue.drainTo(batch);
+			}
+
+			for (var i = 0; i < batch.size(); i += maxBatchSize) {
+				final var chunk = List.copyOf(batch.subList(i, Math.min(i + maxBatchSize, batch.size())));
+				deliveryExecutor.execute(() -> deliver(chunk));
+			}
+		}
+	}
+
+	void deliver(final List<Item<T>> batch) {
+		try {
+			handler.accept(batch);
+		} catch (final Exception e) {
+			LOGGER.debug("Unable to process batch of {} item(s)", batch.size(), e);
+			batch.forEach(item -> item.fail(e));
+		} finally {
+			// Completing is a no-op for items that have already been failed
+			batch.forEach(item -> item.future().complete(null));
+		}
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		closed = true;
+		collector.interrupt();
+		collector.join();
+		// Fail items that were submitted while we were closing
+		final var remaining = new ArrayList<Item<T>>();
+		queue.drainTo(remaining);
+		remaining.forEach(item -> item.fail(new IllegalStateException("Batcher is closed")));
+		deliveryExecutor.close();
+	}
+
+	/**
+	 * An item in a batch.
+	 *
+	 * @param <T> the item type
+	 */
+	public static final class Item<T> {
+
+		private final T value;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		public Item(final T value) {
+			this.value = value;
+		}
+
+		public T value() {
+			return value;
+		}
+
+		public CompletableFuture<Void> future() {
+			return future;
+		}
+
+		public void fail(final Throwable throwable) {
+			future.completeExceptionally(throwable);
+		}
+	}
+}
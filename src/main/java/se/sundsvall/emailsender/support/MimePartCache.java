@@ -0,0 +1,164 @@
+package se.sundsvall.emailsender.support;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetHeaders;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeUtility;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Keeps MIME body parts encoded, so that a part that goes into many messages - such as an attachment of a notice that
+ * goes to many residents - is encoded (e.g. BASE64-encoded) once, rather than for every message. Each message gets a
+ * part of its own, which shares the encoded content, and which is written as it is when the message is sent.
+ * <p>
+ * Parts are keyed by a SHA-256 hash of their content, along with the file name and content type, and the cache is
+ * bounded by the total size of the encoded content. The hash of a content is remembered for as long as the content
+ * itself is around, so content that many messages share - such as stored attachments - is only hashed once.
+ */
+public class MimePartCache {
+
+	public static final String SIZE_METRIC_NAME = "email.mime-part-cache.size";
+	public static final String REQUESTS_METRIC_NAME = "email.mime-part-cache.requests";
+
+	private final Cache<Key, EncodedPart> parts;
+	// Keyed by identity, since the keys are arrays
+	private final Cache<byte[], String> contentHashes = Caffeine.newBuilder()
+		.weakKeys()
+		.maximumSize(10_000)
+		.build();
+
+	/**
+	 * @param maxSize the maximum total size, in bytes, of the encoded content of the cached parts
+	 */
+	public MimePartCache(final long maxSize) {
+		parts = Caffeine.newBuilder()
+			.maximumWeight(maxSize)
+			.<Key, EncodedPart>weigher((key, part) -> part.content().length)
+			.recordStats()
+			.build();
+	}
+
+	/**
+	 * Gets a part with the given content, which is created - and encoded - only if there isn't one in the cache.
+	 *
+	 * @param  content            the content of the part
+	 * @param  fileName           the file name of the part
+	 * @param  contentType        the content type of the part
+	 * @param  factory            creates the part, with all its headers, from the content
+	 * @return                    a new part, with the encoded content
+	 * @throws MessagingException if the part couldn't be created or encoded
+	 */
+	public MimeBodyPart get(final byte[] content, final String fileName, final String contentType, final PartFactory factory) throws MessagingException {
+		final var key = new Key(contentHashes.get(content, MimePartCache::hash), fileName, contentType);
+
+		final EncodedPart encodedPart;
+		try {
+			encodedPart = parts.get(key, ignored -> {
+				try {
+					return encode(factory.create());
+				} catch (final MessagingException e) {
+					throw new CompletionException(e);
+				}
+			});
+		} catch (final CompletionException e) {
+			throw (MessagingException) e.getCause();
+		}
+
+		// A part can only be in one message, but the encoded content is never changed, so it can be shared
+		final var headers = new InternetHeaders();
+		encodedPart.headerLines().forEach(headers::addHeaderLine);
+		return new MimeBodyPart(headers, encodedPart.content());
+	}
+
+	/**
+	 * Encodes the content of the given part the way it would have been encoded when written.
+	 */
+	static EncodedPart encode(final MimeBodyPart part) throws MessagingException {
+		final var content = new ByteArrayOutputStream();
+		try {
+			final var encoder = MimeUtility.encode(content, part.getEncoding());
+			part.getDataHandler().writeTo(encoder);
+			// Flushed, rather than closed, like when the part is written
+			encoder.flush();
+		} catch (final IOException e) {
+			throw new MessagingException("Unable to encode MIME part", e);
+		}
+		return new EncodedPart(Collections.list(part.getAllHeaderLines()), content.toByteArray());
+	}
+
+	static String hash(final byte[] content) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	long size() {
+		// The size is only up to date once pending maintenance has been done
+		parts.cleanUp();
+		return parts.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+	}
+
+	/**
+	 * Exposes the size of the cache, and how many parts were and weren't in it.
+	 *
+	 * @param registry the registry to register the metrics with
+	 * @param tags     tags to add to all metrics
+	 */
+	public void bindTo(final MeterRegistry registry, final Iterable<Tag> tags) {
+		Gauge.builder(SIZE_METRIC_NAME, this, MimePartCache::size)
+			.tags(tags)
+			.baseUnit("bytes")
+			.description("The total size of the encoded content of the cached MIME parts")
+			.register(registry);
+		FunctionCounter.builder(REQUESTS_METRIC_NAME, parts, cache -> cache.stats().hitCount())
+			.tags(Tags.of(tags).and("result", "hit"))
+			.description("The number of MIME parts that were, or weren't, already encoded")
+			.register(registry);
+		FunctionCounter.builder(REQUESTS_METRIC_NAME, parts, cache -> cache.stats().missCount())
+			.tags(Tags.of(tags).and("result", "miss"))
+			.description("The number of MIME parts that were, or weren't, already encoded")
+			.register(registry);
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public void clear() {
+		parts.invalidateAll();
+	}
+
+	/**
+	 * Creates a MIME body part.
+	 */
+	@FunctionalInterface
+	public interface PartFactory {
+
+		MimeBodyPart create() throws MessagingException;
+	}
+
+	record Key(String contentHash, String fileName, String contentType) {
+	}
+
+	/**
+	 * @param headerLines the header lines of the part
+	 * @param content     the encoded content of the part
+	 */
+	record EncodedPart(List<String> headerLines, byte[] content) {
+	}
+}
@@ -0,0 +1,76 @@
+package se.sundsvall.emailsender.support;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Retries actions that fail with a retryable error, backing off exponentially with full jitter between attempts. The
+ * jitter keeps callers that failed together from retrying together. No retry is made that would end past the deadline.
+ */
+public class RetryPolicy {
+
+	private final int maxAttempts;
+	private final Duration initialBackoff;
+	private final Duration maxBackoff;
+	private final Duration deadline;
+	private final Predicate<Throwable> retryable;
+
+	/**
+	 * @param maxAttempts    the maximum number of attempts, including the first one
+	 * @param initialBackoff the upper bound of the backoff before the first retry
+	 * @param maxBackoff     the upper bound of the backoff before any retry
+	 * @param deadline       the maximum total time to spend on an action
+	 * @param retryable      decides whether a failure is worth retrying
+	 */
+	public RetryPolicy(final int maxAttempts, final Duration initialBackoff, final Duration maxBackoff, final Duration deadline, final Predicate<Throwable> retryable) {
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.deadline = deadline;
+		this.retryable = retryable;
+	}
+
+	/**
+	 * Runs the given action, retrying it for as long as the policy allows.
+	 *
+	 * @param  action           the action
+	 * @param  onRetry          called with the failure, before each retry
+	 * @throws RuntimeException the last failure, if the action didn't succeed
+	 */
+	public void execute(final Runnable action, final Consumer<RuntimeException> onRetry) {
+		final var deadlineAt = System.nanoTime() + deadline.toNanos();
+
+		for (var attempt = 1;; attempt++) {
+			try {
+				action.run();
+				return;
+			} catch (final RuntimeException e) {
+				final var backoff = backoff(attempt);
+				if (attempt >= maxAttempts || !retryable.test(e) || System.nanoTime() + backoff.toNanos() - deadlineAt > 0) {
+					throw e;
+				}
+
+				onRetry.accept(e);
+				try {
+					NANOSECONDS.sleep(backoff.toNanos());
+				} catch (final InterruptedException interruptedException) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param  attempt the (1-based) attempt that just failed
+	 * @return         a random backoff between zero and the exponentially growing upper bound
+	 */
+	Duration backoff(final int attempt) {
+		final var upperBound = (long) Math.min(maxBackoff.toNanos(), initialBackoff.toNanos() * Math.pow(2, attempt - 1d));
+		return Duration.ofNanos(ThreadLocalRandom.current().nextLong(upperBound + 1));
+	}
+}
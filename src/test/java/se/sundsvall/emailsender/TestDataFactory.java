@@ -1,6 +1,5 @@
 package se.sundsvall.emailsender;
 
-import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import se.sundsvall.emailsender.api.model.AttachmentBuilder;
@@ -8,6 +7,7 @@ import se.sundsvall.emailsender.api.model.SendEmailRequest;
 import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
 import se.sundsvall.emailsender.api.model.SenderBuilder;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static se.sundsvall.emailsender.api.model.Header.AUTO_SUBMITTED;
 import static se.sundsvall.emailsender.api.model.Header.IN_REPLY_TO;
 import static se.sundsvall.emailsender.api.model.Header.MESSAGE_ID;
@@ -19,7 +19,7 @@ public final class TestDataFactory {
 
 	public static SendEmailRequest createValidSendEmailRequest() {
 		var attachment = AttachmentBuilder.create()
-			.withContent(Base64.getEncoder().encodeToString("someContent".getBytes()))
+			.withContent("someContent".getBytes(UTF_8))
 			.withName("someName")
 			.withContentType("image/jpg")
 			.build();
@@ -34,7 +34,7 @@ public final class TestDataFactory {
 			.withEmailAddress("receiver@receiver.com")
 			.withSubject("subject")
 			.withMessage("message")
-			.withHtmlMessage("htmlMessage")
+			.withHtmlMessage("htmlMessage".getBytes(UTF_8))
 			.withSender(sender)
 			.withHeaders(Map.of(
 				MESSAGE_ID.getKey(), List.of("<318d3a5c-cd45-45ef-94a0-0e3a88e47bf6@sundsvall.se>"),
@@ -56,7 +56,7 @@ public final class TestDataFactory {
 	public static SendEmailRequest.Attachment createValidAttachment() {
 		return AttachmentBuilder.create()
 			.withName("Sundsvalls Kommun")
-			.withContent("someContent")
+			.withContent("someContent".getBytes(UTF_8))
 			.withContentType("application/pdf")
 			.build();
 	}
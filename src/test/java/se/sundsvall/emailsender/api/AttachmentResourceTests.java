@@ -0,0 +1,75 @@
+package se.sundsvall.emailsender.api;
+
+import java.io.InputStream;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.webtestclient.autoconfigure.AutoConfigureWebTestClient;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import se.sundsvall.emailsender.Application;
+import se.sundsvall.emailsender.api.model.UploadAttachmentResponse;
+import se.sundsvall.emailsender.service.AttachmentStore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.APPLICATION_PDF;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA;
+
+@SpringBootTest(classes = Application.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("junit")
+@AutoConfigureWebTestClient
+class AttachmentResourceTests {
+
+	private static final String PATH = "/2281/attachments";
+	private static final String CONTENT_HASH = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+
+	@Autowired
+	private WebTestClient webTestClient;
+
+	@MockitoBean
+	private AttachmentStore mockAttachmentStore;
+
+	@Test
+	void uploadAttachment() throws Exception {
+		when(mockAttachmentStore.store(any())).thenReturn(CONTENT_HASH);
+
+		var multipartBody = new MultipartBodyBuilder();
+		multipartBody.part("file", new ByteArrayResource("hello world".getBytes(UTF_8)))
+			.filename("policy.pdf")
+			.contentType(APPLICATION_PDF);
+
+		var response = webTestClient.post().uri(PATH).contentType(MULTIPART_FORM_DATA)
+			.body(BodyInserters.fromMultipartData(multipartBody.build()))
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody(UploadAttachmentResponse.class)
+			.returnResult()
+			.getResponseBody();
+
+		assertThat(response).isNotNull();
+		assertThat(response.contentHash()).isEqualTo(CONTENT_HASH);
+		assertThat(response.size()).isEqualTo(11);
+		verify(mockAttachmentStore).store(any(InputStream.class));
+	}
+
+	@Test
+	void uploadAttachmentWithInvalidMunicipalityId() {
+		var multipartBody = new MultipartBodyBuilder();
+		multipartBody.part("file", new ByteArrayResource("hello world".getBytes(UTF_8)))
+			.filename("policy.pdf")
+			.contentType(APPLICATION_PDF);
+
+		webTestClient.post().uri("/invalid/attachments").contentType(MULTIPART_FORM_DATA)
+			.body(BodyInserters.fromMultipartData(multipartBody.build()))
+			.exchange()
+			.expectStatus().isBadRequest();
+	}
+}
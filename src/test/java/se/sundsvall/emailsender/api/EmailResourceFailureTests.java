@@ -13,22 +13,34 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.webtestclient.autoconfigure.AutoConfigureWebTestClient;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.client.MultipartBodyBuilder;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import se.sundsvall.dept44.problem.Problem;
 import se.sundsvall.dept44.problem.violations.ConstraintViolationProblem;
 import se.sundsvall.dept44.problem.violations.Violation;
 import se.sundsvall.emailsender.Application;
+import se.sundsvall.emailsender.api.model.SendEmailBatchResponse;
 import se.sundsvall.emailsender.api.model.SendEmailRequest;
 import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
 import se.sundsvall.emailsender.service.EmailService;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA;
 import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
 import static se.sundsvall.emailsender.api.model.Header.MESSAGE_ID;
 
@@ -74,7 +86,6 @@ class EmailResourceFailureTests {
 		return Stream.of(
 			Arguments.of(SendEmailRequestBuilder.from(validEmailRequest).withEmailAddress("Not a valid email").build(), "emailAddress", "must be a well-formed email address"),
 			Arguments.of(SendEmailRequestBuilder.from(validEmailRequest).withSubject("").build(), "subject", "must not be blank"),
-			Arguments.of(SendEmailRequestBuilder.from(validEmailRequest).withHtmlMessage("Not base64").build(), "htmlMessage", "not a valid BASE64-encoded string"),
 			Arguments.of(SendEmailRequestBuilder.from(validEmailRequest).withHeaders(Map.of(MESSAGE_ID.getKey(), List.of(""))).build(), "headers.Message-ID", "must start with '<', contain '@' and end with '>'"));
 	}
 
@@ -101,6 +112,123 @@ class EmailResourceFailureTests {
 		verifyNoInteractions(mockEmailService);
 	}
 
+	@ParameterizedTest
+	@MethodSource("invalidBase64RequestsProvider")
+	void sendMailWithInvalidBase64(final String request, final String badArgument) {
+		var response = webTestClient.post()
+			.uri(builder -> builder.path(PATH).build())
+			.contentType(APPLICATION_JSON)
+			.bodyValue(request)
+			.exchange()
+			.expectStatus().isBadRequest()
+			.expectBody(ConstraintViolationProblem.class)
+			.returnResult()
+			.getResponseBody();
+
+		assertThat(response).isNotNull().satisfies(r -> assertThat(r.getViolations()).extracting(Violation::field, Violation::message)
+			.containsExactly(tuple(badArgument, "not a valid BASE64-encoded string")));
+
+		verifyNoInteractions(mockEmailService);
+	}
+
+	private static Stream<Arguments> invalidBase64RequestsProvider() {
+		var request = """
+			{
+				"emailAddress": "receiver@receiver.com",
+				"subject": "subject",
+				"sender": { "name": "someName", "address": "sender@sender.com" },
+				%s
+			}
+			""";
+
+		return Stream.of(
+			Arguments.of(request.formatted("\"htmlMessage\": \"%invalid-base-64%\""), "htmlMessage"),
+			Arguments.of(request.formatted("\"attachments\": [{ \"name\": \"someName\", \"contentType\": \"text/plain\", \"content\": \"%invalid-base-64%\" }]"), "attachments[0].content"));
+	}
+
+	@Test
+	void sendMailsWithInvalidBase64() {
+		// The e-mail with the invalid attachment fails on its own, and the rest of the batch is sent
+		var body = """
+			[
+				{
+					"emailAddress": "first@receiver.com",
+					"subject": "subject",
+					"sender": { "name": "someName", "address": "sender@sender.com" },
+					"attachments": [{ "name": "someName", "contentType": "text/plain", "content": "%invalid-base-64%" }]
+				},
+				{
+					"emailAddress": "second@receiver.com",
+					"subject": "subject",
+					"sender": { "name": "someName", "address": "sender@sender.com" },
+					"attachments": [{ "name": "someName", "contentType": "text/plain", "content": "aGVsbG8gd29ybGQ=" }]
+				}
+			]
+			""";
+
+		var response = webTestClient.post()
+			.uri(builder -> builder.path(PATH + "/batch").build())
+			.contentType(APPLICATION_JSON)
+			.bodyValue(body)
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody(SendEmailBatchResponse.class)
+			.returnResult()
+			.getResponseBody();
+
+		assertThat(response).isNotNull();
+		assertThat(response.results()).containsExactly(
+			new SendEmailBatchResponse.Result(0, 400, "attachments[0].content: not a valid BASE64-encoded string"),
+			new SendEmailBatchResponse.Result(1, 200, null));
+		verify(mockEmailService).sendMail(eq(MUNICIPALITY_ID), argThat(request -> "second@receiver.com".equals(request.emailAddress())));
+		verify(mockEmailService, never()).sendMail(eq(MUNICIPALITY_ID), argThat(request -> "first@receiver.com".equals(request.emailAddress())));
+	}
+
+	@Test
+	void sendMailMultipartWithoutAttachmentFileName() {
+		var multipartBody = new MultipartBodyBuilder();
+		multipartBody.part("request", createValidSendEmailRequest(), APPLICATION_JSON);
+		multipartBody.part("attachments", new ByteArrayResource("someContent".getBytes(UTF_8)))
+			.filename("")
+			.contentType(APPLICATION_OCTET_STREAM);
+
+		var response = webTestClient.post()
+			.uri(builder -> builder.path(PATH + "/multipart").build())
+			.contentType(MULTIPART_FORM_DATA)
+			.body(BodyInserters.fromMultipartData(multipartBody.build()))
+			.exchange()
+			.expectStatus().isBadRequest()
+			.expectBody(Problem.class)
+			.returnResult()
+			.getResponseBody();
+
+		assertThat(response).isNotNull();
+		assertThat(response.getDetail()).isEqualTo("Attachment parts must have a file name");
+
+		verifyNoInteractions(mockEmailService);
+	}
+
+	@Test
+	void sendMailWithTooLongIdempotencyKey() {
+		var request = createValidSendEmailRequest();
+
+		var response = webTestClient.post().uri(PATH).contentType(APPLICATION_JSON)
+			.header("Idempotency-Key", "k".repeat(256))
+			.bodyValue(request)
+			.exchange()
+			.expectStatus().isBadRequest()
+			.expectBody(ConstraintViolationProblem.class)
+			.returnResult()
+			.getResponseBody();
+
+		assertThat(response).isNotNull();
+		assertThat(response.getViolations())
+			.extracting(Violation::field, Violation::message)
+			.containsExactly(Tuple.tuple("sendMail.idempotencyKey", "size must be between 0 and 255"));
+
+		verifyNoInteractions(mockEmailService);
+	}
+
 	@Test
 	void sendMailWithFaultyMunicipalityId() {
 		var request = createValidSendEmailRequest();
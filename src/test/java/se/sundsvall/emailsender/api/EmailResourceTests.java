@@ -1,5 +1,12 @@
 package se.sundsvall.emailsender.api;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
@@ -8,16 +15,37 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.webtestclient.autoconfigure.AutoConfigureWebTestClient;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.client.MultipartBodyBuilder;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
 import se.sundsvall.emailsender.Application;
+import se.sundsvall.emailsender.api.model.Header;
+import se.sundsvall.emailsender.api.model.SendEmailBatchResponse;
 import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.api.model.SendEmailResponse;
+import se.sundsvall.emailsender.service.AsyncEmailService;
+import se.sundsvall.emailsender.service.BatchEmailService;
 import se.sundsvall.emailsender.service.EmailService;
+import se.sundsvall.emailsender.service.MailMergeService;
+import tools.jackson.databind.json.JsonMapper;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA;
+import static org.springframework.http.MediaType.TEXT_PLAIN;
+import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
 import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
 
 @SpringBootTest(classes = Application.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
@@ -33,13 +61,30 @@ class EmailResourceTests {
 	@Autowired
 	private WebTestClient webTestClient;
 
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private JsonMapper jsonMapper;
+
 	@MockitoBean
 	private EmailService mockEmailService;
 
+	@MockitoBean
+	private AsyncEmailService mockAsyncEmailService;
+
+	@MockitoBean
+	private BatchEmailService mockBatchEmailService;
+
+	@MockitoBean
+	private MailMergeService mockMailMergeService;
+
 	@Captor
 	private ArgumentCaptor<String> municipalityIdCaptor;
 	@Captor
 	private ArgumentCaptor<SendEmailRequest> requestCaptor;
+	@Captor
+	private ArgumentCaptor<List<SendEmailRequest>> requestsCaptor;
 
 	@Test
 	void sendMail() {
@@ -55,5 +100,169 @@ class EmailResourceTests {
 
 		assertThat(municipalityIdCaptor.getValue()).isEqualTo(MUNICIPALITY_ID);
 		assertThat(requestCaptor.getValue()).usingRecursiveComparison().isEqualTo(request);
+		assertThat(meterRegistry.get(EmailResource.REQUEST_METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "endpoint", "send", "outcome", "success").timer().count()).isPositive();
+	}
+
+	@Test
+	void sendMailWithIdempotencyKey() {
+		var request = createValidSendEmailRequest();
+		var idempotencyKey = UUID.randomUUID().toString();
+
+		for (var i = 0; i < 2; i++) {
+			webTestClient.post().uri(PATH).contentType(APPLICATION_JSON)
+				.header(EmailResource.IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+				.bodyValue(request)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody().isEmpty();
+		}
+
+		// The repeated request gets the outcome of the first
+		verify(mockEmailService).sendMail(eq(MUNICIPALITY_ID), any());
+	}
+
+	@Test
+	void idempotencyKey() {
+		var messageId = "<" + UUID.randomUUID() + "@sundsvall.se>";
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withHeaders(Map.of(Header.MESSAGE_ID.getKey(), List.of(messageId)))
+			.build();
+		var resource = new EmailResource(null, null, null, null, null, null, null);
+
+		assertThat(resource.idempotencyKey("someKey", request)).isEqualTo("someKey");
+		assertThat(resource.idempotencyKey(null, request)).isEqualTo(messageId + " to " + request.emailAddress());
+		assertThat(resource.idempotencyKey(null, createValidSendEmailRequest())).isNull();
+	}
+
+	@Test
+	void sendMailWithSameMessageIdToSeveralRecipients() {
+		var messageId = "<" + UUID.randomUUID() + "@sundsvall.se>";
+		var requests = Stream.of("first@sundsvall.se", "second@sundsvall.se")
+			.map(emailAddress -> SendEmailRequestBuilder.from(createValidSendEmailRequest())
+				.withEmailAddress(emailAddress)
+				.withHeaders(Map.of(Header.MESSAGE_ID.getKey(), List.of(messageId)))
+				.build())
+			.toList();
+
+		for (var request : requests) {
+			webTestClient.post().uri(PATH).contentType(APPLICATION_JSON)
+				.bodyValue(request)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody().isEmpty();
+		}
+
+		// Each recipient gets the message, although the Message-ID is the same
+		verify(mockEmailService, times(2)).sendMail(eq(MUNICIPALITY_ID), requestCaptor.capture());
+		assertThat(requestCaptor.getAllValues()).extracting(SendEmailRequest::emailAddress)
+			.containsExactly("first@sundsvall.se", "second@sundsvall.se");
+	}
+
+	@Test
+	void sendMailMultipart() {
+		var request = createValidSendEmailRequest();
+		var multipartBody = new MultipartBodyBuilder();
+		multipartBody.part("request", request, APPLICATION_JSON);
+		multipartBody.part("attachments", new ByteArrayResource("someBinaryContent".getBytes(UTF_8)))
+			.filename("someFile.txt")
+			.contentType(TEXT_PLAIN);
+
+		webTestClient.post().uri(PATH + "/multipart").contentType(MULTIPART_FORM_DATA)
+			.body(BodyInserters.fromMultipartData(multipartBody.build()))
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody().isEmpty();
+
+		verify(mockEmailService).sendMail(municipalityIdCaptor.capture(), requestCaptor.capture());
+
+		assertThat(municipalityIdCaptor.getValue()).isEqualTo(MUNICIPALITY_ID);
+		assertThat(requestCaptor.getValue()).usingRecursiveComparison().ignoringFields("attachments").isEqualTo(request);
+		assertThat(requestCaptor.getValue().attachments()).hasSize(2).satisfies(attachments -> {
+			assertThat(attachments.getFirst()).usingRecursiveComparison().isEqualTo(request.attachments().getFirst());
+			assertThat(attachments.getLast().name()).isEqualTo("someFile.txt");
+			assertThat(attachments.getLast().contentType()).isEqualTo(TEXT_PLAIN_VALUE);
+			assertThat(attachments.getLast().content()).asString(UTF_8).isEqualTo("someBinaryContent");
+		});
+	}
+
+	@Test
+	void sendMailAsync() {
+		var request = createValidSendEmailRequest();
+
+		when(mockAsyncEmailService.sendMail(eq(MUNICIPALITY_ID), any())).thenReturn("someMessageId");
+
+		var response = webTestClient.post().uri(PATH + "/async").contentType(APPLICATION_JSON)
+			.bodyValue(request)
+			.exchange()
+			.expectStatus().isAccepted()
+			.expectBody(SendEmailResponse.class)
+			.returnResult()
+			.getResponseBody();
+
+		assertThat(response).isNotNull();
+		assertThat(response.messageId()).isEqualTo("someMessageId");
+
+		verify(mockAsyncEmailService).sendMail(municipalityIdCaptor.capture(), requestCaptor.capture());
+
+		assertThat(municipalityIdCaptor.getValue()).isEqualTo(MUNICIPALITY_ID);
+		assertThat(requestCaptor.getValue()).usingRecursiveComparison().isEqualTo(request);
+	}
+
+	@Test
+	void sendMails() {
+		var requests = List.of(createValidSendEmailRequest(), createValidSendEmailRequest());
+		var results = List.of(
+			new SendEmailBatchResponse.Result(0, 200, null),
+			new SendEmailBatchResponse.Result(1, 500, "Unable to send e-mail"));
+
+		when(mockBatchEmailService.sendMails(eq(MUNICIPALITY_ID), any())).thenReturn(results);
+
+		var response = webTestClient.post().uri(PATH + "/batch").contentType(APPLICATION_JSON)
+			.bodyValue(requests)
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody(SendEmailBatchResponse.class)
+			.returnResult()
+			.getResponseBody();
+
+		assertThat(response).isNotNull();
+		assertThat(response.results()).isEqualTo(results);
+
+		verify(mockBatchEmailService).sendMails(municipalityIdCaptor.capture(), requestsCaptor.capture());
+
+		assertThat(municipalityIdCaptor.getValue()).isEqualTo(MUNICIPALITY_ID);
+		assertThat(requestsCaptor.getValue()).usingRecursiveComparison().isEqualTo(requests);
+	}
+
+	@Test
+	void sendMailMerge() {
+		var body = """
+			{"subject": "subject", "message": "message", "sender": {"name": "someName", "address": "sender@sundsvall.se"}}
+			{"emailAddress": "first@sundsvall.se"}
+			{"emailAddress": "second@sundsvall.se"}
+			""";
+
+		doAnswer(invocation -> {
+			final Consumer<SendEmailBatchResponse.Result> results = invocation.getArgument(2);
+			assertThat(invocation.<InputStream>getArgument(1)).hasContent(body);
+			results.accept(new SendEmailBatchResponse.Result(1, 200, null));
+			results.accept(new SendEmailBatchResponse.Result(0, 502, "Upstream failure"));
+			return null;
+		}).when(mockMailMergeService).sendMails(eq(MUNICIPALITY_ID), any(), any());
+
+		var response = webTestClient.post().uri(PATH + "/merge").contentType(APPLICATION_NDJSON)
+			.bodyValue(body)
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentType(APPLICATION_NDJSON)
+			.expectBody(String.class)
+			.returnResult()
+			.getResponseBody();
+
+		assertThat(response).isNotNull();
+		assertThat(response.lines().map(line -> jsonMapper.readValue(line, SendEmailBatchResponse.Result.class))).containsExactly(
+			new SendEmailBatchResponse.Result(1, 200, null),
+			new SendEmailBatchResponse.Result(0, 502, "Upstream failure"));
+		assertThat(meterRegistry.get(EmailResource.REQUEST_METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "endpoint", "merge", "outcome", "success").timer().count()).isPositive();
 	}
 }
@@ -0,0 +1,68 @@
+package se.sundsvall.emailsender.api.deserializer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import tools.jackson.databind.json.JsonMapper;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Base64DeserializerTests {
+
+	private final JsonMapper jsonMapper = JsonMapper.builder().build();
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+		"aGVsbG8gd29ybGQ=", "aGVsbG8gd29ybGQ"
+	})
+	void deserialize(final String content) {
+		var attachment = jsonMapper.readValue("{\"content\": \"%s\"}".formatted(content), SendEmailRequest.Attachment.class);
+
+		assertThat(attachment.content()).asString(UTF_8).isEqualTo("hello world");
+	}
+
+	@Test
+	void deserializeNull() {
+		var request = jsonMapper.readValue("{\"htmlMessage\": null}", SendEmailRequest.class);
+
+		assertThat(request.htmlMessage()).isNull();
+	}
+
+	@Test
+	void deserializeInvalidBase64() {
+		var request = jsonMapper.readValue("{\"htmlMessage\": \"%invalid-base-64%\", \"subject\": \"someSubject\"}", SendEmailRequest.class);
+
+		// Left for validation to report, and the rest of the body is still read
+		assertThat(Base64Deserializer.isInvalid(request.htmlMessage())).isTrue();
+		assertThat(request.subject()).isEqualTo("someSubject");
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+		"{\"subject\": \"someOtherSubject\"}", "[\"aGVsbG8gd29ybGQ=\", {\"subject\": \"someOtherSubject\"}]", "42"
+	})
+	void deserializeNonString(final String htmlMessage) {
+		var request = jsonMapper.readValue("{\"htmlMessage\": %s, \"subject\": \"someSubject\"}".formatted(htmlMessage), SendEmailRequest.class);
+
+		// Nothing inside the value is read as part of the request itself
+		assertThat(Base64Deserializer.isInvalid(request.htmlMessage())).isTrue();
+		assertThat(request.subject()).isEqualTo("someSubject");
+	}
+
+	@Test
+	void deserializeNonStringBeforeOtherFields() {
+		var request = jsonMapper.readValue("{\"htmlMessage\": {\"subject\": \"someOtherSubject\"}}", SendEmailRequest.class);
+
+		assertThat(Base64Deserializer.isInvalid(request.htmlMessage())).isTrue();
+		assertThat(request.subject()).isNull();
+	}
+
+	@Test
+	void isInvalid() {
+		assertThat(Base64Deserializer.isInvalid(Base64Deserializer.INVALID)).isTrue();
+		assertThat(Base64Deserializer.isInvalid(new byte[0])).isFalse();
+		assertThat(Base64Deserializer.isInvalid(null)).isFalse();
+	}
+}
@@ -22,4 +22,14 @@ class HeaderTests {
 		assertThat(MESSAGE_ID.getKey()).isEqualTo("Message-ID");
 		assertThat(AUTO_SUBMITTED.getKey()).isEqualTo("Auto-Submitted");
 	}
+
+	@Test
+	void fromString() {
+		assertThat(Header.fromString("Message-ID")).isEqualTo(MESSAGE_ID);
+		assertThat(Header.fromString("MESSAGE_ID")).isEqualTo(MESSAGE_ID);
+		assertThat(Header.fromString("Auto-Submitted")).isEqualTo(AUTO_SUBMITTED);
+		assertThat(Header.fromString("message-id")).isNull();
+		assertThat(Header.fromString("SomeUnknownHeader")).isNull();
+		assertThat(Header.fromString(null)).isNull();
+	}
 }
@@ -1,10 +1,13 @@
 package se.sundsvall.emailsender.api.model;
 
 import java.util.List;
+import java.util.Map;
 import org.junit.jupiter.api.Test;
 import org.springframework.test.context.ActiveProfiles;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 
 @ActiveProfiles("junit")
 class SendEmailRequestTests {
@@ -15,7 +18,11 @@ class SendEmailRequestTests {
 			.withEmailAddress("someEmailAddress")
 			.withSubject("someSubject")
 			.withMessage("someMessage")
-			.withHtmlMessage("someHtmlMessage")
+			.withHtmlMessage("someHtmlMessage".getBytes(UTF_8))
+			.withTemplate(TemplateBuilder.create()
+				.withId("someTemplateId")
+				.withParameters(Map.of("someKey", "someValue"))
+				.build())
 			.withSender(SenderBuilder.create()
 				.withAddress("someAddress")
 				.withName("someName")
@@ -24,7 +31,7 @@ class SendEmailRequestTests {
 			.withAttachments(List.of(
 				AttachmentBuilder.create()
 					.withName("someName")
-					.withContent("someContent")
+					.withContent("someContent".getBytes(UTF_8))
 					.withContentType("someContentType")
 					.build()))
 			.build();
@@ -33,7 +40,11 @@ class SendEmailRequestTests {
 		assertThat(request.emailAddress()).isEqualTo("someEmailAddress");
 		assertThat(request.subject()).isEqualTo("someSubject");
 		assertThat(request.message()).isEqualTo("someMessage");
-		assertThat(request.htmlMessage()).isEqualTo("someHtmlMessage");
+		assertThat(request.htmlMessage()).asString(UTF_8).isEqualTo("someHtmlMessage");
+		assertThat(request.template()).satisfies(template -> {
+			assertThat(template.id()).isEqualTo("someTemplateId");
+			assertThat(template.parameters()).containsExactly(entry("someKey", "someValue"));
+		});
 		assertThat(request.sender()).satisfies(sender -> {
 			assertThat(sender.name()).isEqualTo("someName");
 			assertThat(sender.address()).isEqualTo("someAddress");
@@ -42,7 +53,7 @@ class SendEmailRequestTests {
 		assertThat(request.attachments()).satisfies(attachments -> {
 			assertThat(attachments).hasSize(1);
 			assertThat(attachments.getFirst().name()).isEqualTo("someName");
-			assertThat(attachments.getFirst().content()).isEqualTo("someContent");
+			assertThat(attachments.getFirst().content()).asString(UTF_8).isEqualTo("someContent");
 			assertThat(attachments.getFirst().contentType()).isEqualTo("someContentType");
 		});
 	}
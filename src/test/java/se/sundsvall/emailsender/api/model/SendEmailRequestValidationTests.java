@@ -17,6 +17,8 @@ import static se.sundsvall.emailsender.TestDataFactory.createValidSender;
 
 class SendEmailRequestValidationTests {
 
+	private static final String CONTENT_HASH = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+
 	private Validator validator;
 
 	@BeforeEach
@@ -32,6 +34,18 @@ class SendEmailRequestValidationTests {
 		assertThat(constraintViolations).isEmpty();
 	}
 
+	@Test
+	void validationWithAttachmentReference() {
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withAttachments(List.of(AttachmentBuilder.from(createValidAttachment())
+				.withContent(null)
+				.withContentHash(CONTENT_HASH)
+				.build()))
+			.build();
+
+		assertThat(validator.validate(request)).isEmpty();
+	}
+
 	@ParameterizedTest
 	@MethodSource("getSendEmailRequestValidationArguments")
 	void testSendEmailRequestValidation(final SendEmailRequest request, final String constraintField, final String constraintMessage) {
@@ -77,7 +91,14 @@ class SendEmailRequestValidationTests {
 					.withAddress("not-an-email-address")
 					.build())
 				.build(), "sender.address", "must be a well-formed email address"),
-			Arguments.of(SendEmailRequestBuilder.from(validEmailRequest).withSender(null).build(), "sender", "must not be null"));
+			Arguments.of(SendEmailRequestBuilder.from(validEmailRequest).withSender(null).build(), "sender", "must not be null"),
+
+			// Validate template id.
+			Arguments.of(SendEmailRequestBuilder.from(validEmailRequest)
+				.withTemplate(TemplateBuilder.create()
+					.withId(" ")
+					.build())
+				.build(), "template.id", "must not be blank"));
 	}
 
 	private static Stream<Arguments> getSendEmailRequestSenderValidationArguments() {
@@ -102,7 +123,12 @@ class SendEmailRequestValidationTests {
 
 		return Stream.of(
 			// Validate attachment content
-			Arguments.of(AttachmentBuilder.from(validAttachment).withContent("Not Valid Base64").build(), "content", "not a valid BASE64-encoded string"),
+			Arguments.of(AttachmentBuilder.from(validAttachment).withContent(null).build(), "content", "either content or contentHash must be given, but not both"),
+			Arguments.of(AttachmentBuilder.from(validAttachment).withContentHash(CONTENT_HASH).build(), "content", "either content or contentHash must be given, but not both"),
+
+			// Validate attachment content hash
+			Arguments.of(AttachmentBuilder.from(validAttachment).withContent(null).withContentHash("not-a-hash").build(), "contentHash", "must be a lowercase hex-encoded SHA-256 hash"),
+			Arguments.of(AttachmentBuilder.from(validAttachment).withContent(null).withContentHash(CONTENT_HASH.toUpperCase()).build(), "contentHash", "must be a lowercase hex-encoded SHA-256 hash"),
 
 			// Validate attachment contentType
 			Arguments.of(AttachmentBuilder.from(validAttachment).withContentType(null).build(), "contentType", "must not be blank"),
@@ -0,0 +1,38 @@
+package se.sundsvall.emailsender.api.validation;
+
+import jakarta.validation.ConstraintValidatorContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import se.sundsvall.emailsender.api.deserializer.Base64Deserializer;
+import se.sundsvall.emailsender.api.validation.impl.ValidBase64ConstraintValidator;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+@ExtendWith(MockitoExtension.class)
+class ValidBase64ConstraintValidatorTests {
+
+	@Mock
+	private ConstraintValidatorContext mockContext;
+
+	private final ValidBase64ConstraintValidator validator = new ValidBase64ConstraintValidator();
+
+	@Test
+	void validContent() {
+		assertThat(validator.isValid("hello world".getBytes(UTF_8), mockContext)).isTrue();
+		assertThat(validator.isValid(new byte[0], mockContext)).isTrue();
+		assertThat(validator.isValid(null, mockContext)).isTrue();
+
+		verifyNoInteractions(mockContext);
+	}
+
+	@Test
+	void invalidContent() {
+		assertThat(validator.isValid(Base64Deserializer.INVALID, mockContext)).isFalse();
+
+		verifyNoInteractions(mockContext);
+	}
+}
@@ -1,8 +1,10 @@
 package se.sundsvall.emailsender.api.validation;
 
 import jakarta.validation.ConstraintValidatorContext;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.IntStream;
 import org.hibernate.validator.constraintvalidation.HibernateConstraintValidatorContext;
 import org.hibernate.validator.constraintvalidation.HibernateConstraintViolationBuilder;
 import org.junit.jupiter.api.Test;
@@ -78,6 +80,25 @@ class ValidHeadersConstraintValidatorTests {
 		verifyNoMoreInteractions(mockContext);
 	}
 
+	@Test
+	void headerMapWithLongReferencesChain() {
+		when(mockContext.unwrap(HibernateConstraintValidatorContext.class)).thenReturn(mockContext);
+		when(mockContext.buildConstraintViolationWithTemplate(any())).thenReturn(mockViolationBuilder);
+		when(mockViolationBuilder.addPropertyNode(any())).thenReturn(mockNodeBuilderContext);
+		when(mockNodeBuilderContext.addConstraintViolation()).thenReturn(mockContext);
+
+		var references = new ArrayList<String>();
+		IntStream.range(0, 100).forEach(i -> references.add("<reference-" + i + "@sundsvall.se>"));
+		references.add("invalid-references-value");
+
+		assertThat(validator.isValid(Map.of(Header.REFERENCES.getKey(), references), mockContext)).isFalse();
+
+		verify(mockContext).unwrap(HibernateConstraintValidatorContext.class);
+		verify(mockContext).disableDefaultConstraintViolation();
+		verify(mockContext).buildConstraintViolationWithTemplate(Header.REFERENCES.getMessage());
+		verifyNoMoreInteractions(mockContext);
+	}
+
 	@Test
 	void headerMapWithInvalidHeaderNames() {
 		when(mockContext.unwrap(HibernateConstraintValidatorContext.class)).thenReturn(mockContext);
@@ -93,6 +114,8 @@ class ValidHeadersConstraintValidatorTests {
 
 		verify(mockContext).unwrap(HibernateConstraintValidatorContext.class);
 		verify(mockContext).disableDefaultConstraintViolation();
+		verify(mockContext).buildConstraintViolationWithTemplate("SomeUnknownHeader is not a valid header. Allowed headers are: "
+			+ "[In-Reply-To/IN_REPLY_TO, References/REFERENCES, Message-ID/MESSAGE_ID, Auto-Submitted/AUTO_SUBMITTED]");
 		verify(mockContext, times(2)).buildConstraintViolationWithTemplate(any());
 		verifyNoMoreInteractions(mockContext);
 	}
@@ -0,0 +1,229 @@
+package se.sundsvall.emailsender.configuration;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.MailSendException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatNoException;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LoadBalancedJavaMailSenderTests {
+
+	private static final String MUNICIPALITY_ID = "1234";
+
+	private static final MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing BALANCING = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing(
+		2, Duration.ofMillis(50), Duration.ofSeconds(1), Duration.ofSeconds(10));
+
+	@Test
+	void sendAvoidsSlowEndpoint() {
+		final var slow = endpoint("slowHost");
+		final var fast = endpoint("fastHost");
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(slow, fast), BALANCING);
+		mailSender.getEndpoints().getFirst().observe(SECONDS.toNanos(1));
+
+		for (var i = 0; i < 100; i++) {
+			mailSender.send(mailSender.createMimeMessage());
+		}
+
+		verify(slow, never()).send(any(MimeMessage[].class));
+		verify(fast, times(100)).send(any(MimeMessage[].class));
+	}
+
+	@Test
+	void sendEjectsEndpointThatFailsToConnectAndProbesItBackIn() throws Exception {
+		final var failing = endpoint("failingHost");
+		doThrow(connectionFailure()).when(failing).send(any(MimeMessage[].class));
+		doThrow(new MessagingException("Connection refused")).doNothing().when(failing).testConnection();
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(failing), BALANCING);
+		final var endpoint = mailSender.getEndpoints().getFirst();
+
+		assertThatExceptionOfType(MailSendException.class).isThrownBy(() -> mailSender.send(mailSender.createMimeMessage()));
+		assertThat(endpoint.isEjected()).isFalse();
+		assertThatExceptionOfType(MailSendException.class).isThrownBy(() -> mailSender.send(mailSender.createMimeMessage()));
+		assertThat(endpoint.isEjected()).isTrue();
+
+		// The first probe fails, and the second one reinstates the endpoint
+		final var deadline = System.nanoTime() + SECONDS.toNanos(5);
+		while (endpoint.isEjected() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(endpoint.isEjected()).isFalse();
+		verify(failing, times(2)).testConnection();
+	}
+
+	@Test
+	void sendGivesReinstatedEndpointSendsAgain() throws Exception {
+		final var reinstated = endpoint("reinstatedHost");
+		final var other = endpoint("otherHost");
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(reinstated, other), BALANCING);
+		final var endpoint = mailSender.getEndpoints().getFirst();
+		// It was slow, and then failed
+		endpoint.observe(SECONDS.toNanos(10));
+		mailSender.eject(endpoint);
+
+		final var deadline = System.nanoTime() + SECONDS.toNanos(5);
+		while (endpoint.isEjected() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(endpoint.isEjected()).isFalse();
+
+		for (var i = 0; i < 100; i++) {
+			mailSender.send(mailSender.createMimeMessage());
+		}
+
+		verify(reinstated, atLeastOnce()).send(any(MimeMessage[].class));
+	}
+
+	@Test
+	void sendDoesNotCountLatencyOfFailedSends() {
+		final var failing = endpoint("failingHost");
+		doThrow(connectionFailure()).when(failing).send(any(MimeMessage[].class));
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(failing), BALANCING);
+
+		assertThatExceptionOfType(MailSendException.class).isThrownBy(() -> mailSender.send(mailSender.createMimeMessage()));
+
+		assertThat(mailSender.getEndpoints().getFirst().latency()).isZero();
+	}
+
+	@Test
+	void latencyDecaysWhileNothingIsObserved() throws Exception {
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(endpoint("someHost")), new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing(
+			2, Duration.ofMillis(50), Duration.ofSeconds(1), Duration.ofMillis(20)));
+		final var endpoint = mailSender.getEndpoints().getFirst();
+		endpoint.observe(SECONDS.toNanos(1));
+
+		Thread.sleep(100);
+
+		// At least five decay times have passed
+		assertThat(endpoint.latency()).isLessThan(SECONDS.toNanos(1) * Math.exp(-5) * 1.01);
+	}
+
+	@Test
+	void sendSkipsEjectedEndpoint() {
+		final var ejected = endpoint("ejectedHost");
+		final var healthy = endpoint("healthyHost");
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(ejected, healthy), new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing(
+			2, Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ofSeconds(10)));
+		mailSender.eject(mailSender.getEndpoints().getFirst());
+
+		for (var i = 0; i < 10; i++) {
+			mailSender.send(mailSender.createMimeMessage());
+		}
+
+		verify(ejected, never()).send(any(MimeMessage[].class));
+		verify(healthy, times(10)).send(any(MimeMessage[].class));
+		mailSender.destroy();
+	}
+
+	@Test
+	void sendDoesNotEjectEndpointWhenMessageIsRejected() {
+		final var rejecting = endpoint("someHost");
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(rejecting), BALANCING);
+
+		for (var i = 0; i < 3; i++) {
+			final var mimeMessage = mailSender.createMimeMessage();
+			doThrow(new MailSendException(Map.of(mimeMessage, new MessagingException("550 Mailbox unavailable")))).when(rejecting).send(any(MimeMessage[].class));
+
+			assertThatExceptionOfType(MailSendException.class).isThrownBy(() -> mailSender.send(mimeMessage));
+		}
+
+		assertThat(mailSender.getEndpoints().getFirst().isEjected()).isFalse();
+	}
+
+	@Test
+	void testConnectionEjectsEndpointThatCannotBeConnectedTo() throws MessagingException {
+		final var unreachable = endpoint("unreachableHost");
+		doThrow(new MessagingException("Connection refused")).when(unreachable).testConnection();
+		final var reachable = endpoint("reachableHost");
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(unreachable, reachable), new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing(
+			2, Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ofSeconds(10)));
+
+		assertThatNoException().isThrownBy(mailSender::testConnection);
+
+		assertThat(mailSender.getEndpoints()).extracting(LoadBalancedJavaMailSender.Endpoint::isEjected).containsExactly(true, false);
+		verify(reachable).testConnection();
+		mailSender.destroy();
+	}
+
+	@Test
+	void testConnectionWhenNoEndpointCanBeConnectedTo() throws MessagingException {
+		final var unreachable = endpoint("unreachableHost");
+		doThrow(new MessagingException("Connection refused")).when(unreachable).testConnection();
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(unreachable), BALANCING);
+
+		assertThatExceptionOfType(MessagingException.class).isThrownBy(mailSender::testConnection);
+
+		// Sends still have somewhere to go
+		assertThat(mailSender.getEndpoints().getFirst().isEjected()).isFalse();
+	}
+
+	@Test
+	void isEndpointFailure() {
+		assertThat(LoadBalancedJavaMailSender.isEndpointFailure(connectionFailure())).isTrue();
+		assertThat(LoadBalancedJavaMailSender.isEndpointFailure(new MailSendException(Map.of(new Object(), new MessagingException("Read timed out",
+			new SocketTimeoutException()))))).isTrue();
+		assertThat(LoadBalancedJavaMailSender.isEndpointFailure(new MailSendException(Map.of(new Object(), new MessagingException("550 Mailbox unavailable"))))).isFalse();
+	}
+
+	@Test
+	void remap() {
+		final var mimeMessage = mock(MimeMessage.class);
+		final var originalMessage = new Object();
+		final var cause = new MessagingException("550 Mailbox unavailable");
+
+		assertThat(LoadBalancedJavaMailSender.remap(new MailSendException(Map.of(mimeMessage, cause)), new MimeMessage[] {
+			mimeMessage
+		}, new Object[] {
+			originalMessage
+		}).getFailedMessages()).containsExactly(Map.entry(originalMessage, cause));
+	}
+
+	@Test
+	void bindToAndDestroy() {
+		final var someEndpoint = endpoint("someHost");
+		final var mailSender = new LoadBalancedJavaMailSender(MUNICIPALITY_ID, List.of(someEndpoint), BALANCING);
+		final var meterRegistry = new SimpleMeterRegistry();
+
+		mailSender.bindTo(meterRegistry);
+		mailSender.getEndpoints().getFirst().observe(SECONDS.toNanos(2));
+
+		assertThat(meterRegistry.get(LoadBalancedJavaMailSender.LATENCY_METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "endpoint", "someHost:25").gauge().value()).isCloseTo(2, within(0.01));
+		assertThat(meterRegistry.get(LoadBalancedJavaMailSender.OUTSTANDING_METRIC_NAME).gauge().value()).isZero();
+		assertThat(meterRegistry.get(LoadBalancedJavaMailSender.EJECTED_METRIC_NAME).gauge().value()).isZero();
+		assertThat(meterRegistry.get(LoadBalancedJavaMailSender.EJECTIONS_METRIC_NAME).functionCounter().count()).isZero();
+		verify(someEndpoint).bindTo(meterRegistry);
+
+		mailSender.destroy();
+
+		verify(someEndpoint).destroy();
+	}
+
+	private static PooledJavaMailSender endpoint(final String host) {
+		final var endpoint = mock(PooledJavaMailSender.class);
+		when(endpoint.getHost()).thenReturn(host);
+		when(endpoint.getPort()).thenReturn(25);
+		return endpoint;
+	}
+
+	private static MailSendException connectionFailure() {
+		return new MailSendException("Mail server connection failed", new MessagingException("Connection refused", new ConnectException()), Map.of());
+	}
+}
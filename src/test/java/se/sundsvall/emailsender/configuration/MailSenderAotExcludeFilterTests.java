@@ -0,0 +1,28 @@
+package se.sundsvall.emailsender.configuration;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RegisteredBean;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import se.sundsvall.emailsender.service.MicrosoftGraphMailSender;
+import se.sundsvall.emailsender.service.SmtpMailSender;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailSenderAotExcludeFilterTests {
+
+	private final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+	private final MailSenderAotExcludeFilter filter = new MailSenderAotExcludeFilter();
+
+	private RegisteredBean register(final String beanName, final Class<?> beanClass) {
+		beanFactory.registerBeanDefinition(beanName, new RootBeanDefinition(beanClass));
+		return RegisteredBean.of(beanFactory, beanName);
+	}
+
+	@Test
+	void isExcludedFromAotProcessing() {
+		assertThat(filter.isExcludedFromAotProcessing(register("smtp-mail-sender-1234", SmtpMailSender.class))).isTrue();
+		assertThat(filter.isExcludedFromAotProcessing(register("ms-graph-mail-sender-5678", MicrosoftGraphMailSender.class))).isTrue();
+		assertThat(filter.isExcludedFromAotProcessing(register("mailSenderRegistryProperties", MailSenderRegistryProperties.class))).isFalse();
+	}
+}
@@ -1,16 +1,28 @@
 package se.sundsvall.emailsender.configuration;
 
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.BeanCreationException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.core.env.MapPropertySource;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.util.unit.DataSize;
 import se.sundsvall.emailsender.Application;
 import se.sundsvall.emailsender.service.MailSender;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
 @ActiveProfiles("junit")
 @SpringBootTest(classes = Application.class)
@@ -32,6 +44,139 @@ class MailSenderBeanFactoryPostProcessorTests {
 		assertThat(mailSenders).hasSize(2);
 	}
 
+	@Test
+	void eachMailSenderHasAWarmUp() {
+		assertThat(mailSenderBeanFactoryPostProcessor.getWarmUps()).containsOnlyKeys("1234", "5678");
+	}
+
+	@Test
+	void mergeJavaMailProperties() {
+		final var defaultProperties = new Properties();
+		defaultProperties.put("mail.smtp.auth", "false");
+		defaultProperties.put("mail.mime.charset", "UTF-8");
+		final var properties = new Properties();
+		properties.put("mail.smtp.auth", "true");
+		final var basic = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Basic("someHost", 25, null, null, null, properties, null, null, null, null);
+
+		assertThat(mailSenderBeanFactoryPostProcessor.mergeJavaMailProperties(defaultProperties, basic))
+			.containsOnly(Map.entry("mail.smtp.auth", "true"), Map.entry("mail.mime.charset", "UTF-8"));
+	}
+
+	@Test
+	void validateWhenNotExactlyOneOfBasicAndAzureIsSet() {
+		final var properties = new MailSenderBeanFactoryPostProcessor.MailSenderProperties(null, null);
+
+		assertThatExceptionOfType(BeanCreationException.class)
+			.isThrownBy(() -> mailSenderBeanFactoryPostProcessor.validate(properties))
+			.withMessage("Exactly one of SMTP 'basic' or 'azure' properties must be set");
+	}
+
+	@Test
+	void validateWhenNotExactlyOneOfHostAndHostsIsSet() {
+		final var hosts = List.of(new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Host("someOtherHost", 25));
+		final var bothSet = new MailSenderBeanFactoryPostProcessor.MailSenderProperties(
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Basic("someHost", 25, hosts, null, null, null, null, null, null, null), null);
+		final var noneSet = new MailSenderBeanFactoryPostProcessor.MailSenderProperties(
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Basic(null, 25, List.of(), null, null, null, null, null, null, null), null);
+
+		assertThatExceptionOfType(BeanCreationException.class)
+			.isThrownBy(() -> mailSenderBeanFactoryPostProcessor.validate(bothSet))
+			.withMessage("Exactly one of SMTP 'host' or 'hosts' properties must be set");
+		assertThatExceptionOfType(BeanCreationException.class)
+			.isThrownBy(() -> mailSenderBeanFactoryPostProcessor.validate(noneSet))
+			.withMessage("Exactly one of SMTP 'host' or 'hosts' properties must be set");
+	}
+
+	@Test
+	void createJavaMailSenderWithSeveralHosts() {
+		final var hosts = List.of(new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Host("someHost", 25),
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Host("someOtherHost", 2525));
+		final var basic = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Basic(null, 25, hosts, null, null, null,
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Pool(4, 100, Duration.ofMinutes(1), Duration.ofSeconds(30)),
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Batch(20, Duration.ZERO),
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing(3, Duration.ofSeconds(10), Duration.ofMinutes(2), Duration.ofSeconds(10)),
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.AttachmentCache(DataSize.ofMegabytes(64)));
+
+		assertThat(mailSenderBeanFactoryPostProcessor.createJavaMailSender("1234", basic, new Properties()))
+			.isInstanceOfSatisfying(LoadBalancedJavaMailSender.class, javaMailSender -> assertThat(javaMailSender.getEndpoints())
+				.extracting(LoadBalancedJavaMailSender.Endpoint::name)
+				.containsExactly("someHost:25", "someOtherHost:2525"));
+	}
+
+	@Test
+	void bindMailSenderProperties() {
+		assertThat(mailSenderBeanFactoryPostProcessor.bindMailSenderProperties()).containsOnlyKeys("1234", "5678");
+		assertThat(mailSenderBeanFactoryPostProcessor.bindMailSenderProperties()).isEqualTo(mailSenderBeanFactoryPostProcessor.getMailSenderProperties());
+	}
+
+	@Test
+	void loadConfigLocationReadsTheFileAnew(@TempDir final Path directory) throws Exception {
+		final var file = directory.resolve("mail-senders.yml");
+		Files.writeString(file, """
+			integration:
+			  email:
+			    instances:
+			      1234:
+			        basic:
+			          host: someHost
+			          port: 25
+			""");
+
+		try (final var applicationContext = new GenericApplicationContext()) {
+			applicationContext.registerBean(Validator.class, () -> Validation.buildDefaultValidatorFactory().getValidator());
+			applicationContext.refresh();
+			applicationContext.getEnvironment().getPropertySources()
+				.addLast(new MapPropertySource("someSource", Map.of(MailSenderBeanFactoryPostProcessor.CONFIG_LOCATION, file.toUri().toString())));
+			final var factory = new MailSenderBeanFactoryPostProcessor();
+			factory.setApplicationContext(applicationContext);
+			factory.afterPropertiesSet();
+
+			assertThat(factory.getMailSenderProperties()).containsOnlyKeys("1234");
+			assertThat(factory.getMailSenderProperties().get("1234").basic().host()).isEqualTo("someHost");
+
+			// E.g. a mounted ConfigMap that has been updated
+			Files.writeString(file, """
+				integration:
+				  email:
+				    instances:
+				      1234:
+				        basic:
+				          host: someOtherHost
+				          port: 25
+				      5678:
+				        azure:
+				          tenant-id: someTenantId
+				          client-id: someClientId
+				          client-secret: someClientSecret
+				""");
+			factory.loadConfigLocation();
+
+			final var mailSenderProperties = factory.bindMailSenderProperties();
+			assertThat(mailSenderProperties).containsOnlyKeys("1234", "5678");
+			assertThat(mailSenderProperties.get("1234").basic().host()).isEqualTo("someOtherHost");
+			// The mail senders keep the properties they were created with until they are reloaded
+			assertThat(factory.getMailSenderProperties().get("1234").basic().host()).isEqualTo("someHost");
+		}
+	}
+
+	@Test
+	void loadConfigLocationWhenFileDoesNotExist(@TempDir final Path directory) {
+		final var location = directory.resolve("mail-senders.yml").toUri().toString();
+
+		try (final var applicationContext = new GenericApplicationContext()) {
+			applicationContext.registerBean(Validator.class, () -> Validation.buildDefaultValidatorFactory().getValidator());
+			applicationContext.refresh();
+			applicationContext.getEnvironment().getPropertySources()
+				.addLast(new MapPropertySource("someSource", Map.of(MailSenderBeanFactoryPostProcessor.CONFIG_LOCATION, location)));
+			final var factory = new MailSenderBeanFactoryPostProcessor();
+			factory.setApplicationContext(applicationContext);
+
+			assertThatExceptionOfType(IllegalStateException.class)
+				.isThrownBy(factory::loadConfigLocation)
+				.withMessage("No mail sender configuration exists at " + location);
+		}
+	}
+
 	@Nested
 	class MailSenderPropertiesTest {
 
@@ -39,12 +184,22 @@ class MailSenderBeanFactoryPostProcessorTests {
 		void creationAndAccessors() {
 			final var properties = new Properties();
 			properties.put("someKey", "someValue");
-			final var basic = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Basic("someHost", 1234, "someUsername", "somePassword", properties);
-			final var azure = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Azure("someTenantId", "someClientId", "someClientSecret", "someScope");
+			final var pool = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Pool(2, 50, Duration.ofSeconds(30), Duration.ofSeconds(10));
+			final var batch = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Batch(10, Duration.ofMillis(5));
+			final var balancing = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing(2, Duration.ofSeconds(5), Duration.ofMinutes(1), Duration.ofSeconds(10));
+			final var attachmentCache = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.AttachmentCache(DataSize.ofMegabytes(16));
+			final var basic = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Basic("someHost", 1234, null, "someUsername", "somePassword", properties, pool, batch, balancing,
+				attachmentCache);
+			final var throttle = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Throttle(2, Duration.ofSeconds(10));
+			final var azure = new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Azure("someTenantId", "someClientId", "someClientSecret", "someScope", batch, throttle);
 
 			final var smtpServerProperties = new MailSenderBeanFactoryPostProcessor.MailSenderProperties(basic, azure);
 
 			assertThat(smtpServerProperties.basic()).isEqualTo(basic);
+			assertThat(smtpServerProperties.basic().pool()).isEqualTo(pool);
+			assertThat(smtpServerProperties.basic().batch()).isEqualTo(batch);
+			assertThat(smtpServerProperties.basic().balancing()).isEqualTo(balancing);
+			assertThat(smtpServerProperties.basic().attachmentCache()).isEqualTo(attachmentCache);
 			assertThat(smtpServerProperties.azure()).isEqualTo(azure);
 		}
 	}
@@ -0,0 +1,153 @@
+package se.sundsvall.emailsender.configuration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.MessagingException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.unit.DataSize;
+import se.sundsvall.emailsender.service.MailSender;
+import se.sundsvall.emailsender.service.MailSenderRegistry;
+import se.sundsvall.emailsender.support.MailboxLimiter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@ExtendWith(MockitoExtension.class)
+class MailSenderReloadEndpointTests {
+
+	private static final MailSenderBeanFactoryPostProcessor.MailSenderProperties BASIC = new MailSenderBeanFactoryPostProcessor.MailSenderProperties(
+		new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Basic("someHost", 25, null, null, null, null,
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Pool(4, 100, Duration.ofMinutes(1), Duration.ofSeconds(30)),
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Batch(20, Duration.ZERO),
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Balancing(3, Duration.ofSeconds(10), Duration.ofMinutes(2), Duration.ofSeconds(10)),
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.AttachmentCache(DataSize.ofMegabytes(64))),
+		null);
+	private static final MailSenderBeanFactoryPostProcessor.MailSenderProperties AZURE = new MailSenderBeanFactoryPostProcessor.MailSenderProperties(null,
+		new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Azure("someTenantId", "someClientId", "someClientSecret", "someScope",
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Batch(20, Duration.ZERO),
+			new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Throttle(4, Duration.ofSeconds(30))));
+
+	@Mock
+	private MailSenderBeanFactoryPostProcessor mockMailSenderFactory;
+
+	@Mock
+	private MailSender mockSmtpMailSender;
+
+	@Mock
+	private MailSender mockGraphMailSender;
+
+	private SimpleMeterRegistry meterRegistry;
+	private MailSenderRegistry mailSenderRegistry;
+	private MailSenderReloadEndpoint endpoint;
+
+	@BeforeEach
+	void setUp() {
+		when(mockSmtpMailSender.getMunicipalityId()).thenReturn("1234");
+		when(mockGraphMailSender.getMunicipalityId()).thenReturn("5678");
+		when(mockMailSenderFactory.getDefaultProperties()).thenReturn(new Properties());
+		when(mockMailSenderFactory.getMailSenderProperties()).thenReturn(Map.of("1234", BASIC, "5678", AZURE));
+
+		meterRegistry = new SimpleMeterRegistry();
+		mailSenderRegistry = new MailSenderRegistry(List.of(mockSmtpMailSender, mockGraphMailSender), new MailSenderRegistryProperties(Duration.ofSeconds(5), new MailSenderRegistryProperties.WarmUp(false, Duration.ofSeconds(5))));
+		endpoint = new MailSenderReloadEndpoint(mockMailSenderFactory, mailSenderRegistry, meterRegistry);
+	}
+
+	@Test
+	void mailSenders() {
+		when(mockSmtpMailSender.getTransport()).thenReturn("smtp");
+		when(mockGraphMailSender.getTransport()).thenReturn("graph");
+
+		assertThat(endpoint.mailSenders()).containsExactly(Map.entry("1234", "smtp"), Map.entry("5678", "graph"));
+	}
+
+	@Test
+	void reloadWithoutChanges() {
+		when(mockMailSenderFactory.bindDefaultProperties()).thenReturn(new Properties());
+		when(mockMailSenderFactory.bindMailSenderProperties()).thenReturn(Map.of("1234", BASIC, "5678", AZURE));
+
+		var result = endpoint.reload();
+
+		assertThat(result).isEqualTo(new MailSenderReloadEndpoint.ReloadResult(List.of(), List.of(), List.of()));
+		assertThat(mailSenderRegistry.get("1234")).isSameAs(mockSmtpMailSender);
+		assertThat(mailSenderRegistry.get("5678")).isSameAs(mockGraphMailSender);
+		// The properties are read anew before they are bound
+		var inOrder = inOrder(mockMailSenderFactory);
+		inOrder.verify(mockMailSenderFactory).loadConfigLocation();
+		inOrder.verify(mockMailSenderFactory).bindMailSenderProperties();
+	}
+
+	@Test
+	void reload() throws Exception {
+		var newProperties = new Properties();
+		newProperties.put("mail.smtp.timeout", "10000");
+		var newSmtpMailSender = mock(MailSender.class);
+		var newMailSender = mock(MailSender.class);
+		when(mockMailSenderFactory.bindDefaultProperties()).thenReturn(newProperties);
+		when(mockMailSenderFactory.bindMailSenderProperties()).thenReturn(Map.of("1234", BASIC, "9999", AZURE));
+		when(mockMailSenderFactory.createMailSender("1234", BASIC, newProperties)).thenReturn(newSmtpMailSender);
+		when(mockMailSenderFactory.createMailSender("9999", AZURE, newProperties)).thenReturn(newMailSender);
+		Gauge.builder(PooledJavaMailSender.IDLE_METRIC_NAME, () -> 1).tag("municipality", "1234").register(meterRegistry);
+		Gauge.builder(MailboxLimiter.QUEUED_METRIC_NAME, () -> 1).tag("municipality", "5678").register(meterRegistry);
+
+		var result = endpoint.reload();
+
+		// Changed default properties only replace SMTP mail senders
+		assertThat(result).isEqualTo(new MailSenderReloadEndpoint.ReloadResult(List.of("9999"), List.of("1234"), List.of("5678")));
+		assertThat(mailSenderRegistry.getAll()).containsOnly(Map.entry("1234", newSmtpMailSender), Map.entry("9999", newMailSender));
+		// The meters of both the replaced and the removed mail sender are gone
+		assertThat(meterRegistry.find(PooledJavaMailSender.IDLE_METRIC_NAME).tag("municipality", "1234").gauge()).isNull();
+		assertThat(meterRegistry.find(MailboxLimiter.QUEUED_METRIC_NAME).tag("municipality", "5678").gauge()).isNull();
+	}
+
+	@Test
+	void reloadWhenMailSenderCantBeCreated() throws Exception {
+		var createdMailSender = mock(MailSender.class, withSettings().extraInterfaces(DisposableBean.class));
+		var changedBasic = new MailSenderBeanFactoryPostProcessor.MailSenderProperties(new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Basic(
+			"someOtherHost", 25, null, null, null, null, BASIC.basic().pool(), BASIC.basic().batch(), BASIC.basic().balancing(),
+			BASIC.basic().attachmentCache()), null);
+		var changedAzure = new MailSenderBeanFactoryPostProcessor.MailSenderProperties(null, new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Azure(
+			"someTenantId", "someClientId", "someRotatedClientSecret", "someScope", AZURE.azure().batch(), AZURE.azure().throttle()));
+		when(mockMailSenderFactory.bindDefaultProperties()).thenReturn(new Properties());
+		// Sorted, so that the mail sender that can be created is created first
+		when(mockMailSenderFactory.bindMailSenderProperties()).thenReturn(new TreeMap<>(Map.of("1234", changedBasic, "5678", changedAzure)));
+		when(mockMailSenderFactory.createMailSender("1234", changedBasic, new Properties())).thenReturn(createdMailSender);
+		when(mockMailSenderFactory.createMailSender("5678", changedAzure, new Properties())).thenThrow(new MessagingException("Invalid client secret"));
+
+		assertThatExceptionOfType(IllegalStateException.class)
+			.isThrownBy(() -> endpoint.reload())
+			.withMessage("Unable to create mail sender for municipalityId 5678: Invalid client secret");
+
+		// Nothing changes, and the mail sender that was created is destroyed
+		assertThat(mailSenderRegistry.get("1234")).isSameAs(mockSmtpMailSender);
+		assertThat(mailSenderRegistry.get("5678")).isSameAs(mockGraphMailSender);
+		verify((DisposableBean) createdMailSender).destroy();
+	}
+
+	@Test
+	void removeMailSenderMeters() {
+		Gauge.builder(PooledJavaMailSender.IDLE_METRIC_NAME, () -> 1).tag("municipality", "1234").register(meterRegistry);
+		Gauge.builder(PooledJavaMailSender.IDLE_METRIC_NAME, () -> 1).tag("municipality", "5678").register(meterRegistry);
+		Gauge.builder("some.other.gauge", () -> 1).tag("municipality", "1234").register(meterRegistry);
+
+		endpoint.removeMailSenderMeters("1234");
+
+		assertThat(meterRegistry.find(PooledJavaMailSender.IDLE_METRIC_NAME).tag("municipality", "1234").gauge()).isNull();
+		assertThat(meterRegistry.find(PooledJavaMailSender.IDLE_METRIC_NAME).tag("municipality", "5678").gauge()).isNotNull();
+		assertThat(meterRegistry.find("some.other.gauge").gauge()).isNotNull();
+	}
+}
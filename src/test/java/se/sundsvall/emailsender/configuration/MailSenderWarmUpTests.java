@@ -0,0 +1,74 @@
+package se.sundsvall.emailsender.configuration;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.MessagingException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class MailSenderWarmUpTests {
+
+	@Mock
+	private MailSenderBeanFactoryPostProcessor mockMailSenderFactory;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+	}
+
+	private MailSenderWarmUp createWarmUp(final boolean enabled, final Duration timeout) {
+		return new MailSenderWarmUp(mockMailSenderFactory, new MailSenderRegistryProperties(Duration.ofSeconds(5),
+			new MailSenderRegistryProperties.WarmUp(enabled, timeout)), meterRegistry);
+	}
+
+	@Test
+	void run() {
+		final var warmUps = new AtomicInteger();
+		when(mockMailSenderFactory.getWarmUps()).thenReturn(Map.of(
+			"1234", warmUps::incrementAndGet,
+			"5678", () -> {
+				throw new MessagingException("Connection refused");
+			}));
+
+		createWarmUp(true, Duration.ofSeconds(5)).run(null);
+
+		assertThat(warmUps).hasValue(1);
+		assertThat(meterRegistry.get(MailSenderWarmUp.WARM_UP_METRIC_NAME).tags("municipality", "1234", "outcome", "success").timer().count()).isOne();
+		// A mail sender that can't be warmed up doesn't fail startup
+		assertThat(meterRegistry.get(MailSenderWarmUp.WARM_UP_METRIC_NAME).tags("municipality", "5678", "outcome", "failure").timer().count()).isOne();
+	}
+
+	@Test
+	void runWhenDisabled() {
+		createWarmUp(false, Duration.ofSeconds(5)).run(null);
+
+		verifyNoInteractions(mockMailSenderFactory);
+		assertThat(meterRegistry.getMeters()).isEmpty();
+	}
+
+	@Test
+	void runDoesNotWaitPastTimeout() {
+		final var blocked = new CountDownLatch(1);
+		when(mockMailSenderFactory.getWarmUps()).thenReturn(Map.of("1234", blocked::await));
+
+		final var start = System.nanoTime();
+		createWarmUp(true, Duration.ofMillis(100)).run(null);
+
+		assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(5));
+		verify(mockMailSenderFactory).getWarmUps();
+	}
+}
@@ -0,0 +1,146 @@
+package se.sundsvall.emailsender.configuration;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.MailSendException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PooledJavaMailSenderTests {
+
+	private static final String MUNICIPALITY_ID = "1234";
+
+	@Test
+	void sendReusesConnection() throws MessagingException {
+		final var mailSender = new TestPooledJavaMailSender(pool(2, 100));
+
+		mailSender.send(createMimeMessage(mailSender));
+		mailSender.send(createMimeMessage(mailSender));
+
+		assertThat(mailSender.transports).hasSize(1);
+		verify(mailSender.transports.getFirst(), times(2)).sendMessage(any(), any());
+		verify(mailSender.transports.getFirst(), never()).close();
+		assertThat(mailSender.createdCount()).isOne();
+		assertThat(mailSender.idleCount()).isOne();
+		assertThat(mailSender.borrowedCount()).isZero();
+	}
+
+	@Test
+	void testConnectionKeepsConnection() throws MessagingException {
+		final var mailSender = new TestPooledJavaMailSender(pool(2, 100));
+
+		mailSender.testConnection();
+		mailSender.send(createMimeMessage(mailSender));
+
+		// The connection that was opened by the test is used by the send
+		assertThat(mailSender.transports).hasSize(1);
+		verify(mailSender.transports.getFirst()).sendMessage(any(), any());
+		assertThat(mailSender.createdCount()).isOne();
+	}
+
+	@Test
+	void sendRetiresConnectionAfterMaxMessages() throws MessagingException {
+		final var mailSender = new TestPooledJavaMailSender(pool(2, 1));
+
+		mailSender.send(createMimeMessage(mailSender));
+		mailSender.send(createMimeMessage(mailSender));
+
+		assertThat(mailSender.transports).hasSize(2);
+		verify(mailSender.transports.getFirst()).close();
+		assertThat(mailSender.evictedCount()).isEqualTo(2);
+		assertThat(mailSender.idleCount()).isZero();
+	}
+
+	@Test
+	void sendReplacesDroppedConnection() throws MessagingException {
+		final var mailSender = new TestPooledJavaMailSender(pool(2, 100));
+
+		mailSender.send(createMimeMessage(mailSender));
+		// Simulate that the server has dropped the idle connection
+		when(mailSender.transports.getFirst().isConnected()).thenReturn(false);
+		mailSender.send(createMimeMessage(mailSender));
+
+		assertThat(mailSender.transports).hasSize(2);
+		verify(mailSender.transports.getFirst()).close();
+		verify(mailSender.transports.getLast()).sendMessage(any(), any());
+	}
+
+	@Test
+	void sendWhenConnectionFails() throws MessagingException {
+		final var mailSender = new TestPooledJavaMailSender(pool(1, 100));
+		mailSender.failOnConnect = true;
+		final var mimeMessage = createMimeMessage(mailSender);
+
+		assertThatExceptionOfType(MailSendException.class)
+			.isThrownBy(() -> mailSender.send(mimeMessage))
+			.satisfies(e -> assertThat(e.getFailedMessages()).containsKey(mimeMessage));
+
+		// The permit must have been given back
+		assertThat(mailSender.borrowedCount()).isZero();
+	}
+
+	@Test
+	void bindToAndDestroy() throws MessagingException {
+		final var mailSender = new TestPooledJavaMailSender(pool(2, 100));
+		final var meterRegistry = new SimpleMeterRegistry();
+		mailSender.bindTo(meterRegistry);
+
+		mailSender.send(createMimeMessage(mailSender));
+
+		assertThat(meterRegistry.get(PooledJavaMailSender.IDLE_METRIC_NAME).tag("municipality", MUNICIPALITY_ID).gauge().value()).isOne();
+		assertThat(meterRegistry.get(PooledJavaMailSender.BORROWED_METRIC_NAME).gauge().value()).isZero();
+		assertThat(meterRegistry.get(PooledJavaMailSender.CREATED_METRIC_NAME).functionCounter().count()).isOne();
+
+		mailSender.destroy();
+
+		verify(mailSender.transports.getFirst()).close();
+		assertThat(meterRegistry.get(PooledJavaMailSender.EVICTED_METRIC_NAME).functionCounter().count()).isOne();
+		assertThat(mailSender.idleCount()).isZero();
+	}
+
+	private static MailSenderBeanFactoryPostProcessor.MailSenderProperties.Pool pool(final int maxSize, final int maxMessagesPerConnection) {
+		return new MailSenderBeanFactoryPostProcessor.MailSenderProperties.Pool(maxSize, maxMessagesPerConnection, Duration.ofMinutes(1), Duration.ofSeconds(1));
+	}
+
+	private static MimeMessage createMimeMessage(final PooledJavaMailSender mailSender) throws MessagingException {
+		final var mimeMessage = mailSender.createMimeMessage();
+		mimeMessage.setRecipients(Message.RecipientType.TO, "recipient@somehost.com");
+		mimeMessage.setText("someText");
+		return mimeMessage;
+	}
+
+	static class TestPooledJavaMailSender extends PooledJavaMailSender {
+
+		private final List<Transport> transports = new ArrayList<>();
+		private boolean failOnConnect;
+
+		TestPooledJavaMailSender(final MailSenderBeanFactoryPostProcessor.MailSenderProperties.Pool pool) {
+			super(MUNICIPALITY_ID, pool);
+		}
+
+		@Override
+		protected Transport connectTransport() throws MessagingException {
+			if (failOnConnect) {
+				throw new MessagingException("Connection refused");
+			}
+			final var transport = mock(Transport.class);
+			when(transport.isConnected()).thenReturn(true);
+			transports.add(transport);
+			return transport;
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.configuration.AsyncSendProperties;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
+
+@ExtendWith(MockitoExtension.class)
+class AsyncEmailServiceTests {
+
+	private static final String MUNICIPALITY_ID = "1234";
+
+	@Mock
+	private EmailService mockEmailService;
+
+	@Mock
+	private MailSender mockMailSender;
+
+	@Mock
+	private Outbox mockOutbox;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	private AsyncEmailService asyncEmailService;
+
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		asyncEmailService = new AsyncEmailService(mockEmailService, mockOutbox, new AsyncSendProperties(1, 1, Duration.ofSeconds(5), Duration.ofMillis(10), Duration.ofMillis(20)), meterRegistry, false);
+	}
+
+	@AfterEach
+	void tearDown() throws InterruptedException {
+		asyncEmailService.destroy();
+	}
+
+	@Test
+	void sendMail() {
+		var request = createValidSendEmailRequest();
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+		when(mockOutbox.add(eq(MUNICIPALITY_ID), anyString(), eq(request))).thenReturn(42L);
+
+		var messageId = asyncEmailService.sendMail(MUNICIPALITY_ID, request);
+
+		assertThat(messageId).isNotBlank();
+		verify(mockOutbox).add(MUNICIPALITY_ID, messageId, request);
+		verify(mockEmailService, timeout(5000)).sendMail(MUNICIPALITY_ID, request);
+		verify(mockOutbox, timeout(5000)).complete(42L);
+		assertThat(meterRegistry.get(AsyncEmailService.QUEUE_WAIT_METRIC_NAME).tag("municipality", MUNICIPALITY_ID).timer().count()).isEqualTo(1);
+		assertThat(meterRegistry.get(AsyncEmailService.UTILIZATION_METRIC_NAME).tag("municipality", MUNICIPALITY_ID).gauge()).isNotNull();
+	}
+
+	@Test
+	void sendMailWhenNoMailSenderExistsForMunicipalityId() {
+		var request = createValidSendEmailRequest();
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenThrow(Problem.valueOf(BAD_GATEWAY, "No mail sender exists for municipalityId " + MUNICIPALITY_ID));
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> asyncEmailService.sendMail(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getStatus()).isEqualTo(BAD_GATEWAY));
+
+		verify(mockEmailService).getMailSender(MUNICIPALITY_ID);
+		verifyNoMoreInteractions(mockEmailService);
+	}
+
+	@Test
+	void sendMailWhenEmailCannotBeSent() {
+		var request = createValidSendEmailRequest();
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+		doThrow(Problem.valueOf(BAD_REQUEST, "No attachment with content hash someContentHash exists")).when(mockEmailService).validate(MUNICIPALITY_ID, request);
+
+		// Rejected before the e-mail is accepted, rather than failing once it has been dequeued
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> asyncEmailService.sendMail(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST));
+
+		verifyNoInteractions(mockOutbox);
+		verify(mockEmailService, never()).sendMail(any(), any());
+	}
+
+	@Test
+	void sendMailWhenQueueIsFull() throws InterruptedException {
+		var request = createValidSendEmailRequest();
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+		when(mockOutbox.add(eq(MUNICIPALITY_ID), anyString(), eq(request))).thenReturn(1L, 2L, 3L);
+		doAnswer(invocation -> {
+			started.countDown();
+			release.await();
+			return null;
+		}).when(mockEmailService).sendMail(any(), any());
+
+		// The first e-mail occupies the only worker, and the second one fills the queue
+		asyncEmailService.sendMail(MUNICIPALITY_ID, request);
+		assertThat(started.await(5, SECONDS)).isTrue();
+		asyncEmailService.sendMail(MUNICIPALITY_ID, request);
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> asyncEmailService.sendMail(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(SERVICE_UNAVAILABLE);
+				assertThat(thrownProblem.getMessage()).endsWith("Send queue for municipalityId " + MUNICIPALITY_ID + " is full");
+			});
+		// The rejected e-mail isn't kept in the outbox
+		verify(mockOutbox).complete(3L);
+
+		release.countDown();
+	}
+
+	@Test
+	void sendMailInPriorityLanes() throws InterruptedException {
+		var lowPriorityRequest = SendEmailRequestBuilder.from(createValidSendEmailRequest()).withPriority(SendEmailRequest.Priority.LOW).build();
+		var highPriorityRequest = SendEmailRequestBuilder.from(createValidSendEmailRequest()).withPriority(SendEmailRequest.Priority.HIGH).build();
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+		doAnswer(invocation -> {
+			started.countDown();
+			release.await();
+			return null;
+		}).when(mockEmailService).sendMail(MUNICIPALITY_ID, lowPriorityRequest);
+
+		// The LOW priority lane is full - one e-mail occupies its only worker, and another one its queue
+		asyncEmailService.sendMail(MUNICIPALITY_ID, lowPriorityRequest);
+		assertThat(started.await(5, SECONDS)).isTrue();
+		asyncEmailService.sendMail(MUNICIPALITY_ID, lowPriorityRequest);
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> asyncEmailService.sendMail(MUNICIPALITY_ID, lowPriorityRequest))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getStatus()).isEqualTo(SERVICE_UNAVAILABLE));
+
+		// ...which doesn't hold up HIGH priority e-mails
+		asyncEmailService.sendMail(MUNICIPALITY_ID, highPriorityRequest);
+		verify(mockEmailService, timeout(5000)).sendMail(MUNICIPALITY_ID, highPriorityRequest);
+		assertThat(meterRegistry.get(AsyncEmailService.QUEUE_WAIT_METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "priority", "high").timer().count()).isOne();
+
+		release.countDown();
+	}
+
+	@Test
+	void sendMailWhenMailServerIsUnavailable() {
+		var request = createValidSendEmailRequest();
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+		when(mockOutbox.add(eq(MUNICIPALITY_ID), anyString(), eq(request))).thenReturn(42L);
+		doThrow(Problem.valueOf(SERVICE_UNAVAILABLE, "Mail server is unavailable")).when(mockEmailService).sendMail(MUNICIPALITY_ID, request);
+
+		asyncEmailService.sendMail(MUNICIPALITY_ID, request);
+
+		// Retried, and kept in the outbox for as long as it hasn't been sent
+		verify(mockEmailService, timeout(5000).atLeast(3)).sendMail(MUNICIPALITY_ID, request);
+		verify(mockOutbox, never()).complete(anyLong());
+	}
+
+	@Test
+	void sendMailWhenMailServerBecomesAvailable() {
+		var request = createValidSendEmailRequest();
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+		when(mockOutbox.add(eq(MUNICIPALITY_ID), anyString(), eq(request))).thenReturn(42L);
+		doThrow(Problem.valueOf(SERVICE_UNAVAILABLE, "Mail server is unavailable"))
+			.doThrow(Problem.valueOf(GATEWAY_TIMEOUT, "Mail server did not respond in time"))
+			.doNothing()
+			.when(mockEmailService).sendMail(MUNICIPALITY_ID, request);
+
+		asyncEmailService.sendMail(MUNICIPALITY_ID, request);
+
+		verify(mockOutbox, timeout(5000)).complete(42L);
+		verify(mockEmailService, times(3)).sendMail(MUNICIPALITY_ID, request);
+	}
+
+	@Test
+	void sendMailWhenEmailIsRejected() {
+		var request = createValidSendEmailRequest();
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+		when(mockOutbox.add(eq(MUNICIPALITY_ID), anyString(), eq(request))).thenReturn(42L);
+		doThrow(Problem.valueOf(BAD_REQUEST, "Invalid recipient")).when(mockEmailService).sendMail(MUNICIPALITY_ID, request);
+
+		asyncEmailService.sendMail(MUNICIPALITY_ID, request);
+
+		// It can never be sent, so it's given up on
+		verify(mockOutbox, timeout(5000)).complete(42L);
+		verify(mockEmailService).sendMail(MUNICIPALITY_ID, request);
+	}
+
+	@Test
+	void sendSwallowsAndLogsFailures() {
+		var request = createValidSendEmailRequest();
+
+		doAnswer(invocation -> {
+			throw new IllegalStateException("Boom");
+		}).when(mockEmailService).sendMail(MUNICIPALITY_ID, request);
+
+		assertThat(asyncEmailService.send(MUNICIPALITY_ID, "someMessageId", request)).isEqualTo(AsyncEmailService.Outcome.FAILED);
+
+		verify(mockEmailService).sendMail(MUNICIPALITY_ID, request);
+	}
+
+	@Test
+	void isRejected() {
+		assertThat(AsyncEmailService.isRejected(Problem.valueOf(BAD_REQUEST, "someError"))).isTrue();
+		assertThat(AsyncEmailService.isRejected(Problem.valueOf(TOO_MANY_REQUESTS, "someError"))).isFalse();
+		assertThat(AsyncEmailService.isRejected(Problem.valueOf(SERVICE_UNAVAILABLE, "someError"))).isFalse();
+		assertThat(AsyncEmailService.isRejected(Problem.valueOf(GATEWAY_TIMEOUT, "someError"))).isFalse();
+		assertThat(AsyncEmailService.isRejected(new IllegalStateException("someError"))).isFalse();
+	}
+
+	@Test
+	void backoff() {
+		assertThat(asyncEmailService.backoff(1)).isEqualTo(Duration.ofMillis(10));
+		assertThat(asyncEmailService.backoff(2)).isEqualTo(Duration.ofMillis(20));
+		assertThat(asyncEmailService.backoff(100)).isEqualTo(Duration.ofMillis(20));
+	}
+
+	@Test
+	void sendRecovered() {
+		var request = createValidSendEmailRequest();
+
+		when(mockOutbox.recover()).thenReturn(List.of(
+			new Outbox.Entry(1L, MUNICIPALITY_ID, "someMessageId", request),
+			new Outbox.Entry(2L, MUNICIPALITY_ID, "someOtherMessageId", request),
+			new Outbox.Entry(3L, MUNICIPALITY_ID, "yetAnotherMessageId", request)));
+
+		// More e-mails than the queue holds are queued, since recovery waits for room in the queue
+		asyncEmailService.sendRecovered();
+
+		verify(mockEmailService, timeout(5000).times(3)).sendMail(MUNICIPALITY_ID, request);
+		verify(mockOutbox, timeout(5000)).complete(1L);
+		verify(mockOutbox, timeout(5000)).complete(2L);
+		verify(mockOutbox, timeout(5000)).complete(3L);
+	}
+
+	@Test
+	void sendRecoveredWhenOutboxIsEmpty() {
+		when(mockOutbox.recover()).thenReturn(List.of());
+
+		asyncEmailService.sendRecovered();
+
+		verifyNoMoreInteractions(mockEmailService);
+	}
+
+	@Test
+	void sendMailOnVirtualThreads() throws InterruptedException {
+		var request = createValidSendEmailRequest();
+		var virtualThreadAsyncEmailService = new AsyncEmailService(mockEmailService, mockOutbox, new AsyncSendProperties(1, 1, Duration.ofSeconds(5), Duration.ofMillis(10), Duration.ofMillis(20)), meterRegistry, true);
+		var sentOnVirtualThread = new CountDownLatch(1);
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+		doAnswer(invocation -> {
+			if (Thread.currentThread().isVirtual()) {
+				sentOnVirtualThread.countDown();
+			}
+			return null;
+		}).when(mockEmailService).sendMail(any(), any());
+
+		try {
+			virtualThreadAsyncEmailService.sendMail(MUNICIPALITY_ID, request);
+
+			assertThat(sentOnVirtualThread.await(5, SECONDS)).isTrue();
+		} finally {
+			virtualThreadAsyncEmailService.destroy();
+		}
+	}
+}
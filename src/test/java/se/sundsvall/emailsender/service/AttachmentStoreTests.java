@@ -0,0 +1,214 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.api.model.AttachmentBuilder;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.configuration.AttachmentStoreProperties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static se.sundsvall.emailsender.TestDataFactory.createValidAttachment;
+import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
+
+class AttachmentStoreTests {
+
+	private static final String CONTENT_HASH = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+
+	@TempDir
+	private Path directory;
+
+	private SimpleMeterRegistry meterRegistry;
+	private AttachmentStore attachmentStore;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		meterRegistry = new SimpleMeterRegistry();
+		attachmentStore = new AttachmentStore(new AttachmentStoreProperties(directory.resolve("attachments"), DataSize.ofMegabytes(1), Duration.ofDays(1)), meterRegistry);
+	}
+
+	@AfterEach
+	void tearDown() {
+		attachmentStore.destroy();
+	}
+
+	@Test
+	void store() throws IOException {
+		var contentHash = attachmentStore.store(new ByteArrayInputStream("hello world".getBytes(UTF_8)));
+
+		assertThat(contentHash).isEqualTo(CONTENT_HASH);
+		assertThat(directory.resolve("attachments").resolve(CONTENT_HASH)).hasContent("hello world");
+		// Storing the same content again leaves a single copy, and no temporary files behind
+		assertThat(attachmentStore.store(new ByteArrayInputStream("hello world".getBytes(UTF_8)))).isEqualTo(CONTENT_HASH);
+		try (var files = Files.list(directory.resolve("attachments"))) {
+			assertThat(files).containsExactly(directory.resolve("attachments").resolve(CONTENT_HASH));
+		}
+	}
+
+	@Test
+	void get() throws IOException {
+		attachmentStore.store(new ByteArrayInputStream("hello world".getBytes(UTF_8)));
+
+		var content = attachmentStore.get(CONTENT_HASH);
+
+		assertThat(content).asString(UTF_8).isEqualTo("hello world");
+		// The same bytes are shared by everyone who gets them
+		assertThat(attachmentStore.get(CONTENT_HASH)).isSameAs(content);
+		assertThat(meterRegistry.get("cache.gets").tags("cache", AttachmentStore.CACHE_NAME, "result", "hit").functionCounter().count()).isOne();
+	}
+
+	@Test
+	void getKeepsContent() throws IOException {
+		attachmentStore.store(new ByteArrayInputStream("hello world".getBytes(UTF_8)));
+		var file = directory.resolve("attachments").resolve(CONTENT_HASH);
+		var twelveHoursAgo = FileTime.from(Instant.now().minus(Duration.ofHours(12)));
+		Files.setLastModifiedTime(file, twelveHoursAgo);
+
+		attachmentStore.get(CONTENT_HASH);
+
+		// The content is kept for another retention time
+		assertThat(Files.getLastModifiedTime(file).toInstant()).isAfter(Instant.now().minus(Duration.ofMinutes(1)));
+
+		Files.setLastModifiedTime(file, twelveHoursAgo);
+
+		attachmentStore.get(CONTENT_HASH);
+
+		// But it isn't touched again within the touch interval
+		assertThat(Files.getLastModifiedTime(file)).isEqualTo(twelveHoursAgo);
+	}
+
+	@Test
+	void getWhenContentIsRemovedByAnotherInstance() throws Exception {
+		var shortLivedAttachmentStore = new AttachmentStore(new AttachmentStoreProperties(directory.resolve("attachments"), DataSize.ofMegabytes(1), Duration.ofMillis(400)), new SimpleMeterRegistry());
+		try {
+			shortLivedAttachmentStore.store(new ByteArrayInputStream("hello world".getBytes(UTF_8)));
+			shortLivedAttachmentStore.get(CONTENT_HASH);
+			Files.delete(directory.resolve("attachments").resolve(CONTENT_HASH));
+
+			// Cached, and recently touched
+			assertThat(shortLivedAttachmentStore.get(CONTENT_HASH)).asString(UTF_8).isEqualTo("hello world");
+
+			// Once the touch interval has passed, the removal is noticed
+			Thread.sleep(300);
+			assertThatExceptionOfType(ThrowableProblem.class)
+				.isThrownBy(() -> shortLivedAttachmentStore.get(CONTENT_HASH))
+				.satisfies(thrownProblem -> assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST));
+		} finally {
+			shortLivedAttachmentStore.destroy();
+		}
+	}
+
+	@Test
+	void getWhenContentDoesNotExist() {
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> attachmentStore.get(CONTENT_HASH))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST);
+				assertThat(thrownProblem.getDetail()).isEqualTo("No attachment with content hash " + CONTENT_HASH + " exists");
+			});
+	}
+
+	@Test
+	void getWithInvalidContentHash() {
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> attachmentStore.get("../application.yml"))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST);
+				assertThat(thrownProblem.getDetail()).isEqualTo("Invalid content hash ../application.yml");
+			});
+	}
+
+	@Test
+	void resolve() throws IOException {
+		attachmentStore.store(new ByteArrayInputStream("hello world".getBytes(UTF_8)));
+		var inlineAttachment = createValidAttachment();
+		var referencingAttachment = AttachmentBuilder.from(createValidAttachment())
+			.withContent(null)
+			.withContentHash(CONTENT_HASH)
+			.build();
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withAttachments(List.of(inlineAttachment, referencingAttachment))
+			.build();
+
+		var result = attachmentStore.resolve(request);
+
+		assertThat(result.attachments()).hasSize(2);
+		assertThat(result.attachments().getFirst()).isSameAs(inlineAttachment);
+		assertThat(result.attachments().getLast()).satisfies(attachment -> {
+			assertThat(attachment.contentHash()).isNull();
+			assertThat(attachment.content()).isSameAs(attachmentStore.get(CONTENT_HASH));
+			assertThat(attachment.name()).isEqualTo(referencingAttachment.name());
+			assertThat(attachment.contentType()).isEqualTo(referencingAttachment.contentType());
+		});
+	}
+
+	@Test
+	void verify() throws IOException {
+		attachmentStore.store(new ByteArrayInputStream("hello world".getBytes(UTF_8)));
+		var file = directory.resolve("attachments").resolve(CONTENT_HASH);
+		Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(Duration.ofHours(12))));
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withAttachments(List.of(createValidAttachment(), AttachmentBuilder.from(createValidAttachment()).withContent(null).withContentHash(CONTENT_HASH).build()))
+			.build();
+
+		attachmentStore.verify(request);
+
+		// The content is kept for another retention time
+		assertThat(Files.getLastModifiedTime(file).toInstant()).isAfter(Instant.now().minus(Duration.ofMinutes(1)));
+	}
+
+	@Test
+	void verifyWhenContentDoesNotExist() {
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withAttachments(List.of(AttachmentBuilder.from(createValidAttachment()).withContent(null).withContentHash(CONTENT_HASH).build()))
+			.build();
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> attachmentStore.verify(request))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST);
+				assertThat(thrownProblem.getDetail()).isEqualTo("No attachment with content hash " + CONTENT_HASH + " exists");
+			});
+	}
+
+	@Test
+	void removeExpired() throws IOException {
+		attachmentStore.store(new ByteArrayInputStream("hello world".getBytes(UTF_8)));
+		var recentContentHash = attachmentStore.store(new ByteArrayInputStream("hello again".getBytes(UTF_8)));
+		attachmentStore.get(CONTENT_HASH);
+		Files.setLastModifiedTime(directory.resolve("attachments").resolve(CONTENT_HASH), FileTime.from(Instant.now().minus(Duration.ofDays(2))));
+
+		attachmentStore.removeExpired();
+
+		try (var files = Files.list(directory.resolve("attachments"))) {
+			assertThat(files).containsExactly(directory.resolve("attachments").resolve(recentContentHash));
+		}
+		// Nor is it kept in memory
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> attachmentStore.get(CONTENT_HASH))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST));
+	}
+
+	@Test
+	void resolveWithoutReferences() {
+		var request = createValidSendEmailRequest();
+
+		assertThat(attachmentStore.resolve(request)).isSameAs(request);
+		assertThat(attachmentStore.resolve(SendEmailRequestBuilder.from(request).withAttachments(null).build()).attachments()).isNull();
+	}
+}
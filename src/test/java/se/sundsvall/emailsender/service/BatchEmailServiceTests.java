@@ -0,0 +1,114 @@
+package se.sundsvall.emailsender.service;
+
+import jakarta.validation.Validation;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.api.model.SendEmailBatchResponse;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.configuration.BatchSendProperties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
+
+@ExtendWith(MockitoExtension.class)
+class BatchEmailServiceTests {
+
+	private static final String MUNICIPALITY_ID = "1234";
+
+	@Mock
+	private EmailService mockEmailService;
+
+	@Mock
+	private MailSender mockMailSender;
+
+	private BatchEmailService batchEmailService;
+
+	@BeforeEach
+	void setUp() {
+		batchEmailService = new BatchEmailService(mockEmailService, Validation.buildDefaultValidatorFactory().getValidator(), new BatchSendProperties(3, 2));
+	}
+
+	@Test
+	void sendMails() {
+		var valid = createValidSendEmailRequest();
+		var invalid = SendEmailRequestBuilder.from(valid).withSubject("").build();
+		var failing = SendEmailRequestBuilder.from(valid).withSubject("failing").build();
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+		doAnswer(invocation -> {
+			if ("failing".equals(invocation.<SendEmailRequest>getArgument(1).subject())) {
+				throw Problem.valueOf(BAD_GATEWAY, "Upstream failure");
+			}
+			return null;
+		}).when(mockEmailService).sendMail(eq(MUNICIPALITY_ID), any());
+
+		var results = batchEmailService.sendMails(MUNICIPALITY_ID, List.of(valid, invalid, failing));
+
+		assertThat(results).containsExactly(
+			new SendEmailBatchResponse.Result(0, 200, null),
+			new SendEmailBatchResponse.Result(1, 400, "subject: must not be blank"),
+			new SendEmailBatchResponse.Result(2, 502, "Upstream failure"));
+		verify(mockEmailService).sendMail(MUNICIPALITY_ID, valid);
+		verify(mockEmailService).sendMail(MUNICIPALITY_ID, failing);
+	}
+
+	@Test
+	void sendMailsWithNullEntry() {
+		var requests = new ArrayList<>(List.of(createValidSendEmailRequest()));
+		requests.add(null);
+
+		when(mockEmailService.getMailSender(MUNICIPALITY_ID)).thenReturn(mockMailSender);
+
+		var results = batchEmailService.sendMails(MUNICIPALITY_ID, requests);
+
+		assertThat(results).containsExactly(
+			new SendEmailBatchResponse.Result(0, 200, null),
+			new SendEmailBatchResponse.Result(1, 400, "must not be null"));
+		verify(mockEmailService, times(1)).sendMail(MUNICIPALITY_ID, requests.getFirst());
+	}
+
+	@Test
+	void sendMailsWhenBatchIsTooLarge() {
+		var request = createValidSendEmailRequest();
+		var requests = List.of(request, request, request, request);
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> batchEmailService.sendMails(MUNICIPALITY_ID, requests))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST);
+				assertThat(thrownProblem.getMessage()).endsWith("A batch may contain at most 3 e-mails");
+			});
+
+		verifyNoInteractions(mockEmailService);
+	}
+
+	@Test
+	void sendWhenUnexpectedExceptionIsThrown() {
+		var request = createValidSendEmailRequest();
+
+		doThrow(new IllegalStateException("Boom")).when(mockEmailService).sendMail(MUNICIPALITY_ID, request);
+
+		var result = batchEmailService.send(MUNICIPALITY_ID, 5, request);
+
+		assertThat(result).isEqualTo(new SendEmailBatchResponse.Result(5, 500, "Unable to send e-mail"));
+	}
+}
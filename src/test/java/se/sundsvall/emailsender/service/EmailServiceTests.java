@@ -1,19 +1,55 @@
 package se.sundsvall.emailsender.service;
 
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.unit.DataSize;
+import se.sundsvall.dept44.problem.Problem;
 import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.api.model.AttachmentBuilder;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.api.model.TemplateBuilder;
+import se.sundsvall.emailsender.configuration.AttachmentStoreProperties;
+import se.sundsvall.emailsender.configuration.MailSenderRegistryProperties;
+import se.sundsvall.emailsender.configuration.PriorityProperties;
+import se.sundsvall.emailsender.configuration.ResilienceProperties;
+import se.sundsvall.emailsender.configuration.TemplateProperties;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.assertArg;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+import static se.sundsvall.emailsender.TestDataFactory.createValidAttachment;
 import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
 
 @ExtendWith(MockitoExtension.class)
@@ -24,13 +60,33 @@ class EmailServiceTests {
 	@Mock
 	private MailSender mockMailSender;
 
+	@TempDir
+	private Path directory;
+
+	private CircuitBreakerRegistry circuitBreakerRegistry;
+	private SimpleMeterRegistry meterRegistry;
+	private TemplateService templateService;
+	private AttachmentStore attachmentStore;
 	private EmailService emailService;
 
 	@BeforeEach
-	void setUp() {
+	void setUp() throws IOException {
 		when(mockMailSender.getMunicipalityId()).thenReturn(MUNICIPALITY_ID);
+		lenient().when(mockMailSender.getTransport()).thenReturn("smtp");
+
+		circuitBreakerRegistry = CircuitBreakerRegistry.ofDefaults();
+		meterRegistry = new SimpleMeterRegistry();
+		templateService = new TemplateService(new TemplateProperties(DataSize.ofMegabytes(1), Map.of(MUNICIPALITY_ID, Map.of(
+			"greeting", new TemplateProperties.Template("<p>Hello {{name}}</p>", "Hello {{name}}")))), meterRegistry);
+		attachmentStore = new AttachmentStore(new AttachmentStoreProperties(directory, DataSize.ofMegabytes(1), Duration.ofDays(1)), meterRegistry);
+		emailService = createEmailService(new PriorityProperties(0, 1, 0, Duration.ofMillis(100)));
+	}
 
-		emailService = new EmailService(List.of(mockMailSender));
+	private EmailService createEmailService(final PriorityProperties priorityProperties) {
+		return new EmailService(new MailSenderRegistry(List.of(mockMailSender), new MailSenderRegistryProperties(Duration.ofSeconds(5), new MailSenderRegistryProperties.WarmUp(false, Duration.ofSeconds(5)))), templateService, attachmentStore, new ResilienceProperties(
+			new ResilienceProperties.Retry(3, Duration.ofMillis(1), Duration.ofMillis(10), Duration.ofSeconds(5)),
+			new ResilienceProperties.CircuitBreaker(50, 4, 4, Duration.ofMinutes(1), 1)),
+			priorityProperties, circuitBreakerRegistry, meterRegistry);
 	}
 
 	@Test
@@ -55,5 +111,258 @@ class EmailServiceTests {
 		emailService.sendMail(MUNICIPALITY_ID, request);
 
 		verify(mockMailSender).sendEmail(request);
+		assertThat(meterRegistry.get(EmailService.SEND_METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "transport", "smtp", "outcome", "success").timer().count()).isOne();
+	}
+
+	@Test
+	void sendMailWithTemplate() {
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withTemplate(TemplateBuilder.create()
+				.withId("greeting")
+				.withParameters(Map.of("name", "Kim & Alex"))
+				.build())
+			.build();
+
+		emailService.sendMail(MUNICIPALITY_ID, request);
+
+		verify(mockMailSender).sendEmail(assertArg(renderedRequest -> {
+			assertThat(renderedRequest.template()).isNull();
+			assertThat(renderedRequest.message()).isEqualTo("Hello Kim & Alex");
+			assertThat(renderedRequest.htmlMessage()).asString(UTF_8).isEqualTo("<p>Hello Kim &amp; Alex</p>");
+			assertThat(renderedRequest.subject()).isEqualTo(request.subject());
+		}));
+	}
+
+	@Test
+	void sendMailWithAttachmentReference() throws IOException {
+		var contentHash = attachmentStore.store(new ByteArrayInputStream("storedContent".getBytes(UTF_8)));
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withAttachments(List.of(AttachmentBuilder.from(createValidAttachment())
+				.withContent(null)
+				.withContentHash(contentHash)
+				.build()))
+			.build();
+
+		emailService.sendMail(MUNICIPALITY_ID, request);
+
+		verify(mockMailSender).sendEmail(assertArg(resolvedRequest -> assertThat(resolvedRequest.attachments()).singleElement()
+			.satisfies(attachment -> assertThat(attachment.content()).asString(UTF_8).isEqualTo("storedContent"))));
+	}
+
+	@Test
+	void validateWhenAttachmentReferenceDoesNotExist() {
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withAttachments(List.of(AttachmentBuilder.from(createValidAttachment())
+				.withContent(null)
+				.withContentHash("b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9")
+				.build()))
+			.build();
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> emailService.validate(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST));
+	}
+
+	@Test
+	void validateWhenTemplateDoesNotExist() {
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withTemplate(TemplateBuilder.create().withId("someUnknownTemplate").build())
+			.build();
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> emailService.validate(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST);
+				assertThat(thrownProblem.getDetail()).isEqualTo("No template someUnknownTemplate exists for municipalityId " + MUNICIPALITY_ID);
+			});
+	}
+
+	@Test
+	void validateWhenTemplateValueIsMissing() {
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withTemplate(TemplateBuilder.create().withId("greeting").withParameters(Map.of()).build())
+			.build();
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> emailService.validate(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST));
+	}
+
+	@Test
+	void sendMailRetriesTransientFailures() {
+		var request = createValidSendEmailRequest();
+
+		doThrow(Problem.valueOf(SERVICE_UNAVAILABLE, "Mail server is temporarily unavailable"))
+			.doNothing()
+			.when(mockMailSender).sendEmail(request);
+
+		emailService.sendMail(MUNICIPALITY_ID, request);
+
+		verify(mockMailSender, times(2)).sendEmail(request);
+		assertThat(meterRegistry.get(EmailService.RETRY_METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "transport", "smtp").counter().count()).isOne();
+	}
+
+	@Test
+	void sendMailDoesNotRetryOtherFailures() {
+		var request = createValidSendEmailRequest();
+
+		doThrow(Problem.valueOf(INTERNAL_SERVER_ERROR, "Unable to send e-mail")).when(mockMailSender).sendEmail(request);
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> emailService.sendMail(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getStatus()).isEqualTo(INTERNAL_SERVER_ERROR));
+
+		verify(mockMailSender).sendEmail(request);
+		// Failures that aren't transient don't count against the mail sender
+		assertThat(circuitBreakerRegistry.circuitBreaker(EmailService.CIRCUIT_BREAKER_NAME_PREFIX + MUNICIPALITY_ID).getMetrics().getNumberOfFailedCalls()).isZero();
+		assertThat(meterRegistry.get(EmailService.SEND_METRIC_NAME).tag("outcome", "failure").timer().count()).isOne();
+	}
+
+	@Test
+	void sendMailDoesNotRetryTimeouts() {
+		var request = createValidSendEmailRequest();
+
+		doThrow(Problem.valueOf(GATEWAY_TIMEOUT, "Mail server did not respond in time")).when(mockMailSender).sendEmail(request);
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> emailService.sendMail(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getStatus()).isEqualTo(GATEWAY_TIMEOUT));
+
+		// The e-mail may have been sent, so it mustn't be sent again - but the timeout still counts against the mail sender
+		verify(mockMailSender).sendEmail(request);
+		assertThat(circuitBreakerRegistry.circuitBreaker(EmailService.CIRCUIT_BREAKER_NAME_PREFIX + MUNICIPALITY_ID).getMetrics().getNumberOfFailedCalls()).isOne();
+		assertThat(meterRegistry.get(EmailService.SEND_METRIC_NAME).tag("outcome", "unavailable").timer().count()).isOne();
+	}
+
+	@Test
+	void sendMailWhenCircuitBreakerOpens() {
+		var request = createValidSendEmailRequest();
+
+		doThrow(Problem.valueOf(SERVICE_UNAVAILABLE, "Mail server is temporarily unavailable")).when(mockMailSender).sendEmail(request);
+
+		// Three attempts, which are all recorded as failures
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> emailService.sendMail(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getDetail()).isEqualTo("Mail server is temporarily unavailable"));
+		// One more failed attempt opens the circuit breaker, which then fails the remaining attempts fast
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> emailService.sendMail(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(SERVICE_UNAVAILABLE);
+				assertThat(thrownProblem.getDetail()).isEqualTo("Mail sender for municipalityId " + MUNICIPALITY_ID + " is temporarily unavailable");
+			});
+
+		verify(mockMailSender, times(4)).sendEmail(request);
+		verify(mockMailSender).getMunicipalityId();
+		verify(mockMailSender, times(4)).getTransport();
+		verifyNoMoreInteractions(mockMailSender);
+		assertThat(meterRegistry.get(EmailService.SEND_METRIC_NAME).tag("outcome", "unavailable").timer().count()).isOne();
+		assertThat(meterRegistry.get(EmailService.SEND_METRIC_NAME).tag("outcome", "circuit_open").timer().count()).isOne();
+	}
+
+	@Test
+	void sendMailInLimitedLane() throws Exception {
+		var lowPriorityRequest = SendEmailRequestBuilder.from(createValidSendEmailRequest()).withPriority(SendEmailRequest.Priority.LOW).build();
+		var highPriorityRequest = SendEmailRequestBuilder.from(createValidSendEmailRequest()).withPriority(SendEmailRequest.Priority.HIGH).build();
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+
+		doAnswer(invocation -> {
+			if (invocation.<SendEmailRequest>getArgument(0).priority() == SendEmailRequest.Priority.LOW) {
+				started.countDown();
+				release.await();
+			}
+			return null;
+		}).when(mockMailSender).sendEmail(any());
+
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			// The first LOW priority e-mail takes the only place in its lane
+			var first = executor.submit(() -> emailService.sendMail(MUNICIPALITY_ID, lowPriorityRequest));
+			assertThat(started.await(5, SECONDS)).isTrue();
+
+			assertThatExceptionOfType(ThrowableProblem.class)
+				.isThrownBy(() -> emailService.sendMail(MUNICIPALITY_ID, lowPriorityRequest))
+				.satisfies(thrownProblem -> {
+					assertThat(thrownProblem.getStatus()).isEqualTo(SERVICE_UNAVAILABLE);
+					assertThat(thrownProblem.getDetail()).isEqualTo("Send lane LOW for municipalityId " + MUNICIPALITY_ID + " is busy");
+				});
+			// HIGH priority e-mails are never held up by LOW priority ones
+			emailService.sendMail(MUNICIPALITY_ID, highPriorityRequest);
+
+			release.countDown();
+			first.get(5, SECONDS);
+		}
+
+		assertThat(meterRegistry.get(EmailService.LANE_WAIT_METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "priority", "low").timer().count()).isEqualTo(2);
+		assertThat(meterRegistry.get(EmailService.LANE_WAIT_METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "priority", "high").timer().count()).isOne();
+		assertThat(meterRegistry.get(EmailService.SEND_METRIC_NAME).tag("outcome", "success").timer().count()).isEqualTo(2);
+	}
+
+	@Test
+	void sendMailInSharedLane() throws Exception {
+		// NORMAL and LOW priority e-mails share a single place, which leaves the rest of the mail sender for HIGH ones
+		var sharedLaneEmailService = createEmailService(new PriorityProperties(0, 1, 1, Duration.ofMillis(100)));
+		var normalPriorityRequest = createValidSendEmailRequest();
+		var lowPriorityRequest = SendEmailRequestBuilder.from(createValidSendEmailRequest()).withPriority(SendEmailRequest.Priority.LOW).build();
+		var highPriorityRequest = SendEmailRequestBuilder.from(createValidSendEmailRequest()).withPriority(SendEmailRequest.Priority.HIGH).build();
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+
+		doAnswer(invocation -> {
+			if (invocation.<SendEmailRequest>getArgument(0).priority() == null) {
+				started.countDown();
+				release.await();
+			}
+			return null;
+		}).when(mockMailSender).sendEmail(any());
+
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			// The NORMAL priority e-mail takes the only place in the shared lane
+			var first = executor.submit(() -> sharedLaneEmailService.sendMail(MUNICIPALITY_ID, normalPriorityRequest));
+			assertThat(started.await(5, SECONDS)).isTrue();
+
+			assertThatExceptionOfType(ThrowableProblem.class)
+				.isThrownBy(() -> sharedLaneEmailService.sendMail(MUNICIPALITY_ID, lowPriorityRequest))
+				.satisfies(thrownProblem -> {
+					assertThat(thrownProblem.getStatus()).isEqualTo(SERVICE_UNAVAILABLE);
+					assertThat(thrownProblem.getDetail()).isEqualTo("Send lane LOW for municipalityId " + MUNICIPALITY_ID + " is busy");
+				});
+			sharedLaneEmailService.sendMail(MUNICIPALITY_ID, highPriorityRequest);
+
+			release.countDown();
+			first.get(5, SECONDS);
+		}
+
+		// The LOW priority e-mail that gave up left its own lane, so the next one gets in
+		sharedLaneEmailService.sendMail(MUNICIPALITY_ID, lowPriorityRequest);
+
+		assertThat(meterRegistry.get(EmailService.SEND_METRIC_NAME).tag("outcome", "success").timer().count()).isEqualTo(3);
+	}
+
+	@Test
+	void priorityOf() {
+		assertThat(EmailService.priorityOf(createValidSendEmailRequest())).isEqualTo(SendEmailRequest.Priority.NORMAL);
+		assertThat(EmailService.priorityOf(SendEmailRequestBuilder.from(createValidSendEmailRequest()).withPriority(SendEmailRequest.Priority.LOW).build()))
+			.isEqualTo(SendEmailRequest.Priority.LOW);
+	}
+
+	@Test
+	void isTransient() {
+		assertThat(EmailService.isTransient(Problem.valueOf(SERVICE_UNAVAILABLE, "detail"))).isTrue();
+		assertThat(EmailService.isTransient(Problem.valueOf(TOO_MANY_REQUESTS, "detail"))).isTrue();
+		assertThat(EmailService.isTransient(Problem.valueOf(GATEWAY_TIMEOUT, "detail"))).isTrue();
+		assertThat(EmailService.isTransient(Problem.valueOf(INTERNAL_SERVER_ERROR, "detail"))).isFalse();
+		assertThat(EmailService.isTransient(Problem.valueOf(BAD_REQUEST, "detail"))).isFalse();
+		assertThat(EmailService.isTransient(new IllegalStateException())).isFalse();
+	}
+
+	@Test
+	void isRetryable() {
+		assertThat(EmailService.isRetryable(Problem.valueOf(SERVICE_UNAVAILABLE, "detail"))).isTrue();
+		assertThat(EmailService.isRetryable(Problem.valueOf(TOO_MANY_REQUESTS, "detail"))).isTrue();
+		// The e-mail may have been sent
+		assertThat(EmailService.isRetryable(Problem.valueOf(GATEWAY_TIMEOUT, "detail"))).isFalse();
+		assertThat(EmailService.isRetryable(Problem.valueOf(INTERNAL_SERVER_ERROR, "detail"))).isFalse();
+		assertThat(EmailService.isRetryable(new IllegalStateException())).isFalse();
 	}
 }
@@ -0,0 +1,163 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.ObjectProvider;
+import se.sundsvall.dept44.problem.Problem;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.configuration.IdempotencyProperties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.CONFLICT;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+
+@ExtendWith(MockitoExtension.class)
+class IdempotencyServiceTests {
+
+	private static final String MUNICIPALITY_ID = "1234";
+	private static final Duration MAX_WAIT = Duration.ofSeconds(5);
+
+	@Mock
+	private ObjectProvider<IdempotencyStore> mockStores;
+
+	@Mock
+	private IdempotencyStore mockStore;
+
+	private SimpleMeterRegistry meterRegistry;
+	private IdempotencyService idempotencyService;
+
+	@BeforeEach
+	void setUp() {
+		when(mockStores.getIfAvailable(any())).thenReturn(mockStore);
+
+		meterRegistry = new SimpleMeterRegistry();
+		idempotencyService = new IdempotencyService(mockStores, new IdempotencyProperties(Duration.ofHours(24), 100, MAX_WAIT), meterRegistry);
+	}
+
+	@Test
+	void executeWithoutIdempotencyKey() {
+		var sends = new AtomicInteger();
+
+		idempotencyService.execute(MUNICIPALITY_ID, null, sends::incrementAndGet);
+
+		assertThat(sends).hasValue(1);
+		verifyNoInteractions(mockStore);
+	}
+
+	@Test
+	void executeWithLocalStore() {
+		when(mockStores.getIfAvailable(any())).thenAnswer(invocation -> invocation.<Supplier<?>>getArgument(0).get());
+		var localIdempotencyService = new IdempotencyService(mockStores, new IdempotencyProperties(Duration.ofHours(24), 100, MAX_WAIT), meterRegistry);
+		var sends = new AtomicInteger();
+
+		localIdempotencyService.execute(MUNICIPALITY_ID, "someKey", sends::incrementAndGet);
+		localIdempotencyService.execute(MUNICIPALITY_ID, "someKey", sends::incrementAndGet);
+		// Keys are scoped by municipality
+		localIdempotencyService.execute("5678", "someKey", sends::incrementAndGet);
+
+		assertThat(sends).hasValue(2);
+		assertThat(meterRegistry.get(IdempotencyService.METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "result", IdempotencyService.RESULT_REPLAYED).counter().count()).isOne();
+	}
+
+	@Test
+	void executeWhenClaimed() throws Exception {
+		var sends = new AtomicInteger();
+		when(mockStore.claim(MUNICIPALITY_ID + ":someKey", MAX_WAIT)).thenReturn(Optional.empty());
+
+		idempotencyService.execute(MUNICIPALITY_ID, "someKey", sends::incrementAndGet);
+
+		assertThat(sends).hasValue(1);
+		verify(mockStore).complete(MUNICIPALITY_ID + ":someKey", new IdempotencyStore.Outcome(200, null));
+		assertThat(meterRegistry.get(IdempotencyService.METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "result", IdempotencyService.RESULT_CLAIMED).counter().count()).isOne();
+	}
+
+	@Test
+	void executeReplaysSuccess() throws Exception {
+		var sends = new AtomicInteger();
+		when(mockStore.claim(MUNICIPALITY_ID + ":someKey", MAX_WAIT)).thenReturn(Optional.of(new IdempotencyStore.Outcome(200, null)));
+
+		idempotencyService.execute(MUNICIPALITY_ID, "someKey", sends::incrementAndGet);
+
+		assertThat(sends).hasValue(0);
+		assertThat(meterRegistry.get(IdempotencyService.METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "result", IdempotencyService.RESULT_REPLAYED).counter().count()).isOne();
+	}
+
+	@Test
+	void executeReplaysFailure() throws Exception {
+		when(mockStore.claim(MUNICIPALITY_ID + ":someKey", MAX_WAIT)).thenReturn(Optional.of(new IdempotencyStore.Outcome(400, "Bad e-mail")));
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> idempotencyService.execute(MUNICIPALITY_ID, "someKey", () -> {}))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST);
+				assertThat(thrownProblem.getDetail()).isEqualTo("Bad e-mail");
+			});
+	}
+
+	@Test
+	void executeRemembersFinalFailure() throws Exception {
+		when(mockStore.claim(MUNICIPALITY_ID + ":someKey", MAX_WAIT)).thenReturn(Optional.empty());
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> idempotencyService.execute(MUNICIPALITY_ID, "someKey", () -> {
+				throw Problem.valueOf(BAD_REQUEST, "Bad e-mail");
+			}));
+
+		verify(mockStore).complete(MUNICIPALITY_ID + ":someKey", new IdempotencyStore.Outcome(400, "Bad e-mail"));
+	}
+
+	@Test
+	void executeReleasesKeyAfterOtherFailure() throws Exception {
+		when(mockStore.claim(MUNICIPALITY_ID + ":someKey", MAX_WAIT)).thenReturn(Optional.empty());
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> idempotencyService.execute(MUNICIPALITY_ID, "someKey", () -> {
+				throw Problem.valueOf(SERVICE_UNAVAILABLE, "Mail server is temporarily unavailable");
+			}));
+		assertThatExceptionOfType(IllegalStateException.class)
+			.isThrownBy(() -> idempotencyService.execute(MUNICIPALITY_ID, "someKey", () -> {
+				throw new IllegalStateException();
+			}));
+
+		verify(mockStore, times(2)).release(MUNICIPALITY_ID + ":someKey");
+	}
+
+	@Test
+	void executeWhenConcurrentAttemptTimesOut() throws Exception {
+		when(mockStore.claim(MUNICIPALITY_ID + ":someKey", MAX_WAIT)).thenThrow(new TimeoutException());
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> idempotencyService.execute(MUNICIPALITY_ID, "someKey", () -> {}))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(CONFLICT);
+				assertThat(thrownProblem.getDetail()).isEqualTo("An e-mail with idempotency key someKey is still being sent");
+			});
+		assertThat(meterRegistry.get(IdempotencyService.METRIC_NAME).tags("municipality", MUNICIPALITY_ID, "result", IdempotencyService.RESULT_CONFLICT).counter().count()).isOne();
+	}
+
+	@Test
+	void isFinal() {
+		assertThat(IdempotencyService.isFinal(Problem.valueOf(BAD_REQUEST, "detail"))).isTrue();
+		assertThat(IdempotencyService.isFinal(Problem.valueOf(TOO_MANY_REQUESTS, "detail"))).isFalse();
+		assertThat(IdempotencyService.isFinal(Problem.valueOf(INTERNAL_SERVER_ERROR, "detail"))).isFalse();
+		assertThat(IdempotencyService.isFinal(Problem.valueOf(SERVICE_UNAVAILABLE, "detail"))).isFalse();
+	}
+}
@@ -0,0 +1,91 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.sundsvall.emailsender.configuration.IdempotencyProperties;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class LocalIdempotencyStoreTests {
+
+	private static final Duration MAX_WAIT = Duration.ofSeconds(5);
+
+	private SimpleMeterRegistry meterRegistry;
+	private LocalIdempotencyStore store;
+
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		store = new LocalIdempotencyStore(new IdempotencyProperties(Duration.ofMinutes(1), 100, MAX_WAIT), meterRegistry);
+	}
+
+	@Test
+	void claimAndComplete() throws Exception {
+		var outcome = new IdempotencyStore.Outcome(200, null);
+
+		assertThat(store.claim("someKey", MAX_WAIT)).isEmpty();
+		store.complete("someKey", outcome);
+
+		assertThat(store.claim("someKey", MAX_WAIT)).hasValue(outcome);
+		assertThat(store.claim("someOtherKey", MAX_WAIT)).isEmpty();
+		assertThat(meterRegistry.get("cache.size").tag("cache", LocalIdempotencyStore.CACHE_NAME).gauge().value()).isEqualTo(2);
+	}
+
+	@Test
+	void claimAfterRelease() throws Exception {
+		assertThat(store.claim("someKey", MAX_WAIT)).isEmpty();
+		store.release("someKey");
+
+		assertThat(store.claim("someKey", MAX_WAIT)).isEmpty();
+	}
+
+	@Test
+	void claimWaitsForConcurrentAttempt() throws Exception {
+		var outcome = new IdempotencyStore.Outcome(400, "Bad e-mail");
+		assertThat(store.claim("someKey", MAX_WAIT)).isEmpty();
+
+		var repeatedClaim = CompletableFuture.supplyAsync(() -> {
+			try {
+				return store.claim("someKey", MAX_WAIT);
+			} catch (final Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertThat(repeatedClaim).isNotDone();
+
+		store.complete("someKey", outcome);
+
+		assertThat(repeatedClaim.get(MAX_WAIT.toMillis(), MILLISECONDS)).hasValue(outcome);
+	}
+
+	@Test
+	void claimWaitsForConcurrentAttemptThatIsReleased() throws Exception {
+		assertThat(store.claim("someKey", MAX_WAIT)).isEmpty();
+
+		var repeatedClaim = CompletableFuture.supplyAsync(() -> {
+			try {
+				return store.claim("someKey", MAX_WAIT);
+			} catch (final Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		store.release("someKey");
+
+		// The repeated claim gets to send its e-mail instead
+		assertThat(repeatedClaim.get(MAX_WAIT.toMillis(), MILLISECONDS)).isEmpty();
+	}
+
+	@Test
+	void claimTimesOut() throws Exception {
+		assertThat(store.claim("someKey", MAX_WAIT)).isEmpty();
+
+		assertThatExceptionOfType(TimeoutException.class)
+			.isThrownBy(() -> store.claim("someKey", Duration.ofMillis(10)));
+	}
+}
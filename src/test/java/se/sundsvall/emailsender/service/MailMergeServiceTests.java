@@ -0,0 +1,214 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.unit.DataSize;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.api.model.MailMergeRecipientBuilder;
+import se.sundsvall.emailsender.api.model.SendEmailBatchResponse;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.api.model.TemplateBuilder;
+import se.sundsvall.emailsender.configuration.AttachmentStoreProperties;
+import se.sundsvall.emailsender.configuration.BatchSendProperties;
+import se.sundsvall.emailsender.configuration.TemplateProperties;
+import tools.jackson.databind.json.JsonMapper;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
+
+@ExtendWith(MockitoExtension.class)
+class MailMergeServiceTests {
+
+	private static final String MUNICIPALITY_ID = "1234";
+
+	@Mock
+	private EmailService mockEmailService;
+
+	@TempDir
+	private Path directory;
+
+	private final JsonMapper jsonMapper = JsonMapper.builder().build();
+	private MailMergeService mailMergeService;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		final var validator = Validation.buildDefaultValidatorFactory().getValidator();
+		final var meterRegistry = new SimpleMeterRegistry();
+		final var templateService = new TemplateService(new TemplateProperties(DataSize.ofMegabytes(1), Map.of(MUNICIPALITY_ID, Map.of(
+			"greeting", new TemplateProperties.Template(null, "Hello {{name}}")))), meterRegistry);
+		final var attachmentStore = new AttachmentStore(new AttachmentStoreProperties(directory, DataSize.ofMegabytes(1), Duration.ofDays(1)), meterRegistry);
+
+		mailMergeService = new MailMergeService(mockEmailService, new BatchEmailService(mockEmailService, validator, new BatchSendProperties(10, 2)),
+			templateService, attachmentStore, validator, new BatchSendProperties(10, 2), jsonMapper);
+	}
+
+	@Test
+	void sendMails() {
+		var message = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withEmailAddress(null)
+			.withTemplate(TemplateBuilder.create().withId("greeting").withParameters(Map.of("name", "resident")).build())
+			.build();
+		var input = ndjson(jsonMapper.writeValueAsString(message),
+			"""
+				{"emailAddress": "first@sundsvall.se", "parameters": {"name": "Kim"}}""",
+			"""
+				{"emailAddress": "not-an-email-address"}""",
+			"""
+				{"emailAddress": "third@sundsvall.se", "parameters": "not-an-object"}""",
+			"""
+				{"emailAddress": "fourth@sundsvall.se"}""");
+		var results = new ArrayList<SendEmailBatchResponse.Result>();
+
+		mailMergeService.sendMails(MUNICIPALITY_ID, input, results::add);
+
+		assertThat(results).hasSize(4);
+		assertThat(results).filteredOn(result -> result.status() == 200).extracting(SendEmailBatchResponse.Result::index).containsExactlyInAnyOrder(0, 3);
+		assertThat(results).filteredOn(result -> result.index() == 1).singleElement()
+			.satisfies(result -> {
+				assertThat(result.status()).isEqualTo(BAD_REQUEST.value());
+				assertThat(result.detail()).isEqualTo("emailAddress: must be a well-formed email address");
+			});
+		assertThat(results).filteredOn(result -> result.index() == 2).singleElement()
+			.satisfies(result -> {
+				assertThat(result.status()).isEqualTo(BAD_REQUEST.value());
+				assertThat(result.detail()).startsWith("Invalid recipient");
+			});
+
+		verify(mockEmailService).getMailSender(MUNICIPALITY_ID);
+		verify(mockEmailService, times(2)).sendMail(eq(MUNICIPALITY_ID), any(SendEmailRequest.class));
+		verifyNoMoreInteractions(mockEmailService);
+	}
+
+	@Test
+	void sendMailsWithInvalidMessage() {
+		var message = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withEmailAddress(null)
+			.withSubject(null)
+			.build();
+		var input = ndjson(jsonMapper.writeValueAsString(message), """
+			{"emailAddress": "first@sundsvall.se"}""");
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> mailMergeService.sendMails(MUNICIPALITY_ID, input, result -> {}))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST);
+				assertThat(thrownProblem.getDetail()).isEqualTo("subject: must not be blank");
+			});
+
+		verify(mockEmailService).getMailSender(MUNICIPALITY_ID);
+		verifyNoMoreInteractions(mockEmailService);
+	}
+
+	@Test
+	void sendMailsWithUnknownTemplate() {
+		var message = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withEmailAddress(null)
+			.withTemplate(TemplateBuilder.create().withId("unknown").build())
+			.build();
+		var input = ndjson(jsonMapper.writeValueAsString(message));
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> mailMergeService.sendMails(MUNICIPALITY_ID, input, result -> {}))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getDetail()).isEqualTo("No template unknown exists for municipalityId " + MUNICIPALITY_ID));
+	}
+
+	@Test
+	void sendMailsWithEmptyRequest() {
+		var input = ndjson("");
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> mailMergeService.sendMails(MUNICIPALITY_ID, input, result -> {}))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getDetail()).isEqualTo("The request must start with the e-mail to send"));
+	}
+
+	@Test
+	void sendMailsWithMalformedRecipient() {
+		var message = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withEmailAddress(null)
+			.build();
+		var input = ndjson(jsonMapper.writeValueAsString(message),
+			"""
+				{"emailAddress": "first@sundsvall.se"}""",
+			"""
+				{"emailAddress": """,
+			"""
+				{"emailAddress": "third@sundsvall.se"}""");
+		var results = new ArrayList<SendEmailBatchResponse.Result>();
+
+		mailMergeService.sendMails(MUNICIPALITY_ID, input, results::add);
+
+		assertThat(results).hasSize(2);
+		assertThat(results).filteredOn(result -> result.index() == 1).singleElement()
+			.satisfies(result -> {
+				assertThat(result.status()).isEqualTo(BAD_REQUEST.value());
+				assertThat(result.detail()).startsWith("Malformed request, no further recipients were read");
+			});
+		verify(mockEmailService).sendMail(eq(MUNICIPALITY_ID), any(SendEmailRequest.class));
+	}
+
+	@Test
+	void merge() {
+		var message = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withEmailAddress(null)
+			.withHeaders(Map.of("Auto-Submitted", List.of("auto-generated"), "Message-ID", List.of("<shared@sundsvall.se>")))
+			.withTemplate(TemplateBuilder.create().withId("greeting").withParameters(Map.of("name", "resident", "town", "Sundsvall")).build())
+			.build();
+		var recipient = MailMergeRecipientBuilder.create()
+			.withEmailAddress("recipient@sundsvall.se")
+			.withParameters(Map.of("name", "Kim"))
+			.withHeaders(Map.of("Message-ID", List.of("<recipient@sundsvall.se>")))
+			.build();
+
+		var result = mailMergeService.merge(message, recipient);
+
+		assertThat(result.emailAddress()).isEqualTo("recipient@sundsvall.se");
+		assertThat(result.headers()).containsOnly(entry("Auto-Submitted", List.of("auto-generated")), entry("Message-ID", List.of("<recipient@sundsvall.se>")));
+		assertThat(result.template().parameters()).containsOnly(entry("name", "Kim"), entry("town", "Sundsvall"));
+		// The body and the attachments are shared
+		assertThat(result.attachments()).isSameAs(message.attachments());
+		assertThat(result.htmlMessage()).isSameAs(message.htmlMessage());
+	}
+
+	@Test
+	void mergeWithParametersButNoTemplate() {
+		var message = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withEmailAddress(null)
+			.build();
+		var recipient = MailMergeRecipientBuilder.create()
+			.withEmailAddress("recipient@sundsvall.se")
+			.withParameters(Map.of("name", "Kim"))
+			.build();
+
+		assertThatIllegalArgumentException()
+			.isThrownBy(() -> mailMergeService.merge(message, recipient))
+			.withMessage("Recipient parameters need an e-mail with a template");
+	}
+
+	private static ByteArrayInputStream ndjson(final String... lines) {
+		return new ByteArrayInputStream(String.join("\n", lines).getBytes(UTF_8));
+	}
+}
@@ -0,0 +1,134 @@
+package se.sundsvall.emailsender.service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.DisposableBean;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.configuration.MailSenderRegistryProperties;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
+
+@ExtendWith(MockitoExtension.class)
+class MailSenderRegistryTests {
+
+	private static final String MUNICIPALITY_ID = "1234";
+
+	@Mock
+	private MailSender mockMailSender;
+
+	private MailSenderRegistry mailSenderRegistry;
+
+	@BeforeEach
+	void setUp() {
+		when(mockMailSender.getMunicipalityId()).thenReturn(MUNICIPALITY_ID);
+
+		mailSenderRegistry = new MailSenderRegistry(List.of(mockMailSender), new MailSenderRegistryProperties(Duration.ofSeconds(5), new MailSenderRegistryProperties.WarmUp(false, Duration.ofSeconds(5))));
+	}
+
+	@Test
+	void get() {
+		assertThat(mailSenderRegistry.get(MUNICIPALITY_ID)).isSameAs(mockMailSender);
+		assertThat(mailSenderRegistry.getAll()).containsExactly(Map.entry(MUNICIPALITY_ID, mockMailSender));
+	}
+
+	@Test
+	void getWhenNoMailSenderExists() {
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> mailSenderRegistry.get("5678"))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_GATEWAY);
+				assertThat(thrownProblem.getDetail()).isEqualTo("No mail sender exists for municipalityId 5678");
+			});
+	}
+
+	@Test
+	void send() {
+		var request = createValidSendEmailRequest();
+
+		mailSenderRegistry.send(MUNICIPALITY_ID, request);
+
+		verify(mockMailSender).sendEmail(request);
+	}
+
+	@Test
+	void replace() throws Exception {
+		var request = createValidSendEmailRequest();
+		var newMailSender = mock(MailSender.class);
+		var retiredMailSender = createDisposableMailSender();
+		mailSenderRegistry.replace(Map.of(MUNICIPALITY_ID, mockMailSender, "5678", retiredMailSender));
+
+		mailSenderRegistry.replace(Map.of(MUNICIPALITY_ID, newMailSender));
+		mailSenderRegistry.send(MUNICIPALITY_ID, request);
+
+		verify(newMailSender).sendEmail(request);
+		verify(mockMailSender, never()).sendEmail(any());
+		assertThat(mailSenderRegistry.getAll()).containsOnlyKeys(MUNICIPALITY_ID);
+		// Retired mail senders without sends in flight are destroyed right away
+		verify((DisposableBean) retiredMailSender, timeout(5000)).destroy();
+	}
+
+	@Test
+	void replaceWaitsForInFlightSends() throws Exception {
+		var request = createValidSendEmailRequest();
+		var retiredMailSender = createDisposableMailSender();
+		lenient().when(retiredMailSender.getMunicipalityId()).thenReturn(MUNICIPALITY_ID);
+		mailSenderRegistry.replace(Map.of(MUNICIPALITY_ID, retiredMailSender));
+
+		var sending = new CountDownLatch(1);
+		var finishSend = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			sending.countDown();
+			finishSend.await();
+			return null;
+		}).when(retiredMailSender).sendEmail(request);
+		var send = CompletableFuture.runAsync(() -> mailSenderRegistry.send(MUNICIPALITY_ID, request));
+		assertThat(sending.await(5, SECONDS)).isTrue();
+
+		mailSenderRegistry.replace(Map.of(MUNICIPALITY_ID, mockMailSender));
+		// New sends go to the replacement, while the retired mail sender finishes its send
+		mailSenderRegistry.send(MUNICIPALITY_ID, request);
+		verify(mockMailSender).sendEmail(request);
+		verify((DisposableBean) retiredMailSender, after(100).never()).destroy();
+
+		finishSend.countDown();
+		send.get(5, SECONDS);
+		verify((DisposableBean) retiredMailSender, timeout(5000)).destroy();
+	}
+
+	@Test
+	void destroy() throws Exception {
+		var reloadedMailSender = createDisposableMailSender();
+		mailSenderRegistry.replace(Map.of(MUNICIPALITY_ID, mockMailSender, "5678", reloadedMailSender));
+
+		mailSenderRegistry.destroy();
+
+		// Mail senders that are beans are left to the application context
+		verify((DisposableBean) reloadedMailSender).destroy();
+	}
+
+	private static MailSender createDisposableMailSender() {
+		return mock(MailSender.class, withSettings().extraInterfaces(DisposableBean.class));
+	}
+}
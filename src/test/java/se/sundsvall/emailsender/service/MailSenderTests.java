@@ -1,5 +1,7 @@
 package se.sundsvall.emailsender.service;
 
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.util.List;
 import org.junit.jupiter.api.Test;
 import se.sundsvall.emailsender.api.model.SendEmailRequest;
@@ -10,6 +12,10 @@ class MailSenderTests {
 
 	static class DummyMailSender extends AbstractMailSender {
 
+		DummyMailSender() {
+			super("dummy");
+		}
+
 		@Override
 		public void sendEmail(final SendEmailRequest request) {
 			// Do nothing, as real implementations of the sendEmail method is tested elsewhere
@@ -28,12 +34,8 @@ class MailSenderTests {
 	}
 
 	@Test
-	void decodeBase64() {
-		var validBase64 = "c29tZVZhbGlkQmFzZTY0U3RyaW5n";
-		var invalidBase64 = "%invalid-base-64-data%";
-
-		assertThat(mailSender.decodeBase64(validBase64)).hasValue("someValidBase64String");
-		assertThat(mailSender.decodeBase64(invalidBase64)).isEmpty();
+	void transport() {
+		assertThat(mailSender.getTransport()).isEqualTo("dummy");
 	}
 
 	@Test
@@ -43,5 +45,18 @@ class MailSenderTests {
 		var result = mailSender.formatHeader(strings);
 
 		assertThat(result).isEqualTo("<abc@abc> <bac@bac> <cab@cab>");
+		assertThat(mailSender.formatHeader(List.of("<abc@abc>"))).isEqualTo("<abc@abc>");
+		assertThat(mailSender.formatHeader(List.of())).isEmpty();
+	}
+
+	@Test
+	void getConnectionFailureCause() {
+		assertThat(AbstractMailSender.getConnectionFailureCause(new IllegalStateException(new SocketTimeoutException()))).hasValue("timeout");
+		assertThat(AbstractMailSender.getConnectionFailureCause(new IllegalStateException(new ConnectException()))).hasValue("connection");
+		assertThat(AbstractMailSender.getConnectionFailureCause(new IllegalStateException(new SocketTimeoutException("Connect timed out")))).hasValue("connection");
+		assertThat(AbstractMailSender.getConnectionFailureCause(new IllegalStateException())).isEmpty();
+		assertThat(AbstractMailSender.isConnectionFailure(new ConnectException())).isTrue();
+		assertThat(AbstractMailSender.isConnectionFailure(new SocketTimeoutException("Read timed out"))).isFalse();
+		assertThat(AbstractMailSender.isConnectionFailure(new IllegalStateException())).isFalse();
 	}
 }
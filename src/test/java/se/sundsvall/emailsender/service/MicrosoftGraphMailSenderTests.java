@@ -1,5 +1,9 @@
 package se.sundsvall.emailsender.service;
 
+import com.microsoft.graph.core.content.BatchRequestContent;
+import com.microsoft.graph.core.content.BatchResponseContent;
+import com.microsoft.graph.core.models.UploadResult;
+import com.microsoft.graph.core.tasks.LargeFileUploadTask;
 import com.microsoft.graph.models.BodyType;
 import com.microsoft.graph.models.Message;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
@@ -7,27 +11,52 @@ import com.microsoft.graph.users.UsersRequestBuilder;
 import com.microsoft.graph.users.item.UserItemRequestBuilder;
 import com.microsoft.graph.users.item.sendmail.SendMailPostRequestBody;
 import com.microsoft.graph.users.item.sendmail.SendMailRequestBuilder;
+import com.microsoft.kiota.ApiException;
+import com.microsoft.kiota.RequestInformation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
 import java.util.AbstractMap;
 import java.util.List;
+import java.util.stream.Stream;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Answers;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.api.model.AttachmentBuilder;
 import se.sundsvall.emailsender.api.model.Header;
+import se.sundsvall.emailsender.api.model.SendEmailRequest;
 import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.support.MailboxLimiter;
+import se.sundsvall.emailsender.support.MicroBatcher;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
 
 @ExtendWith(MockitoExtension.class)
@@ -62,6 +91,7 @@ class MicrosoftGraphMailSenderTests {
 
 		microsoftGraphMailSenderSpy.sendEmail(request);
 
+		verify(microsoftGraphMailSenderSpy).buildMessage(request);
 		verify(microsoftGraphMailSenderSpy).createMessage();
 		verify(microsoftGraphMailSenderSpy, times(2)).createRecipient(request.sender().name(), request.sender().address());
 		verify(microsoftGraphMailSenderSpy).createRecipient(request.emailAddress());
@@ -72,6 +102,8 @@ class MicrosoftGraphMailSenderTests {
 		verify(microsoftGraphMailSenderSpy, times(4)).formatHeader(anyList());
 		verify(microsoftGraphMailSenderSpy, times(4)).createHeader(any());
 		verify(microsoftGraphMailSenderSpy).createAttachment(any());
+		verify(microsoftGraphMailSenderSpy).send(any());
+		verify(microsoftGraphMailSenderSpy).post(any());
 		verify(microsoftGraphMailSenderSpy).sendEmail(request);
 
 		verify(mockMessage).setFrom(any());
@@ -94,10 +126,332 @@ class MicrosoftGraphMailSenderTests {
 		verifyNoMoreInteractions(microsoftGraphMailSenderSpy, mockMessage, mockSendMailPostRequestBody, mockGraphServiceClient, mockUsersRequestBuilder, mockUserItemRequestBuilder, mockSendMailRequestBuilder);
 	}
 
+	@Test
+	void sendEmailWithBatching() throws InterruptedException {
+		final var request = createValidSendEmailRequest();
+		final var batchingMicrosoftGraphMailSender = new MicrosoftGraphMailSender(mockGraphServiceClient, 10, Duration.ZERO);
+
+		try {
+			batchingMicrosoftGraphMailSender.sendEmail(request);
+
+			// A lone message is sent as it is, rather than in a batch of one
+			verify(mockGraphServiceClient.users().byUserId(request.sender().address()).sendMail()).post(any(SendMailPostRequestBody.class));
+			verify(mockGraphServiceClient, never()).getBatchRequestBuilder();
+		} finally {
+			batchingMicrosoftGraphMailSender.destroy();
+		}
+	}
+
+	@Test
+	void sendBatchMapsSubResponsesToTheRightCaller() throws Exception {
+		final var microsoftGraphMailSenderSpy = spy(microsoftGraphMailSender);
+		final var mockBatchRequestContent = mock(BatchRequestContent.class);
+		final var mockBatchResponseContent = mock(BatchResponseContent.class);
+		final var successfulItem = new MicroBatcher.Item<>(new MicrosoftGraphMailSender.SendMail("someSender", new SendMailPostRequestBody(), 0));
+		final var throttledItem = new MicroBatcher.Item<>(new MicrosoftGraphMailSender.SendMail("someOtherSender", new SendMailPostRequestBody(), 0));
+
+		doReturn(mockBatchRequestContent).when(microsoftGraphMailSenderSpy).createBatchRequestContent();
+		when(mockBatchRequestContent.addBatchRequestStep(any(RequestInformation.class))).thenReturn("1", "2");
+		when(mockGraphServiceClient.getBatchRequestBuilder().post(mockBatchRequestContent, null)).thenReturn(mockBatchResponseContent);
+		when(mockBatchResponseContent.getResponseById("1")).thenReturn(createResponse(202, null));
+		when(mockBatchResponseContent.getResponseById("2")).thenReturn(createResponse(429, "7"));
+
+		microsoftGraphMailSenderSpy.sendBatch(List.of(successfulItem, throttledItem));
+
+		assertThat(successfulItem.future()).isNotDone();
+		assertThat(throttledItem.future()).isCompletedExceptionally();
+		assertThat(throttledItem.future().exceptionNow()).isInstanceOfSatisfying(GraphRequestException.class, e -> {
+			assertThat(e.getStatusCode()).isEqualTo(429);
+			assertThat(e.getRetryAfter()).hasValue(Duration.ofSeconds(7));
+		});
+		verify(mockBatchRequestContent, times(2)).addBatchRequestStep(any(RequestInformation.class));
+	}
+
+	@Test
+	void sendBatchSplitsRequestsBySize() throws Exception {
+		final var microsoftGraphMailSenderSpy = spy(microsoftGraphMailSender);
+		final var mockBatchRequestContent = mock(BatchRequestContent.class);
+		final var mockBatchResponseContent = mock(BatchResponseContent.class);
+		final var largeItem = new MicroBatcher.Item<>(new MicrosoftGraphMailSender.SendMail("someSender", new SendMailPostRequestBody(), MicrosoftGraphMailSender.MAX_BATCH_PAYLOAD_SIZE - 1));
+		final var smallItem = new MicroBatcher.Item<>(new MicrosoftGraphMailSender.SendMail("someSender", new SendMailPostRequestBody(), 10));
+		final var otherSmallItem = new MicroBatcher.Item<>(new MicrosoftGraphMailSender.SendMail("someOtherSender", new SendMailPostRequestBody(), 10));
+		final var failure = new GraphRequestException(SERVICE_UNAVAILABLE.value(), null);
+
+		doThrow(failure).when(microsoftGraphMailSenderSpy).post(largeItem.value());
+		doReturn(mockBatchRequestContent).when(microsoftGraphMailSenderSpy).createBatchRequestContent();
+		when(mockBatchRequestContent.addBatchRequestStep(any(RequestInformation.class))).thenReturn("1", "2");
+		when(mockGraphServiceClient.getBatchRequestBuilder().post(mockBatchRequestContent, null)).thenReturn(mockBatchResponseContent);
+		when(mockBatchResponseContent.getResponseById(any())).thenReturn(createResponse(202, null));
+
+		microsoftGraphMailSenderSpy.sendBatch(List.of(largeItem, smallItem, otherSmallItem));
+
+		// The large message doesn't fit in a request with the others, and is posted on its own - failing on its own
+		verify(microsoftGraphMailSenderSpy).postBatch(List.of(largeItem));
+		verify(microsoftGraphMailSenderSpy).postBatch(List.of(smallItem, otherSmallItem));
+		verify(mockBatchRequestContent, times(2)).addBatchRequestStep(any(RequestInformation.class));
+		assertThat(largeItem.future().exceptionNow()).isSameAs(failure);
+		assertThat(smallItem.future()).isNotDone();
+		assertThat(otherSmallItem.future()).isNotDone();
+	}
+
+	@Test
+	void estimateSize() {
+		final var attachment = createAttachment("someFile.bin", 3000);
+		final var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withHtmlMessage(null)
+			.withMessage("someMessage")
+			.build();
+
+		// Inline attachments are base64 encoded
+		assertThat(MicrosoftGraphMailSender.estimateSize(request, List.of(attachment)))
+			.isEqualTo(MicrosoftGraphMailSender.MESSAGE_OVERHEAD + "someMessage".length() + 4000);
+		assertThat(MicrosoftGraphMailSender.estimateSize(request, List.of()))
+			.isEqualTo(MicrosoftGraphMailSender.MESSAGE_OVERHEAD + "someMessage".length());
+	}
+
+	@Test
+	void sendEmailWithLargeAttachment() throws Exception {
+		final var largeAttachment = AttachmentBuilder.create()
+			.withName("large.bin")
+			.withContentType("application/octet-stream")
+			.withContent(new byte[(int) MicrosoftGraphMailSender.LARGE_ATTACHMENT_THRESHOLD + 1])
+			.build();
+		final var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withAttachments(List.of(createValidSendEmailRequest().attachments().getFirst(), largeAttachment))
+			.build();
+		final var userId = request.sender().address();
+		final var microsoftGraphMailSenderSpy = spy(microsoftGraphMailSender);
+		final var mockMessage = mock(Message.class);
+		final var mockDraft = mock(Message.class);
+		final var mockUploadTask = mock(LargeFileUploadTask.class);
+		final var mockUploadResult = mock(UploadResult.class);
+
+		when(microsoftGraphMailSenderSpy.createMessage()).thenReturn(mockMessage);
+		when(mockGraphServiceClient.users().byUserId(userId).messages().post(mockMessage)).thenReturn(mockDraft);
+		when(mockDraft.getId()).thenReturn("someDraftId");
+		doReturn(mockUploadTask).when(microsoftGraphMailSenderSpy).createUploadTask(any(), eq(largeAttachment));
+		when(mockUploadTask.upload()).thenReturn(mockUploadResult);
+		when(mockUploadResult.isUploadSuccessful()).thenReturn(true);
+
+		microsoftGraphMailSenderSpy.sendEmail(request);
+
+		// The small attachment goes inline, and the large one is uploaded to the draft, which is then sent
+		verify(microsoftGraphMailSenderSpy).createAttachment(request.attachments().getFirst());
+		verify(microsoftGraphMailSenderSpy, never()).createAttachment(largeAttachment);
+		verify(mockMessage).setAttachments(anyList());
+		verify(microsoftGraphMailSenderSpy).uploadAttachment(userId, "someDraftId", largeAttachment);
+		verify(mockGraphServiceClient.users().byUserId(userId).messages().byMessageId("someDraftId").send()).post();
+		verify(microsoftGraphMailSenderSpy, never()).send(any());
+	}
+
+	@Test
+	void sendEmailWithSeveralAttachmentsJustUnderTheThreshold() throws Exception {
+		final var attachments = Stream.of("first.bin", "second.bin", "third.bin")
+			.map(name -> createAttachment(name, (int) MicrosoftGraphMailSender.LARGE_ATTACHMENT_THRESHOLD - 1))
+			.toList();
+		final var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withAttachments(attachments)
+			.build();
+		final var userId = request.sender().address();
+		final var microsoftGraphMailSenderSpy = spy(microsoftGraphMailSender);
+		final var mockMessage = mock(Message.class);
+		final var mockDraft = mock(Message.class);
+
+		when(microsoftGraphMailSenderSpy.createMessage()).thenReturn(mockMessage);
+		when(mockGraphServiceClient.users().byUserId(userId).messages().post(mockMessage)).thenReturn(mockDraft);
+		when(mockDraft.getId()).thenReturn("someDraftId");
+
+		microsoftGraphMailSenderSpy.sendEmail(request);
+
+		// Each attachment is small enough to go inline, but together they aren't - so only the first does, and the rest are
+		// added to the draft, each in a single request since none of them needs an upload session
+		verify(mockMessage).setAttachments(argThat(inlineAttachments -> inlineAttachments.size() == 1));
+		verify(microsoftGraphMailSenderSpy).addAttachment(userId, "someDraftId", attachments.get(1));
+		verify(microsoftGraphMailSenderSpy).addAttachment(userId, "someDraftId", attachments.get(2));
+		verify(microsoftGraphMailSenderSpy, never()).uploadAttachment(any(), any(), any());
+		verify(mockGraphServiceClient.users().byUserId(userId).messages().byMessageId("someDraftId").send()).post();
+		verify(microsoftGraphMailSenderSpy, never()).send(any());
+	}
+
+	@Test
+	void planAttachments() {
+		final var large = createAttachment("large.bin", (int) MicrosoftGraphMailSender.LARGE_ATTACHMENT_THRESHOLD / 2);
+		final var small = createAttachment("small.bin", 10);
+		final var medium = createAttachment("medium.bin", (int) MicrosoftGraphMailSender.LARGE_ATTACHMENT_THRESHOLD / 3);
+		final var huge = createAttachment("huge.bin", (int) MicrosoftGraphMailSender.LARGE_ATTACHMENT_THRESHOLD + 1);
+
+		final var plan = MicrosoftGraphMailSender.planAttachments(List.of(large, small, huge, medium));
+
+		// The smallest ones go inline, in their original order, and the rest are uploaded smallest first
+		assertThat(plan.inline()).containsExactly(small, medium);
+		assertThat(plan.uploaded()).containsExactly(large, huge);
+		assertThat(MicrosoftGraphMailSender.planAttachments(null).inline()).isEmpty();
+		assertThat(MicrosoftGraphMailSender.planAttachments(null).uploaded()).isEmpty();
+	}
+
+	@Test
+	void sendEmailWithLargeAttachmentWhenUploadFails() throws Exception {
+		final var largeAttachment = AttachmentBuilder.create()
+			.withName("large.bin")
+			.withContentType("application/octet-stream")
+			.withContent(new byte[(int) MicrosoftGraphMailSender.LARGE_ATTACHMENT_THRESHOLD + 1])
+			.build();
+		final var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withAttachments(List.of(largeAttachment))
+			.build();
+		final var userId = request.sender().address();
+		final var microsoftGraphMailSenderSpy = spy(microsoftGraphMailSender);
+		final var mockDraft = mock(Message.class);
+		final var mockUploadTask = mock(LargeFileUploadTask.class);
+		final var mockUploadResult = mock(UploadResult.class);
+
+		when(mockGraphServiceClient.users().byUserId(userId).messages().post(any())).thenReturn(mockDraft);
+		when(mockDraft.getId()).thenReturn("someDraftId");
+		doReturn(mockUploadTask).when(microsoftGraphMailSenderSpy).createUploadTask(any(), eq(largeAttachment));
+		when(mockUploadTask.upload()).thenReturn(mockUploadResult);
+		when(mockUploadResult.isUploadSuccessful()).thenReturn(false);
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> microsoftGraphMailSenderSpy.sendEmail(request))
+			.satisfies(problem -> assertThat(problem.getStatus()).isEqualTo(INTERNAL_SERVER_ERROR));
+
+		// The draft must not be left behind
+		verify(mockGraphServiceClient.users().byUserId(userId).messages().byMessageId("someDraftId")).delete();
+		verify(mockGraphServiceClient.users().byUserId(userId).messages().byMessageId("someDraftId").send(), never()).post();
+	}
+
+	@Test
+	void sendEmailWhenThrottled() {
+		final var request = createValidSendEmailRequest();
+		final var mockApiException = mock(ApiException.class);
+
+		when(mockApiException.getResponseStatusCode()).thenReturn(429);
+		doThrow(mockApiException).when(mockGraphServiceClient.users().byUserId(request.sender().address()).sendMail()).post(any());
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> microsoftGraphMailSender.sendEmail(request))
+			.satisfies(problem -> {
+				assertThat(problem.getStatus()).isEqualTo(SERVICE_UNAVAILABLE);
+				assertThat(problem.getDetail()).isEqualTo("Mailbox " + request.sender().address() + " is throttled");
+			});
+	}
+
+	@Test
+	void sendEmailWhenGraphIsUnavailable() {
+		final var request = createValidSendEmailRequest();
+		final var mockApiException = mock(ApiException.class);
+
+		when(mockApiException.getResponseStatusCode()).thenReturn(503);
+		doThrow(mockApiException).when(mockGraphServiceClient.users().byUserId(request.sender().address()).sendMail()).post(any());
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> microsoftGraphMailSender.sendEmail(request))
+			.satisfies(problem -> {
+				assertThat(problem.getStatus()).isEqualTo(SERVICE_UNAVAILABLE);
+				assertThat(problem.getDetail()).isEqualTo("Microsoft Graph is temporarily unavailable");
+			});
+	}
+
+	@Test
+	void sendEmailWhenGraphTimesOut() {
+		final var request = createValidSendEmailRequest();
+		final var mockApiException = mock(ApiException.class);
+
+		when(mockApiException.getResponseStatusCode()).thenReturn(504);
+		doThrow(mockApiException).when(mockGraphServiceClient.users().byUserId(request.sender().address()).sendMail()).post(any());
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> microsoftGraphMailSender.sendEmail(request))
+			.satisfies(problem -> assertThat(problem.getStatus()).isEqualTo(GATEWAY_TIMEOUT));
+	}
+
+	@Test
+	void isUnavailable() {
+		final var mockApiException = mock(ApiException.class);
+		when(mockApiException.getResponseStatusCode()).thenReturn(503);
+
+		assertThat(MicrosoftGraphMailSender.isUnavailable(new GraphRequestException(503, null))).isTrue();
+		assertThat(MicrosoftGraphMailSender.isUnavailable(mockApiException)).isTrue();
+		assertThat(MicrosoftGraphMailSender.isUnavailable(new GraphRequestException("Graph batch request failed", new ConnectException()))).isTrue();
+		assertThat(MicrosoftGraphMailSender.isUnavailable(new GraphRequestException("Graph batch request failed", new SocketTimeoutException("Connect timed out")))).isTrue();
+		// The e-mail may have been sent
+		assertThat(MicrosoftGraphMailSender.isUnavailable(new GraphRequestException("Graph batch request failed", new SocketTimeoutException("Read timed out")))).isFalse();
+		assertThat(MicrosoftGraphMailSender.isUnavailable(new GraphRequestException(504, null))).isFalse();
+		assertThat(MicrosoftGraphMailSender.isUnavailable(new GraphRequestException(400, null))).isFalse();
+		assertThat(MicrosoftGraphMailSender.isUnavailable(new IllegalStateException())).isFalse();
+	}
+
+	@Test
+	void isTimedOut() {
+		final var mockApiException = mock(ApiException.class);
+		when(mockApiException.getResponseStatusCode()).thenReturn(504);
+
+		assertThat(MicrosoftGraphMailSender.isTimedOut(new GraphRequestException(504, null))).isTrue();
+		assertThat(MicrosoftGraphMailSender.isTimedOut(mockApiException)).isTrue();
+		assertThat(MicrosoftGraphMailSender.isTimedOut(new GraphRequestException("Graph batch request failed", new SocketTimeoutException("Read timed out")))).isTrue();
+		assertThat(MicrosoftGraphMailSender.isTimedOut(new GraphRequestException("Graph batch request failed", new SocketTimeoutException("Connect timed out")))).isFalse();
+		assertThat(MicrosoftGraphMailSender.isTimedOut(new GraphRequestException(503, null))).isFalse();
+		assertThat(MicrosoftGraphMailSender.isTimedOut(new IllegalStateException())).isFalse();
+	}
+
+	@Test
+	void getThrottleRetryAfter() {
+		final var mockApiException = mock(ApiException.class);
+		when(mockApiException.getResponseStatusCode()).thenReturn(429);
+
+		assertThat(MicrosoftGraphMailSender.getThrottleRetryAfter(new GraphRequestException(429, Duration.ofSeconds(7)))).hasValue(Duration.ofSeconds(7));
+		assertThat(MicrosoftGraphMailSender.getThrottleRetryAfter(new GraphRequestException(429, null))).hasValue(MicrosoftGraphMailSender.DEFAULT_RETRY_AFTER);
+		assertThat(MicrosoftGraphMailSender.getThrottleRetryAfter(mockApiException)).hasValue(MicrosoftGraphMailSender.DEFAULT_RETRY_AFTER);
+		assertThat(MicrosoftGraphMailSender.getThrottleRetryAfter(new GraphRequestException(500, null))).isEmpty();
+		assertThat(MicrosoftGraphMailSender.getThrottleRetryAfter(new IllegalStateException())).isEmpty();
+	}
+
+	@Test
+	void bindTo() {
+		final var request = createValidSendEmailRequest();
+		final var meterRegistry = new SimpleMeterRegistry();
+		microsoftGraphMailSender.setMunicipalityId("1234");
+
+		microsoftGraphMailSender.bindTo(meterRegistry);
+		microsoftGraphMailSender.sendEmail(request);
+
+		assertThat(meterRegistry.get(MailboxLimiter.IN_FLIGHT_METRIC_NAME)
+			.tag("municipality", "1234")
+			.gauge().value()).isZero();
+		assertThat(meterRegistry.get(SendMetrics.BUILD_METRIC_NAME).tags("municipality", "1234", "transport", "graph", "outcome", "success").timer().count()).isOne();
+		assertThat(meterRegistry.get(SendMetrics.TRANSPORT_METRIC_NAME).tags("municipality", "1234", "transport", "graph", "outcome", "success").timer().count()).isOne();
+		assertThat(meterRegistry.get(SendMetrics.ATTACHMENTS_METRIC_NAME).tags("municipality", "1234", "transport", "graph").summary().totalAmount()).isEqualTo(request.attachments().size());
+	}
+
+	@Test
+	void sendEmailRecordsFailureCause() {
+		final var request = createValidSendEmailRequest();
+		final var meterRegistry = new SimpleMeterRegistry();
+		final var mockApiException = mock(ApiException.class);
+		microsoftGraphMailSender.setMunicipalityId("1234");
+		microsoftGraphMailSender.bindTo(meterRegistry);
+
+		when(mockApiException.getResponseStatusCode()).thenReturn(400);
+		doThrow(mockApiException).when(mockGraphServiceClient.users().byUserId(request.sender().address()).sendMail()).post(any());
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> microsoftGraphMailSender.sendEmail(request));
+
+		assertThat(meterRegistry.get(SendMetrics.FAILURES_METRIC_NAME).tags("municipality", "1234", "transport", "graph", "cause", "other").counter().count()).isOne();
+		assertThat(meterRegistry.get(SendMetrics.TRANSPORT_METRIC_NAME).tags("outcome", "failure").timer().count()).isOne();
+	}
+
+	@Test
+	void parseRetryAfter() {
+		assertThat(MicrosoftGraphMailSender.parseRetryAfter("7")).isEqualTo(Duration.ofSeconds(7));
+		assertThat(MicrosoftGraphMailSender.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT")).isNull();
+		assertThat(MicrosoftGraphMailSender.parseRetryAfter(null)).isNull();
+	}
+
 	@Test
 	void createItemBodyWhenHtmlMessageIsSet() {
 		final var request = SendEmailRequestBuilder.create()
-			.withHtmlMessage("c29tZUh0bWxNZXNzYWdl")
+			.withHtmlMessage("someHtmlMessage".getBytes(UTF_8))
 			.build();
 
 		final var itemBody = microsoftGraphMailSender.createItemBody(request);
@@ -154,4 +508,24 @@ class MicrosoftGraphMailSenderTests {
 		assertThat(header.getName()).isEqualTo("X-" + name);
 		assertThat(header.getValue()).isEqualTo(value);
 	}
+
+	private static Response createResponse(final int code, final String retryAfter) {
+		final var builder = new Response.Builder()
+			.request(new Request.Builder().url("https://graph.microsoft.com/v1.0/$batch").build())
+			.protocol(Protocol.HTTP_1_1)
+			.code(code)
+			.message("someMessage");
+		if (retryAfter != null) {
+			builder.header("Retry-After", retryAfter);
+		}
+		return builder.build();
+	}
+
+	private static SendEmailRequest.Attachment createAttachment(final String name, final int size) {
+		return AttachmentBuilder.create()
+			.withName(name)
+			.withContentType("application/octet-stream")
+			.withContent(new byte[size])
+			.build();
+	}
 }
@@ -0,0 +1,150 @@
+package se.sundsvall.emailsender.service;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OutboxJournalTests {
+
+	@TempDir
+	private Path directory;
+
+	@Test
+	void recoversRecordsThatWereNotCompleted() throws IOException {
+		try (var journal = new OutboxJournal(directory, 1024)) {
+			final var first = journal.append("first".getBytes(UTF_8));
+			journal.append("second".getBytes(UTF_8));
+			journal.complete(first);
+
+			assertThat(journal.pendingCount()).isOne();
+		}
+
+		try (var journal = new OutboxJournal(directory, 1024)) {
+			assertThat(journal.takeRecovered()).singleElement()
+				.satisfies(record -> assertThat(record.payload()).asString(UTF_8).isEqualTo("second"));
+			assertThat(journal.takeRecovered()).isEmpty();
+			// New records never reuse the ids of recovered ones
+			assertThat(journal.append("third".getBytes(UTF_8))).isEqualTo(2);
+		}
+	}
+
+	@Test
+	void recoveredRecordsAreCompletedLikeAppendedOnes() throws IOException {
+		try (var journal = new OutboxJournal(directory, 1024)) {
+			journal.append("first".getBytes(UTF_8));
+		}
+
+		try (var journal = new OutboxJournal(directory, 1024)) {
+			journal.complete(journal.takeRecovered().getFirst().id());
+		}
+
+		try (var journal = new OutboxJournal(directory, 1024)) {
+			assertThat(journal.takeRecovered()).isEmpty();
+		}
+	}
+
+	@Test
+	void deletesSegmentsOnceAllTheirRecordsAreCompleted() throws IOException {
+		try (var journal = new OutboxJournal(directory, 64)) {
+			// Each record fills all of a segment but the room for one completion
+			final var ids = IntStream.range(0, 3)
+				.mapToObj(i -> append(journal, new byte[30]))
+				.toList();
+			assertThat(journal.segmentCount()).isEqualTo(3);
+
+			// A segment isn't deleted while an older one is kept
+			journal.complete(ids.get(1));
+			assertThat(journal.segmentCount()).isEqualTo(3);
+
+			journal.complete(ids.get(0));
+			assertThat(journal.segmentCount()).isEqualTo(2);
+
+			journal.complete(ids.get(2));
+			assertThat(journal.pendingCount()).isZero();
+		}
+
+		try (var journal = new OutboxJournal(directory, 64)) {
+			assertThat(journal.takeRecovered()).isEmpty();
+			assertThat(journal.segmentCount()).isOne();
+		}
+	}
+
+	@Test
+	void recordsLargerThanASegmentGetASegmentOfTheirOwn() throws IOException {
+		final var payload = new byte[1000];
+		payload[999] = 1;
+
+		try (var journal = new OutboxJournal(directory, 64)) {
+			journal.append(payload);
+		}
+
+		try (var journal = new OutboxJournal(directory, 64)) {
+			assertThat(journal.takeRecovered()).singleElement().satisfies(record -> assertThat(record.payload()).isEqualTo(payload));
+		}
+	}
+
+	@Test
+	void createPreallocatesSegment() throws IOException {
+		final var path = directory.resolve("someSegment");
+
+		try (var segment = OutboxJournal.Segment.create(path, 0, 100_000)) {
+			assertThat(segment).isNotNull();
+		}
+
+		assertThat(Files.readAllBytes(path)).hasSize(100_000).containsOnly(0);
+	}
+
+	@Test
+	void stopsReadingAtARecordThatDoesNotMatchItsChecksum() throws IOException {
+		try (var journal = new OutboxJournal(directory, 1024)) {
+			journal.append("first".getBytes(UTF_8));
+			journal.append("second".getBytes(UTF_8));
+		}
+
+		// Corrupt the payload of the second record, as if the application crashed while it was being written
+		try (var segments = Files.list(directory); var file = new RandomAccessFile(segments.findFirst().orElseThrow().toFile(), "rw")) {
+			file.seek(2L * OutboxJournal.HEADER_SIZE + "first".length());
+			file.write('S');
+		}
+
+		try (var journal = new OutboxJournal(directory, 1024)) {
+			assertThat(journal.takeRecovered()).singleElement()
+				.satisfies(record -> assertThat(record.payload()).asString(UTF_8).isEqualTo("first"));
+		}
+	}
+
+	@Test
+	void concurrentAppendsAreAllDurable() throws Exception {
+		try (var journal = new OutboxJournal(directory, 4096); var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			final var tasks = IntStream.range(0, 500)
+				.mapToObj(i -> (Callable<Long>) () -> journal.append(("payload" + i).getBytes(UTF_8)))
+				.toList();
+			for (final var future : executor.invokeAll(tasks)) {
+				assertThat(future.get()).isNotNegative();
+			}
+		}
+
+		try (var journal = new OutboxJournal(directory, 4096)) {
+			assertThat(journal.takeRecovered()).hasSize(500)
+				.extracting(OutboxJournal.Record::id)
+				.doesNotHaveDuplicates();
+		}
+	}
+
+	private static long append(final OutboxJournal journal, final byte[] payload) {
+		try {
+			return journal.append(payload);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
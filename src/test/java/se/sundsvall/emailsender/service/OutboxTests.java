@@ -0,0 +1,71 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import se.sundsvall.emailsender.configuration.OutboxProperties;
+import tools.jackson.databind.json.JsonMapper;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
+
+class OutboxTests {
+
+	private final JsonMapper jsonMapper = JsonMapper.builder().build();
+
+	@TempDir
+	private Path directory;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+	}
+
+	private Outbox createOutbox(final boolean enabled) throws IOException {
+		return new Outbox(new OutboxProperties(enabled, directory, DataSize.ofKilobytes(64)), jsonMapper, meterRegistry);
+	}
+
+	@Test
+	void recoverEmailsThatWereNotSent() throws IOException {
+		final var request = createValidSendEmailRequest();
+
+		final var outbox = createOutbox(true);
+		final var sentId = outbox.add("1234", "someMessageId", request);
+		outbox.add("5678", "someOtherMessageId", request);
+		outbox.complete(sentId);
+		outbox.destroy();
+
+		assertThat(meterRegistry.get(Outbox.APPEND_METRIC_NAME).timer().count()).isEqualTo(2);
+
+		meterRegistry = new SimpleMeterRegistry();
+		final var restartedOutbox = createOutbox(true);
+		assertThat(meterRegistry.get(Outbox.PENDING_METRIC_NAME).gauge().value()).isOne();
+		assertThat(restartedOutbox.recover()).singleElement().satisfies(entry -> {
+			assertThat(entry.municipalityId()).isEqualTo("5678");
+			assertThat(entry.messageId()).isEqualTo("someOtherMessageId");
+			assertThat(entry.request()).usingRecursiveComparison().isEqualTo(request);
+		});
+		restartedOutbox.destroy();
+	}
+
+	@Test
+	void disabled() throws IOException {
+		final var outbox = createOutbox(false);
+
+		assertThat(outbox.add("1234", "someMessageId", createValidSendEmailRequest())).isEqualTo(Outbox.NO_ID);
+		outbox.complete(Outbox.NO_ID);
+		assertThat(outbox.recover()).isEmpty();
+		outbox.destroy();
+
+		try (var files = Files.list(directory)) {
+			assertThat(files).isEmpty();
+		}
+	}
+}
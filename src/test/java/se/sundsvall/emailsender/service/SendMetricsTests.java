@@ -0,0 +1,53 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
+
+class SendMetricsTests {
+
+	private SimpleMeterRegistry meterRegistry;
+	private SendMetrics sendMetrics;
+
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		sendMetrics = new SendMetrics("smtp");
+		sendMetrics.bindTo(meterRegistry, "1234");
+	}
+
+	@Test
+	void recordMessage() {
+		sendMetrics.recordMessage(createValidSendEmailRequest());
+
+		// Subject, plain-text message, HTML message and attachment
+		assertThat(meterRegistry.get(SendMetrics.SIZE_METRIC_NAME).tags("municipality", "1234", "transport", "smtp").summary().totalAmount()).isEqualTo(7 + 7 + 11 + 11);
+		assertThat(meterRegistry.get(SendMetrics.ATTACHMENTS_METRIC_NAME).summary().totalAmount()).isOne();
+		assertThat(meterRegistry.get(SendMetrics.ATTACHMENT_SIZE_METRIC_NAME).summary().totalAmount()).isEqualTo(11);
+	}
+
+	@Test
+	void time() throws IOException {
+		assertThat(sendMetrics.time(SendMetrics.BUILD_METRIC_NAME, () -> "someResult")).isEqualTo("someResult");
+		assertThatExceptionOfType(IOException.class)
+			.isThrownBy(() -> sendMetrics.time(SendMetrics.BUILD_METRIC_NAME, () -> {
+				throw new IOException("Failed");
+			}));
+
+		assertThat(meterRegistry.get(SendMetrics.BUILD_METRIC_NAME).tags("municipality", "1234", "transport", "smtp", "outcome", "success").timer().count()).isOne();
+		assertThat(meterRegistry.get(SendMetrics.BUILD_METRIC_NAME).tags("municipality", "1234", "transport", "smtp", "outcome", "failure").timer().count()).isOne();
+	}
+
+	@Test
+	void recordFailure() {
+		sendMetrics.recordFailure("timeout");
+		sendMetrics.recordFailure("timeout");
+
+		assertThat(meterRegistry.get(SendMetrics.FAILURES_METRIC_NAME).tags("municipality", "1234", "transport", "smtp", "cause", "timeout").counter().count()).isEqualTo(2);
+	}
+}
@@ -1,29 +1,55 @@
 package se.sundsvall.emailsender.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import jakarta.mail.Address;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeUtility;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
 import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.support.MicroBatcher;
+import se.sundsvall.emailsender.support.MimePartCache;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
 
 @ExtendWith(MockitoExtension.class)
@@ -34,9 +60,13 @@ class SmtpMailSenderTests {
 	@Mock
 	private MimeMessage mockMimeMessage;
 
-	@InjectMocks
 	private SmtpMailSender smtpMailSender;
 
+	@BeforeEach
+	void setUp() {
+		smtpMailSender = new SmtpMailSender(mockJavaMailSender);
+	}
+
 	@Test
 	void sendEmail() throws MessagingException {
 		var request = createValidSendEmailRequest();
@@ -79,4 +109,182 @@ class SmtpMailSenderTests {
 			verifyNoInteractions(mockMimeMessage);
 		}
 	}
+
+	@Test
+	void sendEmailWhenMailServerIsTemporarilyUnavailable() {
+		var request = createValidSendEmailRequest();
+
+		when(mockJavaMailSender.createMimeMessage()).thenReturn(mockMimeMessage);
+		doThrow(new MailSendException("Mail server connection failed", new MessagingException("Couldn't connect to host", new ConnectException())))
+			.when(mockJavaMailSender).send(mockMimeMessage);
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> smtpMailSender.sendEmail(request))
+			.satisfies(problem -> {
+				assertThat(problem.getStatus()).isEqualTo(SERVICE_UNAVAILABLE);
+				assertThat(problem.getDetail()).isEqualTo("Mail server is temporarily unavailable");
+			});
+	}
+
+	@Test
+	void sendEmailWhenMailServerTimesOut() {
+		var request = createValidSendEmailRequest();
+
+		when(mockJavaMailSender.createMimeMessage()).thenReturn(mockMimeMessage);
+		doThrow(new MailSendException(Map.<Object, Exception>of(mockMimeMessage, new MessagingException("Read timed out", new SocketTimeoutException("Read timed out")))))
+			.when(mockJavaMailSender).send(mockMimeMessage);
+
+		// The e-mail may already have been accepted, so it's not answered with 503, which would have it retried
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> smtpMailSender.sendEmail(request))
+			.satisfies(problem -> assertThat(problem.getStatus()).isEqualTo(GATEWAY_TIMEOUT));
+	}
+
+	@Test
+	void sendEmailWhenMailServerRejectsMessage() throws Exception {
+		var request = createValidSendEmailRequest();
+		var cause = new SMTPAddressFailedException(new InternetAddress("receiver@receiver.com"), "RCPT TO", 550, "Mailbox unavailable");
+
+		when(mockJavaMailSender.createMimeMessage()).thenReturn(mockMimeMessage);
+		doThrow(new MailSendException(Map.<Object, Exception>of(mockMimeMessage, cause)))
+			.when(mockJavaMailSender).send(mockMimeMessage);
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> smtpMailSender.sendEmail(request))
+			.satisfies(problem -> {
+				assertThat(problem.getStatus()).isEqualTo(INTERNAL_SERVER_ERROR);
+				assertThat(problem.getDetail()).isEqualTo("Unable to send e-mail");
+			});
+	}
+
+	@Test
+	void bindTo() {
+		var request = createValidSendEmailRequest();
+		var meterRegistry = new SimpleMeterRegistry();
+		smtpMailSender.setMunicipalityId("1234");
+
+		when(mockJavaMailSender.createMimeMessage()).thenReturn(mockMimeMessage);
+		doThrow(new MailSendException("Mail server connection failed", new MessagingException("Read timed out", new SocketTimeoutException())))
+			.doNothing()
+			.when(mockJavaMailSender).send(mockMimeMessage);
+
+		smtpMailSender.bindTo(meterRegistry);
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> smtpMailSender.sendEmail(request));
+		smtpMailSender.sendEmail(request);
+
+		assertThat(meterRegistry.get(SendMetrics.BUILD_METRIC_NAME).tags("municipality", "1234", "transport", "smtp", "outcome", "success").timer().count()).isEqualTo(2);
+		assertThat(meterRegistry.get(SendMetrics.TRANSPORT_METRIC_NAME).tags("municipality", "1234", "transport", "smtp", "outcome", "success").timer().count()).isOne();
+		assertThat(meterRegistry.get(SendMetrics.TRANSPORT_METRIC_NAME).tags("municipality", "1234", "transport", "smtp", "outcome", "failure").timer().count()).isOne();
+		assertThat(meterRegistry.get(SendMetrics.FAILURES_METRIC_NAME).tags("municipality", "1234", "transport", "smtp", "cause", "timeout").counter().count()).isOne();
+		assertThat(meterRegistry.get(SendMetrics.SIZE_METRIC_NAME).tags("municipality", "1234", "transport", "smtp").summary().count()).isEqualTo(2);
+	}
+
+	@Test
+	void getFailureCause() throws Exception {
+		var address = new InternetAddress("receiver@receiver.com");
+
+		assertThat(SmtpMailSender.getFailureCause(new MailAuthenticationException("Authentication failed"))).isEqualTo("authentication");
+		assertThat(SmtpMailSender.getFailureCause(new MailSendException("Failed", new SMTPAddressFailedException(address, "RCPT TO", 450, "Mailbox busy")))).isEqualTo("smtp_4xx");
+		assertThat(SmtpMailSender.getFailureCause(new MailSendException("Failed", new SMTPAddressFailedException(address, "RCPT TO", 550, "Mailbox unavailable")))).isEqualTo("smtp_5xx");
+		assertThat(SmtpMailSender.getFailureCause(new MailSendException("Failed", new MessagingException("Refused", new ConnectException())))).isEqualTo("connection");
+		assertThat(SmtpMailSender.getFailureCause(new MailSendException("Failed"))).isEqualTo("other");
+	}
+
+	@Test
+	void isTransient() throws Exception {
+		var address = new InternetAddress("receiver@receiver.com");
+
+		assertThat(SmtpMailSender.isTransient(new MailSendException("Failed", new SMTPAddressFailedException(address, "RCPT TO", 450, "Mailbox busy")))).isTrue();
+		assertThat(SmtpMailSender.isTransient(new MailSendException("Failed", new SMTPAddressFailedException(address, "RCPT TO", 550, "Mailbox unavailable")))).isFalse();
+		assertThat(SmtpMailSender.isTransient(new MailSendException(Map.<Object, Exception>of(mockMimeMessage,
+			new SMTPSendFailedException("DATA", 421, "Service not available", null, null, null, null))))).isTrue();
+		assertThat(SmtpMailSender.isTransient(new MailSendException(Map.<Object, Exception>of(mockMimeMessage,
+			new SMTPSendFailedException("DATA", 554, "Transaction failed", null, null, null, null))))).isFalse();
+		// A read timeout may happen after the e-mail has been accepted, unlike a connect timeout
+		assertThat(SmtpMailSender.isTransient(new MailSendException("Failed", new MessagingException("Timed out", new SocketTimeoutException("Read timed out"))))).isFalse();
+		assertThat(SmtpMailSender.isTransient(new MailSendException("Failed", new MessagingException("Timed out", new SocketTimeoutException("Connect timed out"))))).isTrue();
+		assertThat(SmtpMailSender.isTransient(new MailSendException("Failed", new MessagingException("Refused", new ConnectException())))).isTrue();
+		assertThat(SmtpMailSender.isTransient(new MailSendException("Failed"))).isFalse();
+	}
+
+	@Test
+	void sendEmailWithBatching() throws Exception {
+		var request = createValidSendEmailRequest();
+		var batchingSmtpMailSender = new SmtpMailSender(mockJavaMailSender, 10, Duration.ZERO);
+
+		when(mockJavaMailSender.createMimeMessage()).thenReturn(mockMimeMessage);
+
+		try {
+			batchingSmtpMailSender.sendEmail(request);
+		} finally {
+			batchingSmtpMailSender.destroy();
+		}
+
+		verify(mockJavaMailSender).send(new MimeMessage[] {
+			mockMimeMessage
+		});
+	}
+
+	@Test
+	void createMimeMessageWithCachedAttachment() throws Exception {
+		var request = createValidSendEmailRequest();
+		var javaMailSender = new JavaMailSenderImpl();
+		var cachingSmtpMailSender = new SmtpMailSender(javaMailSender, 1, Duration.ZERO, 1024 * 1024);
+		var meterRegistry = new SimpleMeterRegistry();
+		cachingSmtpMailSender.setMunicipalityId("2281");
+		cachingSmtpMailSender.bindTo(meterRegistry);
+
+		for (var i = 0; i < 2; i++) {
+			var mimeMessage = cachingSmtpMailSender.createMimeMessage(javaMailSender, request);
+			mimeMessage.saveChanges();
+			var written = new ByteArrayOutputStream();
+			mimeMessage.writeTo(written);
+
+			// The attachment reads back the same, whether it was encoded for the message or taken from the cache
+			var readBack = new MimeMessage((Session) null, new ByteArrayInputStream(written.toByteArray()));
+			var attachmentPart = (MimeBodyPart) ((Multipart) readBack.getContent()).getBodyPart(2);
+			assertThat(attachmentPart.getFileName()).isEqualTo("someName");
+			assertThat(attachmentPart.getContentType()).isEqualTo("image/jpg");
+			assertThat(attachmentPart.getEncoding()).isEqualTo("base64");
+			assertThat(attachmentPart.getInputStream()).hasBinaryContent("someContent".getBytes(UTF_8));
+		}
+
+		assertThat(meterRegistry.get(MimePartCache.REQUESTS_METRIC_NAME).tag("result", "miss").functionCounter().count()).isOne();
+		assertThat(meterRegistry.get(MimePartCache.REQUESTS_METRIC_NAME).tag("result", "hit").functionCounter().count()).isOne();
+	}
+
+	@Test
+	void sendBatchMapsFailuresToTheRightMessage() {
+		var failingMimeMessage = mock(MimeMessage.class);
+		var successfulItem = new MicroBatcher.Item<>(mockMimeMessage);
+		var failingItem = new MicroBatcher.Item<>(failingMimeMessage);
+		var cause = new MessagingException("Mailbox unavailable");
+
+		doThrow(new MailSendException(Map.<Object, Exception>of(failingMimeMessage, cause)))
+			.when(mockJavaMailSender).send(mockMimeMessage, failingMimeMessage);
+
+		smtpMailSender.sendBatch(List.of(successfulItem, failingItem));
+
+		assertThat(successfulItem.future()).isNotDone();
+		assertThat(failingItem.future()).isCompletedExceptionally();
+		assertThatExceptionOfType(CompletionException.class)
+			.isThrownBy(() -> failingItem.future().join())
+			.withCauseInstanceOf(MailSendException.class);
+		assertThat(failingItem.future().exceptionNow().getCause()).isSameAs(cause);
+	}
+
+	@Test
+	void sendBatchRethrowsWhenNoMessageIsSingledOut() {
+		var item = new MicroBatcher.Item<>(mockMimeMessage);
+		var exception = new MailSendException("Connection refused");
+
+		doThrow(exception).when(mockJavaMailSender).send(new MimeMessage[] {
+			mockMimeMessage
+		});
+
+		assertThatExceptionOfType(MailSendException.class)
+			.isThrownBy(() -> smtpMailSender.sendBatch(List.of(item)))
+			.isSameAs(exception);
+	}
 }
@@ -0,0 +1,122 @@
+package se.sundsvall.emailsender.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import se.sundsvall.dept44.problem.ThrowableProblem;
+import se.sundsvall.emailsender.api.model.SendEmailRequestBuilder;
+import se.sundsvall.emailsender.api.model.TemplateBuilder;
+import se.sundsvall.emailsender.configuration.TemplateProperties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static se.sundsvall.emailsender.TestDataFactory.createValidSendEmailRequest;
+
+class TemplateServiceTests {
+
+	private static final String MUNICIPALITY_ID = "1234";
+
+	private SimpleMeterRegistry meterRegistry;
+	private TemplateService templateService;
+
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		templateService = new TemplateService(new TemplateProperties(DataSize.ofKilobytes(1), Map.of(MUNICIPALITY_ID, Map.of(
+			"receipt", new TemplateProperties.Template("<p>Thank you, {{name}}!</p>{{#items}}<li>{{.}}</li>{{/items}}", "Thank you, {{name}}!"),
+			"htmlOnly", new TemplateProperties.Template("<p>{{name}}</p>", null),
+			"broken", new TemplateProperties.Template("{{#name}}", null)))), meterRegistry);
+	}
+
+	@Test
+	void render() {
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withTemplate(TemplateBuilder.create()
+				.withId("receipt")
+				.withParameters(Map.of("name", "<Kim>", "items", List.of("a", "b")))
+				.build())
+			.build();
+
+		var result = templateService.render(MUNICIPALITY_ID, request);
+
+		assertThat(result.template()).isNull();
+		assertThat(result.htmlMessage()).asString(UTF_8).isEqualTo("<p>Thank you, &lt;Kim&gt;!</p><li>a</li><li>b</li>");
+		assertThat(result.message()).isEqualTo("Thank you, <Kim>!");
+		assertThat(result).usingRecursiveComparison().ignoringFields("template", "htmlMessage", "message").isEqualTo(request);
+	}
+
+	@Test
+	void renderKeepsPartsThatTheTemplateDoesNotHave() {
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withTemplate(TemplateBuilder.create()
+				.withId("htmlOnly")
+				.withParameters(Map.of("name", "Kim"))
+				.build())
+			.build();
+
+		var result = templateService.render(MUNICIPALITY_ID, request);
+
+		assertThat(result.htmlMessage()).asString(UTF_8).isEqualTo("<p>Kim</p>");
+		assertThat(result.message()).isEqualTo(request.message());
+	}
+
+	@Test
+	void renderWithoutTemplate() {
+		var request = createValidSendEmailRequest();
+
+		assertThat(templateService.render(MUNICIPALITY_ID, request)).isSameAs(request);
+	}
+
+	@Test
+	void renderWithMissingParameter() {
+		var request = SendEmailRequestBuilder.from(createValidSendEmailRequest())
+			.withTemplate(TemplateBuilder.create().withId("receipt").build())
+			.build();
+
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> templateService.render(MUNICIPALITY_ID, request))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST);
+				assertThat(thrownProblem.getDetail()).startsWith("Unable to render template receipt");
+			});
+	}
+
+	@Test
+	void getCompiledTemplateWhenTemplateDoesNotExist() {
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> templateService.getCompiledTemplate(MUNICIPALITY_ID, "unknown"))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(BAD_REQUEST);
+				assertThat(thrownProblem.getDetail()).isEqualTo("No template unknown exists for municipalityId " + MUNICIPALITY_ID);
+			});
+		// Templates are registered per municipality
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> templateService.getCompiledTemplate("5678", "receipt"))
+			.satisfies(thrownProblem -> assertThat(thrownProblem.getDetail()).isEqualTo("No template receipt exists for municipalityId 5678"));
+	}
+
+	@Test
+	void getCompiledTemplateWhenTemplateIsBroken() {
+		assertThatExceptionOfType(ThrowableProblem.class)
+			.isThrownBy(() -> templateService.getCompiledTemplate(MUNICIPALITY_ID, "broken"))
+			.satisfies(thrownProblem -> {
+				assertThat(thrownProblem.getStatus()).isEqualTo(INTERNAL_SERVER_ERROR);
+				assertThat(thrownProblem.getDetail()).startsWith("Unable to compile template broken");
+			});
+	}
+
+	@Test
+	void getCompiledTemplateIsCached() {
+		var compiledTemplate = templateService.getCompiledTemplate(MUNICIPALITY_ID, "receipt");
+
+		assertThat(templateService.getCompiledTemplate(MUNICIPALITY_ID, "receipt")).isSameAs(compiledTemplate);
+		assertThat(compiledTemplate.size()).isEqualTo(81);
+		assertThat(meterRegistry.get("cache.gets").tags("cache", TemplateService.CACHE_NAME, "result", "hit").functionCounter().count()).isOne();
+	}
+}
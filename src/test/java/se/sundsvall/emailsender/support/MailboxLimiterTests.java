@@ -0,0 +1,129 @@
+package se.sundsvall.emailsender.support;
+
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class MailboxLimiterTests {
+
+	private static final String MAILBOX = "Sender@Somehost.com";
+
+	@Test
+	void executeCapsInFlightRequests() throws Exception {
+		final var limiter = new MailboxLimiter(1, Duration.ofMillis(100), throwable -> Optional.empty());
+		final var started = new CountDownLatch(1);
+		final var release = new CountDownLatch(1);
+
+		final var inFlight = CompletableFuture.runAsync(() -> {
+			try {
+				limiter.execute(MAILBOX, () -> {
+					started.countDown();
+					return release.await(5, SECONDS);
+				});
+			} catch (final Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertThat(started.await(5, SECONDS)).isTrue();
+
+		assertThatExceptionOfType(MailboxLimiter.MailboxUnavailableException.class)
+			.isThrownBy(() -> limiter.execute(MAILBOX, () -> "someResult"))
+			.withMessage("Too many concurrent requests for mailbox " + MAILBOX);
+
+		// Other mailboxes are not affected
+		assertThat(limiter.execute("other@somehost.com", () -> "someResult")).isEqualTo("someResult");
+
+		release.countDown();
+		inFlight.join();
+		assertThat(limiter.execute(MAILBOX, () -> "someResult")).isEqualTo("someResult");
+	}
+
+	@Test
+	void executeHoldsBackRequestsForThrottledMailbox() throws Exception {
+		final var limiter = new MailboxLimiter(4, Duration.ofSeconds(5), throwable -> Optional.of(Duration.ofMillis(200)));
+
+		assertThatExceptionOfType(IllegalStateException.class)
+			.isThrownBy(() -> limiter.execute(MAILBOX, () -> {
+				throw new IllegalStateException("Throttled");
+			}));
+
+		final var startTime = System.nanoTime();
+		assertThat(limiter.execute(MAILBOX, () -> "someResult")).isEqualTo("someResult");
+		assertThat(Duration.ofNanos(System.nanoTime() - startTime)).isGreaterThanOrEqualTo(Duration.ofMillis(150));
+	}
+
+	@Test
+	void executeFailsFastWhenThrottledBeyondQueueTime() {
+		final var limiter = new MailboxLimiter(4, Duration.ofMillis(100), throwable -> Optional.of(Duration.ofSeconds(10)));
+
+		assertThatExceptionOfType(IllegalStateException.class)
+			.isThrownBy(() -> limiter.execute(MAILBOX, () -> {
+				throw new IllegalStateException("Throttled");
+			}));
+
+		assertThatExceptionOfType(MailboxLimiter.MailboxUnavailableException.class)
+			.isThrownBy(() -> limiter.execute(MAILBOX, () -> "someResult"))
+			.satisfies(e -> {
+				assertThat(e.getMessage()).isEqualTo("Mailbox " + MAILBOX + " is throttled");
+				assertThat(e.getRetryAfter()).hasValueSatisfying(retryAfter -> assertThat(retryAfter).isPositive());
+			});
+	}
+
+	@Test
+	void executeKeepsTrackOfABoundedNumberOfIdleMailboxes() throws Exception {
+		final var limiter = new MailboxLimiter(1, Duration.ofMillis(100), throwable -> Optional.empty());
+		final var started = new CountDownLatch(1);
+		final var release = new CountDownLatch(1);
+
+		final var inFlight = CompletableFuture.runAsync(() -> {
+			try {
+				limiter.execute(MAILBOX, () -> {
+					started.countDown();
+					return release.await(5, SECONDS);
+				});
+			} catch (final Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertThat(started.await(5, SECONDS)).isTrue();
+
+		for (var i = 0; i < MailboxLimiter.MAX_IDLE_MAILBOXES + 100; i++) {
+			limiter.execute("sender" + i + "@somehost.com", () -> "someResult");
+		}
+
+		assertThat(limiter.size()).isLessThanOrEqualTo(MailboxLimiter.MAX_IDLE_MAILBOXES + 1);
+		// The mailbox that is in use is still kept track of, and so still capped
+		assertThatExceptionOfType(MailboxLimiter.MailboxUnavailableException.class)
+			.isThrownBy(() -> limiter.execute(MAILBOX, () -> "someResult"));
+
+		release.countDown();
+		inFlight.join();
+	}
+
+	@Test
+	void bindTo() throws Exception {
+		final var limiter = new MailboxLimiter(4, Duration.ofSeconds(1), throwable -> Optional.of(Duration.ofMillis(1)));
+		final var meterRegistry = new SimpleMeterRegistry();
+
+		limiter.bindTo(meterRegistry, Tags.of("municipality", "1234"));
+		limiter.execute("other@somehost.com", () -> "someResult");
+		assertThatExceptionOfType(IllegalStateException.class)
+			.isThrownBy(() -> limiter.execute(MAILBOX, () -> {
+				throw new IllegalStateException("Throttled");
+			}));
+
+		// The metrics are summed up over all mailboxes, which never show up as tags
+		assertThat(meterRegistry.get(MailboxLimiter.QUEUED_METRIC_NAME).tag("municipality", "1234").gauge().value()).isZero();
+		assertThat(meterRegistry.get(MailboxLimiter.IN_FLIGHT_METRIC_NAME).tag("municipality", "1234").gauge().value()).isZero();
+		assertThat(meterRegistry.get(MailboxLimiter.THROTTLED_METRIC_NAME).tag("municipality", "1234").counter().count()).isOne();
+		assertThat(meterRegistry.getMeters()).allSatisfy(meter -> assertThat(meter.getId().getTag("mailbox")).isNull());
+	}
+}
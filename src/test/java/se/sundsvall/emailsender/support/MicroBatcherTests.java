@@ -0,0 +1,108 @@
+package se.sundsvall.emailsender.support;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class MicroBatcherTests {
+
+	@Test
+	void submitCoalescesItemsWithinWindow() throws InterruptedException {
+		final var batches = new CopyOnWriteArrayList<List<String>>();
+
+		try (final var batcher = new MicroBatcher<String>("test", 10, Duration.ofMillis(500),
+			batch -> batches.add(batch.stream().map(MicroBatcher.Item::value).toList()))) {
+
+			final var futures = List.of(batcher.submit("a"), batcher.submit("b"), batcher.submit("c"));
+			CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+		}
+
+		assertThat(batches).containsExactly(List.of("a", "b", "c"));
+	}
+
+	@Test
+	void submitSplitsOnMaxBatchSize() throws InterruptedException {
+		final var batches = new CopyOnWriteArrayList<List<String>>();
+
+		try (final var batcher = new MicroBatcher<String>("test", 2, Duration.ofMillis(500),
+			batch -> batches.add(batch.stream().map(MicroBatcher.Item::value).toList()))) {
+
+			final var futures = List.of(batcher.submit("a"), batcher.submit("b"), batcher.submit("c"));
+			CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+		}
+
+		assertThat(batches).hasSize(2).allSatisfy(batch -> assertThat(batch).hasSizeLessThanOrEqualTo(2));
+		assertThat(batches.stream().flatMap(List::stream)).containsExactlyInAnyOrder("a", "b", "c");
+	}
+
+	@Test
+	void failuresAreReportedPerItem() throws InterruptedException {
+		final var failure = new IllegalStateException("Failed");
+
+		try (final var batcher = new MicroBatcher<String>("test", 10, Duration.ofMillis(100),
+			batch -> batch.stream().filter(item -> "bad".equals(item.value())).forEach(item -> item.fail(failure)))) {
+
+			final var good = batcher.submit("good");
+			final var bad = batcher.submit("bad");
+
+			assertThat(good.join()).isNull();
+			assertThatExceptionOfType(CompletionException.class)
+				.isThrownBy(bad::join)
+				.withCause(failure);
+		}
+	}
+
+	@Test
+	void handlerExceptionFailsWholeBatch() throws InterruptedException {
+		final var failure = new IllegalStateException("Failed");
+
+		try (final var batcher = new MicroBatcher<String>("test", 10, Duration.ZERO, batch -> {
+			throw failure;
+		})) {
+			final var future = batcher.submit("a");
+
+			assertThatExceptionOfType(CompletionException.class)
+				.isThrownBy(future::join)
+				.withCause(failure);
+		}
+	}
+
+	@Test
+	void submitAfterClose() throws InterruptedException {
+		final var batcher = new MicroBatcher<String>("test", 10, Duration.ZERO, batch -> {});
+		batcher.close();
+
+		assertThat(batcher.submit("a")).isCompletedExceptionally();
+	}
+
+	@Test
+	void submitWhileClosing() throws InterruptedException {
+		// Each item that races with close is either processed or failed - none is left waiting forever
+		for (var round = 0; round < 100; round++) {
+			final var batcher = new MicroBatcher<String>("test", 10, Duration.ZERO, batch -> {});
+			final var futures = new ConcurrentLinkedQueue<CompletableFuture<Void>>();
+			final var submitters = IntStream.range(0, 4)
+				.mapToObj(submitter -> Thread.ofVirtual().start(() -> {
+					for (var i = 0; i < 100; i++) {
+						futures.add(batcher.submit("a"));
+					}
+				}))
+				.toList();
+
+			batcher.close();
+			for (final var submitter : submitters) {
+				submitter.join();
+			}
+
+			assertThat(CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).exceptionally(e -> null)).succeedsWithin(Duration.ofSeconds(5));
+		}
+	}
+}
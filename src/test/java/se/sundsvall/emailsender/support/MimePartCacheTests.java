@@ -0,0 +1,99 @@
+package se.sundsvall.emailsender.support;
+
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.activation.DataHandler;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class MimePartCacheTests {
+
+	private static final byte[] CONTENT = "someContent".getBytes(UTF_8);
+
+	@Test
+	void getEncodesEachPartOnce() throws Exception {
+		final var cache = new MimePartCache(1024);
+		final var created = new AtomicInteger();
+
+		final var first = cache.get(CONTENT, "someName", "text/plain", () -> createPart(CONTENT, "someName", created));
+		// Content that is equal, but not the same, is recognised by its hash
+		final var second = cache.get(CONTENT.clone(), "someName", "text/plain", () -> createPart(CONTENT, "someName", created));
+
+		assertThat(created).hasValue(1);
+		assertThat(second).isNotSameAs(first);
+		assertThat(write(second)).isEqualTo(write(first)).isEqualTo(write(createPart(CONTENT, "someName", created)));
+		assertThat(second.getInputStream()).hasBinaryContent(CONTENT);
+	}
+
+	@Test
+	void getEncodesPartsWithOtherHeadersOnTheirOwn() throws Exception {
+		final var cache = new MimePartCache(1024);
+		final var created = new AtomicInteger();
+
+		cache.get(CONTENT, "someName", "text/plain", () -> createPart(CONTENT, "someName", created));
+		final var part = cache.get(CONTENT, "someOtherName", "text/plain", () -> createPart(CONTENT, "someOtherName", created));
+
+		assertThat(created).hasValue(2);
+		assertThat(part.getFileName()).isEqualTo("someOtherName");
+	}
+
+	@Test
+	void getWhenPartCannotBeCreated() {
+		final var cache = new MimePartCache(1024);
+		final var exception = new MessagingException("someError");
+
+		assertThatExceptionOfType(MessagingException.class)
+			.isThrownBy(() -> cache.get(CONTENT, "someName", "text/plain", () -> {
+				throw exception;
+			}))
+			.isSameAs(exception);
+	}
+
+	@Test
+	void bindToAndClear() throws Exception {
+		final var cache = new MimePartCache(1024);
+		final var meterRegistry = new SimpleMeterRegistry();
+		cache.bindTo(meterRegistry, Tags.of("municipality", "2281"));
+
+		cache.get(CONTENT, "someName", "text/plain", () -> createPart(CONTENT, "someName", new AtomicInteger()));
+		cache.get(CONTENT, "someName", "text/plain", () -> createPart(CONTENT, "someName", new AtomicInteger()));
+
+		assertThat(meterRegistry.get(MimePartCache.SIZE_METRIC_NAME).tag("municipality", "2281").gauge().value()).isPositive();
+		assertThat(meterRegistry.get(MimePartCache.REQUESTS_METRIC_NAME).tag("result", "hit").functionCounter().count()).isOne();
+		assertThat(meterRegistry.get(MimePartCache.REQUESTS_METRIC_NAME).tag("result", "miss").functionCounter().count()).isOne();
+
+		cache.clear();
+
+		assertThat(cache.size()).isZero();
+	}
+
+	@Test
+	void hash() {
+		assertThat(MimePartCache.hash("hello world".getBytes(UTF_8))).isEqualTo("b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9");
+	}
+
+	private static MimeBodyPart createPart(final byte[] content, final String name, final AtomicInteger created) throws MessagingException {
+		created.incrementAndGet();
+		final var part = new MimeBodyPart();
+		part.setFileName(name);
+		part.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "text/plain")));
+		part.setHeader("Content-Type", "text/plain");
+		part.setHeader("Content-Transfer-Encoding", "base64");
+		return part;
+	}
+
+	private static byte[] write(final MimeBodyPart part) throws IOException, MessagingException {
+		final var output = new ByteArrayOutputStream();
+		part.writeTo(output);
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,80 @@
+package se.sundsvall.emailsender.support;
+
+import java.time.Duration;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class RetryPolicyTests {
+
+	@Test
+	void executeRetriesRetryableFailures() {
+		final var retryPolicy = new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(10), Duration.ofSeconds(5), IllegalStateException.class::isInstance);
+		final var attempts = new AtomicInteger();
+		final var retried = new CopyOnWriteArrayList<RuntimeException>();
+
+		retryPolicy.execute(() -> {
+			if (attempts.incrementAndGet() < 3) {
+				throw new IllegalStateException("Transient");
+			}
+		}, retried::add);
+
+		assertThat(attempts).hasValue(3);
+		assertThat(retried).hasSize(2).allSatisfy(e -> assertThat(e).hasMessage("Transient"));
+	}
+
+	@Test
+	void executeGivesUpAfterMaxAttempts() {
+		final var retryPolicy = new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(10), Duration.ofSeconds(5), IllegalStateException.class::isInstance);
+		final var attempts = new AtomicInteger();
+
+		assertThatExceptionOfType(IllegalStateException.class)
+			.isThrownBy(() -> retryPolicy.execute(() -> {
+				throw new IllegalStateException("Transient " + attempts.incrementAndGet());
+			}, e -> {}))
+			.withMessage("Transient 3");
+	}
+
+	@Test
+	void executeDoesNotRetryOtherFailures() {
+		final var retryPolicy = new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(10), Duration.ofSeconds(5), IllegalStateException.class::isInstance);
+		final var attempts = new AtomicInteger();
+
+		assertThatExceptionOfType(IllegalArgumentException.class)
+			.isThrownBy(() -> retryPolicy.execute(() -> {
+				attempts.incrementAndGet();
+				throw new IllegalArgumentException("Permanent");
+			}, e -> {}));
+
+		assertThat(attempts).hasValue(1);
+	}
+
+	@Test
+	void executeDoesNotRetryPastDeadline() {
+		final var retryPolicy = new RetryPolicy(3, Duration.ofSeconds(10), Duration.ofSeconds(10), Duration.ZERO, IllegalStateException.class::isInstance);
+		final var attempts = new AtomicInteger();
+
+		assertThatExceptionOfType(IllegalStateException.class)
+			.isThrownBy(() -> retryPolicy.execute(() -> {
+				attempts.incrementAndGet();
+				throw new IllegalStateException("Transient");
+			}, e -> {}));
+
+		assertThat(attempts).hasValue(1);
+	}
+
+	@Test
+	void backoff() {
+		final var retryPolicy = new RetryPolicy(10, Duration.ofMillis(100), Duration.ofMillis(500), Duration.ofSeconds(5), e -> true);
+
+		IntStream.range(0, 100).forEach(i -> {
+			assertThat(retryPolicy.backoff(1)).isBetween(Duration.ZERO, Duration.ofMillis(100));
+			assertThat(retryPolicy.backoff(2)).isBetween(Duration.ZERO, Duration.ofMillis(200));
+			assertThat(retryPolicy.backoff(10)).isBetween(Duration.ZERO, Duration.ofMillis(500));
+		});
+	}
+}